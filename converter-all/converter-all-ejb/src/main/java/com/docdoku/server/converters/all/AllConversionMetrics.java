@@ -0,0 +1,39 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.all;
+
+import com.docdoku.server.converters.utils.ConversionMetricsLifecycle;
+
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+/**
+ * Conversion metrics of the all converter application, served on metrics_http_port_all.
+ */
+@Singleton
+@Startup
+public class AllConversionMetrics extends ConversionMetricsLifecycle {
+
+    @Override
+    protected String getConverterName() {
+        return "all";
+    }
+}
@@ -21,11 +21,28 @@
 package com.docdoku.server.converters.all;
 
 
+import com.docdoku.server.converters.utils.BatchCADConverter;
+import com.docdoku.server.converters.utils.BatchConversion;
+import com.docdoku.server.converters.utils.BatchConversionResult;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionMetricsInterceptor;
+import com.docdoku.server.converters.utils.ConversionQuarantine;
+import com.docdoku.server.converters.utils.ConversionQuarantineInterceptor;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.FormatRoute;
+import com.docdoku.server.converters.utils.ObjPipe;
+import com.docdoku.server.converters.utils.PostProcessing;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.ScratchSpace;
+import com.docdoku.server.converters.utils.ToolInvocation;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -33,6 +50,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -40,11 +59,18 @@ import java.util.logging.Logger;
 
 @AllFileConverter
 @Stateless
-public class AllFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, BatchCADConverter.class})
+@Interceptors({ConversionMetricsInterceptor.class, ConversionQuarantineInterceptor.class})
+public class AllFileConverterImpl implements CADConverter, BatchCADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/all/conf.properties";
     private static final Properties CONF = new Properties();
     private static final Logger LOGGER = Logger.getLogger(AllFileConverterImpl.class.getName());
+    private static final String CONVERTER_NAME = "all";
+    private static final FormatRoute FORMAT_ROUTE = new FormatRoute(CONVERTER_NAME,
+            Arrays.asList("stl", "off", "ply", "3ds", "wrl"));
+    private static final BatchConversion BATCH_CONVERSION = new BatchConversion(CONVERTER_NAME, CONF, FORMAT_ROUTE,
+            AllFileConverterImpl::invocation);
 
     static {
         try (InputStream inputStream = AllFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -52,6 +78,7 @@ public class AllFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        ConverterConfiguration.applySystemProperties(CONF, CONVERTER_NAME);
     }
 
     @Override
@@ -60,46 +87,50 @@ public class AllFileConverterImpl implements CADConverter {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
-        String meshConvBinary = CONF.getProperty("meshconv_path");
-        Path executable = Paths.get(meshConvBinary);
+        checkTool("file \"" + tmpCadFile.toString() + "\"");
 
-        // sanity checks
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary + "\" is not available");
+        // Never launch a tool on content it cannot read, the link to a misnamed file goes with the conversion
+        Path checkedFile = FORMAT_ROUTE.check(tmpCadFile, tmpDir);
+        try {
+            return convertCheckedFile(checkedFile, tmpDir);
+        } finally {
+            FormatRoute.release(tmpCadFile, checkedFile);
         }
+    }
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException("Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + meshConvBinary
-                    + "\" has no execution rights");
+    @SuppressWarnings("try")
+    private static ConversionResult convertCheckedFile(Path tmpCadFile, Path tmpDir)
+            throws ConversionException {
+        ConversionCache cache = ConversionCache.getInstance();
+        String fingerprint = ConversionCache.fingerprint(tmpCadFile, CONVERTER_NAME, CONF);
+        String cacheKey = cache.key(fingerprint);
+        ConversionResult cachedResult = cache.get(cacheKey, tmpDir);
+        if (cachedResult != null) {
+            return PostProcessing.apply(cachedResult, tmpDir);
         }
 
-        UUID uuid = UUID.randomUUID();
-        Path convertedFile = tmpDir.resolve(uuid.toString());
-        // Pass the file without extension to binary, it will add automatically the extension.
-
-        Path finalConvertedFile = tmpDir.resolve(uuid + ".obj");
-
-        String[] args = {meshConvBinary, tmpCadFile.toAbsolutePath().toString(), "-c", "obj", "-o",
-                convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-
-        try {
-            Process proc = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(proc.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(proc.getErrorStream());
-
-            LOGGER.info(stdOutput);
-
-            proc.waitFor();
-
-            if (proc.exitValue() == 0) {
-                return new ConversionResult(finalConvertedFile);
-            } else {
-                throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+        // Inputs the tool keeps failing on fail here, before any process is launched
+        ConversionQuarantine.getInstance().check(fingerprint, CONVERTER_NAME, tmpCadFile);
+
+        try (ScratchSpace.Allocation scratch = ScratchSpace.getInstance().allocate(tmpCadFile, tmpDir);
+             ConversionScheduler.Permit permit =
+                     ConversionScheduler.getInstance().acquire(CONVERTER_NAME, tmpCadFile)) {
+            ToolInvocation invocation = invocation(scratch.getInput(), scratch.getDirectory());
+            ProcessBuilder pb = new ProcessBuilder(invocation.getCommand());
+            ConversionResult result = invocation.getResult();
+            try (ObjPipe pipe = ObjPipe.forConverter(CONVERTER_NAME, result.getConvertedFile())) {
+                ProcessResult processResult = ProcessRunner.forConverter(CONVERTER_NAME).run(pb);
+
+                LOGGER.info(processResult.getStdOutput());
+
+                if (processResult.isSuccess()) {
+                    ConversionResult pipedResult = pipe.finish(result);
+                    cache.put(cacheKey, pipedResult);
+                    return scratch.attach(PostProcessing.apply(pipedResult, scratch.getDirectory()));
+                } else {
+                    throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": "
+                            + processResult.getFailureReason());
+                }
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -107,9 +138,39 @@ public class AllFileConverterImpl implements CADConverter {
         }
     }
 
+    @Override
+    public List<BatchConversionResult> convertAll(List<URI> cadFileUris, URI tmpDirUri) throws ConversionException {
+        checkTool(cadFileUris.size() + " files");
+        return BATCH_CONVERSION.run(cadFileUris, tmpDirUri);
+    }
+
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stl", "off", "ply", "3ds", "wrl").contains(cadFileExtension);
+        return FORMAT_ROUTE.accepts(cadFileExtension);
+    }
+
+    private static void checkTool(String subject) throws ConversionException {
+        String meshConvBinary = CONF.getProperty("meshconv_path");
+        Path executable = Paths.get(meshConvBinary);
+
+        if (!Files.exists(executable)) {
+            throw new ConversionException(
+                    "Cannot convert " + subject + ", \"" + meshConvBinary + "\" is not available");
+        }
+
+        if (!Files.isExecutable(executable)) {
+            throw new ConversionException("Cannot convert " + subject + ", \"" + meshConvBinary
+                    + "\" has no execution rights");
+        }
+    }
+
+    private static ToolInvocation invocation(Path cadFile, Path tmpDir) {
+        UUID uuid = UUID.randomUUID();
+        // Pass the file without extension to binary, it will add automatically the extension.
+        Path convertedFile = tmpDir.resolve(uuid.toString());
+        return new ToolInvocation(Arrays.asList(CONF.getProperty("meshconv_path"),
+                cadFile.toAbsolutePath().toString(), "-c", "obj", "-o", convertedFile.toString()),
+                tmpDir.resolve(uuid + ".obj"), Collections.emptyList());
     }
 
 }
\ No newline at end of file
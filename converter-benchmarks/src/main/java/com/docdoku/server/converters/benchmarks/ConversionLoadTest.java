@@ -0,0 +1,141 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent conversions through all the converters and the conversion scheduler, as when many files are uploaded
+ * at once. Reports the throughput, the latency percentiles and the scheduler statistics.
+ * <p>
+ * Usage: java -cp benchmarks.jar com.docdoku.server.converters.benchmarks.ConversionLoadTest
+ * [clients] [conversions] [triangles] [tool latency in ms] [converters, comma separated]
+ * <p>
+ * Settings can be changed with system properties, e.g. -Ddocdoku.converters.scheduler_global_permits=4.
+ */
+public class ConversionLoadTest {
+
+    private ConversionLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int conversions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int triangles = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        List<String> converters = args.length > 4 ? Arrays.asList(args[4].split(","))
+                : Arrays.asList(FakeTools.CONVERTERS);
+
+        FakeTools.install();
+        Path workDir = Files.createTempDirectory("conversion-load-test");
+        try {
+            List<Path> inputs = new ArrayList<>();
+            List<CADConverter> cadConverters = new ArrayList<>();
+            for (String converter : converters) {
+                inputs.add(FakeTools.writeInput(workDir, converter, triangles, latencyMillis));
+                cadConverters.add(FakeTools.converter(converter));
+            }
+
+            System.out.printf(Locale.ROOT, "%d clients, %d conversions of %d triangles, %d ms per tool run, %s%n",
+                    clients, conversions, triangles, latencyMillis, converters);
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failures = new AtomicInteger();
+            AtomicInteger next = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int client = 0; client < clients; client++) {
+                futures.add(executor.submit(() -> {
+                    int conversion;
+                    while ((conversion = next.getAndIncrement()) < conversions) {
+                        int converter = conversion % cadConverters.size();
+                        long conversionStart = System.nanoTime();
+                        try {
+                            convert(cadConverters.get(converter), inputs.get(converter), workDir);
+                            latencies.add(System.nanoTime() - conversionStart);
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                            System.err.println("Conversion " + conversion + " failed: " + e);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            report(latencies, failures.get(), elapsed);
+        } finally {
+            FakeTools.deleteRecursively(workDir);
+        }
+    }
+
+    private static void convert(CADConverter converter, Path input, Path workDir) throws Exception {
+        Path tmpDir = Files.createTempDirectory(workDir, "conversion");
+        try {
+            // The OBJ converter works in place on its input
+            Path cadFile = Files.copy(input, tmpDir.resolve(input.getFileName()));
+            ConversionResult result = converter.convert(cadFile.toUri(), tmpDir.toUri());
+            result.close();
+        } finally {
+            FakeTools.deleteRecursively(tmpDir);
+        }
+    }
+
+    private static void report(List<Long> latencies, int failures, long elapsedNanos) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%d succeeded, %d failed in %.1f s: %.1f conversions/s%n", sorted.size(),
+                failures, seconds, sorted.size() / seconds);
+        if (!sorted.isEmpty()) {
+            System.out.printf(Locale.ROOT, "latency ms: p50 %d, p90 %d, p99 %d, max %d%n",
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 1));
+        }
+        System.out.println("scheduler: " + ConversionScheduler.getInstance().getStatistics());
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, index)));
+    }
+
+}
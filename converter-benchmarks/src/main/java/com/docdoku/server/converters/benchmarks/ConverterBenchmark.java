@@ -0,0 +1,92 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.CADConverter;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end conversion by each converter, with its fake tool and the post-processing stages enabled by the
+ * settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"all", "dae", "ifc", "obj", "step"})
+    public String converter;
+
+    @Param({"1000", "100000"})
+    public int triangles;
+
+    private CADConverter cadConverter;
+    private Path workDir;
+    private Path input;
+
+    @Setup
+    public void setUp() throws Exception {
+        FakeTools.install();
+        workDir = Files.createTempDirectory("converter-benchmark");
+        input = FakeTools.writeInput(workDir, converter, triangles, 0);
+        cadConverter = FakeTools.converter(converter);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FakeTools.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Path convert() throws Exception {
+        Path tmpDir = Files.createTempDirectory(workDir, "conversion");
+        // The OBJ converter works in place on its input
+        Path cadFile = Files.copy(input, tmpDir.resolve(input.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        ConversionResult result = cadConverter.convert(cadFile.toUri(), tmpDir.toUri());
+        try {
+            return result.getConvertedFile();
+        } finally {
+            result.close();
+            FakeTools.deleteRecursively(tmpDir);
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.all.AllFileConverterImpl;
+import com.docdoku.server.converters.dae.DaeFileConverterImpl;
+import com.docdoku.server.converters.ifc.IFCFileConverterImpl;
+import com.docdoku.server.converters.obj.ObjFileConverterImpl;
+import com.docdoku.server.converters.step.StepFileConverterImpl;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stand-in executables for the CAD tools, wired into the converters through their settings.
+ * <p>
+ * The tools are shell scripts reading a fake CAD file, a properties file giving the triangle count of the mesh to
+ * emit, the time to wait before, the bytes to print and the exit code (see tools/fake-mesh.sh). They only need
+ * sh, awk and the coreutils, so the benchmarks run offline on any Linux box.
+ * <p>
+ * {@link #install()} must be called before the converter classes are loaded, since they read their settings once.
+ */
+public class FakeTools {
+
+    public static final String[] CONVERTERS = {"all", "dae", "ifc", "obj", "step"};
+
+    private static final String TOOLS = "/com/docdoku/server/converters/benchmarks/tools/";
+    private static final String[] SCRIPTS = {"fake-mesh.sh", "assimp", "IfcConvert", "meshconv", "python"};
+    private static final String PREFIX = "docdoku.converters.";
+
+    private static Path directory;
+
+    private FakeTools() {
+    }
+
+    /**
+     * Copy the fake tools to a temporary directory and point the converter settings to them. Conversion results
+     * are not cached, so that every benchmark invocation runs its tool.
+     *
+     * @return the directory of the tools
+     */
+    public static synchronized Path install() throws IOException {
+        if (directory != null) {
+            return directory;
+        }
+        Path tools = Files.createTempDirectory("converter-fake-tools");
+        for (String script : SCRIPTS) {
+            try (InputStream in = FakeTools.class.getResourceAsStream(TOOLS + script)) {
+                Files.copy(in, tools.resolve(script));
+            }
+            if (!tools.resolve(script).toFile().setExecutable(true)) {
+                throw new IOException("Cannot make " + script + " executable");
+            }
+        }
+        setDefault(PREFIX + "dae.assimp", tools.resolve("assimp").toString());
+        setDefault(PREFIX + "ifc.ifc_convert_path", tools.resolve("IfcConvert").toString());
+        setDefault(PREFIX + "all.meshconv_path", tools.resolve("meshconv").toString());
+        setDefault(PREFIX + "step.pythonInterpreter", tools.resolve("python").toString());
+        setDefault(PREFIX + "step.freeCadWorkerPool", "false");
+        setDefault(PREFIX + "cache_max_size", "0");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecursively(tools)));
+        directory = tools;
+        return tools;
+    }
+
+    /**
+     * @param name one of {@link #CONVERTERS}
+     */
+    public static CADConverter converter(String name) {
+        switch (name) {
+            case "all":
+                return new AllFileConverterImpl();
+            case "dae":
+                return new DaeFileConverterImpl();
+            case "ifc":
+                return new IFCFileConverterImpl();
+            case "obj":
+                return new ObjFileConverterImpl();
+            case "step":
+                return new StepFileConverterImpl();
+            default:
+                throw new IllegalArgumentException("Unknown converter " + name);
+        }
+    }
+
+    /**
+     * @return an extension handled by the converter
+     */
+    public static String extension(String converter) {
+        switch (converter) {
+            case "all":
+                return "stl";
+            case "ifc":
+                return "ifc";
+            case "obj":
+                return "obj";
+            case "step":
+                return "step";
+            default:
+                return converter;
+        }
+    }
+
+    /**
+     * Write the input of a conversion: a fake CAD file for the fake tools, or a real mesh for the OBJ converter.
+     */
+    public static Path writeInput(Path directory, String converter, int triangles, long latencyMillis)
+            throws IOException {
+        Path input = Files.createTempFile(directory, "part", "." + extension(converter));
+        if ("obj".equals(converter)) {
+            writeObj(input, triangles);
+        } else {
+            writeCadFile(input, triangles, latencyMillis, 0, 0);
+        }
+        return input;
+    }
+
+    /**
+     * Write a fake CAD file, see tools/fake-mesh.sh.
+     */
+    public static void writeCadFile(Path file, int triangles, long latencyMillis, long outputBytes, int exitCode)
+            throws IOException {
+        String settings = "triangles=" + triangles + "\nlatency_ms=" + latencyMillis + "\noutput_bytes="
+                + outputBytes + "\nexit_code=" + exitCode + "\n";
+        Files.write(file, settings.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Write the mesh the fake tools emit: a wavy square grid of about the given number of triangles.
+     */
+    public static void writeObj(Path file, int triangles) throws IOException {
+        int n = Math.max(1, (int) Math.sqrt(triangles / 2.0));
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i <= n; i++) {
+                for (int j = 0; j <= n; j++) {
+                    writer.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", (double) i / n, (double) j / n,
+                            0.05 * Math.sin(i * 0.3) * Math.cos(j * 0.3)));
+                }
+            }
+            writer.write("g part\n");
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    int a = i * (n + 1) + j + 1;
+                    int b = a + n + 1;
+                    writer.write("f " + a + " " + b + " " + (b + 1) + "\nf " + a + " " + (b + 1) + " " + (a + 1)
+                            + "\n");
+                }
+            }
+        }
+    }
+
+    public static void deleteRecursively(Path path) {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void setDefault(String property, String value) {
+        // Settings given on the command line win
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.utils.mesh.CanonicalFrame;
+import com.docdoku.server.converters.utils.mesh.GeometryFingerprint;
+import com.docdoku.server.converters.utils.mesh.GlbWriter;
+import com.docdoku.server.converters.utils.mesh.IndexedMesh;
+import com.docdoku.server.converters.utils.mesh.ObjMeshReader;
+import com.docdoku.server.converters.utils.mesh.ObjOptimizer;
+import com.docdoku.server.converters.utils.mesh.ObjScanner;
+import com.docdoku.server.converters.utils.mesh.QuadricSimplifier;
+import com.docdoku.server.converters.utils.mesh.QuantizedMeshWriter;
+import com.docdoku.server.converters.utils.mesh.SpilledMesh;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-processing stages run on converted files, each on its own. Stages read the same OBJ file and write to
+ * separate files, the input is never modified.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PostProcessingBenchmark {
+
+    @Param({"10000", "500000"})
+    public int triangles;
+
+    private Path workDir;
+    private Path objFile;
+    private IndexedMesh mesh;
+
+    @Setup
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("post-processing-benchmark");
+        objFile = workDir.resolve("part.obj");
+        FakeTools.writeObj(objFile, triangles);
+        mesh = ObjMeshReader.read(objFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FakeTools.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Object scan() throws IOException {
+        return ObjScanner.scan(objFile);
+    }
+
+    @Benchmark
+    public Object readMesh() throws IOException {
+        return ObjMeshReader.read(objFile);
+    }
+
+    @Benchmark
+    public long spill() throws IOException {
+        try (SpilledMesh spilled = SpilledMesh.read(objFile, workDir)) {
+            return spilled.getIndexCount();
+        }
+    }
+
+    @Benchmark
+    public Object optimize() throws IOException {
+        return ObjOptimizer.optimize(objFile, workDir.resolve("optimized.obj"));
+    }
+
+    @Benchmark
+    public long glb() throws IOException {
+        Path glbFile = workDir.resolve("part" + GlbWriter.EXTENSION);
+        GlbWriter.write(objFile, Collections.emptyList(), glbFile, workDir);
+        return Files.size(glbFile);
+    }
+
+    @Benchmark
+    public long quantize() throws IOException {
+        Path qmeshFile = workDir.resolve("part" + QuantizedMeshWriter.EXTENSION);
+        QuantizedMeshWriter.write(objFile, qmeshFile, workDir, 16, 8);
+        return Files.size(qmeshFile);
+    }
+
+    @Benchmark
+    public Object simplify() {
+        return QuadricSimplifier.simplify(mesh, mesh.getTriangleCount() / 4);
+    }
+
+    @Benchmark
+    public void fingerprint(Blackhole blackhole) throws IOException {
+        CanonicalFrame frame = CanonicalFrame.of(mesh);
+        blackhole.consume(GeometryFingerprint.key(mesh, GeometryFingerprint.canonicalPositions(mesh, frame),
+                Collections.emptyList()));
+    }
+
+}
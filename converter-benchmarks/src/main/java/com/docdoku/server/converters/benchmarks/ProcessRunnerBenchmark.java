@@ -0,0 +1,96 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of running a conversion tool: process launch, and draining of its outputs when it is verbose.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessRunnerBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 60000;
+    private static final int MAX_OUTPUT_BYTES = 64 * 1024;
+
+    @Param({"0", "1048576", "67108864"})
+    public long outputBytes;
+
+    private Path tools;
+    private Path workDir;
+    private Path cadFile;
+    private ProcessRunner runner;
+
+    @Setup
+    public void setUp() throws IOException {
+        tools = FakeTools.install();
+        workDir = Files.createTempDirectory("process-benchmark");
+        cadFile = workDir.resolve("part.dae");
+        FakeTools.writeCadFile(cadFile, 2, 0, outputBytes, 0);
+        runner = new ProcessRunner(TIMEOUT_MILLIS, MAX_OUTPUT_BYTES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FakeTools.deleteRecursively(workDir);
+    }
+
+    /**
+     * Launch of a process doing nothing, the floor of any conversion.
+     */
+    @Benchmark
+    public ProcessResult launch() throws IOException, InterruptedException {
+        return runner.run(new ProcessBuilder("true"));
+    }
+
+    /**
+     * Fake tool printing the given number of bytes before writing a tiny mesh.
+     */
+    @Benchmark
+    public ProcessResult fakeTool() throws IOException, InterruptedException {
+        return runner.run(new ProcessBuilder(tools.resolve("assimp").toString(), "export", cadFile.toString(),
+                workDir.resolve("part.obj").toString()));
+    }
+
+}
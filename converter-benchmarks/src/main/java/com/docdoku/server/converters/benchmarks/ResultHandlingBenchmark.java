@@ -0,0 +1,119 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.benchmarks;
+
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a conversion result once the tool is done: the post-processing chain with the configured settings,
+ * and the conversion cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ResultHandlingBenchmark {
+
+    private static final long CACHE_SIZE = 512L * 1024 * 1024;
+
+    @Param({"10000", "500000"})
+    public int triangles;
+
+    private Path workDir;
+    private Path objFile;
+    private ConversionCache cache;
+    private String cachedKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        FakeTools.install();
+        workDir = Files.createTempDirectory("result-benchmark");
+        objFile = workDir.resolve("part.obj");
+        FakeTools.writeObj(objFile, triangles);
+
+        cache = new ConversionCache(Files.createDirectory(workDir.resolve("cache")), CACHE_SIZE);
+        cachedKey = cache.key(objFile, "benchmark", new Properties());
+        cache.put(cachedKey, new ConversionResult(objFile, new ArrayList<>()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        FakeTools.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Object postProcessing() throws Exception {
+        Path tmpDir = Files.createTempDirectory(workDir, "conversion");
+        Path convertedFile = Files.copy(objFile, tmpDir.resolve(objFile.getFileName()));
+        try (ExtendedConversionResult result = PostProcessing.apply(
+                new ConversionResult(convertedFile, new ArrayList<>()), tmpDir)) {
+            return result.getArtifacts();
+        } finally {
+            FakeTools.deleteRecursively(tmpDir);
+        }
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return cache.key(objFile, "benchmark", new Properties());
+    }
+
+    @Benchmark
+    public void cachePut() {
+        // A new entry each time, older ones are evicted once the cache is full
+        cache.put(UUID.randomUUID().toString().replace("-", ""), new ConversionResult(objFile, new ArrayList<>()));
+    }
+
+    @Benchmark
+    public Path cacheGet() throws Exception {
+        Path tmpDir = Files.createTempDirectory(workDir, "conversion");
+        try (ConversionResult result = cache.get(cachedKey, tmpDir)) {
+            return result.getConvertedFile();
+        } finally {
+            FakeTools.deleteRecursively(tmpDir);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+#!/bin/sh
+#
+# Stand-in for the CAD conversion tools, so that the converters can be benchmarked without them.
+#
+# Usage: fake-mesh.sh <cad file> <obj file> [<mtl file>]
+#
+# The "CAD file" is a properties file describing what the tool does:
+#   triangles=N      triangles of the emitted mesh (default 1000)
+#   latency_ms=N     time spent before writing the mesh (default 0)
+#   output_bytes=N   bytes printed on the standard output (default 0)
+#   exit_code=N      exit code, the mesh is not written when not 0 (default 0)
+
+set -e
+
+cad_file=$1
+obj_file=$2
+mtl_file=$3
+
+setting() {
+    value=$(sed -n "s/^$1=//p" "$cad_file" | head -n 1)
+    echo "${value:-$2}"
+}
+
+triangles=$(setting triangles 1000)
+latency_ms=$(setting latency_ms 0)
+output_bytes=$(setting output_bytes 0)
+exit_code=$(setting exit_code 0)
+
+if [ "$latency_ms" -gt 0 ]; then
+    sleep "$(awk -v ms="$latency_ms" 'BEGIN { print ms / 1000 }')"
+fi
+
+if [ "$output_bytes" -gt 0 ]; then
+    head -c "$output_bytes" /dev/zero | tr '\0' '.'
+fi
+
+if [ "$exit_code" -ne 0 ]; then
+    echo "fake failure of $cad_file" >&2
+    exit "$exit_code"
+fi
+
+# Wavy square grid of about the requested number of triangles
+awk -v triangles="$triangles" -v mtl="$(basename "${mtl_file:-}")" 'BEGIN {
+    n = int(sqrt(triangles / 2)); if (n < 1) n = 1
+    if (mtl != "") { print "mtllib " mtl }
+    for (i = 0; i <= n; i++)
+        for (j = 0; j <= n; j++)
+            printf "v %.6f %.6f %.6f\n", i / n, j / n, 0.05 * sin(i * 0.3) * cos(j * 0.3)
+    print "g part"
+    if (mtl != "") { print "usemtl fake" }
+    for (i = 0; i < n; i++)
+        for (j = 0; j < n; j++) {
+            a = i * (n + 1) + j + 1; b = a + n + 1
+            printf "f %d %d %d\nf %d %d %d\n", a, b, b + 1, a, b + 1, a + 1
+        }
+}' > "$obj_file"
+
+if [ -n "$mtl_file" ]; then
+    printf 'newmtl fake\nKd 0.8 0.8 0.8\nNs 32\n' > "$mtl_file"
+fi
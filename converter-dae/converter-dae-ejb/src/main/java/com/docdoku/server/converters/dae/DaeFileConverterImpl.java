@@ -22,11 +22,28 @@ package com.docdoku.server.converters.dae;
 
 
 
+import com.docdoku.server.converters.utils.BatchCADConverter;
+import com.docdoku.server.converters.utils.BatchConversion;
+import com.docdoku.server.converters.utils.BatchConversionResult;
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionMetricsInterceptor;
+import com.docdoku.server.converters.utils.ConversionQuarantine;
+import com.docdoku.server.converters.utils.ConversionQuarantineInterceptor;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.FormatRoute;
+import com.docdoku.server.converters.utils.ObjPipe;
+import com.docdoku.server.converters.utils.PostProcessing;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.ScratchSpace;
+import com.docdoku.server.converters.utils.ToolInvocation;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
+import javax.ejb.Local;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -39,11 +56,18 @@ import java.util.logging.Logger;
 
 @DaeFileConverter
 @Stateless
-public class DaeFileConverterImpl implements CADConverter {
+@Local({CADConverter.class, BatchCADConverter.class})
+@Interceptors({ConversionMetricsInterceptor.class, ConversionQuarantineInterceptor.class})
+public class DaeFileConverterImpl implements CADConverter, BatchCADConverter {
 
     static final String CONF_PROPERTIES = "/com/docdoku/server/converters/dae/conf.properties";
     static final Properties CONF = new Properties();
     static final Logger LOGGER = Logger.getLogger(DaeFileConverterImpl.class.getName());
+    static final String CONVERTER_NAME = "dae";
+    static final FormatRoute FORMAT_ROUTE = new FormatRoute(CONVERTER_NAME,
+            Arrays.asList("dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d"));
+    static final BatchConversion BATCH_CONVERSION = new BatchConversion(CONVERTER_NAME, CONF, FORMAT_ROUTE,
+            DaeFileConverterImpl::invocation);
 
     static {
         try (InputStream inputStream = DaeFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -51,6 +75,7 @@ public class DaeFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        ConverterConfiguration.applySystemProperties(CONF, CONVERTER_NAME);
     }
 
     @Override
@@ -60,45 +85,50 @@ public class DaeFileConverterImpl implements CADConverter {
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
-        String assimp = CONF.getProperty("assimp");
-        Path executable = Paths.get(assimp);
-
-        // Sanity checks
+        checkTool("file \"" + tmpCadFile.toString() + "\"");
 
-        if (!Files.exists(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" is not available");
+        // Never launch a tool on content it cannot read, the link to a misnamed file goes with the conversion
+        Path checkedFile = FORMAT_ROUTE.check(tmpCadFile, tmpDir);
+        try {
+            return convertCheckedFile(checkedFile, tmpDir);
+        } finally {
+            FormatRoute.release(tmpCadFile, checkedFile);
         }
+    }
 
-        if (!Files.isExecutable(executable)) {
-            throw new ConversionException(
-                    "Cannot convert file \"" + tmpCadFile.toString() + "\", \"" + assimp + "\" has no execution rights");
+    @SuppressWarnings("try")
+    private static ConversionResult convertCheckedFile(Path tmpCadFile, Path tmpDir)
+            throws ConversionException {
+        ConversionCache cache = ConversionCache.getInstance();
+        String fingerprint = ConversionCache.fingerprint(tmpCadFile, CONVERTER_NAME, CONF);
+        String cacheKey = cache.key(fingerprint);
+        ConversionResult cachedResult = cache.get(cacheKey, tmpDir);
+        if (cachedResult != null) {
+            return PostProcessing.apply(cachedResult, tmpDir);
         }
 
-        UUID uuid = UUID.randomUUID();
-        Path convertedFile = tmpDir.resolve(uuid + ".obj");
-        Path convertedMtlFile = tmpDir.resolve(uuid + ".obj.mtl");
-
-        String[] args = {assimp, "export", tmpCadFile.toAbsolutePath().toString(), convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
-        try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
-
-            process.waitFor();
-
-            if (process.exitValue() == 0) {
-                List<Path> materials = new ArrayList<>();
-                materials.add(convertedMtlFile);
-                return new ConversionResult(convertedFile, materials);
-            } else {
-                throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+        // Inputs the tool keeps failing on fail here, before any process is launched
+        ConversionQuarantine.getInstance().check(fingerprint, CONVERTER_NAME, tmpCadFile);
+
+        try (ScratchSpace.Allocation scratch = ScratchSpace.getInstance().allocate(tmpCadFile, tmpDir);
+             ConversionScheduler.Permit permit =
+                     ConversionScheduler.getInstance().acquire(CONVERTER_NAME, tmpCadFile)) {
+            ToolInvocation invocation = invocation(scratch.getInput(), scratch.getDirectory());
+            ProcessBuilder pb = new ProcessBuilder(invocation.getCommand());
+            ConversionResult result = invocation.getResult();
+            try (ObjPipe pipe = ObjPipe.forConverter(CONVERTER_NAME, result.getConvertedFile())) {
+                ProcessResult processResult = ProcessRunner.forConverter(CONVERTER_NAME).run(pb);
+
+                LOGGER.info(processResult.getStdOutput());
+
+                if (processResult.isSuccess()) {
+                    ConversionResult pipedResult = pipe.finish(result);
+                    cache.put(cacheKey, pipedResult);
+                    return scratch.attach(PostProcessing.apply(pipedResult, scratch.getDirectory()));
+                } else {
+                    throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": "
+                            + processResult.getFailureReason());
+                }
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -106,9 +136,38 @@ public class DaeFileConverterImpl implements CADConverter {
         }
     }
 
+    @Override
+    public List<BatchConversionResult> convertAll(List<URI> cadFileUris, URI tmpDirUri) throws ConversionException {
+        checkTool(cadFileUris.size() + " files");
+        return BATCH_CONVERSION.run(cadFileUris, tmpDirUri);
+    }
+
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("dxf", "dae", "lwo", "x", "ac", "cob", "scn", "ms3d").contains(cadFileExtension);
+        return FORMAT_ROUTE.accepts(cadFileExtension);
+    }
+
+    private static void checkTool(String subject) throws ConversionException {
+        String assimp = CONF.getProperty("assimp");
+        Path executable = Paths.get(assimp);
+
+        if (!Files.exists(executable)) {
+            throw new ConversionException(
+                    "Cannot convert " + subject + ", \"" + assimp + "\" is not available");
+        }
+
+        if (!Files.isExecutable(executable)) {
+            throw new ConversionException(
+                    "Cannot convert " + subject + ", \"" + assimp + "\" has no execution rights");
+        }
+    }
+
+    private static ToolInvocation invocation(Path cadFile, Path tmpDir) {
+        UUID uuid = UUID.randomUUID();
+        Path convertedFile = tmpDir.resolve(uuid + ".obj");
+        return new ToolInvocation(Arrays.asList(CONF.getProperty("assimp"), "export",
+                cadFile.toAbsolutePath().toString(), convertedFile.toString()),
+                convertedFile, Collections.singletonList(tmpDir.resolve(uuid + ".obj.mtl")));
     }
 
 }
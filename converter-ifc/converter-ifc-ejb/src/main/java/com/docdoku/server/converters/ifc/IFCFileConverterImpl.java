@@ -20,11 +20,24 @@
 
 package com.docdoku.server.converters.ifc;
 
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionEstimate;
+import com.docdoku.server.converters.utils.ConversionMetricsInterceptor;
+import com.docdoku.server.converters.utils.ConversionQuarantine;
+import com.docdoku.server.converters.utils.ConversionQuarantineInterceptor;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.FormatRoute;
+import com.docdoku.server.converters.utils.ObjPipe;
+import com.docdoku.server.converters.utils.PostProcessing;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ScratchSpace;
+import com.docdoku.server.converters.utils.StepFileMetadata;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -37,11 +50,14 @@ import java.util.logging.Logger;
 
 @IFCFileConverter
 @Stateless
+@Interceptors({ConversionMetricsInterceptor.class, ConversionQuarantineInterceptor.class})
 public class IFCFileConverterImpl implements CADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/ifc/conf.properties";
     private static final Properties CONF = new Properties();
     private static final Logger LOGGER = Logger.getLogger(IFCFileConverterImpl.class.getName());
+    private static final String CONVERTER_NAME = "ifc";
+    private static final FormatRoute FORMAT_ROUTE = new FormatRoute(CONVERTER_NAME, Arrays.asList("ifc"));
 
     static {
         try (InputStream inputStream = IFCFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -49,6 +65,7 @@ public class IFCFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        ConverterConfiguration.applySystemProperties(CONF, CONVERTER_NAME);
     }
 
     @Override
@@ -72,43 +89,97 @@ public class IFCFileConverterImpl implements CADConverter {
                     + "\" has no execution rights");
         }
 
-        UUID uuid = UUID.randomUUID();
-        // String extension = FileIO.getExtension(cadFile.getName());
-
-        Path convertedFile = tmpDir.resolve(uuid + ".obj");
-        Path convertedMtl = tmpDir.resolve(uuid + ".mtl");
+        // Never launch a tool on content it cannot read, the link to a misnamed file goes with the conversion
+        Path checkedFile = FORMAT_ROUTE.check(tmpCadFile, tmpDir);
+        try {
+            return convertCheckedFile(checkedFile, tmpDir, ifcConverter);
+        } finally {
+            FormatRoute.release(tmpCadFile, checkedFile);
+        }
+    }
 
-        String[] args = {ifcConverter, "--sew-shells", tmpCadFile.toAbsolutePath().toString(),
-                convertedFile.toString()};
-        ProcessBuilder pb = new ProcessBuilder(args);
+    @SuppressWarnings("try")
+    private ConversionResult convertCheckedFile(Path tmpCadFile, Path tmpDir, String ifcConverter)
+            throws ConversionException {
+        // Header metadata is read in the JVM, cached results get it too
+        StepFileMetadata metadata = StepFileMetadata.of(tmpCadFile);
+
+        ConversionCache cache = ConversionCache.getInstance();
+        String fingerprint = ConversionCache.fingerprint(tmpCadFile, CONVERTER_NAME, CONF);
+        String cacheKey = cache.key(fingerprint);
+        ConversionResult cachedResult = cache.get(cacheKey, tmpDir);
+        if (cachedResult != null) {
+            return metadata.attach(PostProcessing.apply(cachedResult, tmpDir));
+        }
 
-        try {
-            Process process = pb.start();
+        // Inputs the tool keeps failing on fail here, before any process is launched
+        ConversionQuarantine.getInstance().check(fingerprint, CONVERTER_NAME, tmpCadFile);
 
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
+        // Scheduled and timed by the entities of the model, hopeless conversions fail before taking a slot
+        ConversionEstimate estimate = ConversionEstimate.of(CONVERTER_NAME, tmpCadFile);
+        estimate.check();
 
-            LOGGER.info(stdOutput);
+        UUID uuid = UUID.randomUUID();
+        // String extension = FileIO.getExtension(cadFile.getName());
 
-            process.waitFor();
+        try (ScratchSpace.Allocation scratch = ScratchSpace.getInstance().allocate(tmpCadFile, tmpDir)) {
+            Path convertedFile = scratch.getDirectory().resolve(uuid + ".obj");
+            Path convertedMtl = scratch.getDirectory().resolve(uuid + ".mtl");
+            List<Path> materials = new ArrayList<>();
+            materials.add(convertedMtl);
+            ConversionResult result = new ConversionResult(convertedFile, materials);
+
+            if (isSharded(tmpCadFile)) {
+                IfcShardedConversion sharded = new IfcShardedConversion(CONVERTER_NAME, ifcConverter,
+                        Integer.parseInt(CONF.getProperty("ifc_shards")), estimate.getProcessRunner());
+                if (sharded.convert(scratch.getInput(), convertedFile, convertedMtl)) {
+                    cache.put(cacheKey, result);
+                    return scratch.attach(metadata.attach(PostProcessing.apply(result, scratch.getDirectory())));
+                }
+                LOGGER.info("Converting " + tmpCadFile + " in one run");
+            }
 
-            if (process.exitValue() == 0) {
-                List<Path> materials = new ArrayList<>();
-                materials.add(convertedMtl);
-                return new ConversionResult(convertedFile, materials);
-            } else {
-                throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+            String[] args = {ifcConverter, "--sew-shells", scratch.getInput().toAbsolutePath().toString(),
+                    convertedFile.toString()};
+            ProcessBuilder pb = new ProcessBuilder(args);
+
+            try (ConversionScheduler.Permit permit = ConversionScheduler.getInstance().acquire(CONVERTER_NAME,
+                    estimate.getCost(), ConversionScheduler.getOrigin());
+                 ObjPipe pipe = ObjPipe.forConverter(CONVERTER_NAME, convertedFile)) {
+                ProcessResult processResult = estimate.getProcessRunner().run(pb);
+
+                LOGGER.info(processResult.getStdOutput());
+
+                if (processResult.isSuccess()) {
+                    ConversionResult pipedResult = pipe.finish(result);
+                    cache.put(cacheKey, pipedResult);
+                    return scratch.attach(metadata.attach(PostProcessing.apply(pipedResult, scratch.getDirectory())));
+                } else {
+                    throw new ConversionException("Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": "
+                            + processResult.getFailureReason());
+                }
             }
         } catch (IOException | InterruptedException e) {
             throw new ConversionException(e);
         }
     }
 
+    /**
+     * Large models with several storeys are split in parallel runs when ifc_shards is above 1.
+     */
+    private static boolean isSharded(Path ifcFile) {
+        try {
+            return Integer.parseInt(CONF.getProperty("ifc_shards", "0")) > 1
+                    && Files.size(ifcFile) >= Long.parseLong(CONF.getProperty("ifc_shard_min_size", "0"));
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid sharding configuration", e);
+            return false;
+        }
+    }
+
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return "ifc".equals(cadFileExtension);
+        return FORMAT_ROUTE.accepts(cadFileExtension);
     }
 
 }
\ No newline at end of file
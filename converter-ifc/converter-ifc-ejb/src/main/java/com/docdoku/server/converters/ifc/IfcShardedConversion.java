@@ -0,0 +1,180 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.mesh.ObjMerger;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversion of a large IFC model as several IfcConvert runs in parallel, one per group of storeys, whose OBJ and
+ * MTL outputs are merged.
+ * <p>
+ * Each run keeps the elements of its storeys with the "--include+ arg GlobalId" filter of IfcConvert, which also
+ * follows containment and decomposition. Every storey belongs to one run, and a last run keeps what no storey holds
+ * with "--exclude+" on all of them: it always runs, since a site or building may have geometry of its own beyond
+ * the elements counted. Every run takes its own permit from the {@link ConversionScheduler}, at the origin of the
+ * calling conversion, and is bounded by the timeout of its runner. The runs report to the quarantine and metrics of
+ * the calling conversion.
+ */
+class IfcShardedConversion {
+
+    private static final Logger LOGGER = Logger.getLogger(IfcShardedConversion.class.getName());
+
+    private static final ExecutorService SHARDS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ifc-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String converterName;
+    private final String ifcConverter;
+    private final int shards;
+    private final ProcessRunner runner;
+
+    IfcShardedConversion(String converterName, String ifcConverter, int shards, ProcessRunner runner) {
+        this.converterName = converterName;
+        this.ifcConverter = ifcConverter;
+        this.shards = shards;
+        this.runner = runner;
+    }
+
+    /**
+     * Convert the model to convertedFile and convertedMtl.
+     *
+     * @return false if the model has too few storeys to be split or a run failed, the model should then be
+     * converted in one run
+     * @throws ConversionException if a run timed out, a single run would not do better
+     */
+    boolean convert(Path ifcFile, Path convertedFile, Path convertedMtl)
+            throws ConversionException, InterruptedException {
+        IfcStoreys storeys;
+        try {
+            storeys = IfcStoreys.read(ifcFile);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the spatial structure of " + ifcFile, e);
+            return false;
+        }
+        List<List<String>> groups = storeys.partition(shards);
+        if (groups.size() < 2) {
+            return false;
+        }
+
+        List<List<String>> filters = new ArrayList<>();
+        List<String> converted = new ArrayList<>();
+        for (List<String> group : groups) {
+            filters.add(filter("--include+", group));
+            converted.addAll(group);
+        }
+        filters.add(filter("--exclude+", converted));
+
+        ConversionContext context = ConversionContext.capture();
+        ConversionScheduler.Origin origin = ConversionScheduler.getOrigin();
+        long cost = Math.max(1, ConversionScheduler.estimateCost(converterName, ifcFile) / filters.size());
+        Path workDir = convertedFile.toAbsolutePath().getParent();
+        List<Path> parts = new ArrayList<>();
+        List<Future<ProcessResult>> runs = new ArrayList<>();
+        try {
+            for (List<String> filter : filters) {
+                Path part = workDir.resolve(UUID.randomUUID() + ".obj");
+                parts.add(part);
+                List<String> args = new ArrayList<>();
+                args.add(ifcConverter);
+                // The filter values take every argument up to the next option
+                args.addAll(filter);
+                args.addAll(Arrays.asList("--sew-shells", ifcFile.toAbsolutePath().toString(), part.toString()));
+                runs.add(SHARDS.submit(context.wrap(() -> run(args, cost, origin))));
+            }
+
+            for (int i = 0; i < runs.size(); i++) {
+                ProcessResult result = runs.get(i).get();
+                LOGGER.info(result.getStdOutput());
+                if (result.isTimedOut()) {
+                    throw new ConversionException("Cannot convert to obj " + ifcFile.toAbsolutePath() + ": part "
+                            + (i + 1) + "/" + runs.size() + " " + result.getFailureReason());
+                }
+                if (!result.isSuccess()) {
+                    LOGGER.warning("Part " + (i + 1) + "/" + runs.size() + " of " + ifcFile + " failed: "
+                            + result.getFailureReason());
+                    return false;
+                }
+            }
+
+            ObjMerger.merge(parts, convertedFile, convertedMtl);
+            LOGGER.info("Converted " + ifcFile + " in " + runs.size() + " parts");
+            return true;
+        } catch (ExecutionException | IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot convert " + ifcFile + " in parts", e);
+            return false;
+        } finally {
+            for (Future<ProcessResult> run : runs) {
+                run.cancel(true);
+            }
+            for (Path part : parts) {
+                deleteQuietly(part);
+                deleteQuietly(workDir.resolve(part.getFileName().toString().replace(".obj", ".mtl")));
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    private ProcessResult run(List<String> args, long cost, ConversionScheduler.Origin origin)
+            throws ConversionException, IOException, InterruptedException {
+        try (ConversionScheduler.Permit permit =
+                     ConversionScheduler.getInstance().acquire(converterName, cost, origin)) {
+            return runner.run(new ProcessBuilder(args));
+        }
+    }
+
+    private static List<String> filter(String option, List<String> globalIds) {
+        List<String> filter = new ArrayList<>();
+        filter.add(option);
+        filter.add("arg");
+        filter.add("GlobalId");
+        filter.addAll(globalIds);
+        return filter;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import com.docdoku.server.converters.utils.io.StepFileScanner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Spatial structure of an IFC model as needed to split its conversion: the building storeys and the number of
+ * elements each one holds, directly or in its spaces and building parts, read in one streaming pass over the file.
+ */
+class IfcStoreys {
+
+    private static final String STOREY = "IFCBUILDINGSTOREY";
+    private static final String CONTAINMENT = "IFCRELCONTAINEDINSPATIALSTRUCTURE";
+    private static final String AGGREGATION = "IFCRELAGGREGATES";
+
+    private final List<Storey> storeys;
+    private final int otherElements;
+
+    IfcStoreys(List<Storey> storeys, int otherElements) {
+        this.storeys = storeys;
+        this.otherElements = otherElements;
+    }
+
+    static IfcStoreys read(Path ifcFile) throws IOException {
+        Map<Long, String> globalIds = new LinkedHashMap<>();
+        Map<Long, Integer> contained = new HashMap<>();
+        Map<Long, Long> parents = new HashMap<>();
+        StepFileScanner.scan(ifcFile, new HashSet<>(Arrays.asList(STOREY, CONTAINMENT, AGGREGATION)),
+                (id, type, parameters) -> {
+                    List<String> values = StepFileScanner.split(parameters);
+                    if (STOREY.equals(type)) {
+                        String globalId = values.isEmpty() ? null : StepFileScanner.string(values.get(0));
+                        if (globalId != null) {
+                            globalIds.put(id, globalId);
+                        }
+                    } else if (values.size() < 6) {
+                        return;
+                    } else if (CONTAINMENT.equals(type)) {
+                        // RelatedElements and RelatingStructure
+                        int elements = StepFileScanner.references(values.get(4)).size();
+                        for (Long structure : StepFileScanner.references(values.get(5))) {
+                            contained.merge(structure, elements, Integer::sum);
+                        }
+                    } else {
+                        // RelatingObject and RelatedObjects, such as the spaces and parts of a storey
+                        for (Long relating : StepFileScanner.references(values.get(4))) {
+                            for (Long related : StepFileScanner.references(values.get(5))) {
+                                parents.put(related, relating);
+                            }
+                        }
+                    }
+                });
+
+        // Elements of a space or building part count for the storey it decomposes
+        Map<Long, Integer> storeyElements = new HashMap<>();
+        int otherElements = 0;
+        for (Map.Entry<Long, Integer> structure : contained.entrySet()) {
+            Long storey = storeyOf(structure.getKey(), globalIds.keySet(), parents);
+            if (storey != null) {
+                storeyElements.merge(storey, structure.getValue(), Integer::sum);
+            } else {
+                otherElements += structure.getValue();
+            }
+        }
+
+        List<Storey> storeys = new ArrayList<>();
+        for (Map.Entry<Long, String> storey : globalIds.entrySet()) {
+            storeys.add(new Storey(storey.getValue(), storeyElements.getOrDefault(storey.getKey(), 0)));
+        }
+        return new IfcStoreys(storeys, otherElements);
+    }
+
+    /**
+     * @return the storey the structure is or decomposes, null if none
+     */
+    private static Long storeyOf(Long structure, Set<Long> storeys, Map<Long, Long> parents) {
+        Long current = structure;
+        // Bounded, in case of a cyclic decomposition
+        for (int depth = 0; current != null && depth <= parents.size(); depth++) {
+            if (storeys.contains(current)) {
+                return current;
+            }
+            current = parents.get(current);
+        }
+        return null;
+    }
+
+    List<Storey> getStoreys() {
+        return storeys;
+    }
+
+    /**
+     * @return the number of elements contained in a site or building rather than in a storey or its decomposition
+     */
+    int getOtherElements() {
+        return otherElements;
+    }
+
+    /**
+     * Split the storeys into groups of balanced element counts, largest storeys first, so that every storey is
+     * converted by exactly one group. There are at most as many groups as storeys holding elements, storeys without
+     * elements of their own still go to a group since their decomposition may hold geometry.
+     */
+    List<List<String>> partition(int groups) {
+        List<Storey> sorted = new ArrayList<>(storeys);
+        sorted.sort(Comparator.comparingInt((Storey storey) -> storey.elements).reversed());
+
+        int loaded = 0;
+        for (Storey storey : storeys) {
+            if (storey.elements > 0) {
+                loaded++;
+            }
+        }
+        int count = Math.min(groups, Math.max(loaded, Math.min(1, storeys.size())));
+        List<List<String>> partition = new ArrayList<>();
+        int[] loads = new int[count];
+        for (int i = 0; i < count; i++) {
+            partition.add(new ArrayList<>());
+        }
+        for (Storey storey : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            partition.get(lightest).add(storey.globalId);
+            loads[lightest] += storey.elements;
+        }
+        return partition;
+    }
+
+    static class Storey {
+
+        private final String globalId;
+        private final int elements;
+
+        Storey(String globalId, int elements) {
+            this.globalId = globalId;
+            this.elements = elements;
+        }
+
+        String getGlobalId() {
+            return globalId;
+        }
+
+        int getElements() {
+            return elements;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.ifc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class IfcStoreysTest {
+
+    @Test
+    public void testElementsOfTheDecomposition() throws Exception {
+        Path ifcFile = Files.createTempFile("storeys", ".ifc");
+        try {
+            Files.write(ifcFile, ("ISO-10303-21;\nHEADER;\nFILE_SCHEMA(('IFC2X3'));\nENDSEC;\nDATA;\n"
+                    + "#1=IFCBUILDING('building',$,$,$,$,$,$,$,.ELEMENT.,$,$,$);\n"
+                    + "#10=IFCBUILDINGSTOREY('s1',$,'Level 1',$,$,$,$,$,.ELEMENT.,0.);\n"
+                    + "#11=IFCBUILDINGSTOREY('s2',$,'Level 2',$,$,$,$,$,.ELEMENT.,3.);\n"
+                    + "#12=IFCBUILDINGSTOREY('s3',$,'Level 3',$,$,$,$,$,.ELEMENT.,6.);\n"
+                    + "#13=IFCBUILDINGSTOREY('s4',$,'Roof',$,$,$,$,$,.ELEMENT.,9.);\n"
+                    + "#20=IFCSPACE('room',$,$,$,$,$,$,$,.ELEMENT.,.INTERNAL.,$);\n"
+                    + "#30=IFCRELAGGREGATES('r1',$,$,$,#1,(#10,#11,#12,#13));\n"
+                    + "#31=IFCRELAGGREGATES('r2',$,$,$,#12,(#20));\n"
+                    + "#40=IFCRELCONTAINEDINSPATIALSTRUCTURE('c1',$,$,$,(#100,#101,#102),#10);\n"
+                    + "#41=IFCRELCONTAINEDINSPATIALSTRUCTURE('c2',$,$,$,(#103,#104),#11);\n"
+                    + "#42=IFCRELCONTAINEDINSPATIALSTRUCTURE('c3',$,$,$,(#105),#20);\n"
+                    + "#43=IFCRELCONTAINEDINSPATIALSTRUCTURE('c4',$,$,$,(#106),#1);\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            IfcStoreys storeys = IfcStoreys.read(ifcFile);
+            Assert.assertEquals(4, storeys.getStoreys().size());
+            // The elements of the space count for the storey it decomposes
+            Assert.assertEquals(Arrays.asList(3, 2, 1, 0), Arrays.asList(storeys.getStoreys().get(0).getElements(),
+                    storeys.getStoreys().get(1).getElements(), storeys.getStoreys().get(2).getElements(),
+                    storeys.getStoreys().get(3).getElements()));
+            Assert.assertEquals(1, storeys.getOtherElements());
+
+            // Every storey is converted once, the empty one included
+            Assert.assertEquals(Arrays.asList(Arrays.asList("s1", "s4"), Arrays.asList("s2", "s3")),
+                    storeys.partition(2));
+            Assert.assertEquals(Arrays.asList(Collections.singletonList("s1"), Collections.singletonList("s2"),
+                    Arrays.asList("s3", "s4")), storeys.partition(8));
+        } finally {
+            Files.delete(ifcFile);
+        }
+    }
+
+    @Test
+    public void testStoreysWithoutElements() {
+        IfcStoreys storeys = new IfcStoreys(Arrays.asList(new IfcStoreys.Storey("a", 0),
+                new IfcStoreys.Storey("b", 0)), 5);
+        List<List<String>> partition = storeys.partition(4);
+        Assert.assertEquals(Collections.singletonList(Arrays.asList("a", "b")), partition);
+
+        Assert.assertTrue(new IfcStoreys(Collections.emptyList(), 5).partition(4).isEmpty());
+    }
+
+    @Test
+    public void testBalancedGroups() {
+        IfcStoreys storeys = new IfcStoreys(Arrays.asList(new IfcStoreys.Storey("a", 10),
+                new IfcStoreys.Storey("b", 6), new IfcStoreys.Storey("c", 5), new IfcStoreys.Storey("d", 4)), 0);
+        Assert.assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("b"),
+                Arrays.asList("c", "d")), storeys.partition(3));
+    }
+}
@@ -21,28 +21,47 @@
 package com.docdoku.server.converters.obj;
 
 
+import com.docdoku.server.converters.utils.ConversionMetricsInterceptor;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.FormatRoute;
+import com.docdoku.server.converters.utils.PostProcessing;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
 
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 
 @ObjFileConverter
 @Stateless
+@Interceptors(ConversionMetricsInterceptor.class)
 public class ObjFileConverterImpl implements CADConverter {
 
+    static final FormatRoute FORMAT_ROUTE = new FormatRoute("obj", Collections.singletonList("obj"));
+
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        Path tmpCadFile = Paths.get(cadFileUri);
-        return new ConversionResult(tmpCadFile);
+        Path tmpDir = Paths.get(tmpDirUri);
+        Path cadFile = Paths.get(cadFileUri);
+        Path tmpCadFile = FORMAT_ROUTE.check(cadFile, tmpDir);
+        try {
+            ExtendedConversionResult result = PostProcessing.apply(new ConversionResult(tmpCadFile), tmpDir);
+            // The link to a misnamed file is the converted file, it goes with the result
+            result.addCloseable(() -> FormatRoute.release(cadFile, tmpCadFile));
+            return result;
+        } catch (ConversionException | RuntimeException e) {
+            FormatRoute.release(cadFile, tmpCadFile);
+            throw e;
+        }
     }
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return "obj".equals(cadFileExtension);
+        return FORMAT_ROUTE.accepts(cadFileExtension);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,267 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import com.docdoku.server.converters.utils.BoundedOutputBuffer;
+import com.docdoku.server.converters.utils.ConversionMetrics;
+import com.docdoku.server.converters.utils.ConversionQuarantine;
+import com.docdoku.server.converters.utils.ProcessTree;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * A long-lived FreeCAD process running freecad_worker.py, converting one file at a time.
+ */
+class FreeCadWorker {
+
+    private static final Logger LOGGER = Logger.getLogger(FreeCadWorker.class.getName());
+
+    private static final String PREFIX = "@@docdoku@@ ";
+    private static final String READY = "READY";
+    private static final String OK = "OK";
+    private static final String ERROR = "ERROR";
+    private static final String EXITED = "EXITED";
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final Process process;
+    private final long pid;
+    private final Writer requests;
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+    private final BoundedOutputBuffer errorOutput = new BoundedOutputBuffer(16 * 1024);
+    private long initialMemory;
+    private int jobs;
+    private boolean broken;
+
+    private FreeCadWorker(Process process) {
+        this.process = process;
+        this.pid = ProcessTree.pid(process);
+        this.requests = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+        Thread replyReader = new Thread(this::readReplies, "freecad-worker-" + pid + "-out");
+        replyReader.setDaemon(true);
+        replyReader.start();
+
+        Thread errorReader = new Thread(this::readErrors, "freecad-worker-" + pid + "-err");
+        errorReader.setDaemon(true);
+        errorReader.start();
+    }
+
+    /**
+     * Start a worker and wait until FreeCAD is imported.
+     */
+    static FreeCadWorker start(String pythonInterpreter, Path script, String freeCadLibPath, long startupTimeoutMillis)
+            throws ConversionException {
+        FreeCadWorker worker;
+        try {
+            worker = new FreeCadWorker(new ProcessBuilder(pythonInterpreter, script.toAbsolutePath().toString(),
+                    "-l", freeCadLibPath).start());
+        } catch (IOException e) {
+            throw new ConversionException("Cannot start FreeCAD worker", e);
+        }
+
+        String reply = worker.awaitReply(startupTimeoutMillis);
+        if (!READY.equals(reply)) {
+            worker.stop();
+            throw new ConversionException("FreeCAD worker failed to start (" + reply + "): " + worker.errorOutput);
+        }
+        worker.initialMemory = ProcessTree.residentMemory(worker.pid);
+        LOGGER.log(Level.FINE, "FreeCAD worker {0} started", worker.pid);
+        return worker;
+    }
+
+    /**
+     * Convert a STEP or IGES file, the worker is stopped if it does not reply in time.
+     */
+    void convert(Path inputFile, Path outputFile, long timeoutMillis) throws ConversionException {
+        request(inputFile, timeoutMillis, "convert", outputFile.toAbsolutePath().toString());
+    }
+
+    /**
+     * Write the shapes of a file to tessellate to a manifest, one line per shape: "index, group, face count",
+     * tab separated. The group is the label path of the shape in the assembly tree.
+     */
+    void list(Path inputFile, Path manifestFile, long timeoutMillis) throws ConversionException {
+        request(inputFile, timeoutMillis, "list", manifestFile.toAbsolutePath().toString());
+    }
+
+    /**
+     * Tessellate some shapes of a manifest to outputPrefix + index + ".obj". No file is written for a shape
+     * without facets.
+     */
+    void export(Path inputFile, String outputPrefix, List<Integer> indices, long timeoutMillis)
+            throws ConversionException {
+        request(inputFile, timeoutMillis, "export", outputPrefix,
+                indices.stream().map(String::valueOf).collect(Collectors.joining(",")));
+    }
+
+    private void request(Path inputFile, long timeoutMillis, String command, String... arguments)
+            throws ConversionException {
+        try {
+            requests.write(command + "\t" + inputFile.toAbsolutePath() + "\t" + String.join("\t", arguments)
+                    + "\n");
+            requests.flush();
+        } catch (IOException e) {
+            stop();
+            throw new ConversionException("FreeCAD worker is not reachable: " + errorOutput, e);
+        }
+
+        String reply = awaitReply(timeoutMillis);
+        jobs++;
+
+        if (OK.equals(reply)) {
+            return;
+        }
+        if (reply != null && reply.startsWith(ERROR)) {
+            ConversionQuarantine.recordFailure("error", reply.substring(ERROR.length()).trim());
+            throw new ConversionException("Cannot convert to obj " + inputFile.toAbsolutePath() + ": "
+                    + reply.substring(ERROR.length()).trim());
+        }
+
+        stop();
+        if (reply == null) {
+            ConversionMetrics.recordTimeout();
+            ConversionQuarantine.recordFailure("timeout", "timed out after " + timeoutMillis + " ms");
+            throw new TimedOutException("Cannot convert to obj " + inputFile.toAbsolutePath()
+                    + ": timed out after " + timeoutMillis + " ms");
+        }
+        ConversionQuarantine.recordFailure("crash", errorOutput.toString());
+        throw new ConversionException("Cannot convert to obj " + inputFile.toAbsolutePath()
+                + ": FreeCAD worker exited, " + errorOutput);
+    }
+
+    boolean isAlive() {
+        return !broken && process.isAlive();
+    }
+
+    /**
+     * Check that an idle worker can take a request. A worker dying while idle leaves a reply behind, which the
+     * next request would read as its own and report as a crash of an unrelated input.
+     *
+     * @return false if the worker died or sent a reply since its last request, it should then be stopped
+     */
+    boolean isReady() {
+        String stale = replies.poll();
+        if (stale != null) {
+            LOGGER.log(Level.FINE, "FreeCAD worker {0} replied {1} while idle", new Object[]{pid, stale});
+            return false;
+        }
+        return isAlive();
+    }
+
+    int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return the resident memory gained since the worker was started, or -1 if unknown
+     */
+    long getMemoryGrowth() {
+        long memory = ProcessTree.residentMemory(pid);
+        return memory < 0 || initialMemory < 0 ? -1 : memory - initialMemory;
+    }
+
+    /**
+     * Close the worker input so it exits by itself, and kill it if it does not.
+     */
+    void stop() {
+        broken = true;
+        try {
+            requests.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        try {
+            if (!process.waitFor(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                ProcessTree.destroy(process);
+            }
+        } catch (InterruptedException e) {
+            ProcessTree.destroy(process);
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.log(Level.FINE, "FreeCAD worker {0} stopped after {1} jobs", new Object[]{pid, jobs});
+    }
+
+    private String awaitReply(long timeoutMillis) throws ConversionException {
+        try {
+            return replies.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while waiting for FreeCAD worker", e);
+        }
+    }
+
+    private void readReplies() {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PREFIX)) {
+                    replies.add(line.substring(PREFIX.length()));
+                } else {
+                    LOGGER.fine(line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        } finally {
+            replies.add(EXITED);
+        }
+    }
+
+    private void readErrors() {
+        byte[] buffer = new byte[4096];
+        try (InputStream inputStream = process.getErrorStream()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                errorOutput.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    /**
+     * A request that did not complete in time, the worker was stopped.
+     */
+    static class TimedOutException extends ConversionException {
+
+        TimedOutException(String message) {
+            super(message);
+        }
+    }
+
+}
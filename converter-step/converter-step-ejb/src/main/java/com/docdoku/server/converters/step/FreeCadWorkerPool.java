@@ -0,0 +1,185 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of FreeCAD worker processes, so that a conversion only pays for the tessellation and not for the
+ * interpreter and FreeCAD startup.
+ * <p>
+ * Workers are started on demand, the number of live workers is therefore bounded by the conversion scheduler
+ * limit of the step converter. A worker is replaced after a number of jobs, when its resident memory grew too
+ * much, or when it timed out or crashed. An idle worker found dead when borrowed is replaced before it takes a
+ * request.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class FreeCadWorkerPool {
+
+    private static final String WORKER_SCRIPT = "/com/docdoku/server/converters/step/freecad_worker.py";
+    private static final Logger LOGGER = Logger.getLogger(FreeCadWorkerPool.class.getName());
+
+    private final Deque<FreeCadWorker> idleWorkers = new ArrayDeque<>();
+    private Path script;
+    private boolean closed;
+
+    public boolean isEnabled() {
+        return Boolean.parseBoolean(conf().getProperty("freeCadWorkerPool", "false"));
+    }
+
+    public void convert(Path stepFile, Path objFile, long timeoutMillis) throws ConversionException {
+        FreeCadWorker worker = borrow();
+        try {
+            worker.convert(stepFile, objFile, timeoutMillis);
+        } finally {
+            giveBack(worker);
+        }
+    }
+
+    /**
+     * @see FreeCadWorker#list(Path, Path, long)
+     */
+    public void list(Path stepFile, Path manifestFile, long timeoutMillis) throws ConversionException {
+        FreeCadWorker worker = borrow();
+        try {
+            worker.list(stepFile, manifestFile, timeoutMillis);
+        } finally {
+            giveBack(worker);
+        }
+    }
+
+    /**
+     * @see FreeCadWorker#export(Path, String, List, long)
+     */
+    public void export(Path stepFile, String outputPrefix, List<Integer> indices, long timeoutMillis)
+            throws ConversionException {
+        FreeCadWorker worker = borrow();
+        try {
+            worker.export(stepFile, outputPrefix, indices, timeoutMillis);
+        } finally {
+            giveBack(worker);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        List<FreeCadWorker> workers;
+        synchronized (this) {
+            closed = true;
+            workers = new ArrayList<>(idleWorkers);
+            idleWorkers.clear();
+        }
+        workers.forEach(FreeCadWorker::stop);
+        try {
+            if (script != null) {
+                Files.deleteIfExists(script);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private FreeCadWorker borrow() throws ConversionException {
+        List<FreeCadWorker> deadWorkers = new ArrayList<>();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new ConversionException("FreeCAD worker pool is shut down");
+                }
+                FreeCadWorker worker;
+                while ((worker = idleWorkers.pollFirst()) != null) {
+                    if (worker.isReady()) {
+                        return worker;
+                    }
+                    deadWorkers.add(worker);
+                }
+            }
+        } finally {
+            deadWorkers.forEach(FreeCadWorker::stop);
+        }
+
+        // Starting FreeCAD takes a while, do not hold the lock meanwhile
+        return startWorker();
+    }
+
+    /**
+     * Start a new worker with the configured interpreter and FreeCAD library.
+     */
+    FreeCadWorker startWorker() throws ConversionException {
+        Properties conf = conf();
+        return FreeCadWorker.start(conf.getProperty("pythonInterpreter"), script(),
+                conf.getProperty("freeCadLibPath"),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(conf.getProperty("freeCadWorkerStartupTimeout", "120"))));
+    }
+
+    private void giveBack(FreeCadWorker worker) {
+        Properties conf = conf();
+        int maxJobs = Integer.parseInt(conf.getProperty("freeCadWorkerMaxJobs", "50"));
+        long maxMemoryGrowth = Long.parseLong(conf.getProperty("freeCadWorkerMaxMemoryGrowth", "512")) * 1024 * 1024;
+
+        boolean reusable = worker.isAlive() && worker.getJobs() < maxJobs && worker.getMemoryGrowth() < maxMemoryGrowth;
+        synchronized (this) {
+            if (reusable && !closed) {
+                // Most recently used first, so that surplus workers stay idle
+                idleWorkers.addFirst(worker);
+                return;
+            }
+        }
+        worker.stop();
+    }
+
+    private synchronized Path script() throws ConversionException {
+        if (script == null) {
+            try (InputStream scriptStream = FreeCadWorkerPool.class.getResourceAsStream(WORKER_SCRIPT)) {
+                Path path = Files.createTempFile("freecad_worker", ".py");
+                Files.copy(scriptStream, path, StandardCopyOption.REPLACE_EXISTING);
+                script = path;
+            } catch (IOException | NullPointerException e) {
+                throw new ConversionException("Unable to copy Python script", e);
+            }
+        }
+        return script;
+    }
+
+    private static Properties conf() {
+        return StepFileConverterImpl.CONF;
+    }
+
+}
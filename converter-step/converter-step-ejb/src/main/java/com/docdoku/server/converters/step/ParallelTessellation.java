@@ -0,0 +1,202 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import com.docdoku.server.converters.utils.ConversionContext;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.mesh.ObjMerger;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tessellation of a large STEP assembly by several FreeCAD workers in parallel.
+ * <p>
+ * A first worker lists the leaf shapes of the assembly with their face counts, the shapes are then split in groups
+ * of balanced face counts, each tessellated by a worker of the pool under its own scheduler permit. The meshes are
+ * merged in the listing order whatever the order they complete in, each shape in the OBJ group of its label path in
+ * the assembly tree. The workers report to the quarantine and metrics of the calling conversion.
+ */
+class ParallelTessellation {
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelTessellation.class.getName());
+
+    private static final ExecutorService TESSELLATORS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "step-tessellation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FreeCadWorkerPool workerPool;
+    private final String converterName;
+    private final int workers;
+
+    ParallelTessellation(FreeCadWorkerPool workerPool, String converterName, int workers) {
+        this.workerPool = workerPool;
+        this.converterName = converterName;
+        this.workers = workers;
+    }
+
+    /**
+     * Convert the file to objFile.
+     *
+     * @return false if the file has a single shape or a worker failed, the file should then be converted in one go
+     * @throws ConversionException if a worker timed out, a single worker would not do better
+     */
+    @SuppressWarnings("try")
+    boolean convert(Path stepFile, Path objFile, long timeoutMillis) throws ConversionException {
+        ConversionScheduler scheduler = ConversionScheduler.getInstance();
+        ConversionContext context = ConversionContext.capture();
+        ConversionScheduler.Origin origin = ConversionScheduler.getOrigin();
+        long cost = Math.max(1, ConversionScheduler.estimateCost(converterName, stepFile) / workers);
+
+        Path workDir = objFile.toAbsolutePath().getParent();
+        String prefix = workDir.resolve(UUID.randomUUID() + "_").toString();
+        Path manifestFile = Paths.get(prefix + "shapes.txt");
+        List<Shape> shapes = new ArrayList<>();
+        List<Future<?>> runs = new ArrayList<>();
+        try {
+            try (ConversionScheduler.Permit permit = scheduler.acquire(converterName, cost, origin)) {
+                workerPool.list(stepFile, manifestFile, timeoutMillis);
+            }
+            for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    shapes.add(new Shape(Integer.parseInt(fields[0]), fields[1], Integer.parseInt(fields[2])));
+                }
+            }
+            if (shapes.size() < 2) {
+                return false;
+            }
+
+            for (List<Integer> indices : partition(shapes, workers)) {
+                runs.add(TESSELLATORS.submit(context.wrap(() -> {
+                    try (ConversionScheduler.Permit permit = scheduler.acquire(converterName, cost, origin)) {
+                        workerPool.export(stepFile, prefix, indices, timeoutMillis);
+                    }
+                    return null;
+                })));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+
+            List<Path> parts = new ArrayList<>();
+            List<String> groups = new ArrayList<>();
+            for (Shape shape : shapes) {
+                parts.add(part(prefix, shape));
+                groups.add(shape.group);
+            }
+            ObjMerger.merge(parts, groups, objFile, null);
+            LOGGER.info("Tessellated " + shapes.size() + " shapes of " + stepFile + " with " + runs.size()
+                    + " workers");
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FreeCadWorker.TimedOutException) {
+                throw (FreeCadWorker.TimedOutException) e.getCause();
+            }
+            LOGGER.log(Level.WARNING, "Cannot tessellate " + stepFile + " in parallel", e.getCause());
+            return false;
+        } catch (FreeCadWorker.TimedOutException e) {
+            throw e;
+        } catch (IOException | RuntimeException | ConversionException e) {
+            LOGGER.log(Level.WARNING, "Cannot tessellate " + stepFile + " in parallel", e);
+            return false;
+        } finally {
+            for (Future<?> run : runs) {
+                run.cancel(true);
+            }
+            deleteQuietly(manifestFile);
+            for (Shape shape : shapes) {
+                deleteQuietly(part(prefix, shape));
+            }
+        }
+    }
+
+    /**
+     * Split the shapes into at most the given number of groups of balanced face counts, largest shapes first.
+     */
+    static List<List<Integer>> partition(List<Shape> shapes, int groups) {
+        List<Shape> sorted = new ArrayList<>(shapes);
+        sorted.sort(Comparator.comparingInt((Shape shape) -> shape.faces).reversed());
+
+        int count = Math.min(groups, sorted.size());
+        List<List<Integer>> partition = new ArrayList<>();
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            partition.add(new ArrayList<>());
+        }
+        for (Shape shape : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            partition.get(lightest).add(shape.index);
+            // A shape costs at least its setup
+            loads[lightest] += Math.max(1, shape.faces);
+        }
+        return partition;
+    }
+
+    private static Path part(String prefix, Shape shape) {
+        return Paths.get(prefix + shape.index + ".obj");
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+        }
+    }
+
+    static class Shape {
+
+        private final int index;
+        private final String group;
+        private final int faces;
+
+        Shape(int index, String group, int faces) {
+            this.index = index;
+            this.group = group;
+            this.faces = faces;
+        }
+    }
+}
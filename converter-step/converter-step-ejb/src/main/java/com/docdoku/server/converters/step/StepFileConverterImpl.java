@@ -21,11 +21,25 @@
 package com.docdoku.server.converters.step;
 
 
+import com.docdoku.server.converters.utils.ConversionCache;
+import com.docdoku.server.converters.utils.ConversionEstimate;
+import com.docdoku.server.converters.utils.ConversionMetricsInterceptor;
+import com.docdoku.server.converters.utils.ConversionQuarantine;
+import com.docdoku.server.converters.utils.ConversionQuarantineInterceptor;
+import com.docdoku.server.converters.utils.ConversionScheduler;
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.FormatRoute;
+import com.docdoku.server.converters.utils.PostProcessing;
+import com.docdoku.server.converters.utils.ProcessResult;
+import com.docdoku.server.converters.utils.ProcessRunner;
+import com.docdoku.server.converters.utils.ScratchSpace;
+import com.docdoku.server.converters.utils.StepFileMetadata;
 import org.polarsys.eplmp.server.converters.CADConverter;
 import org.polarsys.eplmp.server.converters.ConversionResult;
-import org.polarsys.eplmp.server.converters.ConverterUtils;
 
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
+import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -40,12 +54,19 @@ import java.util.logging.Logger;
 
 @StepFileConverter
 @Stateless
+@Interceptors({ConversionMetricsInterceptor.class, ConversionQuarantineInterceptor.class})
 public class StepFileConverterImpl implements CADConverter {
 
     private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/step/conf.properties";
-    private static final Properties CONF = new Properties();
+    static final Properties CONF = new Properties();
     private static final String PYTHON_SCRIPT_TO_OBJ = "/com/docdoku/server/converters/step/convert_step_obj.py";
     private static final Logger LOGGER = Logger.getLogger(StepFileConverterImpl.class.getName());
+    private static final String CONVERTER_NAME = "step";
+    private static final FormatRoute FORMAT_ROUTE = new FormatRoute(CONVERTER_NAME,
+            Arrays.asList("stp", "step", "igs", "iges"));
+
+    @Inject
+    private FreeCadWorkerPool workerPool;
 
     static {
         try (InputStream inputStream = StepFileConverterImpl.class.getResourceAsStream(CONF_PROPERTIES)) {
@@ -53,21 +74,97 @@ public class StepFileConverterImpl implements CADConverter {
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, null, e);
         }
+        ConverterConfiguration.applySystemProperties(CONF, CONVERTER_NAME);
     }
 
     @Override
     public ConversionResult convert(final URI cadFileUri, final URI tmpDirUri)
             throws ConversionException {
-        String pythonInterpreter = CONF.getProperty("pythonInterpreter");
-        String freeCadLibPath = CONF.getProperty("freeCadLibPath");
-
         Path tmpDir = Paths.get(tmpDirUri);
         Path tmpCadFile = Paths.get(cadFileUri);
 
+        // Never launch a tool on content it cannot read, the link to a misnamed file goes with the conversion
+        Path checkedFile = FORMAT_ROUTE.check(tmpCadFile, tmpDir);
+        try {
+            return convertCheckedFile(checkedFile, tmpDir);
+        } finally {
+            FormatRoute.release(tmpCadFile, checkedFile);
+        }
+    }
+
+    @SuppressWarnings("try")
+    private ConversionResult convertCheckedFile(Path tmpCadFile, Path tmpDir)
+            throws ConversionException {
+        // Header metadata is read in the JVM, cached results get it too
+        StepFileMetadata metadata = StepFileMetadata.of(tmpCadFile);
+
+        ConversionCache cache = ConversionCache.getInstance();
+        String fingerprint = ConversionCache.fingerprint(tmpCadFile, CONVERTER_NAME, CONF);
+        String cacheKey = cache.key(fingerprint);
+        ConversionResult cachedResult = cache.get(cacheKey, tmpDir);
+        if (cachedResult != null) {
+            return metadata.attach(PostProcessing.apply(cachedResult, tmpDir));
+        }
+
+        // Inputs the tool keeps failing on fail here, before any process is launched
+        ConversionQuarantine.getInstance().check(fingerprint, CONVERTER_NAME, tmpCadFile);
+
+        // Scheduled and timed by the entities of the file, hopeless conversions fail before taking a slot
+        ConversionEstimate estimate = ConversionEstimate.of(CONVERTER_NAME, tmpCadFile);
+        estimate.check();
+
         UUID uuid = UUID.randomUUID();
-        Path tmpOBJFile = tmpDir.resolve(uuid + ".obj");
+        long timeoutMillis = estimate.getTimeoutMillis();
+
+        try (ScratchSpace.Allocation scratch = ScratchSpace.getInstance().allocate(tmpCadFile, tmpDir)) {
+            Path tmpOBJFile = scratch.getDirectory().resolve(uuid + ".obj");
+            ConversionResult result = new ConversionResult(tmpOBJFile);
+
+            if (isTessellatedInParallel(tmpCadFile)) {
+                ParallelTessellation tessellation = new ParallelTessellation(workerPool, CONVERTER_NAME,
+                        Integer.parseInt(CONF.getProperty("freeCadParallelWorkers")));
+                if (tessellation.convert(scratch.getInput(), tmpOBJFile, timeoutMillis)) {
+                    cache.put(cacheKey, result);
+                    return scratch.attach(metadata.attach(PostProcessing.apply(result, scratch.getDirectory())));
+                }
+                LOGGER.info("Converting " + tmpCadFile + " with a single worker");
+            }
+
+            try (ConversionScheduler.Permit permit = ConversionScheduler.getInstance().acquire(CONVERTER_NAME,
+                    estimate.getCost(), ConversionScheduler.getOrigin())) {
+                if (workerPool != null && workerPool.isEnabled()) {
+                    workerPool.convert(scratch.getInput(), tmpOBJFile, timeoutMillis);
+                } else {
+                    convertWithScript(scratch.getInput(), tmpOBJFile,
+                            scratch.temporary(scratch.getDirectory().resolve("python_script" + uuid + ".py")),
+                            estimate.getProcessRunner());
+                }
+            }
+
+            cache.put(cacheKey, result);
+            return scratch.attach(metadata.attach(PostProcessing.apply(result, scratch.getDirectory())));
+        }
+    }
+
+    /**
+     * Large files are tessellated by several pooled workers when freeCadParallelWorkers is above 1.
+     */
+    private boolean isTessellatedInParallel(Path stepFile) {
+        try {
+            return workerPool != null && workerPool.isEnabled()
+                    && Integer.parseInt(CONF.getProperty("freeCadParallelWorkers", "0")) > 1
+                    && Files.size(stepFile) >= Long.parseLong(CONF.getProperty("freeCadParallelMinSize", "0"));
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid parallel tessellation configuration", e);
+            return false;
+        }
+    }
+
+    private void convertWithScript(Path tmpCadFile, Path tmpOBJFile, Path scriptToOBJ, ProcessRunner runner)
+            throws ConversionException {
+        String pythonInterpreter = CONF.getProperty("pythonInterpreter");
+        String freeCadLibPath = CONF.getProperty("freeCadLibPath");
 
-        Path scriptToOBJ = tmpDir.resolve("python_script" + uuid + ".py");
         try (InputStream scriptStream = StepFileConverterImpl.class.getResourceAsStream(PYTHON_SCRIPT_TO_OBJ)) {
             Files.copy(scriptStream, scriptToOBJ);
         } catch (IOException | NullPointerException e) {
@@ -79,21 +176,13 @@ public class StepFileConverterImpl implements CADConverter {
         ProcessBuilder pb = new ProcessBuilder(args);
 
         try {
-            Process process = pb.start();
-
-            // Read buffers
-            String stdOutput = ConverterUtils.inputStreamToString(process.getInputStream());
-            String errorOutput = ConverterUtils.inputStreamToString(process.getErrorStream());
-
-            LOGGER.info(stdOutput);
+            ProcessResult processResult = runner.run(pb);
 
-            process.waitFor();
+            LOGGER.info(processResult.getStdOutput());
 
-            if (process.exitValue() == 0) {
-                return new ConversionResult(tmpOBJFile);
-            } else {
+            if (!processResult.isSuccess()) {
                 throw new ConversionException(
-                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + errorOutput);
+                        "Cannot convert to obj " + tmpCadFile.toAbsolutePath() + ": " + processResult.getFailureReason());
             }
         } catch (IOException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, null, e);
@@ -103,7 +192,7 @@ public class StepFileConverterImpl implements CADConverter {
 
     @Override
     public boolean canConvertToOBJ(String cadFileExtension) {
-        return Arrays.asList("stp", "step", "igs", "iges").contains(cadFileExtension);
+        return FORMAT_ROUTE.accepts(cadFileExtension);
     }
 
 }
@@ -0,0 +1,112 @@
+from optparse import OptionParser;
+import sys;
+
+# Long-lived FreeCAD process converting STEP/IGES files to OBJ.
+# Requests are read on stdin, one per line:
+#   "convert<TAB>inputFile<TAB>outputFile" exports the whole file,
+#   "list<TAB>inputFile<TAB>manifestFile" writes the shapes to tessellate, one per line: "index<TAB>group<TAB>faces",
+#   "export<TAB>inputFile<TAB>outputPrefix<TAB>index,index..." exports the listed shapes to outputPrefix<index>.obj.
+# Replies are written on stdout, prefixed to be told apart from FreeCAD messages: "READY", "OK" or "ERROR <message>".
+
+PREFIX = "@@docdoku@@ ";
+
+parser = OptionParser();
+
+parser.add_option("-l", "--freeCadLibPath", dest="l", help ="");
+
+(options, args) = parser.parse_args();
+
+sys.path.append(options.l);
+
+import FreeCAD;
+import Part, Mesh;
+
+def reply(message):
+	sys.stdout.write(PREFIX + message + "\n");
+	sys.stdout.flush();
+
+def openDocument(inputFile):
+	try:
+		import Import;
+		Import.open(inputFile);
+	except ImportError:
+		Part.open(inputFile);
+	return FreeCAD.ActiveDocument;
+
+def groupOf(obj):
+	labels = [];
+	while obj is not None:
+		labels.insert(0, obj.Label);
+		parents = obj.InList;
+		obj = parents[0] if parents else None;
+	return "/".join(labels);
+
+# Leaf shapes in document order, the solids of a leaf being tessellated separately
+def shapes(document):
+	result = [];
+	for obj in document.Objects:
+		if not obj.isDerivedFrom("Part::Feature") or obj.Shape.isNull():
+			continue;
+		if any(child.isDerivedFrom("Part::Feature") for child in obj.OutList):
+			continue;
+		solids = obj.Shape.Solids;
+		if len(solids) > 1:
+			for solid in solids:
+				result.append((obj, solid));
+		else:
+			result.append((obj, obj.Shape));
+	return result;
+
+def listShapes(inputFile, manifestFile):
+	document = openDocument(inputFile);
+	try:
+		with open(manifestFile, "w") as manifest:
+			for index, (obj, shape) in enumerate(shapes(document)):
+				manifest.write("%d\t%s\t%d\n" % (index, groupOf(obj).replace("\t", " "), len(shape.Faces)));
+	finally:
+		FreeCAD.closeDocument(document.Name);
+
+def exportShapes(inputFile, outputPrefix, indices):
+	# Same deviation as Mesh.export, so that the result does not depend on the number of workers
+	deviation = FreeCAD.ParamGet("User parameter:BaseApp/Preferences/Mod/Mesh").GetFloat("MaxDeviationExport", 0.1);
+	document = openDocument(inputFile);
+	try:
+		found = shapes(document);
+		for index in indices:
+			mesh = Mesh.Mesh(found[index][1].tessellate(deviation));
+			if mesh.CountFacets > 0:
+				mesh.write(outputPrefix + str(index) + ".obj");
+	finally:
+		FreeCAD.closeDocument(document.Name);
+
+def convert(inputFile, outputFile):
+	Part.open(inputFile);
+	document = FreeCAD.ActiveDocument;
+	try:
+		Mesh.export(document.Objects, outputFile);
+	finally:
+		FreeCAD.closeDocument(document.Name);
+
+def serve():
+	reply("READY");
+	while True:
+		line = sys.stdin.readline();
+		if not line:
+			break;
+		fields = line.rstrip("\n").split("\t");
+		try:
+			if len(fields) == 3 and fields[0] == "convert":
+				convert(fields[1], fields[2]);
+			elif len(fields) == 3 and fields[0] == "list":
+				listShapes(fields[1], fields[2]);
+			elif len(fields) == 4 and fields[0] == "export":
+				exportShapes(fields[1], fields[2], [int(index) for index in fields[3].split(",")]);
+			else:
+				reply("ERROR unknown request");
+				continue;
+			reply("OK");
+		except Exception as e:
+			reply("ERROR " + str(e).replace("\n", " "));
+
+if __name__ == "__main__":
+	serve();
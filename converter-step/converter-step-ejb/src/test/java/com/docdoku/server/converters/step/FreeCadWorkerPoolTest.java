@@ -0,0 +1,125 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class FreeCadWorkerPoolTest {
+
+    private Path dir;
+    private FakeWorkers pool;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pool");
+        pool = new FakeWorkers();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        StepFileConverterImpl.CONF.remove("freeCadWorkerMaxJobs");
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testIdleWorkerReused() throws Exception {
+        String first = convert("ok");
+        Assert.assertEquals(first, convert("ok"));
+        Assert.assertEquals(1, pool.started.size());
+    }
+
+    @Test
+    public void testWorkerRecycledAfterMaxJobs() throws Exception {
+        StepFileConverterImpl.CONF.setProperty("freeCadWorkerMaxJobs", "1");
+        Assert.assertNotEquals(convert("ok"), convert("ok"));
+        Assert.assertEquals(2, pool.started.size());
+        Assert.assertFalse(pool.started.get(0).isAlive());
+    }
+
+    @Test
+    public void testCrashedWorkerReplaced() throws Exception {
+        try {
+            convert("crash");
+            Assert.fail();
+        } catch (ConversionException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("exited"));
+        }
+        convert("ok");
+        Assert.assertEquals(2, pool.started.size());
+    }
+
+    @Test
+    public void testWorkerDeadWhileIdleReplaced() throws Exception {
+        convert("exit");
+        FreeCadWorkerTest.waitForExit(pool.started.get(0));
+
+        // The next input must not read the reply left by the exit
+        convert("ok");
+        Assert.assertEquals(2, pool.started.size());
+    }
+
+    private String convert(String behaviour) throws Exception {
+        Path input = Files.write(Files.createTempFile(dir, "input", ".stp"),
+                (behaviour + "\n").getBytes(StandardCharsets.US_ASCII));
+        Path objFile = Files.createTempFile(dir, "output", ".obj");
+        pool.convert(input, objFile, 10000);
+        return Files.readAllLines(objFile, StandardCharsets.US_ASCII).stream().findFirst().orElse("");
+    }
+
+    /**
+     * Worker pool starting fake workers, keeping track of them.
+     */
+    private static class FakeWorkers extends FreeCadWorkerPool {
+
+        private final List<FreeCadWorker> started = new ArrayList<>();
+
+        @Override
+        FreeCadWorker startWorker() throws ConversionException {
+            try {
+                FreeCadWorker worker = FreeCadWorkerTest.start();
+                started.add(worker);
+                return worker;
+            } catch (ConversionException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class FreeCadWorkerTest {
+
+    private Path dir;
+    private FreeCadWorker worker;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("worker");
+        worker = start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        worker.stop();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testRepliesToldApartFromToolOutput() throws Exception {
+        Path objFile = dir.resolve("part.obj");
+        worker.convert(input("ok"), objFile, 10000);
+        Assert.assertTrue(new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII).contains("f 1 2 3"));
+
+        worker.convert(input("ok"), objFile, 10000);
+        Assert.assertEquals(2, worker.getJobs());
+        Assert.assertTrue(worker.isReady());
+    }
+
+    @Test
+    public void testErrorKeepsTheWorker() throws Exception {
+        try {
+            worker.convert(input("error"), dir.resolve("part.obj"), 10000);
+            Assert.fail();
+        } catch (ConversionException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("cannot read"));
+        }
+        Assert.assertTrue(worker.isReady());
+        worker.convert(input("ok"), dir.resolve("part.obj"), 10000);
+    }
+
+    @Test
+    public void testCrash() throws Exception {
+        try {
+            worker.convert(input("crash"), dir.resolve("part.obj"), 10000);
+            Assert.fail();
+        } catch (ConversionException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("exited"));
+        }
+        Assert.assertFalse(worker.isAlive());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            worker.convert(input("hang"), dir.resolve("part.obj"), 200);
+            Assert.fail();
+        } catch (ConversionException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+        }
+        Assert.assertFalse(worker.isAlive());
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testDeathWhileIdle() throws Exception {
+        worker.convert(input("exit"), dir.resolve("part.obj"), 10000);
+        waitForExit(worker);
+        Assert.assertFalse(worker.isReady());
+    }
+
+    static FreeCadWorker start() throws Exception {
+        Path script = Paths.get(FreeCadWorkerTest.class.getResource("fake_freecad_worker.sh").toURI());
+        return FreeCadWorker.start("sh", script, "/usr/lib/freecad/lib", 10000);
+    }
+
+    static void waitForExit(FreeCadWorker worker) throws InterruptedException {
+        for (int i = 0; i < 100 && worker.isAlive(); i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    private Path input(String behaviour) throws Exception {
+        return Files.write(Files.createTempFile(dir, "input", ".stp"),
+                (behaviour + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+}
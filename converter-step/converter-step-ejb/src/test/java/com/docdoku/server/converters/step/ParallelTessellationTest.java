@@ -0,0 +1,154 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.step;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ParallelTessellationTest {
+
+    @Test
+    public void testPartitionByFaceCount() {
+        List<ParallelTessellation.Shape> shapes = Arrays.asList(new ParallelTessellation.Shape(0, "a", 100),
+                new ParallelTessellation.Shape(1, "b", 700), new ParallelTessellation.Shape(2, "c", 300),
+                new ParallelTessellation.Shape(3, "d", 250), new ParallelTessellation.Shape(4, "e", 0),
+                new ParallelTessellation.Shape(5, "f", 200));
+
+        // Largest first, each to the lightest group, a shape without faces still counting for its setup
+        Assert.assertEquals(Arrays.asList(Collections.singletonList(1), Arrays.asList(2, 0, 4),
+                Arrays.asList(3, 5)), ParallelTessellation.partition(shapes, 3));
+        Assert.assertEquals(6, ParallelTessellation.partition(shapes, 10).size());
+        Assert.assertEquals(Collections.singletonList(Arrays.asList(1, 2, 3, 5, 0, 4)),
+                ParallelTessellation.partition(shapes, 1));
+    }
+
+    @Test
+    public void testMergeInListingOrder() throws Exception {
+        Path dir = Files.createTempDirectory("tessellation");
+        try {
+            Path stepFile = Files.write(dir.resolve("assembly.stp"), "ISO-10303-21;\n".getBytes(
+                    StandardCharsets.US_ASCII));
+            Path objFile = dir.resolve("assembly.obj");
+
+            // The largest shape completes last
+            ParallelTessellation tessellation = new ParallelTessellation(new ListedShapes(
+                    "0\tassembly/bolt\t10\n1\tassembly/plate\t900\n2\tassembly/nut\t20\n"), "step", 3);
+            Assert.assertTrue(tessellation.convert(stepFile, objFile, 10000));
+
+            String obj = new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII);
+            Assert.assertTrue(obj, obj.indexOf("g assembly/bolt") < obj.indexOf("g assembly/plate"));
+            Assert.assertTrue(obj, obj.indexOf("g assembly/plate") < obj.indexOf("g assembly/nut"));
+            Assert.assertTrue(obj, obj.indexOf("v 0 0 0") < obj.indexOf("v 1 0 0"));
+            Assert.assertTrue(obj, obj.indexOf("v 1 0 0") < obj.indexOf("v 2 0 0"));
+            Assert.assertTrue(obj.contains("f 4 5 6\n"));
+            Files.delete(objFile);
+            Files.delete(stepFile);
+        } finally {
+            // Manifest and parts are deleted by the tessellation
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(0, files.count());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testOnlyTimeoutsFailTheConversion() throws Exception {
+        Path dir = Files.createTempDirectory("tessellation");
+        try {
+            Path stepFile = Files.write(dir.resolve("assembly.stp"), "ISO-10303-21;\n".getBytes(
+                    StandardCharsets.US_ASCII));
+            Path objFile = dir.resolve("assembly.obj");
+            String manifest = "0\tassembly/bolt\t10\n1\tassembly/plate\t900\n";
+
+            // Another failure leaves the file to a single worker
+            ListedShapes failing = new ListedShapes(manifest);
+            failing.failure = new ConversionException("Cannot convert to obj: exit code 1");
+            Assert.assertFalse(new ParallelTessellation(failing, "step", 2).convert(stepFile, objFile, 10000));
+
+            // Which would time out as well
+            ListedShapes timingOut = new ListedShapes(manifest);
+            timingOut.failure = new FreeCadWorker.TimedOutException("Cannot convert to obj: timed out after 10 ms");
+            try {
+                new ParallelTessellation(timingOut, "step", 2).convert(stepFile, objFile, 10);
+                Assert.fail();
+            } catch (ConversionException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().endsWith("timed out after 10 ms"));
+            }
+            Files.delete(stepFile);
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(0, files.count());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Worker pool listing the given shapes, each exported as a triangle after a delay growing with its face count,
+     * or failing on the shape 1 if a failure is set.
+     */
+    private static class ListedShapes extends FreeCadWorkerPool {
+
+        private final String manifest;
+        private ConversionException failure;
+
+        ListedShapes(String manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override
+        public void list(Path stepFile, Path manifestFile, long timeoutMillis) {
+            try {
+                Files.write(manifestFile, manifest.getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void export(Path stepFile, String outputPrefix, List<Integer> indices, long timeoutMillis)
+                throws ConversionException {
+            if (failure != null && indices.contains(1)) {
+                throw failure;
+            }
+            try {
+                for (int index : indices) {
+                    Thread.sleep(index == 1 ? 300 : 10);
+                    Files.write(Paths.get(outputPrefix + index + ".obj"), ("v " + index + " 0 0\nv " + index
+                            + " 1 0\nv " + index + " 0 1\nf 1 2 3\n").getBytes(StandardCharsets.US_ASCII));
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
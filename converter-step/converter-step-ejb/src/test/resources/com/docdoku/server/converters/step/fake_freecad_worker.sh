@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Stand-in for freecad_worker.py speaking its protocol, so that the worker pool can be tested without FreeCAD.
+#
+# Usage: sh fake_freecad_worker.sh -l <FreeCAD lib path>
+#
+# The first line of each input file tells what the worker does with it:
+#   ok      writes the output file, its first line being the process id of the worker, and replies OK
+#   error   replies ERROR
+#   crash   exits while converting
+#   hang    never replies, and exits once its input is closed
+#   exit    replies OK and exits while idle
+
+prefix="@@docdoku@@ "
+tab=$(printf '\t')
+
+echo "FreeCAD 0.19, Libs: $2"
+echo "${prefix}READY"
+
+while IFS="$tab" read -r command input output rest; do
+    echo "Processing $command request"
+    case "$(head -n 1 "$input")" in
+        ok)
+            printf '# %s\nv 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n' "$$" > "$output"
+            echo "${prefix}OK"
+            ;;
+        error)
+            echo "${prefix}ERROR cannot read $input"
+            ;;
+        crash)
+            echo "Segmentation fault" >&2
+            exit 139
+            ;;
+        hang)
+            read -r ignored
+            exit 0
+            ;;
+        exit)
+            echo "${prefix}OK"
+            exit 0
+            ;;
+    esac
+done
@@ -0,0 +1,42 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Converter able to convert several files at once, such as the files of a bulk import, paying the tool start-up
+ * once per batch rather than once per file.
+ */
+public interface BatchCADConverter {
+
+    /**
+     * Convert a batch of files, scheduled as {@link ConversionScheduler.Origin#BULK bulk} conversions.
+     *
+     * @return one result per file, in the order of the files
+     * @throws ConversionException if none of the files can be converted, e.g. when the tool is not available
+     */
+    List<BatchConversionResult> convertAll(List<URI> cadFileUris, URI tmpDirUri) throws ConversionException;
+
+}
@@ -0,0 +1,180 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversion of a batch of files by a tool converting one file per process.
+ * <p>
+ * Files are converted in chunks of batch_max_files. Each chunk runs its tool invocations in one
+ * {@link ShellSession} and holds a single bulk scheduler permit, released between chunks so interactive
+ * conversions are not held back by a large import. The tool still runs once per file, forked by the shell: the
+ * session saves the launch of a process from the JVM, not the startup of the tool. Each file goes through the same
+ * format check, cache, quarantine, scratch space, output pipe and post-processing as a single conversion, and its
+ * error does not stop the rest of the batch.
+ */
+public class BatchConversion {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchConversion.class.getName());
+
+    /**
+     * Builds the tool command line for one file.
+     */
+    @FunctionalInterface
+    public interface InvocationFactory {
+        ToolInvocation create(Path cadFile, Path tmpDir);
+    }
+
+    private final String converter;
+    private final Properties configuration;
+    private final FormatRoute formatRoute;
+    private final InvocationFactory invocationFactory;
+    private final int maxFiles;
+
+    /**
+     * @param converter     name of the converter
+     * @param configuration converter configuration, part of the cache keys
+     * @param formatRoute   formats accepted by the converter
+     */
+    public BatchConversion(String converter, Properties configuration, FormatRoute formatRoute,
+                           InvocationFactory invocationFactory) {
+        this.converter = converter;
+        this.configuration = configuration;
+        this.formatRoute = formatRoute;
+        this.invocationFactory = invocationFactory;
+        this.maxFiles = Math.max(1, ConverterConfiguration.getInt("batch_max_files", 32));
+    }
+
+    /**
+     * @return one result per file, in the order of the files
+     */
+    public List<BatchConversionResult> run(List<URI> cadFileUris, URI tmpDirUri) {
+        Path tmpDir = Paths.get(tmpDirUri);
+        List<BatchConversionResult> results = new ArrayList<>(cadFileUris.size());
+        for (int from = 0; from < cadFileUris.size(); from += maxFiles) {
+            List<URI> chunk = cadFileUris.subList(from, Math.min(cadFileUris.size(), from + maxFiles));
+            results.addAll(runChunk(chunk, tmpDir));
+        }
+        return results;
+    }
+
+    private List<BatchConversionResult> runChunk(List<URI> chunk, Path tmpDir) {
+        List<BatchConversionResult> results = new ArrayList<>(chunk.size());
+        ConversionScheduler.Permit permit = null;
+        try (ShellSession session = ShellSession.forConverter(converter, tmpDir)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                URI cadFileUri = chunk.get(i);
+                Path cadFile = Paths.get(cadFileUri);
+                Path checkedFile = cadFile;
+                try (ConversionMetrics.Conversion conversion = ConversionMetrics.getInstance().start(converter,
+                        cadFile)) {
+                    checkedFile = formatRoute.check(cadFile, tmpDir);
+
+                    ConversionCache cache = ConversionCache.getInstance();
+                    String fingerprint = ConversionCache.fingerprint(checkedFile, converter, configuration);
+                    String cacheKey = cache.key(fingerprint);
+                    ConversionResult cached = cache.get(cacheKey, tmpDir);
+                    ConversionResult result;
+                    if (cached != null) {
+                        result = PostProcessing.apply(cached, tmpDir);
+                    } else {
+                        try (ConversionQuarantine.Scope scope = ConversionQuarantine.getInstance().open()) {
+                            ConversionQuarantine.getInstance().check(fingerprint, converter, cadFile);
+                            if (permit == null) {
+                                permit = ConversionScheduler.getInstance().acquire(converter,
+                                        cost(chunk.subList(i, chunk.size())), ConversionScheduler.Origin.BULK);
+                            }
+                            result = convert(session, checkedFile, tmpDir, cacheKey, scope);
+                        }
+                    }
+                    conversion.succeeded(result);
+                    results.add(BatchConversionResult.succeeded(cadFileUri, result));
+
+                } catch (ConversionException e) {
+                    results.add(BatchConversionResult.failed(cadFileUri, e));
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, null, e);
+                    results.add(BatchConversionResult.failed(cadFileUri, new ConversionException(e)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (URI remaining : chunk.subList(i, chunk.size())) {
+                        results.add(BatchConversionResult.failed(remaining,
+                                new ConversionException("Interrupted before converting " + remaining, e)));
+                    }
+                    break;
+                } finally {
+                    FormatRoute.release(cadFile, checkedFile);
+                }
+            }
+            LOGGER.log(Level.FINE, "{0} batch of {1} files ran {2} tool invocations in one shell",
+                    new Object[]{converter, chunk.size(), session.getInvocations()});
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the tool on a file in the scratch space, and post-process its output there.
+     */
+    private ConversionResult convert(ShellSession session, Path cadFile, Path tmpDir, String cacheKey,
+                                     ConversionQuarantine.Scope scope)
+            throws ConversionException, IOException, InterruptedException {
+        try (ScratchSpace.Allocation scratch = ScratchSpace.getInstance().allocate(cadFile, tmpDir)) {
+            ToolInvocation invocation = invocationFactory.create(scratch.getInput(), scratch.getDirectory());
+            ConversionResult result = invocation.getResult();
+            try (ObjPipe pipe = ObjPipe.forConverter(converter, result.getConvertedFile())) {
+                ProcessResult processResult = session.run(invocation.getCommand());
+                LOGGER.fine(processResult.getStdOutput());
+                if (!processResult.isSuccess()) {
+                    throw new ConversionException("Cannot convert to obj " + cadFile.toAbsolutePath() + ": "
+                            + processResult.getFailureReason());
+                }
+                ConversionResult pipedResult = pipe.finish(result);
+                scope.succeeded();
+                ConversionCache.getInstance().put(cacheKey, pipedResult);
+                return scratch.attach(PostProcessing.apply(pipedResult, scratch.getDirectory()));
+            }
+        }
+    }
+
+    private long cost(List<URI> cadFileUris) {
+        long cost = 0;
+        for (URI cadFileUri : cadFileUris) {
+            cost += ConversionScheduler.estimateCost(converter, Paths.get(cadFileUri));
+        }
+        return cost;
+    }
+}
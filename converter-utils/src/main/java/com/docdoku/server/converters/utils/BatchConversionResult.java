@@ -0,0 +1,72 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.net.URI;
+
+/**
+ * Outcome of the conversion of one file of a batch: its result, or the error that prevented it.
+ */
+public class BatchConversionResult {
+
+    private final URI cadFileUri;
+    private final ConversionResult result;
+    private final ConversionException error;
+
+    private BatchConversionResult(URI cadFileUri, ConversionResult result, ConversionException error) {
+        this.cadFileUri = cadFileUri;
+        this.result = result;
+        this.error = error;
+    }
+
+    public static BatchConversionResult succeeded(URI cadFileUri, ConversionResult result) {
+        return new BatchConversionResult(cadFileUri, result, null);
+    }
+
+    public static BatchConversionResult failed(URI cadFileUri, ConversionException error) {
+        return new BatchConversionResult(cadFileUri, null, error);
+    }
+
+    public URI getCadFileUri() {
+        return cadFileUri;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the conversion result, null if the conversion failed
+     */
+    public ConversionResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return the reason of the failure, null if the conversion succeeded
+     */
+    public ConversionException getError() {
+        return error;
+    }
+}
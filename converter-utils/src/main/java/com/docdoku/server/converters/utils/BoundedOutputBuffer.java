@@ -0,0 +1,75 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.nio.charset.Charset;
+
+/**
+ * Ring buffer keeping the last bytes written to it, used to capture process outputs without bounding the
+ * amount a process may print.
+ */
+public class BoundedOutputBuffer {
+
+    private final byte[] buffer;
+    private long total;
+
+    public BoundedOutputBuffer(int capacity) {
+        buffer = new byte[Math.max(1, capacity)];
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (length >= buffer.length) {
+            offset += length - buffer.length;
+            total += length - buffer.length;
+            length = buffer.length;
+        }
+        int position = (int) (total % buffer.length);
+        int first = Math.min(length, buffer.length - position);
+        System.arraycopy(bytes, offset, buffer, position, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+        total += length;
+    }
+
+    /**
+     * @return the number of bytes written since the creation of the buffer
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized boolean isTruncated() {
+        return total > buffer.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (total <= buffer.length) {
+            return new String(buffer, 0, (int) total, Charset.defaultCharset());
+        }
+        int position = (int) (total % buffer.length);
+        byte[] tail = new byte[buffer.length];
+        System.arraycopy(buffer, position, tail, 0, buffer.length - position);
+        System.arraycopy(buffer, 0, tail, buffer.length - position, position);
+        return "[... " + (total - buffer.length) + " bytes truncated ...]\n"
+                + new String(tail, Charset.defaultCharset());
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CAD formats recognized from the first bytes of a file, whatever its name.
+ * <p>
+ * Binary magic numbers and complete headers are signatures of their format. Text formats without a header (OBJ,
+ * OFF and ASCII STL) are guessed from their first keywords, which other text formats may happen to match.
+ */
+public enum CadFormat {
+
+    STEP("stp", "step"),
+    IGES("igs", "iges"),
+    IFC("ifc"),
+    DAE("dae"),
+    OBJ("obj"),
+    STL("stl"),
+    PLY("ply"),
+    THREE_DS("3ds"),
+    VRML("wrl", "vrml"),
+    OFF("off"),
+    /**
+     * Not recognized, the file extension is the only hint.
+     */
+    UNKNOWN;
+
+    static final int SAMPLE_SIZE = 8 * 1024;
+
+    private static final Map<String, CadFormat> BY_EXTENSION = new HashMap<>();
+
+    private static final Pattern FILE_SCHEMA =
+            Pattern.compile("FILE_SCHEMA\\s*\\(\\s*\\(\\s*'([^']*)'", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> OBJ_KEYWORDS = new HashSet<>(Arrays.asList(
+            "v", "vn", "vt", "vp", "f", "l", "p", "o", "g", "s", "mtllib", "usemtl"));
+    private static final int STL_HEADER = 80;
+    private static final int STL_TRIANGLE = 50;
+    private static final int MAIN_3DS_CHUNK = 0x4D4D;
+    private static final int VERSION_3DS_CHUNK = 0x0002;
+    private static final int EDITOR_3DS_CHUNK = 0x3D3D;
+    private static final int IGES_SECTION_COLUMN = 72;
+
+    static {
+        for (CadFormat format : values()) {
+            for (String extension : format.extensions) {
+                BY_EXTENSION.put(extension, format);
+            }
+        }
+    }
+
+    private final List<String> extensions;
+
+    CadFormat(String... extensions) {
+        this.extensions = Collections.unmodifiableList(Arrays.asList(extensions));
+    }
+
+    /**
+     * Usual file extensions of the format, in lower case.
+     */
+    public List<String> getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * Format usually stored with the given file extension, {@link #UNKNOWN} if none.
+     */
+    public static CadFormat forExtension(String extension) {
+        CadFormat format = BY_EXTENSION.get(extension.toLowerCase(Locale.ROOT));
+        return format != null ? format : UNKNOWN;
+    }
+
+    /**
+     * Recognize the format of a file from its first {@value #SAMPLE_SIZE} bytes.
+     */
+    public static CadFormat detect(Path file) throws IOException {
+        return detect(file, false);
+    }
+
+    /**
+     * Recognize the format of a file from its first {@value #SAMPLE_SIZE} bytes.
+     *
+     * @param signaturesOnly only trust magic numbers and headers, not the guesses made on text formats
+     */
+    public static CadFormat detect(Path file, boolean signaturesOnly) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        }
+        return detect(sample, length, Files.size(file), signaturesOnly);
+    }
+
+    static CadFormat detect(byte[] sample, int length, long fileSize) {
+        return detect(sample, length, fileSize, false);
+    }
+
+    static CadFormat detect(byte[] sample, int length, long fileSize, boolean signaturesOnly) {
+        // Binary formats first, a binary STL header may start with "solid"
+        ByteBuffer buffer = ByteBuffer.wrap(sample, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        if (length >= STL_HEADER + 4
+                && STL_HEADER + 4 + STL_TRIANGLE * (buffer.getInt(STL_HEADER) & 0xFFFFFFFFL) == fileSize) {
+            return STL;
+        }
+        if (length >= 8 && (buffer.getShort(0) & 0xFFFF) == MAIN_3DS_CHUNK
+                && (buffer.getInt(2) & 0xFFFFFFFFL) <= fileSize
+                && ((buffer.getShort(6) & 0xFFFF) == VERSION_3DS_CHUNK
+                || (buffer.getShort(6) & 0xFFFF) == EDITOR_3DS_CHUNK)) {
+            return THREE_DS;
+        }
+
+        String text = new String(sample, 0, length, StandardCharsets.ISO_8859_1);
+        if (text.startsWith("\u00EF\u00BB\u00BF")) {
+            text = text.substring(3);
+        }
+        String firstLine = text.split("\r?\n", 2)[0];
+        text = text.trim();
+
+        if (text.startsWith("ISO-10303-21")) {
+            Matcher schema = FILE_SCHEMA.matcher(text);
+            if (!schema.find()) {
+                return UNKNOWN;
+            }
+            return schema.group(1).trim().toUpperCase(Locale.ROOT).startsWith("IFC") ? IFC : STEP;
+        }
+        if (text.startsWith("ply") && text.length() > 3 && Character.isWhitespace(text.charAt(3))) {
+            return PLY;
+        }
+        if (text.startsWith("#VRML")) {
+            return VRML;
+        }
+        if (text.startsWith("<") && text.contains("<COLLADA")) {
+            return DAE;
+        }
+        if (firstLine.length() > IGES_SECTION_COLUMN + 1 && firstLine.charAt(IGES_SECTION_COLUMN) == 'S'
+                && firstLine.substring(IGES_SECTION_COLUMN + 1).trim().matches("\\d+")) {
+            return IGES;
+        }
+
+        if (signaturesOnly) {
+            return UNKNOWN;
+        }
+        if (text.matches("(?s)(C|N|ST|4|NC|CN)?OFF\\s.*")) {
+            return OFF;
+        }
+        if (text.startsWith("solid") && (text.contains("facet") || text.contains("endsolid"))) {
+            return STL;
+        }
+        if (isObj(text, length == SAMPLE_SIZE)) {
+            return OBJ;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean isObj(String text, boolean truncated) {
+        String[] lines = text.split("\r?\n");
+        // The last line of a truncated sample may be cut in a keyword
+        int complete = truncated ? lines.length - 1 : lines.length;
+        boolean vertices = false;
+        for (int i = 0; i < complete; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String keyword = line.split("\\s+", 2)[0];
+            if (!OBJ_KEYWORDS.contains(keyword)) {
+                return false;
+            }
+            vertices |= "v".equals(keyword);
+        }
+        return vertices;
+    }
+}
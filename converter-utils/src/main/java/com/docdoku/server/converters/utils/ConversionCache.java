@@ -0,0 +1,451 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of conversion results, addressed by the content of the converted file.
+ * <p>
+ * Keys are a SHA-256 of the input bytes, the converter name and the converter configuration (including the size
+ * and date of the tools it references), so upgrading or reconfiguring a tool invalidates its entries. Entries are
+ * evicted in least recently used order once the cache exceeds its size limit. Results are always returned as
+ * copies in the caller temp directory, since a {@link ConversionResult} deletes its files when closed.
+ * <p>
+ * Every converter application has its own instance on the same directory, so the directory is the index: each
+ * store scans it under a {@link NodeLock} and evicts the entries last read the longest ago, whoever stored them.
+ * Entries may disappear at any time, a reader then converts again.
+ */
+public class ConversionCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionCache.class.getName());
+
+    private static final String ENTRY_PROPERTIES = "entry.properties";
+    private static final String CONVERTED_FILE = "converted";
+    private static final String MATERIALS = "materials";
+    private static final String SIZE = "size";
+    private static final String LOCK_FILE = ".lock";
+    private static final String STAGING = ".tmp-";
+    // Entries being stored by another application are never that old
+    private static final long STAGING_MAX_AGE_MILLIS = 24 * 3600 * 1000L;
+    private static final long LOCK_TIMEOUT_MILLIS = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ConversionCache INSTANCE = new ConversionCache(
+            Paths.get(ConverterConfiguration.getString("cache_directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-cache").toString())),
+            ConverterConfiguration.getLong("cache_max_size", 2L * 1024 * 1024 * 1024));
+
+    private final Path directory;
+    private final long maxSize;
+    // Entries never change once stored, sizes are only read once
+    private final Map<String, Long> entrySizes = new ConcurrentHashMap<>();
+    // Order of the accesses from this application, for entries read within the same file time unit
+    private final Map<String, Long> accessSequences = new ConcurrentHashMap<>();
+    private final AtomicLong accessSequence = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long size;
+    private volatile int entryCount;
+    private boolean enabled;
+
+    /**
+     * @param directory cache location, created if needed
+     * @param maxSize   maximum size in bytes, 0 disables the cache
+     */
+    public ConversionCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.enabled = maxSize > 0;
+        if (enabled) {
+            try {
+                Files.createDirectories(directory);
+                evict();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Conversion cache disabled, cannot use " + directory, e);
+                enabled = false;
+            }
+        }
+    }
+
+    public static ConversionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Compute the cache key of a file for the given converter.
+     *
+     * @return the key, or null if the cache is disabled or the file cannot be read
+     */
+    public String key(Path cadFile, String converter, Properties configuration) {
+        return enabled ? fingerprint(cadFile, converter, configuration) : null;
+    }
+
+    /**
+     * @return the given fingerprint as a cache key, or null if the cache is disabled
+     */
+    public String key(String fingerprint) {
+        return enabled ? fingerprint : null;
+    }
+
+    /**
+     * Identify the conversion of a file by a converter: SHA-256 of the input bytes, the converter name and its
+     * configuration.
+     *
+     * @return the fingerprint, or null if the file cannot be read
+     */
+    public static String fingerprint(Path cadFile, String converter, Properties configuration) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(converter.getBytes(StandardCharsets.UTF_8));
+
+            // Sorted so that the key does not depend on the properties iteration order
+            Map<String, String> sorted = new TreeMap<>();
+            for (String name : configuration.stringPropertyNames()) {
+                sorted.put(name, configuration.getProperty(name));
+            }
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                StringBuilder line = new StringBuilder().append('\n').append(entry.getKey()).append('=')
+                        .append(entry.getValue());
+                Path tool = toolPath(entry.getValue());
+                if (tool != null) {
+                    line.append(';').append(Files.size(tool)).append(';').append(Files.getLastModifiedTime(tool));
+                }
+                digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            digest.update((byte) 0);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(cadFile)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return toHex(digest.digest());
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOGGER.log(Level.WARNING, "Cannot compute fingerprint of " + cadFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Copy a cached result into the given temp directory.
+     *
+     * @return the copied result, or null on cache miss
+     */
+    public ConversionResult get(String key, Path tmpDir) {
+        if (key == null) {
+            return null;
+        }
+        Path entry = directory.resolve(key);
+        if (!Files.exists(entry.resolve(ENTRY_PROPERTIES))) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(entry.resolve(ENTRY_PROPERTIES))) {
+                properties.load(in);
+            }
+            Files.setLastModifiedTime(entry.resolve(ENTRY_PROPERTIES), FileTime.fromMillis(System.currentTimeMillis()));
+            accessSequences.put(key, accessSequence.incrementAndGet());
+
+            Path target = tmpDir;
+            String convertedName = properties.getProperty(CONVERTED_FILE);
+            if (Files.exists(tmpDir.resolve(convertedName))) {
+                target = Files.createDirectory(tmpDir.resolve(UUID.randomUUID().toString()));
+            }
+
+            // Materials keep their names, converted files reference them by name
+            Path convertedFile = Files.copy(entry.resolve(convertedName), target.resolve(convertedName));
+            List<Path> materials = new ArrayList<>();
+            for (String material : split(properties.getProperty(MATERIALS))) {
+                materials.add(Files.copy(entry.resolve(material), target.resolve(material),
+                        StandardCopyOption.REPLACE_EXISTING));
+            }
+
+            hits.incrementAndGet();
+            ConversionMetrics.recordCacheHit();
+            LOGGER.log(Level.FINE, "Conversion cache hit {0}", key);
+            return new ConversionResult(convertedFile, materials);
+
+        } catch (IOException e) {
+            // Evicted meanwhile or damaged, convert again
+            LOGGER.log(Level.FINE, "Cannot read conversion cache entry " + key, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store a copy of a successful conversion result.
+     */
+    public void put(String key, ConversionResult result) {
+        if (key == null || result.getConvertedFile() == null || !Files.exists(result.getConvertedFile())) {
+            return;
+        }
+        Path entry = directory.resolve(key);
+        Path staging = directory.resolve(key + STAGING + UUID.randomUUID());
+        try {
+            Files.createDirectory(staging);
+
+            long entrySize = copy(result.getConvertedFile(), staging);
+            List<String> materials = new ArrayList<>();
+            for (Path material : result.getMaterials()) {
+                if (Files.exists(material)) {
+                    entrySize += copy(material, staging);
+                    materials.add(material.getFileName().toString());
+                }
+            }
+
+            Properties properties = new Properties();
+            properties.setProperty(CONVERTED_FILE, result.getConvertedFile().getFileName().toString());
+            properties.setProperty(MATERIALS, String.join(",", materials));
+            properties.setProperty(SIZE, String.valueOf(entrySize));
+            try (OutputStream out = Files.newOutputStream(staging.resolve(ENTRY_PROPERTIES))) {
+                properties.store(out, null);
+            }
+
+            if (entrySize > maxSize) {
+                deleteRecursively(staging);
+                return;
+            }
+
+            try {
+                Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (!Files.exists(entry)) {
+                    throw e;
+                }
+                // Stored concurrently by another conversion
+                deleteRecursively(staging);
+                return;
+            }
+
+            entrySizes.put(key, entrySize);
+            accessSequences.put(key, accessSequence.incrementAndGet());
+            evict();
+
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot store conversion cache entry " + key, e);
+            deleteRecursively(staging);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the size of the entries of all the applications, as of the last store
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of entries of all the applications, as of the last store
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Scan the directory and evict the least recently read entries until the cache fits its size limit.
+     */
+    private void evict() {
+        try (NodeLock lock = NodeLock.acquire(directory.resolve(LOCK_FILE), LOCK_TIMEOUT_MILLIS)) {
+            if (lock == null) {
+                LOGGER.log(Level.FINE, "Conversion cache {0} busy, eviction postponed", directory);
+                return;
+            }
+            List<Entry> found = scan();
+            found.sort(Comparator.comparingLong((Entry entry) -> entry.lastAccess)
+                    .thenComparingLong(entry -> accessSequences.getOrDefault(entry.key, 0L)));
+            long total = 0;
+            for (Entry entry : found) {
+                total += entry.size;
+            }
+            Iterator<Entry> iterator = found.iterator();
+            while (total > maxSize && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                total -= eldest.size;
+                deleteRecursively(directory.resolve(eldest.key));
+                entrySizes.remove(eldest.key);
+                accessSequences.remove(eldest.key);
+                LOGGER.log(Level.FINE, "Conversion cache evicted {0}", eldest.key);
+            }
+            size = total;
+            entryCount = found.size();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot evict conversion cache entries from " + directory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Entry> scan() throws IOException {
+        List<Entry> found = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    if (name.contains(STAGING)) {
+                        // Left over by a crashed store
+                        if (now - Files.getLastModifiedTime(path).toMillis() > STAGING_MAX_AGE_MILLIS) {
+                            deleteRecursively(path);
+                        }
+                    } else if (Files.isDirectory(path)) {
+                        long lastAccess = Files.getLastModifiedTime(path.resolve(ENTRY_PROPERTIES)).toMillis();
+                        Long entrySize = entrySizes.get(name);
+                        if (entrySize == null) {
+                            entrySize = entrySize(path);
+                            entrySizes.put(name, entrySize);
+                        }
+                        found.add(new Entry(name, entrySize, lastAccess));
+                    }
+                } catch (NoSuchFileException e) {
+                    // Evicted or being stored by another application meanwhile
+                    LOGGER.log(Level.FINE, "Skipping conversion cache entry {0}", name);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static long copy(Path file, Path targetDir) throws IOException {
+        Files.copy(file, targetDir.resolve(file.getFileName().toString()));
+        return Files.size(file);
+    }
+
+    private static long entrySize(Path dir) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(ENTRY_PROPERTIES))) {
+            properties.load(in);
+        }
+        String stored = properties.getProperty(SIZE);
+        if (stored != null) {
+            try {
+                return Long.parseLong(stored);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.FINE, "Invalid size in conversion cache entry {0}", dir);
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            long total = 0;
+            for (Path file : files.collect(Collectors.toList())) {
+                if (!ENTRY_PROPERTIES.equals(file.getFileName().toString())) {
+                    total += Files.size(file);
+                }
+            }
+            return total;
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + path, e);
+        }
+    }
+
+    private static Path toolPath(String value) {
+        try {
+            Path path = Paths.get(value);
+            return path.isAbsolute() && Files.isRegularFile(path) ? path : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.isEmpty()) {
+                    values.add(item);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        private final String key;
+        private final long size;
+        private final long lastAccess;
+
+        Entry(String key, long size, long lastAccess) {
+            this.key = key;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.util.concurrent.Callable;
+
+/**
+ * State of the conversion running on a thread: its quarantine scope, its metrics and its scheduling origin.
+ * <p>
+ * They are thread locals, a conversion running part of its work on other threads captures them on the calling
+ * thread and {@link #wrap wraps} its tasks, so that the failures, timeouts and process runs of the tasks are
+ * reported to the conversion.
+ */
+public final class ConversionContext {
+
+    private final ConversionQuarantine.Scope scope;
+    private final ConversionMetrics.Conversion conversion;
+    private final ConversionScheduler.Origin origin;
+
+    private ConversionContext(ConversionQuarantine.Scope scope, ConversionMetrics.Conversion conversion,
+                              ConversionScheduler.Origin origin) {
+        this.scope = scope;
+        this.conversion = conversion;
+        this.origin = origin;
+    }
+
+    /**
+     * Context of the conversion running on the current thread.
+     */
+    public static ConversionContext capture() {
+        return new ConversionContext(ConversionQuarantine.current(), ConversionMetrics.current(),
+                ConversionScheduler.getOrigin());
+    }
+
+    /**
+     * Task running in this context, the context of the executing thread is restored after it.
+     */
+    @SuppressWarnings("try")
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            ConversionQuarantine.Scope previousScope = ConversionQuarantine.current();
+            ConversionMetrics.Conversion previousConversion = ConversionMetrics.current();
+            ConversionQuarantine.setCurrent(scope);
+            ConversionMetrics.setCurrent(conversion);
+            try (ConversionScheduler.OriginScope originScope = ConversionScheduler.withOrigin(origin)) {
+                return task.call();
+            } finally {
+                ConversionQuarantine.setCurrent(previousScope);
+                ConversionMetrics.setCurrent(previousConversion);
+            }
+        };
+    }
+}
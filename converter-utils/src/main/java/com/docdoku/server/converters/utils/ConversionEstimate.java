@@ -0,0 +1,222 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.io.StepFileScanner;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cost of a conversion, estimated before its tool is launched.
+ * <p>
+ * STEP and IFC files, both ISO 10303-21, are read once by a {@link StepFileScanner} that counts their instances by
+ * type without building a model. The faces, B-spline surfaces, products and boolean operations, which make most of
+ * the tessellation time of FreeCAD and IfcConvert, are weighted by the estimate_weight_[kind] settings into an
+ * estimated tool time. The scheduler queues the conversion by this time rather than by the file size, the process
+ * timeout follows it within bounds, and conversions estimated above estimate_max_time are rejected. Other files,
+ * or all of them when estimate_enabled is off, keep the size based cost and the configured timeout.
+ */
+public class ConversionEstimate {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionEstimate.class.getName());
+
+    static final Set<String> FACES = new HashSet<>(Arrays.asList(
+            "ADVANCED_FACE", "FACE_SURFACE", "FACE", "IFCFACE", "IFCADVANCEDFACE"));
+    static final Set<String> B_SPLINE_SURFACES = new HashSet<>(Arrays.asList(
+            "B_SPLINE_SURFACE_WITH_KNOTS", "IFCBSPLINESURFACEWITHKNOTS", "IFCRATIONALBSPLINESURFACEWITHKNOTS"));
+    // Products with a shape, IfcProduct instances without one are not tessellated
+    static final Set<String> PRODUCTS = new HashSet<>(Arrays.asList("PRODUCT", "IFCPRODUCTDEFINITIONSHAPE"));
+    static final Set<String> BOOLEANS = new HashSet<>(Arrays.asList(
+            "BOOLEAN_RESULT", "IFCBOOLEANRESULT", "IFCBOOLEANCLIPPINGRESULT"));
+
+    private final String converter;
+    private final Path cadFile;
+    private final Map<String, Long> counts;
+    private final StepFileMetadata metadata;
+    private final long estimatedMillis;
+
+    ConversionEstimate(String converter, Path cadFile, Map<String, Long> counts, StepFileMetadata metadata) {
+        this.converter = converter;
+        this.cadFile = cadFile;
+        this.counts = Collections.unmodifiableMap(counts);
+        this.metadata = metadata;
+        double micros = getEntities() * ConverterConfiguration.getDouble("estimate_weight_entity", 2)
+                + getFaces() * ConverterConfiguration.getDouble("estimate_weight_face", 400)
+                + getBSplineSurfaces() * ConverterConfiguration.getDouble("estimate_weight_b_spline_surface", 4000)
+                + getProducts() * ConverterConfiguration.getDouble("estimate_weight_product", 2000)
+                + getBooleans() * ConverterConfiguration.getDouble("estimate_weight_boolean", 50000);
+        this.estimatedMillis = (long) Math.ceil(micros / 1000);
+    }
+
+    /**
+     * Estimate the conversion of a file, counting its entities if it is a STEP or IFC file.
+     *
+     * @throws ConversionException if the file cannot be read
+     */
+    public static ConversionEstimate of(String converter, Path cadFile) throws ConversionException {
+        try {
+            CadFormat format = CadFormat.detect(cadFile);
+            if (!ConverterConfiguration.getBoolean("estimate_enabled", true)
+                    || format != CadFormat.STEP && format != CadFormat.IFC) {
+                return new ConversionEstimate(converter, cadFile, Collections.emptyMap(), new StepFileMetadata());
+            }
+            ConversionEstimate estimate = scan(converter, cadFile);
+            LOGGER.log(Level.INFO, "{0}", estimate);
+            return estimate;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot read file \"" + cadFile + "\"", e);
+        }
+    }
+
+    static ConversionEstimate scan(String converter, Path cadFile) throws IOException {
+        StepFileMetadata metadata = new StepFileMetadata();
+        Map<String, Long> counts = StepFileScanner.count(cadFile, StepFileMetadata.TYPES, metadata::visit);
+        return new ConversionEstimate(converter, cadFile, counts, metadata);
+    }
+
+    /**
+     * @return true if the entities of the file were counted, false for a size based estimate
+     */
+    public boolean isCounted() {
+        return !counts.isEmpty();
+    }
+
+    /**
+     * @return the metadata read along with the counts, from the whole file rather than from its beginning
+     */
+    public StepFileMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return number of instances by entity type in upper case
+     */
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    public long getEntities() {
+        long entities = 0;
+        for (long count : counts.values()) {
+            entities += count;
+        }
+        return entities;
+    }
+
+    public long getFaces() {
+        return count(FACES);
+    }
+
+    public long getBSplineSurfaces() {
+        return count(B_SPLINE_SURFACES);
+    }
+
+    public long getProducts() {
+        return count(PRODUCTS);
+    }
+
+    public long getBooleans() {
+        return count(BOOLEANS);
+    }
+
+    private long count(Set<String> types) {
+        long count = 0;
+        for (String type : types) {
+            count += counts.getOrDefault(type, 0L);
+        }
+        return count;
+    }
+
+    /**
+     * @return the estimated time of the tool, 0 for a size based estimate
+     */
+    public long getEstimatedMillis() {
+        return estimatedMillis;
+    }
+
+    /**
+     * Cost of the conversion for the {@link ConversionScheduler}: the estimated time in seconds, at least 1, or the
+     * size based {@link ConversionScheduler#estimateCost cost} when the entities were not counted.
+     */
+    public long getCost() {
+        if (!isCounted()) {
+            return ConversionScheduler.estimateCost(converter, cadFile);
+        }
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(estimatedMillis + 999));
+    }
+
+    /**
+     * Wall-clock limit of the conversion processes: estimate_timeout_factor times the estimated time, between
+     * estimate_timeout_min and estimate_timeout_max, or the limit of {@link ProcessRunner#forConverter}.
+     */
+    public long getTimeoutMillis() {
+        long configured = ProcessRunner.forConverter(converter).getTimeoutMillis();
+        double factor = ConverterConfiguration.getDouble("estimate_timeout_factor", 4);
+        if (!isCounted() || factor <= 0) {
+            return configured;
+        }
+        long min = TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("estimate_timeout_min", 900));
+        long max = TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("estimate_timeout_max", 14400));
+        return Math.max(min, Math.min(max, (long) (estimatedMillis * factor)));
+    }
+
+    /**
+     * Runner of the conversion processes, with the {@link #getTimeoutMillis estimated timeout}.
+     */
+    public ProcessRunner getProcessRunner() {
+        return new ProcessRunner(getTimeoutMillis(), ProcessRunner.forConverter(converter).getMaxOutputBytes());
+    }
+
+    /**
+     * Reject the conversions estimated longer than estimate_max_time, before any process is launched.
+     *
+     * @throws ConversionException if the estimated time is above the limit
+     */
+    public void check() throws ConversionException {
+        long maxMillis = TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("estimate_max_time", 0));
+        if (maxMillis > 0 && estimatedMillis > maxMillis) {
+            throw new ConversionException("Cannot convert file \"" + cadFile + "\", its conversion is estimated to "
+                    + TimeUnit.MILLISECONDS.toSeconds(estimatedMillis) + " s (" + getFaces() + " faces, "
+                    + getProducts() + " products), above the limit of " + TimeUnit.MILLISECONDS.toSeconds(maxMillis)
+                    + " s");
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!isCounted()) {
+            return cadFile + ": size based cost " + getCost();
+        }
+        return cadFile + ": " + metadata.getSchema() + " in " + metadata.getLengthUnit() + ", " + getEntities()
+                + " entities, " + getFaces() + " faces, " + getBSplineSurfaces() + " B-spline surfaces, "
+                + getProducts() + " products, " + getBooleans() + " booleans, estimated " + estimatedMillis + " ms";
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Latency, size and outcome of the conversions, by converter and input file extension.
+ * <p>
+ * Each {@code CADConverter.convert} call is measured by {@link ConversionMetricsInterceptor}, the scheduler, the
+ * process runner and the cache attach their queue wait, exit code, timeout and cache hit to the conversion running
+ * on the current thread. Metrics are registered as MBeans and can be scraped in the Prometheus text format from
+ * the endpoint of each converter application, started by {@link ConversionMetricsLifecycle} when the
+ * metrics_http_port_[converter] of the application is set.
+ */
+public class ConversionMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionMetrics.class.getName());
+
+    static final String JMX_DOMAIN = "com.docdoku.converters";
+
+    // Seconds, up to the default process timeout
+    private static final double[] DURATION_BOUNDS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500};
+    // 1 KiB to 16 GiB
+    private static final double[] SIZE_BOUNDS = Histogram.exponentialBounds(1024, 4, 13);
+    private static final Pattern EXTENSION = Pattern.compile("[a-z0-9_]{1,16}");
+
+    private static final ThreadLocal<Conversion> CURRENT = new ThreadLocal<>();
+
+    private static final ConversionMetrics INSTANCE = create();
+
+    private final boolean enabled;
+    private final boolean jmx;
+    private final ConcurrentMap<String, Series> series = new ConcurrentSkipListMap<>();
+    private final List<ObjectName> registeredNames = new CopyOnWriteArrayList<>();
+    private MetricsEndpoint endpoint;
+
+    /**
+     * @param enabled record the conversions
+     * @param jmx     register a MBean for each converter and extension
+     */
+    public ConversionMetrics(boolean enabled, boolean jmx) {
+        this.enabled = enabled;
+        this.jmx = jmx;
+    }
+
+    public static ConversionMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static ConversionMetrics create() {
+        return new ConversionMetrics(ConverterConfiguration.getBoolean("metrics_enabled", true),
+                ConverterConfiguration.getBoolean("metrics_jmx", true));
+    }
+
+    /**
+     * Start the Prometheus endpoint of the converter application on its metrics_http_port_[converter], if set.
+     * <p>
+     * Each converter is deployed in its own application with its own metrics, a port per converter keeps the
+     * applications from competing for the same one.
+     */
+    public synchronized void startEndpoint(String converter) {
+        int port = ConverterConfiguration.getInt("metrics_http_port_" + converter, 0);
+        if (enabled && port > 0 && endpoint == null) {
+            endpoint = MetricsEndpoint.start(this, ConverterConfiguration.getString("metrics_http_address",
+                    "127.0.0.1"), port);
+        }
+    }
+
+    /**
+     * Stop the endpoint and unregister the MBeans, before the application is undeployed.
+     */
+    public synchronized void stop() {
+        if (endpoint != null) {
+            endpoint.stop();
+            endpoint = null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Cannot unregister " + name, e);
+            }
+        }
+        registeredNames.clear();
+    }
+
+    /**
+     * Start measuring a conversion on the current thread, until the returned conversion is closed.
+     */
+    public Conversion start(String converter, Path cadFile) {
+        Conversion conversion = new Conversion(this, converter, extension(cadFile), CURRENT.get());
+        if (enabled) {
+            try {
+                conversion.inputBytes = Files.size(cadFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot read the size of " + cadFile, e);
+            }
+        }
+        CURRENT.set(conversion);
+        return conversion;
+    }
+
+    static Conversion current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(Conversion conversion) {
+        if (conversion != null) {
+            CURRENT.set(conversion);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Record the time the conversion running on the current thread waited for a scheduler slot.
+     */
+    public static void recordQueueWait(long waitNanos) {
+        Conversion conversion = CURRENT.get();
+        if (conversion != null) {
+            // Tasks of a conversion may report from several threads
+            synchronized (conversion) {
+                conversion.queueWaitNanos += waitNanos;
+            }
+        }
+    }
+
+    /**
+     * Record the end of a process of the conversion running on the current thread.
+     */
+    public static void recordProcess(int exitCode, boolean timedOut) {
+        Conversion conversion = CURRENT.get();
+        if (conversion != null) {
+            synchronized (conversion) {
+                conversion.exitCode = exitCode;
+                conversion.timedOut |= timedOut;
+            }
+        }
+    }
+
+    /**
+     * Record a timeout of the conversion running on the current thread outside of a process run.
+     */
+    public static void recordTimeout() {
+        Conversion conversion = CURRENT.get();
+        if (conversion != null) {
+            synchronized (conversion) {
+                conversion.timedOut = true;
+            }
+        }
+    }
+
+    /**
+     * Record that the conversion running on the current thread was served from the cache.
+     */
+    public static void recordCacheHit() {
+        Conversion conversion = CURRENT.get();
+        if (conversion != null) {
+            conversion.cached = true;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Series of each converter and extension, sorted by converter then extension.
+     */
+    public Iterable<Series> getSeries() {
+        return series.values();
+    }
+
+    /**
+     * Write the metrics, with the scheduler and cache state, in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        PrometheusFormat.write(this, ConversionScheduler.getInstance().getStatistics(),
+                ConversionCache.getInstance(), out);
+    }
+
+    static String extension(Path file) {
+        Path fileName = file.getFileName();
+        String name = fileName == null ? "" : fileName.toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return "none";
+        }
+        // Extensions are labels, keep their number bounded whatever the uploaded file names
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return EXTENSION.matcher(extension).matches() ? extension : "other";
+    }
+
+    private void record(Conversion conversion) {
+        Series target = series.computeIfAbsent(conversion.converter + '/' + conversion.extension,
+                key -> register(new Series(conversion.converter, conversion.extension)));
+        target.record(conversion);
+    }
+
+    private Series register(Series created) {
+        if (!jmx) {
+            return created;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ConversionMetrics,converter="
+                    + created.converter + ",extension=" + created.extension);
+            // Left by a previous deployment of the converters
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(created, name);
+            registeredNames.add(name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Cannot register the " + created.converter + " conversion metrics", e);
+        }
+        return created;
+    }
+
+    /**
+     * Measure of a running conversion.
+     */
+    public static class Conversion implements AutoCloseable {
+
+        private final ConversionMetrics metrics;
+        private final String converter;
+        private final String extension;
+        private final Conversion outer;
+        private final long start = System.nanoTime();
+        private long end;
+        private long inputBytes = -1;
+        private long outputBytes = -1;
+        private long queueWaitNanos;
+        private Integer exitCode;
+        private boolean timedOut;
+        private boolean cached;
+        private boolean succeeded;
+        private boolean closed;
+
+        Conversion(ConversionMetrics metrics, String converter, String extension, Conversion outer) {
+            this.metrics = metrics;
+            this.converter = converter;
+            this.extension = extension;
+            this.outer = outer;
+        }
+
+        /**
+         * Mark the conversion successful, the size of the result is recorded.
+         */
+        public void succeeded(ConversionResult result) {
+            succeeded = true;
+            if (!metrics.enabled || result == null || result.getConvertedFile() == null) {
+                return;
+            }
+            try {
+                long size = Files.size(result.getConvertedFile());
+                for (Path material : result.getMaterials()) {
+                    if (Files.exists(material)) {
+                        size += Files.size(material);
+                    }
+                }
+                outputBytes = size;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot read the size of " + result.getConvertedFile(), e);
+            }
+        }
+
+        /**
+         * Record the conversion, as failed unless it {@link #succeeded succeeded}.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            end = System.nanoTime();
+            if (outer != null) {
+                CURRENT.set(outer);
+            } else {
+                CURRENT.remove();
+            }
+            if (metrics.enabled) {
+                synchronized (this) {
+                    metrics.record(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Conversions of one converter and extension.
+     */
+    public static class Series implements ConversionSeriesMXBean {
+
+        private final String converter;
+        private final String extension;
+        private final LongAdder converted = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final ConcurrentMap<Integer, LongAdder> exitCodes = new ConcurrentHashMap<>();
+        private final Histogram duration = new Histogram(DURATION_BOUNDS);
+        private final Histogram queueWait = new Histogram(DURATION_BOUNDS);
+        private final Histogram inputSize = new Histogram(SIZE_BOUNDS);
+        private final Histogram outputSize = new Histogram(SIZE_BOUNDS);
+        // Conversions finished during each of the last 60 seconds, stamped with their second
+        private final AtomicLongArray lastMinute = new AtomicLongArray(60);
+        private final AtomicLongArray lastMinuteStamps = new AtomicLongArray(60);
+
+        Series(String converter, String extension) {
+            this.converter = converter;
+            this.extension = extension;
+        }
+
+        private void record(Conversion conversion) {
+            if (!conversion.succeeded) {
+                failures.increment();
+            } else if (conversion.cached) {
+                cacheHits.increment();
+            } else {
+                converted.increment();
+            }
+            if (conversion.timedOut) {
+                timeouts.increment();
+            }
+            if (conversion.exitCode != null) {
+                exitCodes.computeIfAbsent(conversion.exitCode, code -> new LongAdder()).increment();
+            }
+            duration.observe((conversion.end - conversion.start) / 1e9);
+            queueWait.observe(conversion.queueWaitNanos / 1e9);
+            if (conversion.inputBytes >= 0) {
+                inputSize.observe(conversion.inputBytes);
+            }
+            if (conversion.outputBytes >= 0) {
+                outputSize.observe(conversion.outputBytes);
+            }
+
+            long second = TimeUnit.NANOSECONDS.toSeconds(conversion.end);
+            int slot = (int) (second % 60);
+            long stamp = lastMinuteStamps.get(slot);
+            if (stamp != second && lastMinuteStamps.compareAndSet(slot, stamp, second)) {
+                lastMinute.set(slot, 0);
+            }
+            lastMinute.incrementAndGet(slot);
+        }
+
+        @Override
+        public String getConverter() {
+            return converter;
+        }
+
+        @Override
+        public String getExtension() {
+            return extension;
+        }
+
+        @Override
+        public long getConversions() {
+            return converted.sum() + cacheHits.sum() + failures.sum();
+        }
+
+        /**
+         * Successful conversions not served from the cache.
+         */
+        public long getConverted() {
+            return converted.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        @Override
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        @Override
+        public long getConversionsLastMinute() {
+            long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            long count = 0;
+            for (int slot = 0; slot < 60; slot++) {
+                if (second - lastMinuteStamps.get(slot) < 60) {
+                    count += lastMinute.get(slot);
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public double getMeanDurationMillis() {
+            return duration.getMean() * 1000;
+        }
+
+        @Override
+        public double getMedianDurationMillis() {
+            return duration.getQuantile(0.5) * 1000;
+        }
+
+        @Override
+        public double getDuration95thPercentileMillis() {
+            return duration.getQuantile(0.95) * 1000;
+        }
+
+        @Override
+        public double getDuration99thPercentileMillis() {
+            return duration.getQuantile(0.99) * 1000;
+        }
+
+        @Override
+        public double getMaxDurationMillis() {
+            return duration.getMax() * 1000;
+        }
+
+        @Override
+        public double getMeanQueueWaitMillis() {
+            return queueWait.getMean() * 1000;
+        }
+
+        @Override
+        public double getMaxQueueWaitMillis() {
+            return queueWait.getMax() * 1000;
+        }
+
+        @Override
+        public long getInputBytes() {
+            return (long) inputSize.getSum();
+        }
+
+        @Override
+        public long getOutputBytes() {
+            return (long) outputSize.getSum();
+        }
+
+        @Override
+        public Map<String, Long> getExitCodes() {
+            Map<String, Long> codes = new TreeMap<>();
+            exitCodes.forEach((code, count) -> codes.put(String.valueOf(code), count.sum()));
+            return codes;
+        }
+
+        /**
+         * Total conversion time, queue wait included, in seconds.
+         */
+        public Histogram getDuration() {
+            return duration;
+        }
+
+        /**
+         * Time waited for a scheduler slot, in seconds.
+         */
+        public Histogram getQueueWait() {
+            return queueWait;
+        }
+
+        public Histogram getInputSize() {
+            return inputSize;
+        }
+
+        public Histogram getOutputSize() {
+            return outputSize;
+        }
+    }
+}
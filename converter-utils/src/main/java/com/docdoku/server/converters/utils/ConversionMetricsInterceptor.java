@@ -0,0 +1,66 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Measure the {@code CADConverter.convert} calls of the converter beans it intercepts.
+ * <p>
+ * The converter name is taken from the bean class, XxxFileConverterImpl being the xxx converter.
+ */
+public class ConversionMetricsInterceptor {
+
+    private static final String CONVERTER_CLASS_SUFFIX = "FileConverterImpl";
+
+    @AroundInvoke
+    public Object measure(InvocationContext context) throws Exception {
+        Object[] parameters = context.getParameters();
+        if (!"convert".equals(context.getMethod().getName()) || parameters.length == 0
+                || !(parameters[0] instanceof URI)) {
+            return context.proceed();
+        }
+
+        try (ConversionMetrics.Conversion conversion = ConversionMetrics.getInstance()
+                .start(converterName(context.getTarget().getClass()), Paths.get((URI) parameters[0]))) {
+            Object result = context.proceed();
+            conversion.succeeded((ConversionResult) result);
+            return result;
+        }
+    }
+
+    static String converterName(Class<?> beanClass) {
+        // Containers may intercept a generated subclass of the bean
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()) {
+            String name = type.getSimpleName();
+            if (name.endsWith(CONVERTER_CLASS_SUFFIX) && name.length() > CONVERTER_CLASS_SUFFIX.length()) {
+                return name.substring(0, name.length() - CONVERTER_CLASS_SUFFIX.length()).toLowerCase(Locale.ROOT);
+            }
+        }
+        return beanClass.getSimpleName().toLowerCase(Locale.ROOT);
+    }
+}
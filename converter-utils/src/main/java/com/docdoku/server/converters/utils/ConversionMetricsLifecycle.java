@@ -0,0 +1,49 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Start and stop the conversion metrics with their converter application.
+ * <p>
+ * Each converter module declares a {@code @Singleton @Startup} subclass naming its converter: the metrics
+ * endpoint listens on the port of that converter, and the endpoint and MBeans are released on undeployment so
+ * that a redeployment starts afresh.
+ */
+public abstract class ConversionMetricsLifecycle {
+
+    /**
+     * @return the name of the converter of the application, as in metrics_http_port_[converter]
+     */
+    protected abstract String getConverterName();
+
+    @PostConstruct
+    public void start() {
+        ConversionMetrics.getInstance().startEndpoint(getConverterName());
+    }
+
+    @PreDestroy
+    public void stop() {
+        ConversionMetrics.getInstance().stop();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Record of the inputs the converters failed on, so that a corrupt file does not cost a tool run each time it is
+ * uploaded again.
+ * <p>
+ * Failures are recorded by the fingerprint of the conversion ({@link ConversionCache#fingerprint}: input bytes,
+ * converter and configuration, including the tools it references), with the class of the error: exit code,
+ * signal, timeout or tool error. Once an input failed a number of times it is quarantined: its conversions fail
+ * fast without launching anything until the record expires. Upgrading or reconfiguring a tool changes the
+ * fingerprints and lifts its quarantines; quarantine_reset_[converter] does it by hand, for the failures recorded
+ * before a given instant.
+ * <p>
+ * A conversion opens a {@link Scope} on its thread, which tool runners report failures to through
+ * {@link #recordFailure(String, String)}. They are recorded when the scope closes without the conversion succeeding.
+ */
+public class ConversionQuarantine {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionQuarantine.class.getName());
+
+    private static final String SUFFIX = ".properties";
+    private static final String CONVERTER = "converter";
+    private static final String ERROR_CLASS = "errorClass";
+    private static final String MESSAGE = "message";
+    private static final String FAILURES = "failures";
+    private static final String FIRST_FAILURE = "firstFailure";
+    private static final String LAST_FAILURE = "lastFailure";
+    private static final int MAX_MESSAGE_LENGTH = 1000;
+
+    private static final ConversionQuarantine INSTANCE = new ConversionQuarantine(
+            ConverterConfiguration.getBoolean("quarantine_enabled", true)
+                    ? Paths.get(ConverterConfiguration.getString("quarantine_directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-quarantine").toString()))
+                    : null,
+            ConverterConfiguration.getInt("quarantine_threshold", 2),
+            TimeUnit.HOURS.toMillis(ConverterConfiguration.getLong("quarantine_expiry", 24)));
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final Path directory;
+    private final int threshold;
+    private final long expiryMillis;
+
+    /**
+     * @param directory    location of the records, created if needed, or null to disable the quarantine
+     * @param threshold    failures after which an input is quarantined
+     * @param expiryMillis time after the last failure when the record is dropped
+     */
+    public ConversionQuarantine(Path directory, int threshold, long expiryMillis) {
+        this.threshold = Math.max(1, threshold);
+        this.expiryMillis = expiryMillis;
+        Path usable = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Conversion quarantine disabled, cannot use " + directory, e);
+                usable = null;
+            }
+        }
+        this.directory = usable;
+    }
+
+    public static ConversionQuarantine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start recording the tool failures of the current thread.
+     */
+    public Scope open() {
+        Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    static Scope current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(Scope scope) {
+        if (scope != null) {
+            CURRENT.set(scope);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Fail fast if the input is quarantined, and attach it to the scope of the current thread otherwise.
+     *
+     * @param fingerprint fingerprint of the conversion, null if unknown
+     */
+    public void check(String fingerprint, String converter, Path cadFile) throws ConversionException {
+        Scope scope = CURRENT.get();
+        if (scope != null) {
+            scope.fingerprint = fingerprint;
+            scope.converter = converter;
+        }
+        Properties record = read(fingerprint, converter);
+        if (record != null && Integer.parseInt(record.getProperty(FAILURES, "0")) >= threshold) {
+            throw new ConversionException("Cannot convert " + cadFile + ", " + converter + " failed on the same file "
+                    + record.getProperty(FAILURES) + " times (" + record.getProperty(ERROR_CLASS) + ": "
+                    + record.getProperty(MESSAGE, "") + "), next attempt after "
+                    + Instant.ofEpochMilli(Long.parseLong(record.getProperty(LAST_FAILURE)) + expiryMillis));
+        }
+    }
+
+    /**
+     * Report a tool failure of the conversion running on the current thread, if any.
+     *
+     * @param errorClass kind of failure, such as "exit 1", "signal 11" or "timeout"
+     */
+    public static void recordFailure(String errorClass, String message) {
+        Scope scope = CURRENT.get();
+        if (scope != null) {
+            // Tasks of a conversion may report from several threads
+            synchronized (scope) {
+                scope.errorClass = errorClass;
+                scope.message = message;
+            }
+        }
+    }
+
+    /**
+     * Report the failure of a tool process, a no-op if it succeeded.
+     */
+    public static void recordProcess(ProcessResult result) {
+        if (result.isTimedOut()) {
+            recordFailure("timeout", result.getFailureReason());
+        } else if (!result.isSuccess()) {
+            // Shells report a process killed by signal N as exit code 128 + N
+            int exitCode = result.getExitCode();
+            recordFailure(exitCode > 128 ? "signal " + (exitCode - 128) : "exit " + exitCode,
+                    result.getFailureReason());
+        }
+    }
+
+    /**
+     * @return true if conversions of this fingerprint fail fast
+     */
+    public boolean isQuarantined(String fingerprint, String converter) {
+        Properties record = read(fingerprint, converter);
+        return record != null && Integer.parseInt(record.getProperty(FAILURES, "0")) >= threshold;
+    }
+
+    /**
+     * Lift the quarantines of a converter, or of all converters if null.
+     *
+     * @return the number of records deleted
+     */
+    public int clear(String converter) {
+        if (directory == null) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                Properties record = load(file);
+                if (converter == null || record == null || converter.equals(record.getProperty(CONVERTER))) {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot clear conversion quarantine " + directory, e);
+        }
+        return deleted;
+    }
+
+    private synchronized void record(String fingerprint, String converter, String errorClass, String message) {
+        long now = System.currentTimeMillis();
+        Properties record = read(fingerprint, converter);
+        if (record == null) {
+            record = new Properties();
+            record.setProperty(CONVERTER, converter);
+            record.setProperty(FIRST_FAILURE, String.valueOf(now));
+        }
+        record.setProperty(ERROR_CLASS, errorClass);
+        String trimmed = message == null ? "" : message.replaceAll("\\s+", " ").trim();
+        record.setProperty(MESSAGE, trimmed.length() > MAX_MESSAGE_LENGTH
+                ? trimmed.substring(trimmed.length() - MAX_MESSAGE_LENGTH) : trimmed);
+        record.setProperty(FAILURES, String.valueOf(Integer.parseInt(record.getProperty(FAILURES, "0")) + 1));
+        record.setProperty(LAST_FAILURE, String.valueOf(now));
+
+        Path file = directory.resolve(fingerprint + SUFFIX);
+        Path staging = directory.resolve(fingerprint + ".tmp-" + UUID.randomUUID());
+        try {
+            try (OutputStream out = Files.newOutputStream(staging)) {
+                record.store(out, null);
+            }
+            Files.move(staging, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.log(Level.INFO, "{0} failed {1} times on {2} ({3})", new Object[]{converter,
+                    record.getProperty(FAILURES), fingerprint, errorClass});
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot record conversion failure " + fingerprint, e);
+            try {
+                Files.deleteIfExists(staging);
+            } catch (IOException deleteError) {
+                LOGGER.log(Level.FINE, "Cannot delete " + staging, deleteError);
+            }
+        }
+    }
+
+    /**
+     * @return the live record of a fingerprint, or null if there is none, it expired, was reset or is corrupt, the
+     * next failure then overwrites it
+     */
+    private Properties read(String fingerprint, String converter) {
+        if (directory == null || fingerprint == null) {
+            return null;
+        }
+        Path file = directory.resolve(fingerprint + SUFFIX);
+        Properties record = load(file);
+        if (record == null) {
+            return null;
+        }
+        long lastFailure;
+        try {
+            // Callers count on both fields, a truncated or edited record must not fail the conversions
+            Integer.parseInt(record.getProperty(FAILURES, "0"));
+            lastFailure = Long.parseLong(record.getProperty(LAST_FAILURE, "0"));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Ignoring corrupt conversion quarantine record " + file, e);
+            return null;
+        }
+        if (System.currentTimeMillis() - lastFailure > expiryMillis || lastFailure < resetInstant(converter)) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+            }
+            return null;
+        }
+        return record;
+    }
+
+    private static Properties load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties record = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            record.load(in);
+            return record;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot read " + file, e);
+            return null;
+        }
+    }
+
+    private static long resetInstant(String converter) {
+        String reset = ConverterConfiguration.getString("quarantine_reset_" + converter, "");
+        if (reset.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Instant.parse(reset).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            LOGGER.log(Level.WARNING, "Invalid quarantine_reset_" + converter + ": " + reset, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Tool failures of one conversion, recorded on close unless it succeeded.
+     */
+    public final class Scope implements AutoCloseable {
+
+        private final Scope parent;
+        private String fingerprint;
+        private String converter;
+        private String errorClass;
+        private String message;
+        private boolean succeeded;
+
+        private Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        public void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            if (parent == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(parent);
+            }
+            String failure;
+            String failureMessage;
+            synchronized (this) {
+                failure = errorClass;
+                failureMessage = message;
+            }
+            if (!succeeded && failure != null && fingerprint != null && directory != null) {
+                record(fingerprint, converter, failure, failureMessage);
+            }
+        }
+    }
+
+}
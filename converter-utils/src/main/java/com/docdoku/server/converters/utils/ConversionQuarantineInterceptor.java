@@ -0,0 +1,44 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+/**
+ * Record the tool failures of the {@code CADConverter.convert} calls of the converter beans it intercepts, see
+ * {@link ConversionQuarantine}.
+ */
+public class ConversionQuarantineInterceptor {
+
+    @AroundInvoke
+    public Object record(InvocationContext context) throws Exception {
+        if (!"convert".equals(context.getMethod().getName())) {
+            return context.proceed();
+        }
+
+        try (ConversionQuarantine.Scope scope = ConversionQuarantine.getInstance().open()) {
+            Object result = context.proceed();
+            scope.succeeded();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admission control in front of the external conversion tools.
+ * <p>
+ * A conversion must hold a {@link Permit} while its process runs. Permits are limited globally and per converter,
+ * pending conversions wait in a bounded queue and are rejected when the queue is full or when they waited longer
+ * than the configured timeout.
+ * <p>
+ * Pending conversions are served by weighted fair queueing: each one belongs to a flow given by its {@link Origin}
+ * and by its estimated cost being small or large, and is tagged with the virtual time its flow would finish it at,
+ * advanced by its cost divided by the weight of its origin. Free slots go to the smallest tag whose converter limit
+ * allows it, so a small part uploaded by a user does not wait behind a batch of large assemblies, while large
+ * conversions still get their share. A conversion overtaken for longer than the configured limit goes first.
+ * <p>
+ * Each converter application ships its own copy of this library, hence its own scheduler. When node wide, the
+ * global permits are {@link NodeLock locks} on files of a directory shared by the applications, and the queue is a
+ * {@link NodeQueue} ledger next to them: the weighted fair order, the global limit and the converter limits then
+ * hold for the conversions of every application, so a large IFC model does not hold back small meshes converted
+ * by another application. A conversion waits there without holding anything in its own application. If the
+ * shared directory cannot be used, each application schedules its own conversions as described above.
+ */
+public class ConversionScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionScheduler.class.getName());
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private static final int BYTES_PER_COST_UNIT = 1024 * 1024;
+
+    private static final ThreadLocal<Origin> ORIGIN = new ThreadLocal<>();
+
+    private static final ConversionScheduler INSTANCE = new ConversionScheduler(
+            ConverterConfiguration.getInt("scheduler_global_permits", 0),
+            ConverterConfiguration.getInt("scheduler_converter_permits", 0),
+            ConverterConfiguration.getInt("scheduler_queue_capacity", 64),
+            TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("scheduler_queue_timeout", 900)),
+            ConverterConfiguration.getInt("scheduler_weight_interactive", 4),
+            ConverterConfiguration.getInt("scheduler_weight_bulk", 1),
+            ConverterConfiguration.getLong("scheduler_large_cost", 64),
+            TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("scheduler_max_overtaken_wait", 300)),
+            ConverterConfiguration.getBoolean("scheduler_node_wide", true)
+                    ? Paths.get(ConverterConfiguration.getString("scheduler_node_directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-conversion-slots").toString()))
+                    : null);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Ticket> waiting = new TreeSet<>(Comparator.<Ticket>comparingDouble(ticket -> ticket.finishTag)
+            .thenComparingLong(ticket -> ticket.sequence));
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Integer> converterPermits = new HashMap<>();
+    private final Map<String, Double> flowFinishTags = new HashMap<>();
+    private final int globalPermits;
+    private final int defaultConverterPermits;
+    private final int queueCapacity;
+    private final long queueTimeoutNanos;
+    private final int interactiveWeight;
+    private final int bulkWeight;
+    private final long largeCost;
+    private final long maxOvertakenWaitNanos;
+    private final NodeQueue nodeQueue;
+
+    private double virtualTime;
+    private long sequence;
+    private int runningTotal;
+    private int nodeQueueDepth;
+    private int peakQueueDepth;
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+    private long queued;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param globalPermits           processes allowed to run at the same time, 0 for the number of cores
+     * @param defaultConverterPermits processes allowed per converter, 0 for half the number of cores
+     * @param queueCapacity           conversions allowed to wait for a permit
+     * @param queueTimeoutMillis      maximum time a conversion waits for a permit
+     */
+    public ConversionScheduler(int globalPermits, int defaultConverterPermits, int queueCapacity,
+                               long queueTimeoutMillis) {
+        this(globalPermits, defaultConverterPermits, queueCapacity, queueTimeoutMillis, 4, 1, 64,
+                queueTimeoutMillis / 3);
+    }
+
+    /**
+     * @param globalPermits           processes allowed to run at the same time, 0 for the number of cores
+     * @param defaultConverterPermits processes allowed per converter, 0 for half the number of cores
+     * @param queueCapacity           conversions allowed to wait for a permit
+     * @param queueTimeoutMillis      maximum time a conversion waits for a permit
+     * @param interactiveWeight       share of the slots given to interactive conversions
+     * @param bulkWeight              share of the slots given to bulk conversions
+     * @param largeCost               estimated cost above which conversions are queued apart from the small ones
+     * @param maxOvertakenWaitMillis  wait after which a conversion is no longer overtaken
+     */
+    public ConversionScheduler(int globalPermits, int defaultConverterPermits, int queueCapacity,
+                               long queueTimeoutMillis, int interactiveWeight, int bulkWeight, long largeCost,
+                               long maxOvertakenWaitMillis) {
+        this(globalPermits, defaultConverterPermits, queueCapacity, queueTimeoutMillis, interactiveWeight, bulkWeight,
+                largeCost, maxOvertakenWaitMillis, null);
+    }
+
+    /**
+     * @param nodeDirectory directory of the global permits shared with the other converter applications, null to
+     *                      only limit the conversions of this scheduler
+     */
+    ConversionScheduler(int globalPermits, int defaultConverterPermits, int queueCapacity, long queueTimeoutMillis,
+                        int interactiveWeight, int bulkWeight, long largeCost, long maxOvertakenWaitMillis,
+                        Path nodeDirectory) {
+        this.globalPermits = globalPermits > 0 ? globalPermits : CORES;
+        this.defaultConverterPermits = defaultConverterPermits > 0 ? defaultConverterPermits : Math.max(1, CORES / 2);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.interactiveWeight = Math.max(1, interactiveWeight);
+        this.bulkWeight = Math.max(1, bulkWeight);
+        this.largeCost = Math.max(1, largeCost);
+        this.maxOvertakenWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxOvertakenWaitMillis);
+        this.nodeQueue = nodeDirectory != null ? nodeQueue(nodeDirectory, this.globalPermits) : null;
+    }
+
+    private static NodeQueue nodeQueue(Path directory, int permits) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot use " + directory + ", conversions are scheduled per application", e);
+            return null;
+        }
+        List<Path> slots = new ArrayList<>();
+        for (int slot = 0; slot < permits; slot++) {
+            slots.add(directory.resolve("slot-" + slot + ".lock"));
+        }
+        return new NodeQueue(directory, Collections.unmodifiableList(slots));
+    }
+
+    public static ConversionScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Override the number of processes allowed for the given converter.
+     */
+    public void setConverterPermits(String converter, int permits) {
+        lock.lock();
+        try {
+            converterPermits.put(converter, Math.max(1, permits));
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Origin of the conversions started by the current thread, interactive unless set by {@link #withOrigin}.
+     */
+    public static Origin getOrigin() {
+        Origin origin = ORIGIN.get();
+        return origin != null ? origin : Origin.INTERACTIVE;
+    }
+
+    /**
+     * Schedule the conversions started by the current thread with the given origin, until the returned scope is
+     * closed.
+     */
+    public static OriginScope withOrigin(Origin origin) {
+        OriginScope scope = new OriginScope(ORIGIN.get());
+        ORIGIN.set(origin);
+        return scope;
+    }
+
+    /**
+     * Estimated cost of converting a file: its size in MiB, at least 1, times the scheduler_cost_factor_[converter]
+     * setting, which accounts for the tool speed on the formats the converter accepts.
+     */
+    public static long estimateCost(String converter, Path cadFile) {
+        long size;
+        try {
+            size = Files.size(cadFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot read the size of " + cadFile, e);
+            size = 0;
+        }
+        long units = Math.max(1, (size + BYTES_PER_COST_UNIT - 1) / BYTES_PER_COST_UNIT);
+        return units * Math.max(1, ConverterConfiguration.getLong("scheduler_cost_factor_" + converter, 1));
+    }
+
+    /**
+     * Wait for a slot to run a conversion process for the given converter, with the smallest cost.
+     *
+     * @throws ConversionException if the queue is full, the wait timed out or the thread was interrupted
+     */
+    public Permit acquire(String converter) throws ConversionException {
+        return acquire(converter, 1, getOrigin());
+    }
+
+    /**
+     * Wait for a slot to convert the given file, scheduled by its {@link #estimateCost estimated cost} and the
+     * origin of the current thread.
+     *
+     * @throws ConversionException if the queue is full, the wait timed out or the thread was interrupted
+     */
+    public Permit acquire(String converter, Path cadFile) throws ConversionException {
+        return acquire(converter, estimateCost(converter, cadFile), getOrigin());
+    }
+
+    /**
+     * Wait for a slot to run a conversion process for the given converter.
+     *
+     * @param cost   estimated cost of the conversion, at least 1
+     * @param origin origin of the conversion
+     * @throws ConversionException if the queue is full, the wait timed out or the thread was interrupted
+     */
+    public Permit acquire(String converter, long cost, Origin origin) throws ConversionException {
+        long start = System.nanoTime();
+        if (nodeQueue != null) {
+            Permit permit = acquireOnNode(converter, Math.max(1, cost), origin, start);
+            if (permit != null) {
+                return permit;
+            }
+        }
+        return acquireLocally(converter, cost, origin, start);
+    }
+
+    private Permit acquireLocally(String converter, long cost, Origin origin, long start) throws ConversionException {
+        lock.lock();
+        try {
+            // Waiting tickets are only ever blocked by their converter limit, so a free slot can be taken right away
+            if (hasFreeSlot(converter)) {
+                take(converter);
+                admitted++;
+                return new Permit(converter, 0);
+            }
+
+            if (waiting.size() >= queueCapacity) {
+                rejected++;
+                throw new ConversionException("Conversion queue is full (" + waiting.size()
+                        + " pending), cannot schedule a " + converter + " conversion");
+            }
+
+            Ticket ticket = enqueue(converter, Math.max(1, cost), origin, start);
+            queued++;
+            peakQueueDepth = Math.max(peakQueueDepth, waiting.size());
+
+            long remaining = queueTimeoutNanos;
+            try {
+                while (!ticket.granted) {
+                    if (remaining <= 0) {
+                        waiting.remove(ticket);
+                        timedOut++;
+                        throw new ConversionException("Timed out waiting for a " + converter + " conversion slot");
+                    }
+                    remaining = ticket.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    release(converter);
+                } else {
+                    waiting.remove(ticket);
+                }
+                Thread.currentThread().interrupt();
+                throw new ConversionException("Interrupted while waiting for a " + converter + " conversion slot", e);
+            }
+
+            long waitNanos = System.nanoTime() - start;
+            admitted++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            LOGGER.log(Level.FINE, "{0} conversion waited {1} ms for a slot",
+                    new Object[]{converter, TimeUnit.NANOSECONDS.toMillis(waitNanos)});
+            ConversionMetrics.recordQueueWait(waitNanos);
+            return new Permit(converter, waitNanos);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a global permit in the queue shared with the other applications, which release theirs without notice
+     * so the queue is polled.
+     *
+     * @return the permit, or null if the shared queue cannot be used
+     */
+    private Permit acquireOnNode(String converter, long cost, Origin origin, long start) throws ConversionException {
+        int permits;
+        lock.lock();
+        try {
+            permits = permitsFor(converter);
+        } finally {
+            lock.unlock();
+        }
+
+        NodeQueue.Ticket ticket;
+        try {
+            ticket = nodeQueue.enqueue(converter, permits, flow(cost, origin), (double) cost / weight(origin),
+                    queueCapacity);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot queue on the node, the conversion is scheduled per application", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while waiting for a " + converter + " conversion slot", e);
+        }
+        if (ticket == null) {
+            lock.lock();
+            try {
+                rejected++;
+            } finally {
+                lock.unlock();
+            }
+            throw new ConversionException("Conversion queue is full, cannot schedule a " + converter + " conversion");
+        }
+
+        updateNodeQueueDepth(1);
+        try {
+            NodeLock slot = nodeQueue.await(ticket, TimeUnit.NANOSECONDS.toMillis(maxOvertakenWaitNanos),
+                    TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos));
+            lock.lock();
+            try {
+                if (slot == null) {
+                    timedOut++;
+                    throw new ConversionException("Timed out waiting for a " + converter + " conversion slot");
+                }
+                take(converter);
+                admitted++;
+                long waitNanos = System.nanoTime() - start;
+                if (ticket.hasWaited()) {
+                    queued++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                    ConversionMetrics.recordQueueWait(waitNanos);
+                }
+                Permit permit = new Permit(converter, waitNanos);
+                permit.nodeSlot = slot;
+                return permit;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot queue on the node, the conversion is scheduled per application", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while waiting for a " + converter + " conversion slot", e);
+        } finally {
+            nodeQueue.cancel(ticket);
+            updateNodeQueueDepth(-1);
+        }
+    }
+
+    private void updateNodeQueueDepth(int delta) {
+        lock.lock();
+        try {
+            nodeQueueDepth += delta;
+            peakQueueDepth = Math.max(peakQueueDepth, waiting.size() + nodeQueueDepth);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Statistics getStatistics() {
+        lock.lock();
+        try {
+            return new Statistics(waiting.size() + nodeQueueDepth, peakQueueDepth, runningTotal, admitted, rejected, timedOut,
+                    queued == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / queued),
+                    TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int permitsFor(String converter) {
+        Integer permits = converterPermits.get(converter);
+        if (permits == null) {
+            int configured = ConverterConfiguration.getInt("scheduler_permits_" + converter, 0);
+            permits = configured > 0 ? configured : defaultConverterPermits;
+            converterPermits.put(converter, permits);
+        }
+        return permits;
+    }
+
+    private boolean hasFreeSlot(String converter) {
+        return runningTotal < globalPermits && running.getOrDefault(converter, 0) < permitsFor(converter);
+    }
+
+    private void take(String converter) {
+        runningTotal++;
+        running.merge(converter, 1, Integer::sum);
+    }
+
+    private void release(String converter) {
+        lock.lock();
+        try {
+            runningTotal--;
+            running.merge(converter, -1, Integer::sum);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Ticket enqueue(String converter, long cost, Origin origin, long enqueuedNanos) {
+        if (waiting.isEmpty()) {
+            // Idle scheduler, no flow is behind another
+            flowFinishTags.clear();
+            virtualTime = 0;
+        }
+        String flow = flow(cost, origin);
+        double startTag = Math.max(virtualTime, flowFinishTags.getOrDefault(flow, 0.0));
+        double finishTag = startTag + (double) cost / weight(origin);
+        flowFinishTags.put(flow, finishTag);
+
+        Ticket ticket = new Ticket(converter, finishTag, sequence++, enqueuedNanos, lock.newCondition());
+        waiting.add(ticket);
+        return ticket;
+    }
+
+    private String flow(long cost, Origin origin) {
+        return origin + (cost > largeCost ? "/large" : "/small");
+    }
+
+    private int weight(Origin origin) {
+        return origin == Origin.BULK ? bulkWeight : interactiveWeight;
+    }
+
+    private void dispatch() {
+        // Conversions overtaken for too long first, oldest first
+        long now = System.nanoTime();
+        Ticket overtaken;
+        while (runningTotal < globalPermits && (overtaken = oldestOvertaken(now)) != null) {
+            waiting.remove(overtaken);
+            grant(overtaken);
+        }
+
+        Iterator<Ticket> iterator = waiting.iterator();
+        while (iterator.hasNext() && runningTotal < globalPermits) {
+            Ticket ticket = iterator.next();
+            if (hasFreeSlot(ticket.converter)) {
+                iterator.remove();
+                grant(ticket);
+            }
+        }
+    }
+
+    private Ticket oldestOvertaken(long now) {
+        Ticket oldest = null;
+        for (Ticket ticket : waiting) {
+            if (now - ticket.enqueuedNanos >= maxOvertakenWaitNanos && hasFreeSlot(ticket.converter)
+                    && (oldest == null || ticket.sequence < oldest.sequence)) {
+                oldest = ticket;
+            }
+        }
+        return oldest;
+    }
+
+    private void grant(Ticket ticket) {
+        take(ticket.converter);
+        virtualTime = Math.max(virtualTime, ticket.finishTag);
+        ticket.granted = true;
+        ticket.condition.signal();
+    }
+
+    /**
+     * Origin of a conversion.
+     */
+    public enum Origin {
+        /**
+         * Requested by a user waiting for the result, the default.
+         */
+        INTERACTIVE,
+        /**
+         * Part of a batch, such as an import or a re-conversion of existing files.
+         */
+        BULK
+    }
+
+    /**
+     * Restores the previous origin of the thread when closed.
+     */
+    public static final class OriginScope implements AutoCloseable {
+
+        private final Origin previous;
+
+        private OriginScope(Origin previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                ORIGIN.set(previous);
+            } else {
+                ORIGIN.remove();
+            }
+        }
+    }
+
+    private static class Ticket {
+        private final String converter;
+        private final double finishTag;
+        private final long sequence;
+        private final long enqueuedNanos;
+        private final Condition condition;
+        private boolean granted;
+
+        Ticket(String converter, double finishTag, long sequence, long enqueuedNanos, Condition condition) {
+            this.converter = converter;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+            this.enqueuedNanos = enqueuedNanos;
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * Slot held by a running conversion, to be closed once the process has exited.
+     */
+    public class Permit implements AutoCloseable {
+
+        private final String converter;
+        private final long waitNanos;
+        private NodeLock nodeSlot;
+        private boolean released;
+
+        Permit(String converter, long waitNanos) {
+            this.converter = converter;
+            this.waitNanos = waitNanos;
+        }
+
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                if (nodeSlot != null) {
+                    try {
+                        nodeSlot.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Cannot release a global conversion permit", e);
+                    }
+                }
+                release(converter);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the scheduler activity.
+     */
+    public static class Statistics {
+
+        private final int queueDepth;
+        private final int peakQueueDepth;
+        private final int running;
+        private final long admitted;
+        private final long rejected;
+        private final long timedOut;
+        private final long averageWaitMillis;
+        private final long maxWaitMillis;
+
+        Statistics(int queueDepth, int peakQueueDepth, int running, long admitted, long rejected, long timedOut,
+                   long averageWaitMillis, long maxWaitMillis) {
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.running = running;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.timedOut = timedOut;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Average wait of the conversions that had to queue.
+         */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "queue=" + queueDepth + " (peak " + peakQueueDepth + "), running=" + running
+                    + ", admitted=" + admitted + ", rejected=" + rejected + ", timedOut=" + timedOut
+                    + ", avgWait=" + averageWaitMillis + "ms, maxWait=" + maxWaitMillis + "ms";
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.util.Map;
+
+/**
+ * JMX view of the conversions of one converter and file extension, registered as
+ * com.docdoku.converters:type=ConversionMetrics,converter=[converter],extension=[extension].
+ */
+public interface ConversionSeriesMXBean {
+
+    String getConverter();
+
+    String getExtension();
+
+    long getConversions();
+
+    long getFailures();
+
+    long getCacheHits();
+
+    long getTimeouts();
+
+    /**
+     * Conversions finished during the last minute.
+     */
+    long getConversionsLastMinute();
+
+    double getMeanDurationMillis();
+
+    double getMedianDurationMillis();
+
+    double getDuration95thPercentileMillis();
+
+    double getDuration99thPercentileMillis();
+
+    double getMaxDurationMillis();
+
+    double getMeanQueueWaitMillis();
+
+    double getMaxQueueWaitMillis();
+
+    long getInputBytes();
+
+    long getOutputBytes();
+
+    /**
+     * Number of conversion processes by exit code.
+     */
+    Map<String, Long> getExitCodes();
+}
@@ -0,0 +1,116 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Settings shared by all the converters, read from the utils conf.properties file.
+ * <p>
+ * Any setting can be overridden with a system property: docdoku.converters.[key] for the shared settings, and
+ * docdoku.converters.[converter].[key] for the settings of a converter, see {@link #applySystemProperties}.
+ */
+public class ConverterConfiguration {
+
+    private static final String CONF_PROPERTIES = "/com/docdoku/server/converters/utils/conf.properties";
+    private static final String SYSTEM_PROPERTY_PREFIX = "docdoku.converters.";
+    private static final Properties CONF = new Properties();
+    private static final Logger LOGGER = Logger.getLogger(ConverterConfiguration.class.getName());
+
+    static {
+        try (InputStream inputStream = ConverterConfiguration.class.getResourceAsStream(CONF_PROPERTIES)) {
+            CONF.load(inputStream);
+        } catch (IOException | NullPointerException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+        applySystemProperties(CONF, null);
+    }
+
+    private ConverterConfiguration() {
+    }
+
+    /**
+     * Override settings loaded from a conf.properties file with the matching system properties.
+     *
+     * @param converter name of the converter owning the settings, null for the shared settings
+     */
+    public static void applySystemProperties(Properties conf, String converter) {
+        String prefix = SYSTEM_PROPERTY_PREFIX + (converter != null ? converter + "." : "");
+        Properties system = System.getProperties();
+        for (String name : system.stringPropertyNames()) {
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+                continue;
+            }
+            String key = name.substring(prefix.length());
+            // Shared settings have no dot, converter settings are not shared settings
+            if (converter == null && key.indexOf('.') >= 0) {
+                continue;
+            }
+            conf.setProperty(key, system.getProperty(name));
+            LOGGER.log(Level.INFO, "{0} set to \"{1}\" by system property", new Object[]{key, conf.getProperty(key)});
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = CONF.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid value \"" + value + "\" for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid value \"" + value + "\" for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.mesh.GeometryReference;
+import com.docdoku.server.converters.utils.mesh.ObjStatistics;
+import com.docdoku.server.converters.utils.mesh.SpilledMesh;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversion result carrying the files derived from the converted OBJ by the post-processing stages.
+ * <p>
+ * Derived files are registered by kind (statistics sidecar, levels of detail, binary meshes...) and are deleted
+ * along with the converted file when the result is closed. Shared geometries referenced by the result are not.
+ * <p>
+ * Stages writing binary copies of the converted file share its {@link SpilledMesh}, so that a multi-gigabyte OBJ is
+ * parsed once rather than once per output format.
+ */
+public class ExtendedConversionResult extends ConversionResult {
+
+    private static final Logger LOGGER = Logger.getLogger(ExtendedConversionResult.class.getName());
+
+    private final Map<String, List<Path>> artifacts = new LinkedHashMap<>();
+    private final List<Closeable> closeables = new ArrayList<>();
+    private final Map<String, String> metadata = new LinkedHashMap<>();
+    private ObjStatistics statistics;
+    private GeometryReference geometryReference;
+    private SpilledMesh spilledMesh;
+    private BasicFileAttributes spilledAttributes;
+
+    public ExtendedConversionResult(Path convertedFile, List<Path> materials) {
+        super(convertedFile, materials);
+    }
+
+    /**
+     * @return the given result if it already is an extended one, or an extended copy of it
+     */
+    public static ExtendedConversionResult of(ConversionResult result) {
+        if (result instanceof ExtendedConversionResult) {
+            return (ExtendedConversionResult) result;
+        }
+        return new ExtendedConversionResult(result.getConvertedFile(), new ArrayList<>(result.getMaterials()));
+    }
+
+    public void addArtifact(String kind, Path file) {
+        artifacts.computeIfAbsent(kind, k -> new ArrayList<>()).add(file);
+    }
+
+    /**
+     * Register a resource released when the result is closed, after its files are deleted.
+     */
+    public void addCloseable(Closeable closeable) {
+        closeables.add(closeable);
+    }
+
+    /**
+     * @return the files of the given kind, in the order they were added
+     */
+    public List<Path> getArtifacts(String kind) {
+        return Collections.unmodifiableList(artifacts.getOrDefault(kind, Collections.emptyList()));
+    }
+
+    /**
+     * @return the first file of the given kind, or null
+     */
+    public Path getArtifact(String kind) {
+        List<Path> files = artifacts.get(kind);
+        return files == null || files.isEmpty() ? null : files.get(0);
+    }
+
+    public Map<String, List<Path>> getArtifacts() {
+        return Collections.unmodifiableMap(artifacts);
+    }
+
+    public ObjStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(ObjStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return metadata of the converted file by name, such as the schema or the length unit of a STEP or IFC input
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return the shared geometry the converted file is an instance of, or null if it was not deduplicated
+     */
+    public GeometryReference getGeometryReference() {
+        return geometryReference;
+    }
+
+    public void setGeometryReference(GeometryReference geometryReference) {
+        this.geometryReference = geometryReference;
+    }
+
+    /**
+     * Read the converted file into a {@link SpilledMesh}, or return the one already read if the file did not change
+     * since. The mesh is kept until {@link #releaseSpilledMesh()} or until the result is closed.
+     *
+     * @param workDir directory for the temporary files of the mesh
+     */
+    public SpilledMesh getSpilledMesh(Path workDir) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(getConvertedFile(), BasicFileAttributes.class);
+        if (spilledMesh != null && !sameFile(attributes, spilledAttributes)) {
+            releaseSpilledMesh();
+        }
+        if (spilledMesh == null) {
+            spilledMesh = SpilledMesh.read(getConvertedFile(), workDir);
+            spilledAttributes = attributes;
+        }
+        return spilledMesh;
+    }
+
+    @Override
+    public void close() {
+        releaseSpilledMesh();
+        for (List<Path> files : artifacts.values()) {
+            for (Path file : files) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+                }
+            }
+        }
+        try {
+            super.close();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+        closeables.clear();
+    }
+
+    /**
+     * Close the spilled mesh, if any, and delete its temporary files.
+     */
+    public void releaseSpilledMesh() {
+        if (spilledMesh != null) {
+            try {
+                spilledMesh.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot delete spilled mesh of " + getConvertedFile(), e);
+            }
+            spilledMesh = null;
+        }
+    }
+
+    private static boolean sameFile(BasicFileAttributes a, BasicFileAttributes b) {
+        // Rewritten files are moved in place, the file key (inode) changes even if size and date do not
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime())
+                && (a.fileKey() == null ? b.fileKey() == null : a.fileKey().equals(b.fileKey()));
+    }
+
+}
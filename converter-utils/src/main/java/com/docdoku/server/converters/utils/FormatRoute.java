@@ -0,0 +1,157 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Formats accepted by a converter, checked against the content of each file before its tool is launched.
+ * <p>
+ * The table from detected format to the extension the tool expects is computed once per converter. A file whose
+ * content bears the signature of a format the converter does not accept is rejected without launching a process, a
+ * file of an accepted format with a wrong or missing extension is handed to the tool under the right one.
+ * Unrecognized content is left to the tool, as before, and so is content whose format is only guessed when the
+ * guess contradicts the extension: the tool of the extension is trusted over it.
+ */
+public class FormatRoute {
+
+    private static final Logger LOGGER = Logger.getLogger(FormatRoute.class.getName());
+
+    private final String converter;
+    private final Collection<String> extensions;
+    private final Map<CadFormat, String> toolExtensions = new EnumMap<>(CadFormat.class);
+
+    /**
+     * @param converter  name of the converter, for error messages
+     * @param extensions file extensions accepted by the converter, in lower case
+     */
+    public FormatRoute(String converter, Collection<String> extensions) {
+        this.converter = converter;
+        this.extensions = Collections.unmodifiableCollection(extensions);
+        for (CadFormat format : CadFormat.values()) {
+            for (String extension : format.getExtensions()) {
+                if (extensions.contains(extension)) {
+                    toolExtensions.put(format, extension);
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean accepts(String extension) {
+        return extensions.contains(extension);
+    }
+
+    public boolean accepts(CadFormat format) {
+        return toolExtensions.containsKey(format);
+    }
+
+    /**
+     * Check the content of a file before its conversion.
+     *
+     * @param workDir directory where a renamed link to the file can be created
+     * @return the file to hand to the tool, either the given one or a link with the extension of its format, to be
+     * {@link #release released} once the conversion is done
+     * @throws ConversionException if the file bears the signature of a format the converter does not accept
+     */
+    public Path check(Path cadFile, Path workDir) throws ConversionException {
+        CadFormat format;
+        try {
+            format = CadFormat.detect(cadFile);
+        } catch (IOException e) {
+            throw new ConversionException("Cannot read file \"" + cadFile + "\"", e);
+        }
+        if (format == CadFormat.UNKNOWN) {
+            return cadFile;
+        }
+
+        String toolExtension = toolExtensions.get(format);
+        String extension = extension(cadFile);
+        if (toolExtension != null && format.getExtensions().contains(extension)) {
+            return cadFile;
+        }
+        if (!isSignature(cadFile, format)) {
+            if (toolExtension == null || accepts(extension)) {
+                LOGGER.log(Level.FINE, "{0} looks like {1}, converted as named", new Object[]{cadFile, format});
+                return cadFile;
+            }
+        } else if (toolExtension == null) {
+            throw new ConversionException("Cannot convert file \"" + cadFile + "\" with the " + converter
+                    + " converter, its content is " + format + " (" + String.join(", ", format.getExtensions()) + ")");
+        }
+
+        Path renamed = workDir.resolve(UUID.randomUUID() + "." + toolExtension);
+        LOGGER.log(Level.INFO, "{0} holds {1} content, converted as {2}", new Object[]{cadFile, format, renamed});
+        try {
+            return Files.createSymbolicLink(renamed, cadFile.toAbsolutePath());
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.FINE, "Cannot link " + cadFile + ", copying it", e);
+            try {
+                return Files.copy(cadFile, renamed);
+            } catch (IOException copyException) {
+                throw new ConversionException("Cannot copy file \"" + cadFile + "\"", copyException);
+            }
+        }
+    }
+
+    /**
+     * Delete the link or copy created by {@link #check} for a file, if any.
+     *
+     * @param cadFile     the file given to {@link #check}
+     * @param checkedFile the file it returned
+     */
+    public static void release(Path cadFile, Path checkedFile) {
+        if (checkedFile.equals(cadFile)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(checkedFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + checkedFile, e);
+        }
+    }
+
+    private static boolean isSignature(Path cadFile, CadFormat format) throws ConversionException {
+        try {
+            return CadFormat.detect(cadFile, true) == format;
+        } catch (IOException e) {
+            throw new ConversionException("Cannot read file \"" + cadFile + "\"", e);
+        }
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Disk store of the geometries shared by the converted parts, each geometry being kept once whatever the number of
+ * parts it is used by.
+ * <p>
+ * Geometries are filed under a key computed from their content, and several geometries may share a key: the key
+ * only narrows the candidates that the caller compares to its own geometry. Entries are never evicted, since
+ * converted parts keep referencing them.
+ */
+public class GeometryStore {
+
+    private static final Logger LOGGER = Logger.getLogger(GeometryStore.class.getName());
+
+    public static final String GEOMETRY_FILE = "geometry.obj";
+
+    private static final GeometryStore INSTANCE = new GeometryStore(
+            Paths.get(ConverterConfiguration.getString("geometry_store_directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "docdoku-geometry-store").toString())));
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private boolean enabled;
+
+    /**
+     * @param directory store location, created if needed
+     */
+    public GeometryStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            enabled = true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Geometry store disabled, cannot use " + directory, e);
+        }
+    }
+
+    public static GeometryStore getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the geometry files stored under the given key, in the order they were stored
+     */
+    public List<Path> getCandidates(String key) {
+        List<Path> candidates = new ArrayList<>();
+        Path keyDirectory = directory.resolve(key);
+        if (!Files.isDirectory(keyDirectory)) {
+            return candidates;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(keyDirectory)) {
+            for (Path entry : stream) {
+                Path geometry = entry.resolve(GEOMETRY_FILE);
+                if (!entry.getFileName().toString().contains(".tmp-") && Files.exists(geometry)) {
+                    candidates.add(geometry);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot list geometry store entries " + key, e);
+        }
+        candidates.sort(Comparator.comparingInt(GeometryStore::entryNumber));
+        return candidates;
+    }
+
+    /**
+     * Record whether a lookup found a stored geometry, for statistics.
+     */
+    public void recordLookup(boolean hit) {
+        (hit ? hits : misses).incrementAndGet();
+    }
+
+    /**
+     * Store a geometry and its materials under the given key, next to the geometries already stored there.
+     *
+     * @return the stored geometry file
+     */
+    public Path put(String key, Path geometry, List<Path> materials) throws IOException {
+        Path keyDirectory = Files.createDirectories(directory.resolve(key));
+        Path staging = keyDirectory.resolve("entry.tmp-" + UUID.randomUUID());
+        try {
+            Files.createDirectory(staging);
+            Files.copy(geometry, staging.resolve(GEOMETRY_FILE));
+            for (Path material : materials) {
+                if (Files.exists(material)) {
+                    Files.copy(material, staging.resolve(material.getFileName().toString()));
+                }
+            }
+
+            // Entries are numbered, the first free number wins when stored concurrently
+            for (int number = getCandidates(key).size(); ; number++) {
+                Path entry = keyDirectory.resolve(Integer.toString(number));
+                try {
+                    Files.move(staging, entry, StandardCopyOption.ATOMIC_MOVE);
+                    return entry.resolve(GEOMETRY_FILE);
+                } catch (IOException e) {
+                    if (!Files.exists(entry)) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            deleteRecursively(staging);
+        }
+    }
+
+    /**
+     * @return the identifier of a stored geometry file, its key and entry number
+     */
+    public String getId(Path storedGeometry) {
+        Path entry = storedGeometry.getParent();
+        return entry.getParent().getFileName() + "/" + entry.getFileName();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static int entryNumber(Path geometry) {
+        try {
+            return Integer.parseInt(geometry.getParent().getFileName().toString());
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + path, e);
+        }
+    }
+
+}
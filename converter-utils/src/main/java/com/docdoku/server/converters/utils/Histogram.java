@@ -0,0 +1,142 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock-free histogram with fixed bucket bounds.
+ * <p>
+ * Buckets count the observations lower or equal to their upper bound and above the previous one, the last bucket
+ * holds the observations above the highest bound. Quantiles are estimated by linear interpolation in their bucket.
+ */
+public class Histogram {
+
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final DoubleAdder sum = new DoubleAdder();
+    // Bits of positive doubles sort like the doubles themselves
+    private final LongAccumulator max = new LongAccumulator(Math::max, Double.doubleToLongBits(0));
+
+    /**
+     * @param bounds upper bounds of the buckets, in ascending order
+     */
+    public Histogram(double... bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Histogram bounds must be ascending: " + Arrays.toString(bounds));
+            }
+        }
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Bounds growing geometrically from start.
+     */
+    public static double[] exponentialBounds(double start, double factor, int count) {
+        double[] bounds = new double[count];
+        double bound = start;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    /**
+     * Record a value, negative values are counted as 0.
+     */
+    public void observe(double value) {
+        double observed = value > 0 ? value : 0;
+        int bucket = Arrays.binarySearch(bounds, observed);
+        counts.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+        sum.add(observed);
+        max.accumulate(Double.doubleToLongBits(observed));
+    }
+
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Number of observations of each bucket, the last one being above the highest bound.
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    public double getMax() {
+        return Double.longBitsToDouble(max.get());
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : getSum() / count;
+    }
+
+    /**
+     * Estimate a quantile, 0 when nothing was observed.
+     *
+     * @param quantile between 0 and 1
+     */
+    public double getQuantile(double quantile) {
+        long[] snapshot = getBucketCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        double rank = quantile * total;
+        long below = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] > 0 && below + snapshot[i] >= rank) {
+                double lower = i == 0 ? 0 : bounds[i - 1];
+                double upper = i < bounds.length ? Math.min(bounds[i], getMax()) : getMax();
+                return lower + (upper - lower) * Math.max(0, rank - below) / snapshot[i];
+            }
+            below += snapshot[i];
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plain HTTP endpoint serving the conversion metrics at /metrics, for scrapers that cannot read JMX.
+ * <p>
+ * The converters are EJB modules without a web context, so the endpoint runs the JDK embedded server on its own
+ * port, bound to the loopback interface unless metrics_http_address says otherwise. The endpoint is stopped when its
+ * application is undeployed, so that a redeployment can bind the port again.
+ */
+final class MetricsEndpoint {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String address;
+    private final int port;
+
+    private MetricsEndpoint(HttpServer server, ExecutorService executor, String address, int port) {
+        this.server = server;
+        this.executor = executor;
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * @return the running endpoint, or null if it could not be started
+     */
+    static MetricsEndpoint start(ConversionMetrics metrics, String address, int port) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "converter-metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+            server.createContext("/metrics", exchange -> handle(metrics, exchange));
+            server.setExecutor(executor);
+            // The dispatcher thread inherits the daemon status of the thread starting the server
+            Thread starter = new Thread(server::start, "converter-metrics-endpoint-start");
+            starter.setDaemon(true);
+            starter.start();
+            starter.join();
+            LOGGER.log(Level.INFO, "Conversion metrics available at http://{0}:{1,number,#}/metrics",
+                    new Object[]{address, port});
+            return new MetricsEndpoint(server, executor, address, port);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot start the conversion metrics endpoint on " + address + ":" + port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return null;
+    }
+
+    /**
+     * Close the port and stop the dispatcher and handler threads, exchanges in progress are dropped.
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        LOGGER.log(Level.INFO, "Conversion metrics endpoint on {0}:{1,number,#} stopped", new Object[]{address, port});
+    }
+
+    private static void handle(ConversionMetrics metrics, HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringWriter text = new StringWriter();
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", PrometheusFormat.CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
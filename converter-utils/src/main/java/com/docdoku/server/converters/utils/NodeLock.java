@@ -0,0 +1,135 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.docdoku.server.converters.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exclusive lock on a file, shared by every converter application of the server.
+ * <p>
+ * Each converter application ships its own copy of this library, so static state is per application. What must
+ * hold for the whole server lives in files of a common directory, guarded by these locks. File locks belong to the
+ * JVM: a lock held by another application is reported as overlapping instead of blocking, so waiting for a lock
+ * polls it.
+ */
+final class NodeLock implements Closeable {
+
+    private static final long MAX_POLL_MILLIS = 100;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private NodeLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * @return the lock, or null if it is held
+     */
+    static NodeLock tryAcquire(Path file) throws IOException {
+        return tryAcquire(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+    }
+
+    private static NodeLock tryAcquire(FileChannel channel) throws IOException {
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return new NodeLock(channel, lock);
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another application of this JVM
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Wait for the lock.
+     *
+     * @return the lock, or null if it was not released in time
+     */
+    static NodeLock acquire(Path file, long timeoutMillis) throws IOException, InterruptedException {
+        return acquireAny(Collections.singletonList(file), timeoutMillis);
+    }
+
+    /**
+     * Wait for the lock of any of the files, tried in order.
+     *
+     * @return the lock, or null if none was released in time
+     */
+    static NodeLock acquireAny(List<Path> files, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long poll = 1;
+        while (true) {
+            for (Path file : files) {
+                NodeLock lock = tryAcquire(file);
+                if (lock != null) {
+                    return lock;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(remaining, poll));
+            poll = Math.min(MAX_POLL_MILLIS, poll * 2);
+        }
+    }
+
+    /**
+     * @return true if the lock is held, by this JVM or another process, false if it is free or the file is missing
+     */
+    static boolean isHeld(Path file) throws IOException {
+        NodeLock lock;
+        try {
+            lock = tryAcquire(FileChannel.open(file, StandardOpenOption.WRITE));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (lock == null) {
+            return true;
+        }
+        lock.close();
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+}
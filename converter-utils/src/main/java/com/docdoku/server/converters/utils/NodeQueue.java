@@ -0,0 +1,400 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Weighted fair queue of the conversions waiting for a global permit, shared by the converter applications of the
+ * server.
+ * <p>
+ * The global permits are locks on the slot files of a common directory. Waiting conversions are tickets of a
+ * ledger file next to them, read and written under the lock of the queue: the virtual time of the node, the finish
+ * tag of each flow, the waiting tickets with their tag and converter limit, and the converter of each running slot.
+ * A waiting conversion polls the ledger and takes a free slot once no ticket before it can use one, so that the
+ * order holds for the conversions of every application. Each ticket holds the lock of a file of its own while it
+ * waits: the tickets and running slots of an application that is gone are dropped on the next poll.
+ */
+final class NodeQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeQueue.class.getName());
+
+    // Other applications release their slots and tickets without notice
+    private static final long MAX_POLL_MILLIS = 100;
+    private static final long LOCK_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final String LOCK_FILE = "queue.lock";
+    private static final String LEDGER_FILE = "queue.ledger";
+    private static final String TICKET_PREFIX = "ticket-";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String VIRTUAL_TIME = "virtual";
+    private static final String SEQUENCE = "sequence";
+    private static final String FLOW = "flow";
+    private static final String TICKET = "ticket";
+    private static final String RUNNING = "running";
+
+    private final Path directory;
+    private final List<Path> slots;
+
+    NodeQueue(Path directory, List<Path> slots) {
+        this.directory = directory;
+        this.slots = slots;
+    }
+
+    /**
+     * Queue a conversion.
+     *
+     * @param permits   processes its converter may run at the same time
+     * @param flow      flow of the conversion, whose finish tag advances by its cost divided by its weight
+     * @param increment cost of the conversion divided by the weight of its origin
+     * @param capacity  tickets allowed to wait on the node
+     * @return the ticket, or null if the queue is full
+     */
+    @SuppressWarnings("try")
+    Ticket enqueue(String converter, int permits, String flow, double increment, int capacity)
+            throws IOException, InterruptedException {
+        String id = UUID.randomUUID().toString();
+        Path ticketFile = directory.resolve(TICKET_PREFIX + id + LOCK_SUFFIX);
+        NodeLock ticketLock = NodeLock.tryAcquire(ticketFile);
+        if (ticketLock == null) {
+            throw new IOException("Cannot lock " + ticketFile);
+        }
+        Ticket ticket = new Ticket(id, ticketFile, ticketLock);
+        boolean queued = false;
+        try (NodeLock lock = lockQueue()) {
+            Ledger ledger = read();
+            if (ledger.tickets.size() >= capacity) {
+                return null;
+            }
+            if (ledger.tickets.isEmpty()) {
+                // Idle node, no flow is behind another
+                ledger.flowFinishTags.clear();
+                ledger.virtualTime = 0;
+            }
+            double startTag = Math.max(ledger.virtualTime, ledger.flowFinishTags.getOrDefault(flow, 0.0));
+            double finishTag = startTag + increment;
+            ledger.flowFinishTags.put(flow, finishTag);
+            ledger.tickets.add(new Entry(id, converter, permits, finishTag, ledger.sequence++,
+                    System.currentTimeMillis()));
+            write(ledger);
+            queued = true;
+            return ticket;
+        } finally {
+            if (!queued) {
+                ticket.close();
+            }
+        }
+    }
+
+    /**
+     * Wait until the ticket is first in line for a free slot, and take it.
+     *
+     * @param maxOvertakenWaitMillis wait after which a ticket is no longer overtaken
+     * @return the lock of the slot, or null if the ticket did not get one in time
+     */
+    NodeLock await(Ticket ticket, long maxOvertakenWaitMillis, long timeoutMillis)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long poll = 1;
+        while (true) {
+            NodeLock slot = poll(ticket, maxOvertakenWaitMillis);
+            if (slot != null) {
+                return slot;
+            }
+            ticket.waited = true;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            Thread.sleep(Math.min(remaining, poll));
+            poll = Math.min(MAX_POLL_MILLIS, poll * 2);
+        }
+    }
+
+    /**
+     * Remove the ticket from the queue if it did not get a slot, and release its lock.
+     */
+    @SuppressWarnings("try")
+    void cancel(Ticket ticket) {
+        if (ticket.granted) {
+            ticket.close();
+            return;
+        }
+        try (NodeLock lock = lockQueue()) {
+            Ledger ledger = read();
+            if (ledger.tickets.removeIf(entry -> entry.id.equals(ticket.id))) {
+                write(ledger);
+            }
+        } catch (IOException e) {
+            // The ticket is dropped by the next poll once its lock is released
+            LOGGER.log(Level.FINE, "Cannot remove ticket " + ticket.id + " from " + directory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ticket.close();
+        }
+    }
+
+    @SuppressWarnings("try")
+    private NodeLock poll(Ticket ticket, long maxOvertakenWaitMillis) throws IOException, InterruptedException {
+        try (NodeLock lock = lockQueue()) {
+            Ledger ledger = read();
+            boolean swept = sweep(ledger);
+
+            List<Integer> freeSlots = new ArrayList<>();
+            Map<String, Integer> running = new HashMap<>();
+            for (int slot = 0; slot < slots.size(); slot++) {
+                String converter = ledger.running.get(slot);
+                if (NodeLock.isHeld(slots.get(slot))) {
+                    if (converter != null) {
+                        running.merge(converter, 1, Integer::sum);
+                    }
+                } else {
+                    swept |= ledger.running.remove(slot) != null;
+                    freeSlots.add(slot);
+                }
+            }
+
+            // Tickets overtaken for too long first, oldest first, then by finish tag
+            long overtakenBefore = System.currentTimeMillis() - maxOvertakenWaitMillis;
+            List<Entry> order = new ArrayList<>(ledger.tickets);
+            order.sort(Comparator.<Entry>comparingInt(entry -> entry.enqueuedMillis <= overtakenBefore ? 0 : 1)
+                    .thenComparingDouble(entry -> entry.enqueuedMillis <= overtakenBefore ? 0 : entry.finishTag)
+                    .thenComparingLong(entry -> entry.sequence));
+
+            int free = freeSlots.size();
+            for (Entry entry : order) {
+                if (free == 0) {
+                    break;
+                }
+                if (running.getOrDefault(entry.converter, 0) >= entry.permits) {
+                    // Waiting for its converter limit, it does not hold the others back
+                    continue;
+                }
+                if (entry.id.equals(ticket.id)) {
+                    NodeLock slot = take(ledger, entry, freeSlots);
+                    ticket.granted = slot != null;
+                    return slot;
+                }
+                // Left for a ticket before this one
+                free--;
+                running.merge(entry.converter, 1, Integer::sum);
+            }
+            if (swept) {
+                write(ledger);
+            }
+            return null;
+        }
+    }
+
+    private NodeLock take(Ledger ledger, Entry entry, List<Integer> freeSlots) throws IOException {
+        for (int slot : freeSlots) {
+            NodeLock slotLock = NodeLock.tryAcquire(slots.get(slot));
+            if (slotLock != null) {
+                ledger.tickets.remove(entry);
+                ledger.running.put(slot, entry.converter);
+                ledger.virtualTime = Math.max(ledger.virtualTime, entry.finishTag);
+                try {
+                    write(ledger);
+                } catch (IOException e) {
+                    slotLock.close();
+                    throw e;
+                }
+                return slotLock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the tickets whose lock was released without removing them, left by an application that is gone.
+     *
+     * @return true if a ticket was dropped
+     */
+    private boolean sweep(Ledger ledger) throws IOException {
+        boolean swept = false;
+        Iterator<Entry> iterator = ledger.tickets.iterator();
+        while (iterator.hasNext()) {
+            Path ticketFile = directory.resolve(TICKET_PREFIX + iterator.next().id + LOCK_SUFFIX);
+            if (!NodeLock.isHeld(ticketFile)) {
+                LOGGER.log(Level.FINE, "Dropping {0}, left over by an application that is gone", ticketFile);
+                iterator.remove();
+                Files.deleteIfExists(ticketFile);
+                swept = true;
+            }
+        }
+        return swept;
+    }
+
+    private NodeLock lockQueue() throws IOException, InterruptedException {
+        NodeLock lock = NodeLock.acquire(directory.resolve(LOCK_FILE), LOCK_TIMEOUT_MILLIS);
+        if (lock == null) {
+            throw new IOException("Cannot lock the conversion queue in " + directory);
+        }
+        return lock;
+    }
+
+    /**
+     * Read the ledger, a missing or damaged ledger being an empty queue: the tickets it lost time out.
+     */
+    private Ledger read() throws IOException {
+        Ledger ledger = new Ledger();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(directory.resolve(LEDGER_FILE), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return ledger;
+        }
+        try {
+            for (String line : lines) {
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                    case VIRTUAL_TIME:
+                        ledger.virtualTime = Double.parseDouble(fields[1]);
+                        break;
+                    case SEQUENCE:
+                        ledger.sequence = Long.parseLong(fields[1]);
+                        break;
+                    case FLOW:
+                        ledger.flowFinishTags.put(fields[1], Double.parseDouble(fields[2]));
+                        break;
+                    case TICKET:
+                        ledger.tickets.add(new Entry(fields[1], fields[2], Integer.parseInt(fields[3]),
+                                Double.parseDouble(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6])));
+                        break;
+                    case RUNNING:
+                        ledger.running.put(Integer.parseInt(fields[1]), fields[2]);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring damaged conversion queue " + directory.resolve(LEDGER_FILE), e);
+            return new Ledger();
+        }
+        return ledger;
+    }
+
+    /**
+     * Write the ledger, replaced atomically so that a crash leaves the previous one.
+     */
+    private void write(Ledger ledger) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(VIRTUAL_TIME).append('\t').append(ledger.virtualTime).append('\n');
+        text.append(SEQUENCE).append('\t').append(ledger.sequence).append('\n');
+        for (Map.Entry<String, Double> flow : ledger.flowFinishTags.entrySet()) {
+            text.append(FLOW).append('\t').append(flow.getKey()).append('\t').append(flow.getValue()).append('\n');
+        }
+        for (Entry entry : ledger.tickets) {
+            text.append(TICKET).append('\t').append(entry.id).append('\t').append(entry.converter).append('\t')
+                    .append(entry.permits).append('\t').append(entry.finishTag).append('\t').append(entry.sequence)
+                    .append('\t').append(entry.enqueuedMillis).append('\n');
+        }
+        for (Map.Entry<Integer, String> slot : ledger.running.entrySet()) {
+            text.append(RUNNING).append('\t').append(slot.getKey()).append('\t').append(slot.getValue()).append('\n');
+        }
+        Path ledgerFile = directory.resolve(LEDGER_FILE);
+        Path tmpLedger = directory.resolve(LEDGER_FILE + ".tmp");
+        Files.write(tmpLedger, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpLedger, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Place of a conversion in the queue, to be cancelled once it got its slot or gave up.
+     */
+    static final class Ticket {
+
+        private final String id;
+        private final Path file;
+        private final NodeLock lock;
+        private boolean waited;
+        private boolean granted;
+        private boolean closed;
+
+        private Ticket(String id, Path file, NodeLock lock) {
+            this.id = id;
+            this.file = file;
+            this.lock = lock;
+        }
+
+        /**
+         * @return true if the conversion was not first in line when queued
+         */
+        boolean hasWaited() {
+            return waited;
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                lock.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot release ticket " + id, e);
+            }
+        }
+    }
+
+    private static final class Ledger {
+        private final Map<String, Double> flowFinishTags = new HashMap<>();
+        private final List<Entry> tickets = new ArrayList<>();
+        private final Map<Integer, String> running = new HashMap<>();
+        private double virtualTime;
+        private long sequence;
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final String converter;
+        private final int permits;
+        private final double finishTag;
+        private final long sequence;
+        private final long enqueuedMillis;
+
+        Entry(String id, String converter, int permits, double finishTag, long sequence, long enqueuedMillis) {
+            this.id = id;
+            this.converter = converter;
+            this.permits = permits;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+            this.enqueuedMillis = enqueuedMillis;
+        }
+    }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.mesh.ObjScanner;
+import com.docdoku.server.converters.utils.mesh.ObjStatistics;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Named pipe (FIFO) given to a conversion tool as its OBJ output path, read by Java while the tool writes it.
+ * <p>
+ * The bytes are written to the real OBJ file and scanned for its statistics as they come, so the statistics stage
+ * overlaps the tessellation instead of reading the whole file again once the tool exited. The OBJ still goes to
+ * disk, through a .part file moved in place of the pipe: the pipe saves the second read, not the write. The tool
+ * must open its output once and write it sequentially, converters opt in through pipe_converters. A tool writing a
+ * temporary file and renaming it over the output replaces the pipe: its file is then kept as is.
+ * <p>
+ * Only the statistics scan reads the pipe. The post-processing stages that work on the mesh spilled to disk
+ * (obj_check_zero_area, glb_enabled, qmesh_enabled, tiles_enabled) still parse the whole file once the tool exited,
+ * and obj_check_zero_area and glb_enabled are on by default: the pipe saves a read only when they are all off.
+ * <p>
+ * The reader keeps draining the pipe if the scan fails, so the tool never blocks on a full pipe, and the file is
+ * then kept without statistics. Waiting for the reader is bounded, and the reader is cancelled if the tool failed.
+ * <p>
+ * An inactive pipe, when the converter did not opt in or no FIFO can be made, leaves the output path alone.
+ */
+public class ObjPipe implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ObjPipe.class.getName());
+
+    private static final long MKFIFO_TIMEOUT_MILLIS = 10000;
+    private static final long READER_STOP_MILLIS = 5000;
+    // The tool exited, what is left to read is at most the pipe buffer
+    private static final long READER_FINISH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DRAIN_BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "obj-pipe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path objFile;
+    private final Path pipe;
+    private final Path part;
+    private final Future<ObjStatistics> reader;
+    private final CountDownLatch opened;
+    private final CountDownLatch stopped;
+    private boolean finished;
+
+    private ObjPipe(Path objFile, Path pipe, Path part, Future<ObjStatistics> reader, CountDownLatch opened,
+                    CountDownLatch stopped) {
+        this.objFile = objFile;
+        this.pipe = pipe;
+        this.part = part;
+        this.reader = reader;
+        this.opened = opened;
+        this.stopped = stopped;
+    }
+
+    private static ObjPipe inactive(Path objFile) {
+        return new ObjPipe(objFile, null, null, null, null, null);
+    }
+
+    /**
+     * Make objFile a pipe if the converter is listed in pipe_converters.
+     */
+    public static ObjPipe forConverter(String converter, Path objFile) {
+        String converters = ConverterConfiguration.getString("pipe_converters", "");
+        if (!Arrays.asList(converters.split("\\s*,\\s*")).contains(converter)) {
+            return inactive(objFile);
+        }
+        return open(objFile);
+    }
+
+    /**
+     * Make objFile a pipe, or return an inactive pipe if the platform has no FIFO.
+     */
+    public static ObjPipe open(Path objFile) {
+        // The reader and cleanup go through a private link, which survives a tool renaming a file over objFile
+        Path pipe = objFile.resolveSibling(objFile.getFileName() + ".fifo");
+        Path part = objFile.resolveSibling(objFile.getFileName() + ".part");
+        try {
+            Process mkfifo = new ProcessBuilder("mkfifo", pipe.toString()).redirectErrorStream(true).start();
+            if (!mkfifo.waitFor(MKFIFO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || mkfifo.exitValue() != 0) {
+                mkfifo.destroyForcibly();
+                throw new IOException("mkfifo failed");
+            }
+            Files.createLink(objFile, pipe);
+        } catch (IOException | InterruptedException | UnsupportedOperationException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.log(Level.WARNING, "Cannot make a pipe of " + objFile + ", the tool writes it as a file", e);
+            deleteQuietly(pipe);
+            return inactive(objFile);
+        }
+
+        CountDownLatch opened = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Future<ObjStatistics> reader = READERS.submit(() -> {
+            try (FileChannel in = FileChannel.open(pipe, StandardOpenOption.READ)) {
+                opened.countDown();
+                return read(objFile, in, part);
+            } finally {
+                opened.countDown();
+                stopped.countDown();
+            }
+        });
+        return new ObjPipe(objFile, pipe, part, reader, opened, stopped);
+    }
+
+    /**
+     * Copy the pipe to the part file while scanning it.
+     *
+     * @return the statistics, or null if the scan failed and the file was copied without them
+     */
+    private static ObjStatistics read(Path objFile, FileChannel in, Path part) throws IOException {
+        TeeChannel tee;
+        try {
+            tee = new TeeChannel(in, FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            drain(in, null);
+            throw e;
+        }
+        try {
+            return ObjScanner.scan(tee);
+        } catch (RuntimeException e) {
+            if (!in.isOpen()) {
+                // Cancelled
+                throw e;
+            }
+            // Scanned bytes were written already, copy the rest for the tool not to block on a full pipe
+            LOGGER.log(Level.WARNING, "Cannot scan " + objFile + " while it is written, kept without statistics", e);
+            drain(in, tee.out);
+            return null;
+        } finally {
+            tee.out.close();
+        }
+    }
+
+    /**
+     * Read the pipe to its end, copying it to out while it can be written, or discarding it.
+     *
+     * @throws IOException if the pipe could not be copied to out
+     */
+    private static void drain(ReadableByteChannel in, FileChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(DRAIN_BUFFER_SIZE);
+        IOException failure = null;
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            try {
+                while (out != null && failure == null && buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            buffer.clear();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public boolean isActive() {
+        return reader != null;
+    }
+
+    /**
+     * Complete the output once the tool exited successfully: wait for the reader and put the OBJ file in place of
+     * the pipe.
+     *
+     * @return the result, with the statistics of the converted file if they were read from the pipe
+     */
+    public ExtendedConversionResult finish(ConversionResult result) throws ConversionException {
+        ExtendedConversionResult extendedResult = ExtendedConversionResult.of(result);
+        if (reader == null) {
+            return extendedResult;
+        }
+
+        // If the tool never opened the pipe, the reader gets an empty stream
+        release();
+        ObjStatistics statistics;
+        try {
+            statistics = reader.get(READER_FINISH_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new ConversionException("Cannot read converted file " + objFile, e.getCause());
+        } catch (TimeoutException e) {
+            reader.cancel(true);
+            throw new ConversionException("Reading converted file " + objFile + " from its pipe timed out", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException(e);
+        }
+
+        try {
+            if (Files.isRegularFile(objFile)) {
+                LOGGER.log(Level.FINE, "{0} was replaced by the tool, the pipe is not used", objFile);
+                Files.deleteIfExists(part);
+            } else {
+                Files.move(part, objFile, StandardCopyOption.REPLACE_EXISTING);
+                extendedResult.setStatistics(statistics);
+            }
+            Files.deleteIfExists(pipe);
+        } catch (IOException e) {
+            throw new ConversionException("Cannot move " + part + " to " + objFile, e);
+        }
+        finished = true;
+        return extendedResult;
+    }
+
+    /**
+     * Stop the reader and delete the pipe, and its partial output if the conversion did not finish.
+     */
+    @Override
+    public void close() {
+        if (reader == null || finished) {
+            return;
+        }
+        // The reader is waiting in open until the pipe is released, then interrupted as the output is not used
+        release();
+        reader.cancel(true);
+        try {
+            if (!stopped.await(READER_STOP_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.WARNING, "Pipe reader of {0} did not stop", objFile);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!Files.isRegularFile(objFile)) {
+            deleteQuietly(objFile);
+        }
+        deleteQuietly(pipe);
+        deleteQuietly(part);
+    }
+
+    /**
+     * Let a reader waiting for a writer open the pipe and read its end. Opening a FIFO for reading and writing
+     * does not block on Linux, whether the reader is waiting, reading or gone. The pipe is held open until the
+     * reader opened it, a reader opening it after the last writer left would wait forever.
+     */
+    @SuppressWarnings("try")
+    private void release() {
+        try (FileChannel writer = FileChannel.open(pipe, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!opened.await(READER_STOP_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.WARNING, "Pipe reader of {0} did not open it", objFile);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot release " + pipe, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+        }
+    }
+
+    /**
+     * Channel writing what is read from it to another channel.
+     */
+    private static class TeeChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private final FileChannel out;
+
+        TeeChannel(ReadableByteChannel in, FileChannel out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            int start = target.position();
+            int read = in.read(target);
+            if (read > 0) {
+                ByteBuffer copy = target.duplicate();
+                copy.limit(start + read);
+                copy.position(start);
+                while (copy.hasRemaining()) {
+                    out.write(copy);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.mesh.GeometryDeduplicationPostProcessor;
+import com.docdoku.server.converters.utils.mesh.GlbPostProcessor;
+import com.docdoku.server.converters.utils.mesh.LodPostProcessor;
+import com.docdoku.server.converters.utils.mesh.MeshOptimizationPostProcessor;
+import com.docdoku.server.converters.utils.mesh.ObjStatisticsPostProcessor;
+import com.docdoku.server.converters.utils.mesh.QuantizedMeshPostProcessor;
+import com.docdoku.server.converters.utils.mesh.TilePostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chain of {@link PostProcessor} run by every converter on its output, in this order.
+ */
+public class PostProcessing {
+
+    private static final Logger LOGGER = Logger.getLogger(PostProcessing.class.getName());
+
+    private static final List<PostProcessor> POST_PROCESSORS = Arrays.asList(
+            new ObjStatisticsPostProcessor(),
+            new MeshOptimizationPostProcessor(),
+            new GeometryDeduplicationPostProcessor(),
+            new GlbPostProcessor(),
+            new QuantizedMeshPostProcessor(),
+            new TilePostProcessor(),
+            new LodPostProcessor()
+    );
+
+    private PostProcessing() {
+    }
+
+    public static ExtendedConversionResult apply(ConversionResult result, Path tmpDir) throws ConversionException {
+        ExtendedConversionResult extendedResult = ExtendedConversionResult.of(result);
+        try {
+            for (PostProcessor postProcessor : POST_PROCESSORS) {
+                if (postProcessor.isEnabled()) {
+                    long start = System.currentTimeMillis();
+                    postProcessor.process(extendedResult, tmpDir);
+                    LOGGER.log(Level.FINE, "{0} done in {1} ms", new Object[]{
+                            postProcessor.getClass().getSimpleName(), System.currentTimeMillis() - start});
+                }
+            }
+        } finally {
+            // Spill files are as large as the converted file, do not keep them until the result is closed
+            extendedResult.releaseSpilledMesh();
+        }
+        return extendedResult;
+    }
+
+}
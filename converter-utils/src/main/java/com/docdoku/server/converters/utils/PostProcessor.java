@@ -0,0 +1,45 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.file.Path;
+
+/**
+ * A stage run on every converted OBJ, before the result is handed back to the server.
+ */
+public interface PostProcessor {
+
+    /**
+     * @return true if the stage is enabled by the configuration
+     */
+    boolean isEnabled();
+
+    /**
+     * Process the converted file, derived files should be written in the temp directory and registered on the
+     * result.
+     *
+     * @throws ConversionException if the converted file must not be used
+     */
+    void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException;
+
+}
@@ -0,0 +1,92 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+/**
+ * Outcome of an external process run by {@link ProcessRunner}.
+ */
+public class ProcessResult {
+
+    private final int exitCode;
+    private final long durationMillis;
+    private final boolean timedOut;
+    private final String stdOutput;
+    private final String errorOutput;
+    private final boolean outputTruncated;
+
+    public ProcessResult(int exitCode, long durationMillis, boolean timedOut, String stdOutput, String errorOutput,
+                         boolean outputTruncated) {
+        this.exitCode = exitCode;
+        this.durationMillis = durationMillis;
+        this.timedOut = timedOut;
+        this.stdOutput = stdOutput;
+        this.errorOutput = errorOutput;
+        this.outputTruncated = outputTruncated;
+    }
+
+    /**
+     * @return the exit code of the process, meaningless if it timed out
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean isSuccess() {
+        return !timedOut && exitCode == 0;
+    }
+
+    /**
+     * @return the end of the standard output, prefixed by a marker if it was truncated
+     */
+    public String getStdOutput() {
+        return stdOutput;
+    }
+
+    /**
+     * @return the end of the error output, prefixed by a marker if it was truncated
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    public boolean isOutputTruncated() {
+        return outputTruncated;
+    }
+
+    /**
+     * Short description of why the process failed, to be used in conversion error messages.
+     */
+    public String getFailureReason() {
+        if (timedOut) {
+            return "timed out after " + durationMillis + " ms";
+        }
+        return "exit code " + exitCode + ", " + errorOutput;
+    }
+
+}
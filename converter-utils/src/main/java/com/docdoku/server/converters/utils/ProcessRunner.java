@@ -0,0 +1,156 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Run an external conversion tool.
+ * <p>
+ * Standard and error outputs are drained concurrently into bounded buffers, so a tool filling one of its pipes
+ * never blocks, and the process tree is killed once the wall-clock timeout is reached.
+ */
+public class ProcessRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessRunner.class.getName());
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long DRAIN_GRACE_MILLIS = 5000;
+
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "converter-process-drainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long timeoutMillis;
+    private final int maxOutputBytes;
+
+    /**
+     * @param timeoutMillis  wall-clock limit of the process, 0 for none
+     * @param maxOutputBytes bytes of each output kept for reporting
+     */
+    public ProcessRunner(long timeoutMillis, int maxOutputBytes) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    /**
+     * Runner configured with the process_timeout and process_output_max_bytes settings, overridden per converter
+     * by process_timeout_[converter].
+     */
+    public static ProcessRunner forConverter(String converter) {
+        long timeout = ConverterConfiguration.getLong("process_timeout_" + converter,
+                ConverterConfiguration.getLong("process_timeout", 1800));
+        return new ProcessRunner(TimeUnit.SECONDS.toMillis(timeout),
+                ConverterConfiguration.getInt("process_output_max_bytes", 64 * 1024));
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    public ProcessResult run(ProcessBuilder processBuilder) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = processBuilder.start();
+
+        // The tool gets no input
+        process.getOutputStream().close();
+
+        BoundedOutputBuffer stdOutput = new BoundedOutputBuffer(maxOutputBytes);
+        BoundedOutputBuffer errorOutput = new BoundedOutputBuffer(maxOutputBytes);
+        Future<?> stdDrainer = DRAINERS.submit(() -> drain(process.getInputStream(), stdOutput));
+        Future<?> errorDrainer = DRAINERS.submit(() -> drain(process.getErrorStream(), errorOutput));
+
+        boolean exited;
+        try {
+            if (timeoutMillis > 0) {
+                exited = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                process.waitFor();
+                exited = true;
+            }
+        } catch (InterruptedException e) {
+            ProcessTree.destroy(process);
+            throw e;
+        }
+
+        if (!exited) {
+            LOGGER.log(Level.WARNING, "Killing {0} after {1} ms", new Object[]{processBuilder.command().get(0),
+                    timeoutMillis});
+            ProcessTree.destroy(process);
+            process.waitFor(DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        // Orphaned descendants may still hold the pipes open, do not wait for them forever
+        awaitDrainer(stdDrainer, process.getInputStream());
+        awaitDrainer(errorDrainer, process.getErrorStream());
+
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int exitCode = exited ? process.exitValue() : -1;
+        LOGGER.log(Level.FINE, "{0} exited with code {1} in {2} ms",
+                new Object[]{processBuilder.command().get(0), exitCode, duration});
+        ConversionMetrics.recordProcess(exitCode, !exited);
+
+        ProcessResult result = new ProcessResult(exitCode, duration, !exited, stdOutput.toString(),
+                errorOutput.toString(), stdOutput.isTruncated() || errorOutput.isTruncated());
+        ConversionQuarantine.recordProcess(result);
+        return result;
+    }
+
+    private static Void drain(InputStream inputStream, BoundedOutputBuffer output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return null;
+    }
+
+    private static void awaitDrainer(Future<?> drainer, InputStream inputStream) throws InterruptedException {
+        try {
+            drainer.get(DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            try {
+                inputStream.close();
+            } catch (IOException closeException) {
+                LOGGER.log(Level.FINE, null, closeException);
+            }
+            drainer.cancel(true);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Process output could not be fully read", e.getCause());
+        }
+    }
+
+}
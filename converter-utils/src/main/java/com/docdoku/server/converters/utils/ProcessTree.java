@@ -0,0 +1,189 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Process helpers missing from the Java 8 API: pid lookup and destruction of a process with its descendants.
+ * <p>
+ * The Java 9 ProcessHandle API is used when the runtime provides it, otherwise descendants are found by walking
+ * /proc, which limits the fallback to Linux.
+ */
+public class ProcessTree {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessTree.class.getName());
+    private static final Path PROC = Paths.get("/proc");
+
+    private ProcessTree() {
+    }
+
+    /**
+     * @return the pid of the process, or -1 if it cannot be determined
+     */
+    public static long pid(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (ReflectiveOperationException e) {
+            // Java 8, read the private field of the implementation
+        }
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getLong(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the resident memory of a process in bytes, or -1 if it cannot be read (non Linux systems)
+     */
+    public static long residentMemory(long pid) {
+        try {
+            for (String line : Files.readAllLines(PROC.resolve(Long.toString(pid)).resolve("status"),
+                    StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    String value = line.substring("VmRSS:".length()).trim();
+                    return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        return -1;
+    }
+
+    /**
+     * Forcibly destroy the process and all of its descendants.
+     * <p>
+     * Descendants are listed before the process is destroyed, as they are re-parented once it is gone.
+     */
+    public static void destroy(Process process) {
+        List<Object> handles = descendantHandles(process);
+        if (handles != null) {
+            process.destroyForcibly();
+            for (Object handle : handles) {
+                destroyHandle(handle);
+            }
+            return;
+        }
+
+        long pid = pid(process);
+        List<Long> descendants = pid > 0 && Files.isDirectory(PROC) ? descendants(pid) : new ArrayList<>();
+        process.destroyForcibly();
+        for (long descendant : descendants) {
+            kill(descendant);
+        }
+    }
+
+    private static List<Object> descendantHandles(Process process) {
+        try {
+            Method toHandle = Process.class.getMethod("toHandle");
+            Method descendants = Class.forName("java.lang.ProcessHandle").getMethod("descendants");
+            Object handle = toHandle.invoke(process);
+            return ((Stream<?>) descendants.invoke(handle)).collect(Collectors.<Object>toList());
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static void destroyHandle(Object handle) {
+        try {
+            Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly").invoke(handle);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    /**
+     * Resolve the descendants of a process from the parent pids found in /proc/[pid]/stat.
+     */
+    static List<Long> descendants(long root) {
+        List<long[]> parents = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(PROC)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!name.chars().allMatch(Character::isDigit)) {
+                    continue;
+                }
+                long ppid = parentPid(path.resolve("stat"));
+                if (ppid > 0) {
+                    parents.add(new long[]{Long.parseLong(name), ppid});
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+
+        List<Long> descendants = new ArrayList<>();
+        Deque<Long> pending = new ArrayDeque<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            long parent = pending.poll();
+            for (long[] entry : parents) {
+                if (entry[1] == parent) {
+                    descendants.add(entry[0]);
+                    pending.add(entry[0]);
+                }
+            }
+        }
+        return descendants;
+    }
+
+    private static long parentPid(Path stat) {
+        try {
+            String content = new String(Files.readAllBytes(stat), StandardCharsets.US_ASCII);
+            // The command name may contain spaces and parentheses, fields start after its last parenthesis
+            String[] fields = content.substring(content.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static void kill(long pid) {
+        try {
+            new ProcessBuilder("kill", "-KILL", Long.toString(pid)).start().waitFor();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot kill process " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Prometheus text exposition format (version 0.0.4) of the conversion metrics.
+ */
+final class PrometheusFormat {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "docdoku_conversion";
+
+    private PrometheusFormat() {
+    }
+
+    static void write(ConversionMetrics metrics, ConversionScheduler.Statistics scheduler, ConversionCache cache,
+                      Appendable out) throws IOException {
+
+        header(out, PREFIX + "s_total", "counter", "Finished conversions by outcome: converted, cached or failed.");
+        for (ConversionMetrics.Series series : metrics.getSeries()) {
+            sample(out, PREFIX + "s_total", labels(series, "outcome", "converted"), series.getConverted());
+            sample(out, PREFIX + "s_total", labels(series, "outcome", "cached"), series.getCacheHits());
+            sample(out, PREFIX + "s_total", labels(series, "outcome", "failed"), series.getFailures());
+        }
+
+        header(out, PREFIX + "_timeouts_total", "counter", "Conversions stopped by a timeout.");
+        for (ConversionMetrics.Series series : metrics.getSeries()) {
+            sample(out, PREFIX + "_timeouts_total", labels(series), series.getTimeouts());
+        }
+
+        header(out, PREFIX + "_exit_codes_total", "counter", "Exit codes of the conversion processes.");
+        for (ConversionMetrics.Series series : metrics.getSeries()) {
+            for (Map.Entry<String, Long> exitCode : series.getExitCodes().entrySet()) {
+                sample(out, PREFIX + "_exit_codes_total", labels(series, "code", exitCode.getKey()),
+                        exitCode.getValue());
+            }
+        }
+
+        histogram(out, metrics, PREFIX + "_duration_seconds", "Conversion time, queue wait included.",
+                ConversionMetrics.Series::getDuration);
+        histogram(out, metrics, PREFIX + "_queue_wait_seconds", "Time waited for a conversion slot.",
+                ConversionMetrics.Series::getQueueWait);
+        histogram(out, metrics, PREFIX + "_input_bytes", "Size of the converted files.",
+                ConversionMetrics.Series::getInputSize);
+        histogram(out, metrics, PREFIX + "_output_bytes", "Size of the conversion results and their materials.",
+                ConversionMetrics.Series::getOutputSize);
+
+        gauge(out, PREFIX + "_scheduler_running", "Conversion processes running.", scheduler.getRunning());
+        gauge(out, PREFIX + "_scheduler_queue_depth", "Conversions waiting for a slot.", scheduler.getQueueDepth());
+        header(out, PREFIX + "_scheduler_rejected_total", "counter",
+                "Conversions rejected because the queue was full or their wait timed out.");
+        sample(out, PREFIX + "_scheduler_rejected_total", "{reason=\"queue_full\"}", scheduler.getRejected());
+        sample(out, PREFIX + "_scheduler_rejected_total", "{reason=\"wait_timeout\"}", scheduler.getTimedOut());
+
+        header(out, PREFIX + "_cache_hits_total", "counter", "Conversion cache hits.");
+        sample(out, PREFIX + "_cache_hits_total", "", cache.getHits());
+        header(out, PREFIX + "_cache_misses_total", "counter", "Conversion cache misses.");
+        sample(out, PREFIX + "_cache_misses_total", "", cache.getMisses());
+        gauge(out, PREFIX + "_cache_bytes", "Size of the conversion cache.", cache.getSize());
+    }
+
+    private static void histogram(Appendable out, ConversionMetrics metrics, String name, String help,
+                                  Function<ConversionMetrics.Series, Histogram> histogram) throws IOException {
+        header(out, name, "histogram", help);
+        for (ConversionMetrics.Series series : metrics.getSeries()) {
+            Histogram values = histogram.apply(series);
+            double[] bounds = values.getBounds();
+            long[] counts = values.getBucketCounts();
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                String bound = i < bounds.length ? number(bounds[i]) : "+Inf";
+                sample(out, name + "_bucket", labels(series, "le", bound), cumulated);
+            }
+            sample(out, name + "_sum", labels(series), values.getSum());
+            sample(out, name + "_count", labels(series), cumulated);
+        }
+    }
+
+    private static void gauge(Appendable out, String name, String help, double value) throws IOException {
+        header(out, name, "gauge", help);
+        sample(out, name, "", value);
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name).append(labels).append(' ').append(number(value)).append('\n');
+    }
+
+    private static String labels(ConversionMetrics.Series series, String... extra) {
+        StringBuilder labels = new StringBuilder("{converter=\"").append(escape(series.getConverter()))
+                .append("\",extension=\"").append(escape(series.getExtension())).append('"');
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            labels.append(',').append(extra[i]).append("=\"").append(escape(extra[i + 1])).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Working space of the conversions: a RAM backed directory (tmpfs) for the conversions that fit in it, the temp
+ * directory of the conversion otherwise.
+ * <p>
+ * A conversion reserves its input size times an expansion factor. It runs in memory if the reservation fits the
+ * quota of the RAM backed directory, possibly after waiting for other conversions to release theirs, and on disk
+ * otherwise. On disk, conversions wait until the temp volume keeps a minimum of free space beyond the reservations
+ * of the running conversions, and fail if it does not come in time.
+ * <p>
+ * The allocation is handed over to the result of the conversion, whose files stay in the RAM backed directory and
+ * count against its quota until the result is closed. Results left open too long are deleted when room is needed.
+ * <p>
+ * The RAM backed directory is shared by the converter applications of the server, each one with its own instance.
+ * An instance works in a subdirectory of its own, held by the lock of an owner file, and publishes its reservations
+ * in a ledger file next to it: the quota applies to the reservations of all the instances. Only the files of
+ * instances whose owner lock is free, left over by a previous run, are deleted.
+ */
+public class ScratchSpace {
+
+    private static final Logger LOGGER = Logger.getLogger(ScratchSpace.class.getName());
+
+    private static final long DISK_POLL_MILLIS = 1000;
+    // Other applications release their reservations without notifying this one
+    private static final long MEMORY_POLL_MILLIS = 200;
+    private static final long LOCK_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final String LOCK_FILE = ".lock";
+    private static final String OWNER_SUFFIX = ".owner";
+    private static final String LEDGER_SUFFIX = ".reserved";
+
+    private static final ScratchSpace INSTANCE = new ScratchSpace(
+            ConverterConfiguration.getString("scratch_memory_directory", ""),
+            ConverterConfiguration.getLong("scratch_memory_max_size", 1024L * 1024 * 1024),
+            ConverterConfiguration.getDouble("scratch_expansion_factor", 4),
+            TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("scratch_memory_wait", 10)),
+            ConverterConfiguration.getLong("scratch_disk_min_free", 1024L * 1024 * 1024),
+            TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("scratch_disk_wait", 300)),
+            TimeUnit.SECONDS.toMillis(ConverterConfiguration.getLong("scratch_memory_result_lifetime", 3600)));
+
+    private final String owner = UUID.randomUUID().toString();
+    private final Path memoryRoot;
+    private final Path memoryDirectory;
+    private final long memoryMaxSize;
+    private final double expansionFactor;
+    private final long memoryWaitMillis;
+    private final long diskMinFree;
+    private final long diskWaitMillis;
+    private final long resultLifetimeMillis;
+
+    private final Set<Allocation> attached = new LinkedHashSet<>();
+    // Tells the other applications this instance is alive
+    private NodeLock ownerLock;
+    private long memoryReserved;
+    private long diskReserved;
+
+    /**
+     * @param memoryDirectory      RAM backed directory shared by the converter applications, or an empty string to
+     *                             run on disk only
+     * @param memoryMaxSize        quota of the RAM backed directory in bytes, for all the applications
+     * @param expansionFactor      reservation of a conversion, as a multiple of its input size
+     * @param memoryWaitMillis     maximum wait for room in memory before running on disk
+     * @param diskMinFree          free space to keep on the temp volume, 0 to not check it
+     * @param diskWaitMillis       maximum wait for free disk space
+     * @param resultLifetimeMillis time after which an open result may be deleted from memory
+     */
+    public ScratchSpace(String memoryDirectory, long memoryMaxSize, double expansionFactor, long memoryWaitMillis,
+                        long diskMinFree, long diskWaitMillis, long resultLifetimeMillis) {
+        this.memoryMaxSize = memoryMaxSize;
+        this.expansionFactor = expansionFactor;
+        this.memoryWaitMillis = memoryWaitMillis;
+        this.diskMinFree = diskMinFree;
+        this.diskWaitMillis = diskWaitMillis;
+        this.resultLifetimeMillis = resultLifetimeMillis;
+        this.memoryRoot = memoryDirectory.isEmpty() || memoryMaxSize <= 0 ? null : Paths.get(memoryDirectory);
+        this.memoryDirectory = memoryRoot == null ? null : prepare();
+    }
+
+    public static ScratchSpace getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserve the working space of a conversion, and copy its input there if it runs in memory.
+     *
+     * @param tmpDir temp directory of the conversion, used when it does not run in memory
+     * @throws ConversionException if the temp volume stays too full
+     */
+    public Allocation allocate(Path cadFile, Path tmpDir) throws ConversionException {
+        long reservation;
+        try {
+            reservation = (long) Math.ceil(Files.size(cadFile) * (1 + expansionFactor));
+        } catch (IOException e) {
+            throw new ConversionException(e);
+        }
+
+        try {
+            if (memoryDirectory != null && reservation <= memoryMaxSize && reserveMemory(reservation)) {
+                Allocation allocation = new Allocation(memoryDirectory.resolve(UUID.randomUUID().toString()), true,
+                        reservation);
+                try {
+                    Files.createDirectory(allocation.directory);
+                    allocation.input = Files.copy(cadFile, allocation.directory.resolve(cadFile.getFileName()));
+                    return allocation;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot stage " + cadFile + " in " + memoryDirectory, e);
+                    allocation.close();
+                }
+            }
+
+            reserveDisk(tmpDir, reservation, cadFile);
+            Allocation allocation = new Allocation(tmpDir, false, reservation);
+            allocation.input = cadFile;
+            return allocation;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException("Interrupted while waiting for scratch space", e);
+        }
+    }
+
+    public synchronized long getMemoryReserved() {
+        return memoryReserved;
+    }
+
+    public synchronized long getDiskReserved() {
+        return diskReserved;
+    }
+
+    private synchronized boolean reserveMemory(long reservation) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + memoryWaitMillis;
+        while (!tryReserveMemory(reservation)) {
+            if (reclaimExpiredResults()) {
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(Math.min(remaining, MEMORY_POLL_MILLIS));
+        }
+        return true;
+    }
+
+    /**
+     * Reserve memory if the reservations of all the applications leave room for it.
+     */
+    private boolean tryReserveMemory(long reservation) throws InterruptedException {
+        try (NodeLock lock = NodeLock.acquire(memoryRoot.resolve(LOCK_FILE), LOCK_TIMEOUT_MILLIS)) {
+            if (lock == null) {
+                LOGGER.warning("Cannot lock " + memoryRoot + ", running on disk");
+                return false;
+            }
+            if (sweep() + memoryReserved + reservation > memoryMaxSize) {
+                return false;
+            }
+            memoryReserved += reservation;
+            publish();
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read the reservations in " + memoryRoot + ", running on disk", e);
+            return false;
+        }
+    }
+
+    private synchronized void reserveDisk(Path tmpDir, long reservation, Path cadFile)
+            throws InterruptedException, ConversionException {
+        long deadline = System.currentTimeMillis() + diskWaitMillis;
+        while (diskMinFree > 0 && usableSpace(tmpDir) - diskReserved - reservation < diskMinFree) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new ConversionException("Cannot convert " + cadFile + ", not enough space left in " + tmpDir);
+            }
+            // Space is also freed outside of the conversions, poll it
+            wait(Math.min(remaining, DISK_POLL_MILLIS));
+        }
+        diskReserved += reservation;
+    }
+
+    /**
+     * @return true if an expired result was deleted
+     */
+    private boolean reclaimExpiredResults() {
+        long now = System.currentTimeMillis();
+        Iterator<Allocation> iterator = attached.iterator();
+        while (iterator.hasNext()) {
+            Allocation allocation = iterator.next();
+            if (now - allocation.attachedAt > resultLifetimeMillis) {
+                LOGGER.warning("Deleting " + allocation.directory + ", its conversion result was not closed");
+                iterator.remove();
+                deleteRecursively(allocation.directory);
+                memoryReserved -= allocation.reservation;
+                allocation.released = true;
+                publish();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void release(Allocation allocation) {
+        if (allocation.released) {
+            return;
+        }
+        allocation.released = true;
+        attached.remove(allocation);
+        if (allocation.inMemory) {
+            memoryReserved -= allocation.reservation;
+            publish();
+        } else {
+            diskReserved -= allocation.reservation;
+        }
+        notifyAll();
+    }
+
+    private synchronized void attach(Allocation allocation) {
+        if (allocation.released) {
+            return;
+        }
+        if (allocation.inMemory) {
+            // The files are there now, count them instead of the estimate
+            long size = directorySize(allocation.directory);
+            memoryReserved += size - allocation.reservation;
+            allocation.reservation = size;
+            allocation.attachedAt = System.currentTimeMillis();
+            attached.add(allocation);
+            publish();
+        } else {
+            // The temp volume free space accounts for the files from now on
+            diskReserved -= allocation.reservation;
+            allocation.released = true;
+        }
+        notifyAll();
+    }
+
+    private static long usableSpace(Path directory) {
+        try {
+            return Files.getFileStore(directory).getUsableSpace();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot read free space of " + directory, e);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Take ownership of a subdirectory of the RAM backed directory, deleting what previous runs left.
+     *
+     * @return the subdirectory, or null if the RAM backed directory cannot be used
+     */
+    private Path prepare() {
+        try {
+            Files.createDirectories(memoryRoot);
+            try (NodeLock lock = NodeLock.acquire(memoryRoot.resolve(LOCK_FILE), LOCK_TIMEOUT_MILLIS)) {
+                if (lock == null) {
+                    LOGGER.warning("Conversions run on disk, cannot lock " + memoryRoot);
+                    return null;
+                }
+                // Held as long as this instance lives, the files of this instance are then left alone
+                ownerLock = NodeLock.tryAcquire(memoryRoot.resolve(owner + OWNER_SUFFIX));
+                sweep();
+                Path directory = Files.createDirectory(memoryRoot.resolve(owner));
+                publish();
+                return directory;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Conversions run on disk, cannot use " + memoryRoot, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Delete the files of the instances that are gone, called under the lock of the RAM backed directory.
+     *
+     * @return the memory reserved by the other instances
+     */
+    private long sweep() throws IOException {
+        long reserved = 0;
+        Map<String, Boolean> live = new HashMap<>();
+        List<Path> children;
+        try (Stream<Path> list = Files.list(memoryRoot)) {
+            children = list.collect(Collectors.toList());
+        }
+        for (Path child : children) {
+            String name = child.getFileName().toString();
+            int dot = name.indexOf('.');
+            String childOwner = dot < 0 ? name : name.substring(0, dot);
+            if (name.equals(LOCK_FILE) || childOwner.equals(owner)) {
+                continue;
+            }
+            Boolean held = live.get(childOwner);
+            if (held == null) {
+                held = NodeLock.isHeld(memoryRoot.resolve(childOwner + OWNER_SUFFIX));
+                live.put(childOwner, held);
+            }
+            if (!held) {
+                LOGGER.fine("Deleting " + child + ", left over by a previous run");
+                deleteRecursively(child);
+            } else if (name.equals(childOwner + LEDGER_SUFFIX)) {
+                reserved += readLedger(child);
+            }
+        }
+        return reserved;
+    }
+
+    private static long readLedger(Path ledger) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(ledger), StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Cannot read " + ledger, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Write the memory reserved by this instance to its ledger, replaced atomically for the other instances.
+     */
+    private void publish() {
+        if (ownerLock == null) {
+            return;
+        }
+        Path ledger = memoryRoot.resolve(owner + LEDGER_SUFFIX);
+        Path tmpLedger = memoryRoot.resolve(owner + LEDGER_SUFFIX + ".tmp");
+        try {
+            Files.write(tmpLedger, Long.toString(memoryReserved).getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmpLedger, ledger, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write " + ledger, e);
+        }
+    }
+
+    private static long directorySize(Path directory) {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            long size = 0;
+            for (Path file : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                size += Files.size(file);
+            }
+            return size;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot measure " + directory, e);
+            return 0;
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + path, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot delete " + file, e);
+        }
+    }
+
+    /**
+     * Working space of one conversion. Closing it before {@link #attach(ExtendedConversionResult)} releases the
+     * space, deleting the RAM backed directory; after, it is released when the result is closed.
+     */
+    public class Allocation implements Closeable {
+
+        private final Path directory;
+        private final boolean inMemory;
+        private final List<Path> temporaryFiles = new ArrayList<>();
+        private long reservation;
+        private long attachedAt;
+        private boolean released;
+        private boolean handedOver;
+        private Path input;
+
+        private Allocation(Path directory, boolean inMemory, long reservation) {
+            this.directory = directory;
+            this.inMemory = inMemory;
+            this.reservation = reservation;
+        }
+
+        /**
+         * @return the directory the conversion writes to
+         */
+        public Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the input of the conversion, copied in the RAM backed directory if it runs in memory
+         */
+        public Path getInput() {
+            return input;
+        }
+
+        public boolean isInMemory() {
+            return inMemory;
+        }
+
+        /**
+         * Register a file of the conversion that is not part of its result, deleted when the allocation is
+         * attached or closed.
+         */
+        public Path temporary(Path file) {
+            temporaryFiles.add(file);
+            return file;
+        }
+
+        /**
+         * Hand the allocation over to the result of the conversion.
+         *
+         * @return the given result
+         */
+        public ExtendedConversionResult attach(ExtendedConversionResult result) {
+            deleteTemporaryFiles();
+            if (inMemory) {
+                deleteQuietly(input);
+            }
+            ScratchSpace.this.attach(this);
+            result.addCloseable(this::free);
+            handedOver = true;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (!handedOver) {
+                deleteTemporaryFiles();
+                free();
+            }
+        }
+
+        private void free() {
+            if (inMemory) {
+                deleteRecursively(directory);
+            }
+            release(this);
+        }
+
+        private void deleteTemporaryFiles() {
+            temporaryFiles.forEach(ScratchSpace::deleteQuietly);
+            temporaryFiles.clear();
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Shell kept alive to run a series of tool invocations, for tools converting a single file per process.
+ * <p>
+ * Each command is written to the shell input followed by markers on its outputs, the one of the standard output
+ * carrying its exit code. The shell still forks the tool once per file: a batch only saves the launch of a process
+ * from the JVM for each file. The outputs of each command are read up to its markers into buffers keeping their
+ * last bytes, as {@link ProcessRunner} does. A command still running after the timeout kills the whole session,
+ * which is started again for the next command.
+ */
+public class ShellSession implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ShellSession.class.getName());
+
+    private static final String SHELL = "/bin/sh";
+    private static final String EXITED = "exited";
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+    // The shell writes the marker of the error output before the one of the standard output
+    private static final long ERROR_MARKER_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_MARKER_LINE = 64;
+
+    private final Path workDir;
+    private final long timeoutMillis;
+    private final int maxOutputBytes;
+    // Unlikely to be printed by a tool, it ends the outputs of each command
+    private final String marker = "__docdoku_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+    private Process shell;
+    private Writer commands;
+    private BlockingQueue<String> replies;
+    private BlockingQueue<String> errorReplies;
+    private volatile BoundedOutputBuffer stdOutput;
+    private volatile BoundedOutputBuffer errorOutput;
+    private int invocations;
+
+    /**
+     * @param workDir        working directory of the shell
+     * @param timeoutMillis  wall-clock limit of each command, 0 for none
+     * @param maxOutputBytes bytes of each output kept for reporting
+     */
+    public ShellSession(Path workDir, long timeoutMillis, int maxOutputBytes) {
+        this.workDir = workDir;
+        this.timeoutMillis = timeoutMillis;
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    /**
+     * Session with the timeout and output limits of {@link ProcessRunner#forConverter}.
+     */
+    public static ShellSession forConverter(String converter, Path workDir) {
+        ProcessRunner runner = ProcessRunner.forConverter(converter);
+        return new ShellSession(workDir, runner.getTimeoutMillis(), runner.getMaxOutputBytes());
+    }
+
+    /**
+     * Run a command in the session, it gets no input.
+     */
+    public ProcessResult run(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (shell == null || !shell.isAlive()) {
+            startShell();
+        }
+
+        BoundedOutputBuffer commandOutput = new BoundedOutputBuffer(maxOutputBytes);
+        BoundedOutputBuffer commandErrorOutput = new BoundedOutputBuffer(maxOutputBytes);
+        stdOutput = commandOutput;
+        errorOutput = commandErrorOutput;
+        commands.write(command.stream().map(ShellSession::quote).collect(Collectors.joining(" "))
+                + " </dev/null; code=$?; printf '\\n%s\\n' '" + marker + "' >&2; printf '\\n%s %s\\n' '" + marker
+                + "' \"$code\"\n");
+        commands.flush();
+        invocations++;
+
+        String reply;
+        try {
+            reply = timeoutMillis > 0 ? replies.poll(timeoutMillis, TimeUnit.MILLISECONDS) : replies.take();
+            if (reply != null && !reply.equals(EXITED)
+                    && errorReplies.poll(ERROR_MARKER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) == null) {
+                LOGGER.log(Level.FINE, "Error output of {0} not read to its end", command.get(0));
+            }
+        } catch (InterruptedException e) {
+            close();
+            throw e;
+        }
+
+        boolean timedOut = reply == null;
+        int exitCode = -1;
+        if (timedOut) {
+            LOGGER.log(Level.WARNING, "Killing {0} after {1} ms", new Object[]{command.get(0), timeoutMillis});
+            close();
+        } else if (reply.equals(EXITED)) {
+            shell = null;
+        } else {
+            exitCode = Integer.parseInt(reply);
+        }
+
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.log(Level.FINE, "{0} exited with code {1} in {2} ms", new Object[]{command.get(0), exitCode,
+                duration});
+        ConversionMetrics.recordProcess(exitCode, timedOut);
+        ProcessResult result = new ProcessResult(exitCode, duration, timedOut, commandOutput.toString(),
+                commandErrorOutput.toString(), commandOutput.isTruncated() || commandErrorOutput.isTruncated());
+        ConversionQuarantine.recordProcess(result);
+        return result;
+    }
+
+    /**
+     * Commands run by this session, sessions started again after a timeout included.
+     */
+    public int getInvocations() {
+        return invocations;
+    }
+
+    /**
+     * Close the shell input so it exits by itself, and kill it with its running command if it does not.
+     */
+    @Override
+    public void close() {
+        Process process = shell;
+        if (process == null) {
+            return;
+        }
+        shell = null;
+        try {
+            commands.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        try {
+            if (!process.waitFor(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                ProcessTree.destroy(process);
+            }
+        } catch (InterruptedException e) {
+            ProcessTree.destroy(process);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startShell() throws IOException {
+        // A command killed by a timeout leaves the previous shell behind
+        close();
+        ProcessBuilder processBuilder = new ProcessBuilder(SHELL);
+        processBuilder.directory(workDir.toFile());
+        Process process = processBuilder.start();
+        BlockingQueue<String> processReplies = new LinkedBlockingQueue<>();
+        BlockingQueue<String> processErrorReplies = new LinkedBlockingQueue<>();
+
+        Thread replyReader = new Thread(() -> readOutput(process.getInputStream(), false, processReplies),
+                "shell-session-" + ProcessTree.pid(process) + "-out");
+        replyReader.setDaemon(true);
+        replyReader.start();
+
+        Thread errorReader = new Thread(() -> readOutput(process.getErrorStream(), true, processErrorReplies),
+                "shell-session-" + ProcessTree.pid(process) + "-err");
+        errorReader.setDaemon(true);
+        errorReader.start();
+
+        shell = process;
+        replies = processReplies;
+        errorReplies = processErrorReplies;
+        commands = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy an output of the shell to the buffer of the running command up to each marker line, whose end is queued
+     * as a reply. The line feed written before the marker is not part of the command output.
+     */
+    private void readOutput(InputStream inputStream, boolean error, BlockingQueue<String> outputReplies) {
+        byte[] pattern = ("\n" + marker).getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE + pattern.length];
+        StringBuilder markerLine = null;
+        int matched = 0;
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                BoundedOutputBuffer commandOutput = error ? errorOutput : stdOutput;
+                int length = 0;
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (markerLine != null) {
+                        if (b == '\n' || markerLine.length() >= MAX_MARKER_LINE) {
+                            write(commandOutput, output, length);
+                            length = 0;
+                            outputReplies.add(markerLine.toString().trim());
+                            markerLine = null;
+                        } else {
+                            markerLine.append((char) b);
+                        }
+                    } else if (b == pattern[matched]) {
+                        matched++;
+                        if (matched == pattern.length) {
+                            markerLine = new StringBuilder();
+                            matched = 0;
+                        }
+                    } else {
+                        // Only the first byte of the marker is a line feed, a mismatch restarts from this byte
+                        System.arraycopy(pattern, 0, output, length, matched);
+                        length += matched;
+                        matched = 0;
+                        if (b == pattern[0]) {
+                            matched = 1;
+                        } else {
+                            output[length++] = b;
+                        }
+                    }
+                }
+                write(commandOutput, output, length);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        } finally {
+            outputReplies.add(EXITED);
+        }
+    }
+
+    private static void write(BoundedOutputBuffer commandOutput, byte[] bytes, int length) {
+        if (commandOutput != null && length > 0) {
+            commandOutput.write(bytes, 0, length);
+        }
+    }
+
+    static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+}
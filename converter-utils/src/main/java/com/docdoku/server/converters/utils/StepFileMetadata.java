@@ -0,0 +1,312 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import com.docdoku.server.converters.utils.io.StepFileScanner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metadata of a STEP or IFC file, read in the JVM from its header section and first entities.
+ * <p>
+ * The FILE_DESCRIPTION, FILE_NAME and FILE_SCHEMA header entities give the schema, the authoring tool and the
+ * originating system, the first entities of the data section the length unit, the application (IFC) and the names
+ * of the top-level products. Only the first metadata_scan_bytes of the file are mapped, so the metadata is available
+ * in microseconds without launching FreeCAD or IfcConvert.
+ */
+public class StepFileMetadata {
+
+    private static final Logger LOGGER = Logger.getLogger(StepFileMetadata.class.getName());
+
+    private static final String FILE_DESCRIPTION = "FILE_DESCRIPTION";
+    private static final String FILE_NAME = "FILE_NAME";
+    private static final String FILE_SCHEMA = "FILE_SCHEMA";
+    private static final String SI_UNIT = "SI_UNIT";
+    private static final String LENGTH_UNIT = "LENGTH_UNIT";
+    private static final String CONVERSION_BASED_UNIT = "CONVERSION_BASED_UNIT";
+    private static final String PRODUCT = "PRODUCT";
+    private static final String IFC_SI_UNIT = "IFCSIUNIT";
+    private static final String IFC_CONVERSION_BASED_UNIT = "IFCCONVERSIONBASEDUNIT";
+    private static final String IFC_APPLICATION = "IFCAPPLICATION";
+    private static final Set<String> IFC_SPATIAL_ROOTS = new HashSet<>(Arrays.asList(
+            "IFCPROJECT", "IFCSITE", "IFCBUILDING"));
+    static final Set<String> TYPES = new HashSet<>(Arrays.asList(FILE_DESCRIPTION, FILE_NAME, FILE_SCHEMA, SI_UNIT,
+            LENGTH_UNIT, CONVERSION_BASED_UNIT, PRODUCT, IFC_SI_UNIT, IFC_CONVERSION_BASED_UNIT, IFC_APPLICATION));
+    private static final int MAX_PRODUCT_NAMES = 16;
+
+    static {
+        TYPES.addAll(IFC_SPATIAL_ROOTS);
+    }
+
+    private final Map<String, String> header = new LinkedHashMap<>();
+    private final List<String> productNames = new ArrayList<>();
+    private final Map<Long, String> siUnits = new HashMap<>();
+    private final Map<Long, String> conversionBasedUnits = new HashMap<>();
+    private final Set<Long> lengthUnits = new TreeSet<>();
+    private String schema;
+    private String application;
+    private String ifcLengthUnit;
+
+    StepFileMetadata() {
+    }
+
+    /**
+     * Read the metadata of a STEP or IFC file, empty metadata for other files.
+     */
+    public static StepFileMetadata read(Path cadFile) throws IOException {
+        StepFileMetadata metadata = new StepFileMetadata();
+        CadFormat format = CadFormat.detect(cadFile);
+        if (format == CadFormat.STEP || format == CadFormat.IFC) {
+            StepFileScanner.scan(cadFile, TYPES, metadata::visit,
+                    ConverterConfiguration.getLong("metadata_scan_bytes", 1024 * 1024));
+        }
+        return metadata;
+    }
+
+    /**
+     * Read the metadata of a file for its conversion, which goes on without it if the file cannot be read.
+     */
+    public static StepFileMetadata of(Path cadFile) {
+        try {
+            return read(cadFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot read the metadata of " + cadFile, e);
+            return new StepFileMetadata();
+        }
+    }
+
+    void visit(long id, String type, String parameters) {
+        List<String> values = StepFileScanner.split(parameters);
+        switch (type) {
+            case FILE_DESCRIPTION:
+                put("description", values, 0);
+                put("implementation_level", values, 1);
+                break;
+            case FILE_NAME:
+                put("name", values, 0);
+                put("time_stamp", values, 1);
+                put("author", values, 2);
+                put("organization", values, 3);
+                put("preprocessor_version", values, 4);
+                put("originating_system", values, 5);
+                put("authorization", values, 6);
+                break;
+            case FILE_SCHEMA:
+                List<String> schemas = values.isEmpty() ? values : StepFileScanner.split(unwrap(values.get(0)));
+                schema = schemas.isEmpty() ? null : StepFileScanner.string(schemas.get(0));
+                break;
+            case LENGTH_UNIT:
+                lengthUnits.add(id);
+                break;
+            case SI_UNIT:
+                if (values.size() >= 2) {
+                    siUnits.put(id, siUnit(values.get(0), values.get(1)));
+                }
+                break;
+            case CONVERSION_BASED_UNIT:
+                if (!values.isEmpty()) {
+                    conversionBasedUnits.put(id, StepFileScanner.string(values.get(0)));
+                }
+                break;
+            case IFC_SI_UNIT:
+            case IFC_CONVERSION_BASED_UNIT:
+                if (ifcLengthUnit == null && values.size() >= 4 && ".LENGTHUNIT.".equals(values.get(1))) {
+                    ifcLengthUnit = IFC_SI_UNIT.equals(type) ? siUnit(values.get(2), values.get(3))
+                            : StepFileScanner.string(values.get(2));
+                }
+                break;
+            case IFC_APPLICATION:
+                // ApplicationDeveloper, Version, ApplicationFullName, ApplicationIdentifier
+                if (application == null && values.size() >= 3) {
+                    String name = decode(values.get(2));
+                    String version = decode(values.get(1));
+                    application = version == null || name == null || name.contains(version) ? name
+                            : name + " " + version;
+                }
+                break;
+            case PRODUCT:
+                // Id, Name, Description, FrameOfReference, exporters often leave the name empty
+                if (!addProductName(values, 1)) {
+                    addProductName(values, 0);
+                }
+                break;
+            default:
+                if (IFC_SPATIAL_ROOTS.contains(type)) {
+                    // GlobalId, OwnerHistory, Name
+                    addProductName(values, 2);
+                }
+                break;
+        }
+    }
+
+    private void put(String key, List<String> values, int index) {
+        if (index >= values.size()) {
+            return;
+        }
+        String value = values.get(index).trim();
+        List<String> items = value.startsWith("(") ? StepFileScanner.split(unwrap(value))
+                : Collections.singletonList(value);
+        List<String> strings = new ArrayList<>();
+        for (String item : items) {
+            String string = decode(item);
+            if (string != null && !string.isEmpty()) {
+                strings.add(string);
+            }
+        }
+        if (!strings.isEmpty()) {
+            header.put(key, String.join("; ", strings));
+        }
+    }
+
+    private boolean addProductName(List<String> values, int index) {
+        String name = index < values.size() ? decode(values.get(index)) : null;
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        if (productNames.size() < MAX_PRODUCT_NAMES) {
+            productNames.add(name);
+        }
+        return true;
+    }
+
+    private static String decode(String parameter) {
+        return StepFileScanner.decode(StepFileScanner.string(parameter));
+    }
+
+    private static String unwrap(String list) {
+        String value = list.trim();
+        return value.startsWith("(") && value.endsWith(")") ? value.substring(1, value.length() - 1) : value;
+    }
+
+    private static String siUnit(String prefix, String name) {
+        String unit = name.replace(".", "");
+        return prefix.startsWith(".") ? prefix.replace(".", "") + unit : unit;
+    }
+
+    /**
+     * @return the first schema of the file, such as IFC2X3 or AUTOMOTIVE_DESIGN, null if unknown
+     */
+    public String getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the length unit of the model, such as MILLIMETRE or INCH, null if unknown
+     */
+    public String getLengthUnit() {
+        // STEP units are complex instances, (LENGTH_UNIT() NAMED_UNIT(*) SI_UNIT(.MILLI.,.METRE.))
+        String unit = ifcLengthUnit;
+        for (Long id : lengthUnits) {
+            if (unit == null) {
+                unit = siUnits.containsKey(id) ? siUnits.get(id) : conversionBasedUnits.get(id);
+            }
+        }
+        return unit != null ? unit.toUpperCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * @return the authoring application of an IFC file, such as "Autodesk Revit 2019 (ENU) 2019", null if unknown
+     */
+    public String getApplication() {
+        return application;
+    }
+
+    /**
+     * @return the originating system of the FILE_NAME header, the CAD system the file was exported from
+     */
+    public String getOriginatingSystem() {
+        return header.get("originating_system");
+    }
+
+    /**
+     * @return the preprocessor version of the FILE_NAME header, the exporter that wrote the file
+     */
+    public String getPreprocessorVersion() {
+        return header.get("preprocessor_version");
+    }
+
+    /**
+     * @return the names of the first STEP products, or of the IFC project, sites and buildings
+     */
+    public List<String> getProductNames() {
+        return Collections.unmodifiableList(productNames);
+    }
+
+    /**
+     * @return true if nothing was read, the file is not a STEP or IFC file or its header is missing
+     */
+    public boolean isEmpty() {
+        return schema == null && header.isEmpty() && productNames.isEmpty() && getLengthUnit() == null;
+    }
+
+    /**
+     * All the metadata by name: schema, description, implementation_level, name, time_stamp, author, organization,
+     * preprocessor_version, originating_system, authorization, application, length_unit and products. Lists are
+     * joined with "; ".
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (schema != null) {
+            map.put("schema", schema);
+        }
+        map.putAll(header);
+        if (application != null) {
+            map.put("application", application);
+        }
+        String lengthUnit = getLengthUnit();
+        if (lengthUnit != null) {
+            map.put("length_unit", lengthUnit);
+        }
+        if (!productNames.isEmpty()) {
+            map.put("products", String.join("; ", productNames));
+        }
+        return map;
+    }
+
+    /**
+     * Add the metadata to a conversion result.
+     *
+     * @return the given result
+     */
+    public ExtendedConversionResult attach(ExtendedConversionResult result) {
+        result.getMetadata().putAll(toMap());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
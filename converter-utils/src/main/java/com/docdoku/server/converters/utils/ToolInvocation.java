@@ -0,0 +1,55 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command line of a conversion tool for one file, with the files it produces.
+ */
+public class ToolInvocation {
+
+    private final List<String> command;
+    private final Path convertedFile;
+    private final List<Path> materials;
+
+    public ToolInvocation(List<String> command, Path convertedFile, List<Path> materials) {
+        this.command = Collections.unmodifiableList(new ArrayList<>(command));
+        this.convertedFile = convertedFile;
+        this.materials = new ArrayList<>(materials);
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /**
+     * Result of a successful invocation.
+     */
+    public ConversionResult getResult() {
+        return new ConversionResult(convertedFile, new ArrayList<>(materials));
+    }
+}
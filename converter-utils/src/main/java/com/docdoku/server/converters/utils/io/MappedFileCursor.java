@@ -0,0 +1,395 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Forward-only reader over a memory-mapped file, with number parsing that does not allocate.
+ * <p>
+ * The file is mapped through fixed-size windows, so files larger than 2 GB are supported and the heap usage does
+ * not depend on the file size. Text is handled as ASCII bytes, which is what the CAD exchange formats use for
+ * their syntax.
+ * <p>
+ * A cursor can also read a stream, such as a pipe, through a buffer refilled as it moves.
+ */
+public class MappedFileCursor implements Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final FileChannel channel;
+    private final ReadableByteChannel stream;
+    private final int windowSize;
+    private long size;
+    private ByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private int offset;
+
+    public MappedFileCursor(Path file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedFileCursor(Path file, int windowSize) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.stream = null;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        map(0);
+    }
+
+    private MappedFileCursor(ReadableByteChannel stream, int bufferSize) {
+        this.channel = null;
+        this.stream = stream;
+        this.windowSize = bufferSize;
+        this.window = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Read a stream, blocking when the buffer is consumed until more bytes come or the stream ends.
+     */
+    public static MappedFileCursor stream(ReadableByteChannel stream, int bufferSize) {
+        return new MappedFileCursor(stream, bufferSize);
+    }
+
+    /**
+     * @return the size of the file, or for a stream the number of bytes read so far
+     */
+    public long size() {
+        return size;
+    }
+
+    public long position() {
+        return windowStart + offset;
+    }
+
+    public boolean hasRemaining() {
+        if (stream != null) {
+            return offset < windowLimit || nextWindow();
+        }
+        return offset < windowLimit || windowStart + windowLimit < size;
+    }
+
+    /**
+     * @return the next byte without consuming it, or -1 at the end of the file
+     */
+    public int peek() {
+        if (offset == windowLimit && !nextWindow()) {
+            return -1;
+        }
+        return window.get(offset) & 0xFF;
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of the file
+     */
+    public int next() {
+        int c = peek();
+        if (c != -1) {
+            offset++;
+        }
+        return c;
+    }
+
+    public void skip() {
+        next();
+    }
+
+    /**
+     * Skip spaces and tabs.
+     */
+    public void skipBlanks() {
+        int c = peek();
+        while (c == ' ' || c == '\t') {
+            offset++;
+            c = peek();
+        }
+    }
+
+    /**
+     * Move after the next line feed, or to the end of the file.
+     */
+    public void skipLine() {
+        int c;
+        do {
+            c = next();
+        } while (c != '\n' && c != -1);
+    }
+
+    /**
+     * @return true if the next byte ends the current line (carriage return, line feed or end of file)
+     */
+    public boolean atEndOfLine() {
+        int c = peek();
+        return c == '\n' || c == '\r' || c == -1;
+    }
+
+    /**
+     * Consume the given word if it is next. Bytes are consumed up to the first mismatch otherwise.
+     *
+     * @return true if the whole word was consumed
+     */
+    public boolean consume(byte[] word) {
+        for (byte b : word) {
+            if (peek() != b) {
+                return false;
+            }
+            offset++;
+        }
+        return true;
+    }
+
+    /**
+     * Parse a decimal number after optional blanks.
+     * <p>
+     * Values are computed from an 18 digit mantissa, the result may differ from {@link Double#parseDouble} in the
+     * last bit, which is irrelevant for geometry.
+     *
+     * @return the parsed value, NaN if no number could be read (nan and inf literals are supported)
+     */
+    public double nextDouble() {
+        skipBlanks();
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            offset++;
+            c = peek();
+        }
+
+        if (c == 'n' || c == 'N' || c == 'i' || c == 'I') {
+            boolean infinite = c == 'i' || c == 'I';
+            while (isLetter(peek())) {
+                offset++;
+            }
+            if (infinite) {
+                return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+            return Double.NaN;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean valid = false;
+
+        while (isDigit(c)) {
+            valid = true;
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            offset++;
+            c = peek();
+        }
+
+        if (c == '.') {
+            offset++;
+            c = peek();
+            while (isDigit(c)) {
+                valid = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    exponent--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                }
+                offset++;
+                c = peek();
+            }
+        }
+
+        if (!valid) {
+            return Double.NaN;
+        }
+
+        if (c == 'e' || c == 'E') {
+            offset++;
+            c = peek();
+            boolean negativeExponent = false;
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                offset++;
+                c = peek();
+            }
+            int value = 0;
+            while (isDigit(c)) {
+                if (value < 10000) {
+                    value = value * 10 + (c - '0');
+                }
+                offset++;
+                c = peek();
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double result;
+        if (mantissa == 0) {
+            result = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            result = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            result = mantissa * Math.pow(10, exponent);
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parse an integer after optional blanks.
+     *
+     * @return the parsed value, or {@link Long#MIN_VALUE} if there is no number
+     */
+    public long nextLong() {
+        skipBlanks();
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            offset++;
+            c = peek();
+        }
+        if (!isDigit(c)) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        while (isDigit(c)) {
+            value = value * 10 + (c - '0');
+            offset++;
+            c = peek();
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Read the next blank separated word of the current line, after optional blanks.
+     * <p>
+     * This allocates a String and is meant for rare lines such as group or material names.
+     *
+     * @return the word, empty if the line has no more words
+     */
+    public String nextWord() {
+        skipBlanks();
+        StringBuilder word = new StringBuilder();
+        int c = peek();
+        while (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != -1) {
+            word.append((char) c);
+            offset++;
+            c = peek();
+        }
+        return word.toString();
+    }
+
+    /**
+     * Read the rest of the current line, without its line terminator.
+     * <p>
+     * This allocates a String and is meant for rare lines such as names that may contain blanks.
+     */
+    public String restOfLine() {
+        skipBlanks();
+        StringBuilder line = new StringBuilder();
+        int c = peek();
+        while (c != '\n' && c != '\r' && c != -1) {
+            line.append((char) c);
+            offset++;
+            c = peek();
+        }
+        return line.toString().trim();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (stream != null) {
+            stream.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    private boolean nextWindow() {
+        if (stream != null) {
+            return fill();
+        }
+        long next = windowStart + windowLimit;
+        if (next >= size) {
+            return false;
+        }
+        try {
+            map(next);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map file at position " + next, e);
+        }
+        return windowLimit > 0;
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        windowLimit = (int) Math.min(windowSize, size - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLimit);
+        offset = 0;
+    }
+
+    private boolean fill() {
+        windowStart += windowLimit;
+        windowLimit = 0;
+        offset = 0;
+        window.clear();
+        try {
+            int read;
+            do {
+                read = stream.read(window);
+            } while (read == 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read stream at position " + windowStart, e);
+        }
+        windowLimit = window.position();
+        size += windowLimit;
+        return windowLimit > 0;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Float array spilled to a temporary file: values are appended, then accessed at random through memory-mapped
+ * windows.
+ * <p>
+ * Used for the vertex attributes of meshes that should not be held on the heap: values are appended while a
+ * file is scanned, {@link #seal()} maps them for the lookups and updates of a second pass.
+ */
+public class MappedFloatStore implements Closeable {
+
+    // A multiple of 3 and 4, so that vectors never span two windows
+    private static final int FLOATS_PER_WINDOW = 12 * 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer;
+    private final List<FloatBuffer> windows = new ArrayList<>();
+    private long size;
+
+    public MappedFloatStore(Path directory, String prefix) throws IOException {
+        this.file = Files.createTempFile(directory, prefix, ".bin");
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    public void add(float value) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            flush();
+        }
+        writeBuffer.putFloat(value);
+        size++;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Flush the appended values and map them for random access, no value can be added afterwards.
+     */
+    public void seal() throws IOException {
+        flush();
+        long bytes = size * Float.BYTES;
+        long windowBytes = (long) FLOATS_PER_WINDOW * Float.BYTES;
+        for (long start = 0; start < bytes; start += windowBytes) {
+            windows.add(channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(windowBytes, bytes - start))
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer());
+        }
+    }
+
+    public float get(long index) {
+        return windows.get((int) (index / FLOATS_PER_WINDOW)).get((int) (index % FLOATS_PER_WINDOW));
+    }
+
+    public void set(long index, float value) {
+        windows.get((int) (index / FLOATS_PER_WINDOW)).put((int) (index % FLOATS_PER_WINDOW), value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+}
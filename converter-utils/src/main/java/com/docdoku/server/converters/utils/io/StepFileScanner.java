@@ -0,0 +1,361 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming reader of the entity instances of an ISO 10303-21 (STEP physical) file, the encoding of STEP and IFC
+ * models.
+ * <p>
+ * The file is read once through a {@link MappedFileCursor}. Only the parameters of the entity types asked for are
+ * materialized, the others are skipped byte by byte, so scanning a model of several GB takes seconds and constant
+ * memory. The parts of complex instances, (A(...)B(...)), are reported one by one under the instance number.
+ */
+public class StepFileScanner {
+
+    private static final int END = -1;
+    private static final int HEAD_WINDOW_SIZE = 64 * 1024;
+
+    /**
+     * Receives the entities of the requested types, in file order.
+     */
+    @FunctionalInterface
+    public interface EntityVisitor {
+        /**
+         * @param id         instance number, 0 for the entities of the header section
+         * @param type       entity type in upper case
+         * @param parameters raw parameter list, without the enclosing parentheses
+         */
+        void visit(long id, String type, String parameters);
+    }
+
+    private StepFileScanner() {
+    }
+
+    /**
+     * Read a file and visit the entities of the given types.
+     *
+     * @param types entity types in upper case, such as IFCBUILDINGSTOREY or FILE_SCHEMA
+     */
+    public static void scan(Path file, Set<String> types, EntityVisitor visitor) throws IOException {
+        try (MappedFileCursor cursor = new MappedFileCursor(file)) {
+            scan(cursor, types, visitor, null, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Read the beginning of a file, the header section and the first entities, and visit the entities of the given
+     * types. Only about maxBytes of the file are mapped.
+     *
+     * @param maxBytes offset after which no further statement is read
+     */
+    public static void scan(Path file, Set<String> types, EntityVisitor visitor, long maxBytes) throws IOException {
+        int windowSize = (int) Math.min(MappedFileCursor.DEFAULT_WINDOW_SIZE, Math.max(HEAD_WINDOW_SIZE, maxBytes));
+        try (MappedFileCursor cursor = new MappedFileCursor(file, windowSize)) {
+            scan(cursor, types, visitor, null, maxBytes);
+        }
+    }
+
+    /**
+     * Read a file, visit the entities of the given types and count the instances of every type of the data section.
+     *
+     * @return number of instances by entity type in upper case, complex instances counted once per part
+     */
+    public static Map<String, Long> count(Path file, Set<String> types, EntityVisitor visitor) throws IOException {
+        Map<String, long[]> counters = new HashMap<>();
+        try (MappedFileCursor cursor = new MappedFileCursor(file)) {
+            scan(cursor, types, visitor, counters, Long.MAX_VALUE);
+        }
+        Map<String, Long> counts = new HashMap<>();
+        counters.forEach((type, counter) -> counts.put(type, counter[0]));
+        return counts;
+    }
+
+    static void scan(MappedFileCursor cursor, Set<String> types, EntityVisitor visitor,
+                     Map<String, long[]> counters, long maxBytes) {
+        StringBuilder type = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        while (skipSpacesAndComments(cursor) && cursor.position() < maxBytes) {
+            long id = 0;
+            if (cursor.peek() == '#') {
+                cursor.skip();
+                id = readNumber(cursor);
+                skipSpacesAndComments(cursor);
+                if (cursor.peek() == '=') {
+                    cursor.skip();
+                }
+                skipSpacesAndComments(cursor);
+            }
+
+            if (cursor.peek() == '(') {
+                parameters.setLength(0);
+                skipStatement(cursor, parameters);
+                visitParts(id, unwrap(parameters), types, visitor, counters);
+                continue;
+            }
+
+            type.setLength(0);
+            int c = cursor.peek();
+            while (c != END && (Character.isLetterOrDigit(c) || c == '_' || c == '-')) {
+                type.append((char) Character.toUpperCase(c));
+                cursor.skip();
+                c = cursor.peek();
+            }
+
+            String name = type.toString();
+            boolean wanted = type.length() > 0 && types.contains(name);
+            parameters.setLength(0);
+            skipStatement(cursor, wanted ? parameters : null);
+            if (wanted) {
+                visitor.visit(id, name, unwrap(parameters));
+            }
+            if (counters != null && id > 0 && type.length() > 0) {
+                counters.computeIfAbsent(name, key -> new long[1])[0]++;
+            }
+        }
+    }
+
+    /**
+     * Report the parts, A(...)B(...), of a complex instance.
+     */
+    private static void visitParts(long id, String parts, Set<String> types, EntityVisitor visitor,
+                                   Map<String, long[]> counters) {
+        int i = 0;
+        while (i < parts.length()) {
+            while (i < parts.length() && Character.isWhitespace(parts.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < parts.length() && parts.charAt(i) != '(') {
+                i++;
+            }
+            String name = parts.substring(start, i).trim().toUpperCase(Locale.ROOT);
+            int open = i;
+            int depth = 0;
+            boolean quoted = false;
+            for (; i < parts.length(); i++) {
+                char c = parts.charAt(i);
+                if (c == '\'') {
+                    quoted = !quoted;
+                } else if (!quoted && c == '(') {
+                    depth++;
+                } else if (!quoted && c == ')' && --depth == 0) {
+                    break;
+                }
+            }
+            if (name.isEmpty() || open >= parts.length()) {
+                return;
+            }
+            if (types.contains(name)) {
+                visitor.visit(id, name, parts.substring(open + 1, Math.min(i, parts.length())).trim());
+            }
+            if (counters != null) {
+                counters.computeIfAbsent(name, key -> new long[1])[0]++;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Split a parameter list at its top-level commas.
+     */
+    public static List<String> split(String parameters) {
+        List<String> values = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < parameters.length(); i++) {
+            char c = parameters.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                values.add(parameters.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        String last = parameters.substring(start).trim();
+        if (!last.isEmpty() || !values.isEmpty()) {
+            values.add(last);
+        }
+        return values;
+    }
+
+    /**
+     * Value of a string parameter, null for an unset ($) or non string parameter. Control directives (\X\, \X2\)
+     * are left encoded, see {@link #decode}.
+     */
+    public static String string(String parameter) {
+        String value = parameter.trim();
+        if (value.length() < 2 || value.charAt(0) != '\'' || value.charAt(value.length() - 1) != '\'') {
+            return null;
+        }
+        return value.substring(1, value.length() - 1).replace("''", "'");
+    }
+
+    /**
+     * Decode the control directives of a string value: \\ and \S\c (ISO 8859-1 upper half), \X\hh (ISO 8859-1)
+     * and \X2\...\X0\ or \X4\...\X0\ (UTF-16 or UTF-32 code points in hexadecimal). Code page switches,
+     * \P?\, are dropped.
+     */
+    public static String decode(String value) {
+        if (value == null || value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int i = 0;
+        try {
+            while (i < value.length()) {
+                char c = value.charAt(i);
+                if (c != '\\') {
+                    decoded.append(c);
+                    i++;
+                } else if (value.startsWith("\\\\", i)) {
+                    decoded.append('\\');
+                    i += 2;
+                } else if (value.startsWith("\\S\\", i) && i + 3 < value.length()) {
+                    decoded.append((char) (value.charAt(i + 3) + 128));
+                    i += 4;
+                } else if (value.startsWith("\\P", i) && i + 3 < value.length() && value.charAt(i + 3) == '\\') {
+                    i += 4;
+                } else if (value.startsWith("\\X\\", i) && i + 5 <= value.length()) {
+                    decoded.append((char) Integer.parseInt(value.substring(i + 3, i + 5), 16));
+                    i += 5;
+                } else if (value.startsWith("\\X2\\", i) || value.startsWith("\\X4\\", i)) {
+                    int digits = value.charAt(i + 2) == '2' ? 4 : 8;
+                    int end = value.indexOf("\\X0\\", i + 4);
+                    if (end < 0) {
+                        end = value.length();
+                    }
+                    for (int j = i + 4; j + digits <= end; j += digits) {
+                        decoded.appendCodePoint(Integer.parseInt(value.substring(j, j + digits), 16));
+                    }
+                    i = end + 4;
+                } else {
+                    decoded.append(c);
+                    i++;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed directive, the value is kept as written
+            return value;
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * Instance numbers referenced by a parameter, a single #n or a list of them.
+     */
+    public static List<Long> references(String parameter) {
+        List<Long> references = new ArrayList<>();
+        String value = parameter.trim();
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '#') {
+                long reference = 0;
+                int j = i + 1;
+                while (j < value.length() && Character.isDigit(value.charAt(j))) {
+                    reference = reference * 10 + (value.charAt(j) - '0');
+                    j++;
+                }
+                references.add(reference);
+                i = j - 1;
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    private static boolean skipSpacesAndComments(MappedFileCursor cursor) {
+        while (true) {
+            int c = cursor.peek();
+            if (c == END) {
+                return false;
+            }
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                cursor.skip();
+            } else if (c == '/') {
+                cursor.skip();
+                if (cursor.peek() == '*') {
+                    skipComment(cursor);
+                }
+            } else {
+                return true;
+            }
+        }
+    }
+
+    private static void skipComment(MappedFileCursor cursor) {
+        cursor.skip();
+        int previous = 0;
+        int c;
+        while ((c = cursor.next()) != END && !(previous == '*' && c == '/')) {
+            previous = c;
+        }
+    }
+
+    private static long readNumber(MappedFileCursor cursor) {
+        long number = 0;
+        int c = cursor.peek();
+        while (c >= '0' && c <= '9') {
+            number = number * 10 + (c - '0');
+            cursor.skip();
+            c = cursor.peek();
+        }
+        return number;
+    }
+
+    /**
+     * Move after the semicolon ending the statement, ignoring the ones in strings.
+     */
+    private static void skipStatement(MappedFileCursor cursor, StringBuilder content) {
+        boolean quoted = false;
+        int c;
+        while ((c = cursor.next()) != END) {
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == ';' && !quoted) {
+                return;
+            }
+            if (content != null) {
+                content.append((char) c);
+            }
+        }
+    }
+
+    private static String unwrap(StringBuilder content) {
+        int start = content.indexOf("(");
+        int end = content.lastIndexOf(")");
+        return start < 0 || end < start ? "" : content.substring(start + 1, end).trim();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Position and orientation intrinsic to a mesh, independent of where it was placed when exported.
+ * <p>
+ * The origin is the centroid of the surface. The axes are the principal axes of the surface (eigenvectors of its
+ * covariance), oriented by the sign of the third moment along them so that mirrored shapes stay different. When
+ * principal moments are equal, as for the many parts with a revolution or a cubic symmetry, principal axes are
+ * not defined: the symmetry axis is kept and the missing axes point to the farthest vertices, which any
+ * symmetric equivalent of the shape would give as well.
+ */
+public class CanonicalFrame {
+
+    // Relative difference under which principal moments are considered equal
+    private static final double EQUAL_MOMENTS = 1e-3;
+    // Relative difference under which distances are considered equal, above the float noise of placed parts
+    private static final double EQUAL_DISTANCES = 1e-4;
+
+    private final double[] center;
+    // Rows are the canonical axes in the mesh coordinates
+    private final double[][] axes;
+
+    private CanonicalFrame(double[] center, double[][] axes) {
+        this.center = center;
+        this.axes = axes;
+    }
+
+    public static CanonicalFrame of(IndexedMesh mesh) {
+        float[] p = mesh.getPositions();
+        int[] indices = mesh.getIndices();
+
+        // Area weighted centroid and second moments of the triangles, around a vertex of the mesh rather than the
+        // origin which may be far away
+        double[] origin = p.length > 0 ? new double[]{p[0], p[1], p[2]} : new double[3];
+        double area = 0;
+        double[] centroid = new double[3];
+        double[][] moments = new double[3][3];
+        double[][] triangle = new double[3][3];
+        for (int t = 0; t < indices.length; t += 3) {
+            for (int k = 0; k < 3; k++) {
+                for (int i = 0; i < 3; i++) {
+                    triangle[k][i] = p[indices[t + k] * 3 + i] - origin[i];
+                }
+            }
+            double triangleArea = area(p, indices[t] * 3, indices[t + 1] * 3, indices[t + 2] * 3);
+            area += triangleArea;
+            for (int i = 0; i < 3; i++) {
+                double sum = triangle[0][i] + triangle[1][i] + triangle[2][i];
+                centroid[i] += triangleArea * sum / 3;
+                for (int j = 0; j < 3; j++) {
+                    double sumJ = triangle[0][j] + triangle[1][j] + triangle[2][j];
+                    moments[i][j] += triangleArea / 12 * (triangle[0][i] * triangle[0][j]
+                            + triangle[1][i] * triangle[1][j] + triangle[2][i] * triangle[2][j] + sum * sumJ);
+                }
+            }
+        }
+        if (area == 0) {
+            return new CanonicalFrame(new double[3], new double[][]{{1, 0, 0}, {0, 1, 0}, {0, 0, 1}});
+        }
+        double[][] covariance = new double[3][3];
+        for (int i = 0; i < 3; i++) {
+            centroid[i] /= area;
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                covariance[i][j] = moments[i][j] / area - centroid[i] * centroid[j];
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            centroid[i] += origin[i];
+        }
+
+        double[] eigenvalues = new double[3];
+        double[][] eigenvectors = new double[3][3];
+        eigen(covariance, eigenvalues, eigenvectors);
+        double scale = Math.max(eigenvalues[0], Double.MIN_NORMAL);
+        boolean equal01 = (eigenvalues[0] - eigenvalues[1]) / scale < EQUAL_MOMENTS;
+        boolean equal12 = (eigenvalues[1] - eigenvalues[2]) / scale < EQUAL_MOMENTS;
+
+        double[][] axes = new double[3][];
+        if (!equal01 && !equal12) {
+            axes[0] = orient(eigenvectors[0], mesh, centroid);
+            axes[1] = orient(eigenvectors[1], mesh, centroid);
+        } else if (equal01 && equal12) {
+            axes[0] = farthest(mesh, centroid, null);
+            axes[1] = farthest(mesh, centroid, axes[0]);
+        } else {
+            // Revolution symmetry around the distinct axis
+            double[] axis = orient(equal01 ? eigenvectors[2] : eigenvectors[0], mesh, centroid);
+            axes[0] = farthest(mesh, centroid, axis);
+            axes[1] = cross(axis, axes[0]);
+        }
+        axes[2] = cross(axes[0], axes[1]);
+        return new CanonicalFrame(centroid, axes);
+    }
+
+    /**
+     * Coordinates of a mesh point in the canonical frame.
+     */
+    public void toCanonical(double[] point, double[] result) {
+        double x = point[0] - center[0];
+        double y = point[1] - center[1];
+        double z = point[2] - center[2];
+        for (int i = 0; i < 3; i++) {
+            result[i] = axes[i][0] * x + axes[i][1] * y + axes[i][2] * z;
+        }
+    }
+
+    /**
+     * Direction of a mesh vector in the canonical frame.
+     */
+    public void toCanonicalDirection(double[] vector, double[] result) {
+        double x = vector[0];
+        double y = vector[1];
+        double z = vector[2];
+        for (int i = 0; i < 3; i++) {
+            result[i] = axes[i][0] * x + axes[i][1] * y + axes[i][2] * z;
+        }
+    }
+
+    /**
+     * @return the 4x4 column-major matrix placing the canonical geometry where the mesh is
+     */
+    public double[] getTransform() {
+        return new double[]{
+                axes[0][0], axes[0][1], axes[0][2], 0,
+                axes[1][0], axes[1][1], axes[1][2], 0,
+                axes[2][0], axes[2][1], axes[2][2], 0,
+                center[0], center[1], center[2], 1
+        };
+    }
+
+    /**
+     * Orient the axis so that the surface is skewed towards it.
+     */
+    private static double[] orient(double[] axis, IndexedMesh mesh, double[] centroid) {
+        float[] p = mesh.getPositions();
+        int[] indices = mesh.getIndices();
+        double skewness = 0;
+        double spread = 0;
+        for (int t = 0; t < indices.length; t += 3) {
+            int a = indices[t] * 3;
+            int b = indices[t + 1] * 3;
+            int c = indices[t + 2] * 3;
+            double triangleArea = area(p, a, b, c);
+            double d = 0;
+            for (int i = 0; i < 3; i++) {
+                d += axis[i] * (((double) p[a + i] + p[b + i] + p[c + i]) / 3 - centroid[i]);
+            }
+            skewness += triangleArea * d * d * d;
+            spread += triangleArea * Math.abs(d * d * d);
+        }
+        if (Math.abs(skewness) <= spread * EQUAL_MOMENTS) {
+            // Symmetric along the axis, the first vertex off the middle plane decides
+            double[] distances = new double[p.length / 3];
+            double max = 0;
+            for (int v = 0; v < p.length; v += 3) {
+                distances[v / 3] = axis[0] * (p[v] - centroid[0]) + axis[1] * (p[v + 1] - centroid[1])
+                        + axis[2] * (p[v + 2] - centroid[2]);
+                max = Math.max(max, Math.abs(distances[v / 3]));
+            }
+            skewness = 0;
+            for (int v = 0; v < distances.length && skewness == 0; v++) {
+                if (Math.abs(distances[v]) > max * EQUAL_DISTANCES) {
+                    skewness = distances[v];
+                }
+            }
+        }
+        return skewness < 0 ? new double[]{-axis[0], -axis[1], -axis[2]} : axis.clone();
+    }
+
+    /**
+     * Unit direction, orthogonal to the given axis if any, of the vertex farthest from the centroid or from the
+     * axis.
+     */
+    private static double[] farthest(IndexedMesh mesh, double[] centroid, double[] axis) {
+        float[] p = mesh.getPositions();
+        double[][] directions = new double[p.length / 3][3];
+        double[] distances = new double[p.length / 3];
+        double max = 0;
+        for (int v = 0; v < distances.length; v++) {
+            double[] d = directions[v];
+            for (int i = 0; i < 3; i++) {
+                d[i] = p[v * 3 + i] - centroid[i];
+            }
+            if (axis != null) {
+                double along = d[0] * axis[0] + d[1] * axis[1] + d[2] * axis[2];
+                for (int i = 0; i < 3; i++) {
+                    d[i] -= along * axis[i];
+                }
+            }
+            distances[v] = Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+            max = Math.max(max, distances[v]);
+        }
+        // Vertices at the same distance are told apart by their order, which does not depend on the placement
+        for (int v = 0; v < distances.length && max > 0; v++) {
+            if (distances[v] >= max * (1 - EQUAL_DISTANCES)) {
+                double[] d = directions[v];
+                return new double[]{d[0] / distances[v], d[1] / distances[v], d[2] / distances[v]};
+            }
+        }
+        // All the vertices are on the axis, any orthogonal direction will do
+        double[] reference = axis == null || Math.abs(axis[0]) < 0.9 ? new double[]{1, 0, 0} : new double[]{0, 1, 0};
+        return axis == null ? reference : normalize(cross(axis, reference));
+    }
+
+    /**
+     * Jacobi eigenvalue decomposition of a symmetric 3x3 matrix, eigenvalues in decreasing order and eigenvectors
+     * as rows.
+     */
+    static void eigen(double[][] matrix, double[] eigenvalues, double[][] eigenvectors) {
+        double[][] a = new double[3][3];
+        double[][] v = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}};
+        for (int i = 0; i < 3; i++) {
+            a[i] = matrix[i].clone();
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double off = Math.abs(a[0][1]) + Math.abs(a[0][2]) + Math.abs(a[1][2]);
+            if (off < 1e-300) {
+                break;
+            }
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (a[p][q] == 0) {
+                        continue;
+                    }
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double akp = a[k][p];
+                        double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double apk = a[p][k];
+                        double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = v[k][p];
+                        double vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        Integer[] order = {0, 1, 2};
+        Arrays.sort(order, (i, j) -> Double.compare(a[j][j], a[i][i]));
+        for (int i = 0; i < 3; i++) {
+            eigenvalues[i] = a[order[i]][order[i]];
+            for (int k = 0; k < 3; k++) {
+                eigenvectors[i][k] = v[k][order[i]];
+            }
+            eigenvectors[i] = normalize(eigenvectors[i]);
+        }
+    }
+
+    private static double area(float[] p, int a, int b, int c) {
+        double ux = p[b] - p[a];
+        double uy = p[b + 1] - p[a + 1];
+        double uz = p[b + 2] - p[a + 2];
+        double vx = p[c] - p[a];
+        double vy = p[c + 1] - p[a + 1];
+        double vz = p[c + 2] - p[a + 2];
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        return Math.sqrt(nx * nx + ny * ny + nz * nz) / 2;
+    }
+
+    private static double[] cross(double[] u, double[] v) {
+        return new double[]{u[1] * v[2] - u[2] * v[1], u[2] * v[0] - u[0] * v[2], u[0] * v[1] - u[1] * v[0]};
+    }
+
+    private static double[] normalize(double[] v) {
+        double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        return new double[]{v[0] / length, v[1] / length, v[2] / length};
+    }
+
+}
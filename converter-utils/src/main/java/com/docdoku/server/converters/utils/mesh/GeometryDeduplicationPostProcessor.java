@@ -0,0 +1,155 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.GeometryStore;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Find the converted part geometry in the {@link GeometryStore}, or add it, and reference it from the result with
+ * the transform placing it where the part is.
+ * <p>
+ * Standard parts are converted again for every upload, the reference lets them be stored and downloaded once. The
+ * geometry is stored in its {@link CanonicalFrame}; normals follow the positions, texture coordinates are kept as
+ * they are.
+ */
+public class GeometryDeduplicationPostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "instance";
+
+    private static final Logger LOGGER = Logger.getLogger(GeometryDeduplicationPostProcessor.class.getName());
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("geometry_dedup", false) && GeometryStore.getInstance().isEnabled();
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        ObjStatistics statistics = result.getStatistics();
+        long maxTriangles = ConverterConfiguration.getLong("geometry_dedup_max_triangles", 5000000);
+        if (statistics != null && maxTriangles > 0 && statistics.getTriangles() > maxTriangles) {
+            LOGGER.log(Level.INFO, "{0} has {1} triangles, too many to be deduplicated",
+                    new Object[]{objFile.getFileName(), statistics.getTriangles()});
+            return;
+        }
+        List<Path> materials = result.getMaterials() != null ? result.getMaterials() : Collections.emptyList();
+        double tolerance = ConverterConfiguration.getDouble("geometry_dedup_tolerance", 1e-3);
+        GeometryStore store = GeometryStore.getInstance();
+
+        long start = System.currentTimeMillis();
+        try {
+            IndexedMesh mesh = ObjMeshReader.read(objFile);
+            if (mesh.getTriangleCount() == 0) {
+                return;
+            }
+            CanonicalFrame frame = CanonicalFrame.of(mesh);
+            float[] canonical = GeometryFingerprint.canonicalPositions(mesh, frame);
+            String key = GeometryFingerprint.key(mesh, canonical, materials);
+
+            Path geometry = null;
+            for (Path candidate : store.getCandidates(key)) {
+                if (GeometryFingerprint.matches(canonical, ObjMeshReader.read(candidate).getPositions(), tolerance)) {
+                    geometry = candidate;
+                    break;
+                }
+            }
+            store.recordLookup(geometry != null);
+            boolean found = geometry != null;
+            if (!found) {
+                Path canonicalFile = tmpDir.resolve(objFile.getFileName() + ".canonical");
+                try {
+                    writeCanonical(objFile, frame, canonicalFile);
+                    geometry = store.put(key, canonicalFile, materials);
+                } finally {
+                    Files.deleteIfExists(canonicalFile);
+                }
+            }
+
+            GeometryReference reference = new GeometryReference(store.getId(geometry), geometry,
+                    frame.getTransform());
+            Path sidecar = GeometryReference.sidecar(objFile, tmpDir);
+            reference.write(sidecar);
+            result.addArtifact(ARTIFACT, sidecar);
+            result.setGeometryReference(reference);
+            LOGGER.log(Level.INFO, "{0}: {1} {2} in {3} ms", new Object[]{objFile.getFileName(),
+                    found ? "instance of" : "stored as", reference, System.currentTimeMillis() - start});
+
+        } catch (IOException e) {
+            throw new ConversionException("Cannot deduplicate geometry of " + objFile, e);
+        }
+    }
+
+    /**
+     * Copy an OBJ file with its positions and normals moved to the given frame.
+     */
+    static void writeCanonical(Path objFile, CanonicalFrame frame, Path target) throws IOException {
+        double[] vector = new double[3];
+        double[] result = new double[3];
+        try (BufferedReader reader = Files.newBufferedReader(objFile, StandardCharsets.UTF_8);
+             BufferedWriter writer = new BufferedWriter(
+                     Files.newBufferedWriter(target, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                boolean position = line.startsWith("v ");
+                if (position || line.startsWith("vn ")) {
+                    String[] fields = line.trim().split("\\s+");
+                    for (int i = 0; i < 3; i++) {
+                        vector[i] = Float.parseFloat(fields[i + 1]);
+                    }
+                    if (position) {
+                        frame.toCanonical(vector, result);
+                    } else {
+                        frame.toCanonicalDirection(vector, result);
+                    }
+                    StringBuilder transformed = new StringBuilder(64).append(fields[0]);
+                    for (int i = 0; i < 3; i++) {
+                        transformed.append(' ').append((float) result[i]);
+                    }
+                    // Homogeneous coordinate or vertex colors
+                    for (int i = 4; i < fields.length; i++) {
+                        transformed.append(' ').append(fields[i]);
+                    }
+                    line = transformed.toString();
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Transform independent identification of a mesh geometry.
+ * <p>
+ * Coordinates are compared in the {@link CanonicalFrame} of the mesh. They cannot be hashed as such: however fine
+ * or coarse the rounding, the float noise of two placements of a part ends up on both sides of some rounding
+ * boundary. The key therefore hashes what is exact (triangles, groups, materials) along with a coarse size class,
+ * and coordinates are then compared with a tolerance to the geometries found under that key.
+ */
+public class GeometryFingerprint {
+
+    // Size classes are 2^(1/8) apart, about 9%
+    private static final double SIZE_CLASSES_PER_OCTAVE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private GeometryFingerprint() {
+    }
+
+    /**
+     * @return the coordinates of the mesh vertices in the given frame, as they would be written in an OBJ file
+     */
+    public static float[] canonicalPositions(IndexedMesh mesh, CanonicalFrame frame) {
+        float[] positions = mesh.getPositions();
+        float[] canonical = new float[positions.length];
+        double[] point = new double[3];
+        double[] result = new double[3];
+        for (int i = 0; i < positions.length; i += 3) {
+            point[0] = positions[i];
+            point[1] = positions[i + 1];
+            point[2] = positions[i + 2];
+            frame.toCanonical(point, result);
+            canonical[i] = (float) result[0];
+            canonical[i + 1] = (float) result[1];
+            canonical[i + 2] = (float) result[2];
+        }
+        return canonical;
+    }
+
+    /**
+     * SHA-256 of the triangles, groups, materials and size class of a mesh.
+     *
+     * @param canonical positions of the mesh in its canonical frame
+     * @param materials MTL files referenced by the mesh
+     */
+    public static String key(IndexedMesh mesh, float[] canonical, List<Path> materials) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        int[] indices = mesh.getIndices();
+        int[] triangleGroups = mesh.getTriangleGroups();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(mesh.getVertexCount()).putInt(indices.length).putLong(sizeClass(canonical));
+        for (int i = 0; i < indices.length; i++) {
+            if (buffer.remaining() < 8) {
+                flush(buffer, digest);
+            }
+            buffer.putInt(indices[i]);
+            if (i % 3 == 2) {
+                buffer.putInt(triangleGroups[i / 3]);
+            }
+        }
+        flush(buffer, digest);
+
+        for (IndexedMesh.Group group : mesh.getGroups()) {
+            digest.update(("\n" + group.getMaterial()).getBytes(StandardCharsets.UTF_8));
+        }
+        List<Path> sorted = new ArrayList<>(materials);
+        sorted.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        byte[] bytes = new byte[BUFFER_SIZE];
+        for (Path material : sorted) {
+            digest.update(("\n" + material.getFileName() + "\n").getBytes(StandardCharsets.UTF_8));
+            try (InputStream in = Files.newInputStream(material)) {
+                int read;
+                while ((read = in.read(bytes)) != -1) {
+                    digest.update(bytes, 0, read);
+                }
+            }
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param tolerance maximum distance between matching vertices, relative to the size of the mesh
+     * @return true if both meshes have their vertices at the same canonical coordinates
+     */
+    public static boolean matches(float[] canonical, float[] other, double tolerance) {
+        if (canonical.length != other.length) {
+            return false;
+        }
+        double maxDistance = tolerance * diagonal(canonical);
+        for (int i = 0; i < canonical.length; i++) {
+            if (Math.abs(canonical[i] - other[i]) > maxDistance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long sizeClass(float[] canonical) {
+        double diagonal = diagonal(canonical);
+        return diagonal > 0 ? Math.round(Math.log(diagonal) / Math.log(2) * SIZE_CLASSES_PER_OCTAVE) : Long.MIN_VALUE;
+    }
+
+    private static double diagonal(float[] positions) {
+        double squared = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = axis; i < positions.length; i += 3) {
+                min = Math.min(min, positions[i]);
+                max = Math.max(max, positions[i]);
+            }
+            squared += max > min ? ((double) max - min) * ((double) max - min) : 0;
+        }
+        return Math.sqrt(squared);
+    }
+
+    private static void flush(ByteBuffer buffer, MessageDigest digest) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Reference from a converted part to the shared geometry it is an instance of, written next to the converted file.
+ */
+public class GeometryReference {
+
+    public static final String SIDECAR_EXTENSION = ".instance";
+
+    private final String id;
+    private final Path geometry;
+    private final double[] transform;
+
+    /**
+     * @param id        identifier of the geometry in the store
+     * @param geometry  shared geometry file
+     * @param transform 4x4 column-major matrix placing the shared geometry where the converted part is
+     */
+    public GeometryReference(String id, Path geometry, double[] transform) {
+        this.id = id;
+        this.geometry = geometry;
+        this.transform = transform;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Path getGeometry() {
+        return geometry;
+    }
+
+    public double[] getTransform() {
+        return transform.clone();
+    }
+
+    public static Path sidecar(Path objFile, Path directory) {
+        return directory.resolve(objFile.getFileName() + SIDECAR_EXTENSION);
+    }
+
+    public void write(Path file) throws IOException {
+        StringBuilder matrix = new StringBuilder();
+        for (double value : transform) {
+            matrix.append(matrix.length() > 0 ? "," : "").append(value);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("geometry", id);
+        properties.setProperty("file", geometry.toString());
+        properties.setProperty("transform", matrix.toString());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    public static GeometryReference read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        String[] values = properties.getProperty("transform", "").split(",");
+        if (values.length != 16) {
+            throw new IOException("Invalid transform in " + file);
+        }
+        double[] transform = new double[16];
+        for (int i = 0; i < 16; i++) {
+            transform[i] = Double.parseDouble(values[i]);
+        }
+        return new GeometryReference(properties.getProperty("geometry"), Paths.get(properties.getProperty("file")),
+                transform);
+    }
+
+    @Override
+    public String toString() {
+        return "geometry " + id;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write a binary glTF copy of the converted OBJ and its materials, which is smaller and faster to load.
+ */
+public class GlbPostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "glb";
+
+    private static final Logger LOGGER = Logger.getLogger(GlbPostProcessor.class.getName());
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("glb_enabled", true);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String fileName = objFile.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        Path glbFile = tmpDir.resolve((dot > 0 ? fileName.substring(0, dot) : fileName) + GlbWriter.EXTENSION);
+        List<Path> materials = result.getMaterials() != null ? result.getMaterials() : Collections.emptyList();
+
+        long start = System.currentTimeMillis();
+        try {
+            GlbWriter.write(result.getSpilledMesh(tmpDir), materials, glbFile);
+            LOGGER.log(Level.INFO, "{0}: {1} bytes of GLB written in {2} ms",
+                    new Object[]{objFile.getFileName(), Files.size(glbFile), System.currentTimeMillis() - start});
+        } catch (IOException e) {
+            throw new ConversionException("Cannot write GLB of " + objFile, e);
+        }
+        result.addArtifact(ARTIFACT, glbFile);
+    }
+
+}
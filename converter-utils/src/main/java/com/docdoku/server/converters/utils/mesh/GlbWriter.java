@@ -0,0 +1,277 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Convert an OBJ file and its materials to binary glTF (GLB).
+ * <p>
+ * The mesh is streamed through a {@link SpilledMesh}, so the heap usage does not depend on the size of the file.
+ * The binary chunk holds the 32-bit indices of all the primitives, then the vertex buffer: positions interleaved
+ * with their normal when the file has normals. Files without normals are flat shaded by the viewers, as glTF
+ * requires.
+ * <p>
+ * Each OBJ group becomes a node with a mesh, each material used in the group a primitive of that mesh.
+ */
+public class GlbWriter {
+
+    public static final String EXTENSION = ".glb";
+
+    private static final int GLB_MAGIC = 0x46546C67;
+    private static final int GLB_VERSION = 2;
+    private static final int CHUNK_JSON = 0x4E4F534A;
+    private static final int CHUNK_BIN = 0x004E4942;
+    private static final int FLOAT = 5126;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int ARRAY_BUFFER = 34962;
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final SpilledMesh mesh;
+    private final long indexLength;
+    private final int stride;
+    private final long binLength;
+
+    private GlbWriter(SpilledMesh mesh) {
+        this.mesh = mesh;
+        this.indexLength = mesh.getIndexCount() * Integer.BYTES;
+        this.stride = mesh.hasNormals() ? 24 : 12;
+        this.binLength = mesh.getPrimitives().isEmpty() ? 0 : indexLength + mesh.getVertexCount() * stride;
+    }
+
+    /**
+     * Write the GLB conversion of the OBJ file.
+     *
+     * @param mtlFiles material libraries of the OBJ file
+     * @param workDir  directory for the temporary files of the conversion
+     */
+    public static void write(Path objFile, List<Path> mtlFiles, Path glbFile, Path workDir) throws IOException {
+        try (SpilledMesh mesh = SpilledMesh.read(objFile, workDir)) {
+            write(mesh, mtlFiles, glbFile);
+        }
+    }
+
+    /**
+     * Write the GLB conversion of an OBJ file already read.
+     *
+     * @param mtlFiles material libraries of the OBJ file
+     */
+    public static void write(SpilledMesh mesh, List<Path> mtlFiles, Path glbFile) throws IOException {
+        new GlbWriter(mesh).write(glbFile, MtlMaterial.read(mtlFiles));
+    }
+
+    private void write(Path glbFile, Map<String, MtlMaterial> materials) throws IOException {
+        byte[] json = json(materials).getBytes(StandardCharsets.UTF_8);
+        int jsonLength = pad(json.length);
+        long totalLength = 12 + 8 + jsonLength + (binLength > 0 ? 8 + binLength : 0);
+        if (totalLength > 0xFFFFFFFFL) {
+            throw new IOException("Mesh too large for GLB: " + totalLength + " bytes");
+        }
+
+        try (FileChannel out = FileChannel.open(glbFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(12 + 8 + jsonLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(GLB_MAGIC).putInt(GLB_VERSION).putInt((int) totalLength);
+            header.putInt(jsonLength).putInt(CHUNK_JSON).put(json);
+            while (header.position() < 20 + jsonLength) {
+                header.put((byte) ' ');
+            }
+            if (binLength > 0) {
+                header.putInt((int) binLength).putInt(CHUNK_BIN);
+            }
+            header.flip();
+            writeFully(out, header);
+
+            if (binLength > 0) {
+                mesh.transferIndices(out);
+                writeVertices(out);
+            }
+        }
+    }
+
+    private void writeVertices(FileChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        float[] vector = new float[3];
+        for (long vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            if (buffer.remaining() < stride) {
+                buffer.flip();
+                writeFully(out, buffer);
+                buffer.clear();
+            }
+            mesh.getPosition(vertex, vector);
+            buffer.putFloat(vector[0]).putFloat(vector[1]).putFloat(vector[2]);
+            if (mesh.hasNormals()) {
+                mesh.getNormal(vertex, vector);
+                buffer.putFloat(vector[0]).putFloat(vector[1]).putFloat(vector[2]);
+            }
+        }
+        buffer.flip();
+        writeFully(out, buffer);
+    }
+
+    private String json(Map<String, MtlMaterial> materials) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"DocDokuPLM converters\"}");
+        if (binLength == 0) {
+            return json.append(",\"scene\":0,\"scenes\":[{\"nodes\":[]}]}").toString();
+        }
+
+        List<SpilledMesh.Primitive> primitives = mesh.getPrimitives();
+        long vertexCount = mesh.getVertexCount();
+        json.append(",\"buffers\":[{\"byteLength\":").append(binLength).append("}]");
+        json.append(",\"bufferViews\":[")
+                .append("{\"buffer\":0,\"byteOffset\":").append(indexLength)
+                .append(",\"byteLength\":").append(vertexCount * stride)
+                .append(",\"byteStride\":").append(stride)
+                .append(",\"target\":").append(ARRAY_BUFFER).append('}')
+                .append(",{\"buffer\":0,\"byteOffset\":0,\"byteLength\":").append(indexLength)
+                .append(",\"target\":").append(ELEMENT_ARRAY_BUFFER).append("}]");
+
+        json.append(",\"accessors\":[{\"bufferView\":0,\"componentType\":").append(FLOAT)
+                .append(",\"count\":").append(vertexCount).append(",\"type\":\"VEC3\"")
+                .append(",\"min\":").append(floats(mesh.getMin()))
+                .append(",\"max\":").append(floats(mesh.getMax())).append('}');
+        if (mesh.hasNormals()) {
+            json.append(",{\"bufferView\":0,\"byteOffset\":12,\"componentType\":").append(FLOAT)
+                    .append(",\"count\":").append(vertexCount).append(",\"type\":\"VEC3\"}");
+        }
+        int firstIndexAccessor = mesh.hasNormals() ? 2 : 1;
+        for (SpilledMesh.Primitive primitive : primitives) {
+            json.append(",{\"bufferView\":1,\"byteOffset\":").append(primitive.getFirstIndex() * Integer.BYTES)
+                    .append(",\"componentType\":").append(UNSIGNED_INT)
+                    .append(",\"count\":").append(primitive.getIndexCount()).append(",\"type\":\"SCALAR\"}");
+        }
+        json.append(']');
+
+        Map<String, Integer> materialIndices = new LinkedHashMap<>();
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < primitives.size(); i++) {
+            SpilledMesh.Primitive primitive = primitives.get(i);
+            groups.computeIfAbsent(primitive.getGroup(), k -> new ArrayList<>()).add(i);
+            materialIndices.putIfAbsent(materialKey(primitive), materialIndices.size());
+        }
+
+        StringBuilder materialsJson = new StringBuilder();
+        for (String name : materialIndices.keySet()) {
+            MtlMaterial mtlMaterial = materials.get(name);
+            if (mtlMaterial == null) {
+                mtlMaterial = new MtlMaterial(name.isEmpty() ? "default" : name);
+            }
+            separate(materialsJson).append(material(mtlMaterial));
+        }
+        json.append(",\"materials\":[").append(materialsJson).append(']');
+
+        StringBuilder meshesJson = new StringBuilder();
+        StringBuilder nodes = new StringBuilder();
+        StringBuilder sceneNodes = new StringBuilder();
+        int meshIndex = 0;
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            separate(meshesJson).append("{\"name\":").append(string(group.getKey())).append(",\"primitives\":[");
+            boolean first = true;
+            for (int i : group.getValue()) {
+                meshesJson.append(first ? "" : ",").append("{\"attributes\":{\"POSITION\":0")
+                        .append(mesh.hasNormals() ? ",\"NORMAL\":1" : "")
+                        .append("},\"indices\":").append(firstIndexAccessor + i)
+                        .append(",\"material\":").append(materialIndices.get(materialKey(primitives.get(i))))
+                        .append(",\"mode\":4}");
+                first = false;
+            }
+            meshesJson.append("]}");
+            separate(nodes).append("{\"name\":").append(string(group.getKey()))
+                    .append(",\"mesh\":").append(meshIndex).append('}');
+            separate(sceneNodes).append(meshIndex);
+            meshIndex++;
+        }
+        json.append(",\"meshes\":[").append(meshesJson).append(']');
+        json.append(",\"nodes\":[").append(nodes).append(']');
+        json.append(",\"scene\":0,\"scenes\":[{\"nodes\":[").append(sceneNodes).append("]}]}");
+        return json.toString();
+    }
+
+    private static String material(MtlMaterial material) {
+        float[] diffuse = material.getDiffuse();
+        // Usual mapping of the Phong exponent to a roughness
+        double roughness = Math.sqrt(2 / (2 + Math.min(material.getShininess(), 1000)));
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\":").append(string(material.getName()))
+                .append(",\"pbrMetallicRoughness\":{\"baseColorFactor\":")
+                .append(floats(new float[]{diffuse[0], diffuse[1], diffuse[2], material.getOpacity()}))
+                .append(",\"metallicFactor\":0,\"roughnessFactor\":").append((float) roughness).append('}')
+                .append(",\"doubleSided\":true");
+        if (material.getOpacity() < 1) {
+            json.append(",\"alphaMode\":\"BLEND\"");
+        }
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder separate(StringBuilder builder) {
+        return builder.length() > 0 ? builder.append(',') : builder;
+    }
+
+    private static String floats(float[] values) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            json.append(i > 0 ? "," : "").append(values[i]);
+        }
+        return json.append(']').toString();
+    }
+
+    static String string(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static String materialKey(SpilledMesh.Primitive primitive) {
+        return primitive.getMaterial() == null ? "" : primitive.getMaterial();
+    }
+
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Triangle mesh held in memory as flat arrays, with triangles tagged by the OBJ group they belong to.
+ */
+public class IndexedMesh {
+
+    private final float[] positions;
+    private final int[] indices;
+    private final int[] triangleGroups;
+    private final List<Group> groups;
+    private final List<String> materialLibraries;
+
+    /**
+     * @param positions         x, y, z per vertex
+     * @param indices           three vertex indices per triangle
+     * @param triangleGroups    index in groups of each triangle
+     * @param groups            groups of the mesh
+     * @param materialLibraries mtllib references to keep in written files
+     */
+    public IndexedMesh(float[] positions, int[] indices, int[] triangleGroups, List<Group> groups,
+                       List<String> materialLibraries) {
+        this.positions = positions;
+        this.indices = indices;
+        this.triangleGroups = triangleGroups;
+        this.groups = groups;
+        this.materialLibraries = materialLibraries;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int[] getTriangleGroups() {
+        return triangleGroups;
+    }
+
+    public List<Group> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    public List<String> getMaterialLibraries() {
+        return Collections.unmodifiableList(materialLibraries);
+    }
+
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+
+    /**
+     * @return min x, y, z then max x, y, z of the vertices
+     */
+    public float[] getBounds() {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < positions.length; i += 3) {
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[axis] = Math.min(bounds[axis], positions[i + axis]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], positions[i + axis]);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Merge the vertices sharing the same position and drop the triangles that become degenerate.
+     * <p>
+     * Converters often emit a vertex per face corner, welding restores the connectivity needed by mesh
+     * processing.
+     */
+    public IndexedMesh weld() {
+        int vertexCount = getVertexCount();
+        int capacity = Integer.highestOneBit(Math.max(4, vertexCount * 2 - 1)) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+
+        int[] remap = new int[vertexCount];
+        FloatArray welded = new FloatArray(positions.length);
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int slot = hash(vertex) & (capacity - 1);
+            while (true) {
+                int candidate = table[slot];
+                if (candidate == -1) {
+                    table[slot] = vertex;
+                    remap[vertex] = welded.size() / 3;
+                    welded.add(positions[vertex * 3]);
+                    welded.add(positions[vertex * 3 + 1]);
+                    welded.add(positions[vertex * 3 + 2]);
+                    break;
+                }
+                if (samePosition(candidate, vertex)) {
+                    remap[vertex] = remap[candidate];
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        IntArray weldedIndices = new IntArray(indices.length);
+        IntArray weldedGroups = new IntArray(triangleGroups.length);
+        for (int triangle = 0; triangle < getTriangleCount(); triangle++) {
+            int a = remap[indices[triangle * 3]];
+            int b = remap[indices[triangle * 3 + 1]];
+            int c = remap[indices[triangle * 3 + 2]];
+            if (a != b && b != c && a != c) {
+                weldedIndices.add(a);
+                weldedIndices.add(b);
+                weldedIndices.add(c);
+                weldedGroups.add(triangleGroups[triangle]);
+            }
+        }
+        return new IndexedMesh(welded.toArray(), weldedIndices.toArray(), weldedGroups.toArray(),
+                new ArrayList<>(groups), new ArrayList<>(materialLibraries));
+    }
+
+    private int hash(int vertex) {
+        int hash = Float.floatToIntBits(positions[vertex * 3]);
+        hash = hash * 31 + Float.floatToIntBits(positions[vertex * 3 + 1]);
+        hash = hash * 31 + Float.floatToIntBits(positions[vertex * 3 + 2]);
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean samePosition(int a, int b) {
+        return positions[a * 3] == positions[b * 3] && positions[a * 3 + 1] == positions[b * 3 + 1]
+                && positions[a * 3 + 2] == positions[b * 3 + 2];
+    }
+
+    /**
+     * Named part of a mesh, using a single material.
+     */
+    public static class Group {
+
+        private final String name;
+        private final String material;
+
+        public Group(String name, String material) {
+            this.name = name;
+            this.material = material;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the material name, or null if the group has none
+         */
+        public String getMaterial() {
+            return material;
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generate decimated levels of detail of the converted OBJ, from the finest to the coarsest.
+ * <p>
+ * Each level is simplified from the previous one, so the cost of the whole chain is dominated by the first level.
+ * The mesh is held in primitive arrays (about 100 bytes per triangle while simplifying), larger files are skipped.
+ */
+public class LodPostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "lod";
+
+    private static final Logger LOGGER = Logger.getLogger(LodPostProcessor.class.getName());
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("lod_enabled", false);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        List<Double> ratios = parseLevels(ConverterConfiguration.getString("lod_levels", "0.25,0.05"));
+        if (ratios.isEmpty()) {
+            return;
+        }
+
+        ObjStatistics statistics = result.getStatistics();
+        if (statistics != null && !accept(objFile, statistics.getTriangles())) {
+            return;
+        }
+
+        try {
+            IndexedMesh mesh = ObjMeshReader.read(objFile).weld();
+            if (statistics == null && !accept(objFile, mesh.getTriangleCount())) {
+                return;
+            }
+            int initialCount = mesh.getTriangleCount();
+            String baseName = baseName(objFile);
+            for (int level = 0; level < ratios.size(); level++) {
+                long start = System.currentTimeMillis();
+                int target = (int) (initialCount * ratios.get(level));
+                mesh = QuadricSimplifier.simplify(mesh, target);
+                Path lodFile = tmpDir.resolve(baseName + ".lod" + (level + 1) + ".obj");
+                ObjMeshWriter.write(mesh, lodFile);
+                result.addArtifact(ARTIFACT, lodFile);
+                LOGGER.log(Level.INFO, "{0}: level {1} has {2} triangles of {3}, done in {4} ms",
+                        new Object[]{objFile.getFileName(), level + 1, mesh.getTriangleCount(), initialCount,
+                                System.currentTimeMillis() - start});
+            }
+        } catch (IOException e) {
+            throw new ConversionException("Cannot generate levels of detail of " + objFile, e);
+        }
+    }
+
+    private static boolean accept(Path objFile, long triangles) {
+        long minTriangles = ConverterConfiguration.getLong("lod_min_triangles", 10000);
+        long maxTriangles = ConverterConfiguration.getLong("lod_max_triangles", 2000000);
+        if (triangles < minTriangles) {
+            return false;
+        }
+        if (maxTriangles > 0 && triangles > maxTriangles) {
+            LOGGER.log(Level.WARNING, "{0} has {1} triangles, too many to generate levels of detail",
+                    new Object[]{objFile.getFileName(), triangles});
+            return false;
+        }
+        return true;
+    }
+
+    static List<Double> parseLevels(String value) {
+        List<Double> ratios = new ArrayList<>();
+        double previous = 1;
+        for (String token : value.split(",")) {
+            String trimmed = token.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            try {
+                double ratio = Double.parseDouble(trimmed);
+                if (ratio > 0 && ratio < previous) {
+                    ratios.add(ratio);
+                    previous = ratio;
+                } else {
+                    LOGGER.log(Level.WARNING, "Ignoring level of detail ratio {0}", trimmed);
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Ignoring level of detail ratio {0}", trimmed);
+            }
+        }
+        return ratios;
+    }
+
+    private static String baseName(Path file) {
+        String fileName = file.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+}
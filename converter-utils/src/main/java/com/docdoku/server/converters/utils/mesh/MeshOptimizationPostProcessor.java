@@ -0,0 +1,85 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deduplicate the vertices of the converted OBJ and reorder its triangles for rendering, in place.
+ * <p>
+ * The vertex cache miss ratios before and after are logged and added to the statistics of the file, which
+ * describe the file as it was emitted by the converter otherwise. Without statistics, the number of triangles is
+ * estimated from the size of the file.
+ * <p>
+ * Off by default since it rewrites the converted file.
+ */
+public class MeshOptimizationPostProcessor implements PostProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(MeshOptimizationPostProcessor.class.getName());
+
+    // A face line and its share of the vertex lines take about this size in the files of the converters
+    private static final long ESTIMATED_BYTES_PER_TRIANGLE = 48;
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("mesh_optimize", false);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        ObjStatistics statistics = result.getStatistics();
+        long maxTriangles = ConverterConfiguration.getLong("mesh_optimize_max_triangles", 5000000);
+
+        long start = System.currentTimeMillis();
+        try {
+            long triangles = statistics != null ? statistics.getTriangles()
+                    : Files.size(objFile) / ESTIMATED_BYTES_PER_TRIANGLE;
+            if (maxTriangles > 0 && triangles > maxTriangles) {
+                LOGGER.log(Level.WARNING, "{0} has {1} {2}triangles, too many to be optimized",
+                        new Object[]{objFile.getFileName(), triangles, statistics != null ? "" : "estimated "});
+                return;
+            }
+
+            ObjOptimizer.Result optimization = ObjOptimizer.optimize(objFile, objFile);
+            LOGGER.log(Level.INFO, "{0}: {1}, done in {2} ms", new Object[]{objFile.getFileName(), optimization,
+                    System.currentTimeMillis() - start});
+
+            Path sidecar = result.getArtifact(ObjStatisticsPostProcessor.ARTIFACT);
+            if (statistics != null && sidecar != null) {
+                statistics.setAcmr(optimization.getAcmrBefore(), optimization.getAcmrAfter());
+                statistics.write(sidecar);
+            }
+        } catch (IOException e) {
+            throw new ConversionException("Cannot optimize converted file " + objFile, e);
+        }
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Reordering of indexed triangle lists for the GPU: vertex cache locality, overdraw and vertex fetch locality.
+ * <p>
+ * Triangles are ordered with Tom Forsyth's linear-speed vertex cache optimisation, which greedily emits the
+ * triangle whose vertices are the most recently used and have the fewest remaining triangles. The order is then
+ * cut in clusters, which are sorted so that the triangles facing outwards are drawn first: occluded fragments are
+ * rejected by the depth test before shading, at the price of a slightly worse cache locality.
+ */
+public class MeshOptimizer {
+
+    /**
+     * Size of the FIFO cache simulated to measure the average cache miss ratio (ACMR), a common hardware size.
+     */
+    public static final int ACMR_CACHE_SIZE = 16;
+
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    private static final int VALENCE_TABLE_SIZE = 64;
+    private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[VALENCE_TABLE_SIZE];
+    // Clusters end as soon as their miss ratio is within 5% of the whole mesh
+    private static final double OVERDRAW_THRESHOLD = 1.05;
+
+    static {
+        for (int position = 0; position < CACHE_SIZE; position++) {
+            CACHE_SCORES[position] = position < 3 ? LAST_TRIANGLE_SCORE
+                    : (float) Math.pow(1 - (position - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int valence = 1; valence < VALENCE_TABLE_SIZE; valence++) {
+            VALENCE_SCORES[valence] = valenceScore(valence);
+        }
+    }
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Average number of vertices transformed per triangle with a FIFO cache: 0.5 is the best case of a regular
+     * grid, 3 the worst.
+     */
+    public static double acmr(int[] indices, int vertexCount, int cacheSize) {
+        if (indices.length == 0) {
+            return 0;
+        }
+        int[] timestamps = new int[vertexCount];
+        int time = cacheSize + 1;
+        int misses = 0;
+        for (int index : indices) {
+            if (time - timestamps[index] > cacheSize) {
+                timestamps[index] = time++;
+                misses++;
+            }
+        }
+        return (double) misses / (indices.length / 3);
+    }
+
+    /**
+     * Reorder the triangles for the vertex cache, then by clusters to reduce overdraw.
+     *
+     * @param positions vertex positions, xyz
+     * @return the reordered indices
+     */
+    public static int[] optimize(int[] indices, float[] positions, int vertexCount) {
+        IntArray clusters = new IntArray();
+        int[] ordered = optimizeVertexCache(indices, vertexCount, clusters);
+        return optimizeOverdraw(ordered, positions, vertexCount, clusters);
+    }
+
+    /**
+     * Forsyth ordering of the triangles.
+     *
+     * @param clusters receives the index of the triangles starting a cluster: those emitted when no triangle
+     *                 shares a vertex with the cache
+     */
+    static int[] optimizeVertexCache(int[] indices, int vertexCount, IntArray clusters) {
+        int triangleCount = indices.length / 3;
+        int[] output = new int[indices.length];
+
+        // Triangles of each vertex, triangles already emitted are swapped to the end of the ranges
+        int[] remaining = new int[vertexCount];
+        for (int index : indices) {
+            remaining[index]++;
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] = offsets[v] + remaining[v];
+        }
+        int[] adjacency = new int[indices.length];
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indices.length; i++) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+
+        int[] cachePositions = new int[vertexCount];
+        Arrays.fill(cachePositions, -1);
+        float[] vertexScores = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScores[v] = vertexScore(-1, remaining[v]);
+        }
+        float[] triangleScores = new float[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScores[t] = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]]
+                    + vertexScores[indices[t * 3 + 2]];
+        }
+        boolean[] emitted = new boolean[triangleCount];
+
+        int[] cache = new int[CACHE_SIZE + 3];
+        int[] nextCache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int nextUnemitted = 0;
+        int best = -1;
+
+        for (int out = 0; out < triangleCount; out++) {
+            if (best == -1) {
+                while (emitted[nextUnemitted]) {
+                    nextUnemitted++;
+                }
+                best = nextUnemitted;
+                clusters.add(out);
+            }
+            emitted[best] = true;
+            System.arraycopy(indices, best * 3, output, out * 3, 3);
+
+            // Put the vertices of the triangle at the front of the cache
+            int nextCount = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = indices[best * 3 + k];
+                removeTriangle(adjacency, offsets[v], remaining, v, best);
+                if (nextCount == 0 || (nextCache[0] != v && (nextCount < 2 || nextCache[1] != v))) {
+                    nextCache[nextCount++] = v;
+                }
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                if (v != nextCache[0] && (nextCount < 2 || v != nextCache[1])
+                        && (nextCount < 3 || v != nextCache[2])) {
+                    nextCache[nextCount++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+            cacheCount = nextCount;
+
+            // Update the scores, vertices pushed out of the cache included, and pick the best triangle around
+            // the cache
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                cachePositions[v] = i < CACHE_SIZE ? i : -1;
+                updateScore(v, adjacency, offsets, remaining, cachePositions, vertexScores, triangleScores);
+            }
+            cacheCount = Math.min(cacheCount, CACHE_SIZE);
+            float bestScore = -1;
+            best = -1;
+            for (int i = 0; i < cacheCount; i++) {
+                int v = cache[i];
+                for (int a = offsets[v]; a < offsets[v] + remaining[v]; a++) {
+                    int t = adjacency[a];
+                    if (triangleScores[t] > bestScore) {
+                        bestScore = triangleScores[t];
+                        best = t;
+                    }
+                }
+            }
+        }
+        return output;
+    }
+
+    private static void removeTriangle(int[] adjacency, int start, int[] remaining, int v, int triangle) {
+        int end = start + remaining[v] - 1;
+        for (int a = start; a <= end; a++) {
+            if (adjacency[a] == triangle) {
+                adjacency[a] = adjacency[end];
+                adjacency[end] = triangle;
+                remaining[v]--;
+                return;
+            }
+        }
+    }
+
+    private static void updateScore(int v, int[] adjacency, int[] offsets, int[] remaining, int[] cachePositions,
+                                    float[] vertexScores, float[] triangleScores) {
+        float score = vertexScore(cachePositions[v], remaining[v]);
+        float delta = score - vertexScores[v];
+        if (delta != 0) {
+            vertexScores[v] = score;
+            for (int a = offsets[v]; a < offsets[v] + remaining[v]; a++) {
+                triangleScores[adjacency[a]] += delta;
+            }
+        }
+    }
+
+    private static float vertexScore(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1;
+        }
+        float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0;
+        return score + (remainingTriangles < VALENCE_TABLE_SIZE ? VALENCE_SCORES[remainingTriangles]
+                : valenceScore(remainingTriangles));
+    }
+
+    private static float valenceScore(int remainingTriangles) {
+        return VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+    }
+
+    /**
+     * Split the clusters where their miss ratio is close to the one of the whole mesh, then sort them so that the
+     * clusters facing away from the center of the mesh come first.
+     */
+    static int[] optimizeOverdraw(int[] indices, float[] positions, int vertexCount, IntArray hardClusters) {
+        int triangleCount = indices.length / 3;
+        if (triangleCount == 0) {
+            return indices;
+        }
+        double threshold = acmr(indices, vertexCount, ACMR_CACHE_SIZE) * OVERDRAW_THRESHOLD;
+
+        IntArray clusters = new IntArray();
+        int[] timestamps = new int[vertexCount];
+        int time = ACMR_CACHE_SIZE + 1;
+        for (int c = 0; c < hardClusters.size(); c++) {
+            int start = hardClusters.get(c);
+            int end = c + 1 < hardClusters.size() ? hardClusters.get(c + 1) : triangleCount;
+            int clusterStart = start;
+            int misses = 0;
+            clusters.add(start);
+            for (int t = start; t < end; t++) {
+                for (int k = 0; k < 3; k++) {
+                    int v = indices[t * 3 + k];
+                    if (time - timestamps[v] > ACMR_CACHE_SIZE) {
+                        timestamps[v] = time++;
+                        misses++;
+                    }
+                }
+                if (t + 1 < end && (double) misses / (t + 1 - clusterStart) <= threshold) {
+                    clusters.add(t + 1);
+                    clusterStart = t + 1;
+                    misses = 0;
+                    // The next cluster may be drawn after anything else, start with a cold cache
+                    time += ACMR_CACHE_SIZE + 1;
+                }
+            }
+        }
+
+        // Area weighted centroid and normal of each cluster and of the mesh
+        int clusterCount = clusters.size();
+        double[] centroids = new double[clusterCount * 3];
+        double[] normals = new double[clusterCount * 3];
+        double[] areas = new double[clusterCount];
+        double[] meshCentroid = new double[3];
+        double meshArea = 0;
+        for (int c = 0; c < clusterCount; c++) {
+            int end = c + 1 < clusterCount ? clusters.get(c + 1) : triangleCount;
+            for (int t = clusters.get(c); t < end; t++) {
+                int a = indices[t * 3] * 3;
+                int b = indices[t * 3 + 1] * 3;
+                int d = indices[t * 3 + 2] * 3;
+                double ux = positions[b] - positions[a];
+                double uy = positions[b + 1] - positions[a + 1];
+                double uz = positions[b + 2] - positions[a + 2];
+                double vx = positions[d] - positions[a];
+                double vy = positions[d + 1] - positions[a + 1];
+                double vz = positions[d + 2] - positions[a + 2];
+                double nx = uy * vz - uz * vy;
+                double ny = uz * vx - ux * vz;
+                double nz = ux * vy - uy * vx;
+                double area = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                normals[c * 3] += nx;
+                normals[c * 3 + 1] += ny;
+                normals[c * 3 + 2] += nz;
+                areas[c] += area;
+                for (int i = 0; i < 3; i++) {
+                    centroids[c * 3 + i] += area * (positions[a + i] + positions[b + i] + positions[d + i]) / 3;
+                }
+            }
+            for (int i = 0; i < 3; i++) {
+                meshCentroid[i] += centroids[c * 3 + i];
+            }
+            meshArea += areas[c];
+        }
+        for (int i = 0; i < 3; i++) {
+            meshCentroid[i] = meshArea > 0 ? meshCentroid[i] / meshArea : 0;
+        }
+
+        Integer[] order = new Integer[clusterCount];
+        double[] keys = new double[clusterCount];
+        for (int c = 0; c < clusterCount; c++) {
+            order[c] = c;
+            double length = Math.sqrt(normals[c * 3] * normals[c * 3] + normals[c * 3 + 1] * normals[c * 3 + 1]
+                    + normals[c * 3 + 2] * normals[c * 3 + 2]);
+            if (areas[c] > 0 && length > 0) {
+                for (int i = 0; i < 3; i++) {
+                    keys[c] += (centroids[c * 3 + i] / areas[c] - meshCentroid[i]) * normals[c * 3 + i] / length;
+                }
+            }
+        }
+        Arrays.sort(order, (c1, c2) -> Double.compare(keys[c2], keys[c1]));
+
+        int[] output = new int[indices.length];
+        int out = 0;
+        for (int c : order) {
+            int start = clusters.get(c) * 3;
+            int end = c + 1 < clusterCount ? clusters.get(c + 1) * 3 : indices.length;
+            System.arraycopy(indices, start, output, out, end - start);
+            out += end - start;
+        }
+        return output;
+    }
+
+    /**
+     * Renumber the vertices in the order of their first use by the triangles, so that vertex fetches are mostly
+     * sequential.
+     *
+     * @return for each vertex its new number, -1 for unused vertices
+     */
+    public static int[] vertexFetchRemap(int[] indices, int vertexCount) {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int index : indices) {
+            if (remap[index] == -1) {
+                remap[index] = next++;
+            }
+        }
+        return remap;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Material of a Wavefront MTL file, restricted to what the viewer renders: diffuse color, opacity and shininess.
+ */
+public class MtlMaterial {
+
+    private static final Logger LOGGER = Logger.getLogger(MtlMaterial.class.getName());
+
+    private final String name;
+    private float[] diffuse = {0.8f, 0.8f, 0.8f};
+    private float opacity = 1;
+    private float shininess;
+
+    public MtlMaterial(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float[] getDiffuse() {
+        return diffuse;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public float getShininess() {
+        return shininess;
+    }
+
+    /**
+     * Read the materials of the given MTL files, by name. Unreadable files are logged and skipped, the geometry
+     * is then exported with default materials.
+     */
+    public static Map<String, MtlMaterial> read(List<Path> mtlFiles) {
+        Map<String, MtlMaterial> materials = new LinkedHashMap<>();
+        for (Path mtlFile : mtlFiles) {
+            try (BufferedReader reader = Files.newBufferedReader(mtlFile, StandardCharsets.ISO_8859_1)) {
+                read(reader, materials);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot read materials from " + mtlFile, e);
+            }
+        }
+        return materials;
+    }
+
+    private static void read(BufferedReader reader, Map<String, MtlMaterial> materials) throws IOException {
+        MtlMaterial material = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length < 2) {
+                continue;
+            }
+            String keyword = tokens[0];
+            if ("newmtl".equals(keyword)) {
+                material = new MtlMaterial(line.trim().substring(keyword.length()).trim());
+                materials.put(material.name, material);
+            } else if (material == null) {
+                continue;
+            } else if ("Kd".equals(keyword) && tokens.length >= 4) {
+                material.diffuse = new float[]{
+                        clamp(Float.parseFloat(tokens[1])),
+                        clamp(Float.parseFloat(tokens[2])),
+                        clamp(Float.parseFloat(tokens[3]))
+                };
+            } else if ("d".equals(keyword)) {
+                material.opacity = clamp(Float.parseFloat(tokens[1]));
+            } else if ("Tr".equals(keyword)) {
+                material.opacity = 1 - clamp(Float.parseFloat(tokens[1]));
+            } else if ("Ns".equals(keyword)) {
+                material.shininess = Math.max(0, Float.parseFloat(tokens[1]));
+            }
+        }
+    }
+
+    private static float clamp(float value) {
+        return Float.isNaN(value) ? 0 : Math.max(0, Math.min(1, value));
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Concatenation of OBJ files converted separately from parts of one model, with their MTL files.
+ * <p>
+ * Files are streamed line by line: positive vertex, texture and normal indices of the faces, lines and points are
+ * offset by the counts of the previous parts, relative (negative) indices are kept as is. Materials are unioned by
+ * name; a material redefined differently by a later part is renamed in that part. Parts may be put in named
+ * groups, such as the nodes of an assembly tree.
+ */
+public class ObjMerger {
+
+    private static final int V = 0;
+    private static final int VT = 1;
+    private static final int VN = 2;
+
+    private final Map<String, String> materials = new LinkedHashMap<>();
+    private final int[] offsets = new int[3];
+
+    /**
+     * Merge the parts into mergedObj, and their materials into mergedMtl which mergedObj references. Missing parts
+     * are skipped, as a converter writes no file for a part without geometry.
+     */
+    public static void merge(List<Path> parts, Path mergedObj, Path mergedMtl) throws IOException {
+        merge(parts, null, mergedObj, mergedMtl);
+    }
+
+    /**
+     * Merge the parts as above, each one in the OBJ group of the same index, replacing its own groups and objects.
+     *
+     * @param groups    group names, whitespace being replaced by underscores, or null to keep the groups of the parts
+     * @param mergedMtl merged materials, or null if the parts have none
+     */
+    public static void merge(List<Path> parts, List<String> groups, Path mergedObj, Path mergedMtl)
+            throws IOException {
+        ObjMerger merger = new ObjMerger();
+        try (BufferedWriter writer = Files.newBufferedWriter(mergedObj, StandardCharsets.ISO_8859_1)) {
+            if (mergedMtl != null) {
+                writer.write("mtllib " + mergedMtl.getFileName() + "\n");
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                if (Files.exists(parts.get(i))) {
+                    String group = groups == null ? null : groups.get(i).trim().replaceAll("\\s+", "_");
+                    merger.append(parts.get(i), group, writer);
+                }
+            }
+        }
+        if (mergedMtl != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(mergedMtl, StandardCharsets.ISO_8859_1)) {
+                for (String material : merger.materials.values()) {
+                    writer.write(material);
+                }
+            }
+        }
+    }
+
+    private void append(Path part, String group, Writer writer) throws IOException {
+        Map<String, String> renames = new HashMap<>();
+        int[] counts = new int[3];
+        if (group != null) {
+            writer.write("g " + group + "\n");
+        }
+        try (BufferedReader reader = Files.newBufferedReader(part, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("mtllib ")) {
+                    Path parent = part.toAbsolutePath().getParent();
+                    for (String name : line.substring(7).trim().split("\\s+")) {
+                        addMaterials(parent.resolve(name), renames);
+                    }
+                    continue;
+                }
+                if (group != null && (line.startsWith("g ") || line.startsWith("o "))) {
+                    continue;
+                }
+                if (line.startsWith("v ")) {
+                    counts[V]++;
+                } else if (line.startsWith("vt ")) {
+                    counts[VT]++;
+                } else if (line.startsWith("vn ")) {
+                    counts[VN]++;
+                } else if (line.startsWith("f ") || line.startsWith("l ") || line.startsWith("p ")) {
+                    line = offsetIndices(line);
+                } else if (line.startsWith("usemtl ")) {
+                    String name = line.substring(7).trim();
+                    line = "usemtl " + renames.getOrDefault(name, name);
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            offsets[i] += counts[i];
+        }
+    }
+
+    private String offsetIndices(String line) {
+        String[] tokens = line.split("\\s+");
+        StringBuilder result = new StringBuilder(line.length() + 16).append(tokens[0]);
+        for (int i = 1; i < tokens.length; i++) {
+            result.append(' ');
+            String[] indices = tokens[i].split("/", -1);
+            for (int j = 0; j < indices.length; j++) {
+                if (j > 0) {
+                    result.append('/');
+                }
+                String index = indices[j];
+                if (index.isEmpty() || index.charAt(0) == '-' || j > 2) {
+                    result.append(index);
+                } else {
+                    result.append(Integer.parseInt(index) + offsets[j]);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    private void addMaterials(Path mtlFile, Map<String, String> renames) throws IOException {
+        if (!Files.exists(mtlFile)) {
+            return;
+        }
+        for (Map.Entry<String, String> material : readMaterials(mtlFile).entrySet()) {
+            String name = material.getKey();
+            String definition = material.getValue();
+            String existing = materials.get(name);
+            if (existing == null) {
+                materials.put(name, "newmtl " + name + "\n" + definition);
+            } else if (!existing.equals("newmtl " + name + "\n" + definition)) {
+                String renamed = name;
+                for (int k = 1; materials.containsKey(renamed); k++) {
+                    renamed = name + "_" + k;
+                }
+                materials.put(renamed, "newmtl " + renamed + "\n" + definition);
+                renames.put(name, renamed);
+            }
+        }
+    }
+
+    /**
+     * @return the statements of each material after its newmtl line, by name
+     */
+    private static Map<String, String> readMaterials(Path mtlFile) throws IOException {
+        Map<String, String> definitions = new LinkedHashMap<>();
+        List<String> names = new ArrayList<>();
+        StringBuilder definition = null;
+        try (BufferedReader reader = Files.newBufferedReader(mtlFile, StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("newmtl ")) {
+                    if (definition != null) {
+                        definitions.put(names.get(names.size() - 1), definition.toString());
+                    }
+                    names.add(trimmed.substring(7).trim());
+                    definition = new StringBuilder();
+                } else if (definition != null && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    definition.append(trimmed).append('\n');
+                }
+            }
+        }
+        if (definition != null) {
+            definitions.put(names.get(names.size() - 1), definition.toString());
+        }
+        return definitions;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.io.MappedFileCursor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load the geometry of an OBJ file into an {@link IndexedMesh}.
+ * <p>
+ * Polygons are fan triangulated, faces with invalid references are dropped. Only positions are kept: normals and
+ * texture coordinates are not used by the mesh processing stages.
+ */
+public class ObjMeshReader {
+
+    private static final byte[] USEMTL = "semtl".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MTLLIB = "tllib".getBytes(StandardCharsets.US_ASCII);
+    private static final String DEFAULT_GROUP = "default";
+
+    private final FloatArray positions = new FloatArray();
+    private final IntArray indices = new IntArray();
+    private final IntArray triangleGroups = new IntArray();
+    private final List<IndexedMesh.Group> groups = new ArrayList<>();
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final List<String> materialLibraries = new ArrayList<>();
+    private int[] corners = new int[16];
+    private String groupName = DEFAULT_GROUP;
+    private String material;
+    private int currentGroup = -1;
+
+    private ObjMeshReader() {
+    }
+
+    public static IndexedMesh read(Path objFile) throws IOException {
+        try (MappedFileCursor cursor = new MappedFileCursor(objFile)) {
+            return new ObjMeshReader().read(cursor);
+        }
+    }
+
+    private IndexedMesh read(MappedFileCursor cursor) {
+        while (cursor.hasRemaining()) {
+            cursor.skipBlanks();
+            int c = cursor.next();
+            switch (c) {
+                case 'v':
+                    if (isBlank(cursor.peek())) {
+                        positions.add((float) cursor.nextDouble());
+                        positions.add((float) cursor.nextDouble());
+                        positions.add((float) cursor.nextDouble());
+                    }
+                    break;
+                case 'f':
+                    if (isBlank(cursor.peek())) {
+                        readFace(cursor);
+                    }
+                    break;
+                case 'g':
+                case 'o':
+                    if (isBlank(cursor.peek()) || cursor.atEndOfLine()) {
+                        String name = cursor.restOfLine();
+                        groupName = name.isEmpty() ? DEFAULT_GROUP : name;
+                        currentGroup = -1;
+                    }
+                    break;
+                case 'u':
+                    if (cursor.consume(USEMTL)) {
+                        material = cursor.nextWord();
+                        currentGroup = -1;
+                    }
+                    break;
+                case 'm':
+                    if (cursor.consume(MTLLIB)) {
+                        materialLibraries.add(cursor.restOfLine());
+                    }
+                    break;
+                default:
+                    break;
+            }
+            cursor.skipLine();
+        }
+        return build();
+    }
+
+    private void readFace(MappedFileCursor cursor) {
+        int vertexCount = positions.size() / 3;
+        int count = 0;
+        cursor.skipBlanks();
+        while (!cursor.atEndOfLine() && cursor.peek() != '#') {
+            long index = cursor.nextLong();
+            if (index == Long.MIN_VALUE) {
+                // Not a face corner, ignore the rest of the line
+                break;
+            }
+            // Skip texture and normal references
+            while (cursor.peek() == '/' || cursor.peek() == '-' || isDigit(cursor.peek())) {
+                cursor.skip();
+            }
+            if (count == corners.length) {
+                corners = Arrays.copyOf(corners, count * 2);
+            }
+            corners[count++] = (int) (index > 0 ? index - 1 : vertexCount + index);
+            cursor.skipBlanks();
+        }
+
+        if (count < 3) {
+            return;
+        }
+        if (currentGroup == -1) {
+            currentGroup = groupId();
+        }
+        for (int k = 1; k < count - 1; k++) {
+            indices.add(corners[0]);
+            indices.add(corners[k]);
+            indices.add(corners[k + 1]);
+            triangleGroups.add(currentGroup);
+        }
+    }
+
+    private int groupId() {
+        String key = groupName + '\n' + material;
+        Integer id = groupIds.get(key);
+        if (id == null) {
+            id = groups.size();
+            groups.add(new IndexedMesh.Group(groupName, material));
+            groupIds.put(key, id);
+        }
+        return id;
+    }
+
+    private IndexedMesh build() {
+        int vertexCount = positions.size() / 3;
+        IntArray validIndices = new IntArray(indices.size());
+        IntArray validGroups = new IntArray(triangleGroups.size());
+        for (int triangle = 0; triangle < triangleGroups.size(); triangle++) {
+            int a = indices.get(triangle * 3);
+            int b = indices.get(triangle * 3 + 1);
+            int c = indices.get(triangle * 3 + 2);
+            if (a >= 0 && b >= 0 && c >= 0 && a < vertexCount && b < vertexCount && c < vertexCount) {
+                validIndices.add(a);
+                validIndices.add(b);
+                validIndices.add(c);
+                validGroups.add(triangleGroups.get(triangle));
+            }
+        }
+        return new IndexedMesh(positions.toArray(), validIndices.toArray(), validGroups.toArray(), groups,
+                materialLibraries);
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Write an {@link IndexedMesh} as an OBJ file, triangles being grouped by OBJ group.
+ */
+public class ObjMeshWriter {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ObjMeshWriter() {
+    }
+
+    public static void write(IndexedMesh mesh, Path objFile) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(objFile), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            for (String library : mesh.getMaterialLibraries()) {
+                writer.write("mtllib " + library + "\n");
+            }
+
+            float[] positions = mesh.getPositions();
+            StringBuilder line = new StringBuilder(64);
+            for (int i = 0; i < positions.length; i += 3) {
+                line.setLength(0);
+                line.append("v ").append(positions[i]).append(' ').append(positions[i + 1]).append(' ')
+                        .append(positions[i + 2]).append('\n');
+                writer.append(line);
+            }
+
+            int[] indices = mesh.getIndices();
+            int[] triangleGroups = mesh.getTriangleGroups();
+            List<IndexedMesh.Group> groups = mesh.getGroups();
+            int[] order = sortByGroup(triangleGroups, groups.size());
+            int previousGroup = -1;
+            for (int triangle : order) {
+                int group = triangleGroups[triangle];
+                if (group != previousGroup) {
+                    writer.write("g " + groups.get(group).getName() + "\n");
+                    if (groups.get(group).getMaterial() != null) {
+                        writer.write("usemtl " + groups.get(group).getMaterial() + "\n");
+                    }
+                    previousGroup = group;
+                }
+                line.setLength(0);
+                line.append("f ").append(indices[triangle * 3] + 1).append(' ')
+                        .append(indices[triangle * 3 + 1] + 1).append(' ')
+                        .append(indices[triangle * 3 + 2] + 1).append('\n');
+                writer.append(line);
+            }
+        }
+    }
+
+    /**
+     * Stable counting sort of the triangles by group.
+     */
+    static int[] sortByGroup(int[] triangleGroups, int groupCount) {
+        int[] starts = new int[groupCount + 1];
+        for (int group : triangleGroups) {
+            starts[group + 1]++;
+        }
+        for (int group = 0; group < groupCount; group++) {
+            starts[group + 1] += starts[group];
+        }
+        int[] order = new int[triangleGroups.length];
+        for (int triangle = 0; triangle < triangleGroups.length; triangle++) {
+            order[starts[triangleGroups[triangle]]++] = triangle;
+        }
+        return order;
+    }
+
+}
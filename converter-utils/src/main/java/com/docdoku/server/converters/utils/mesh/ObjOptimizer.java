@@ -0,0 +1,810 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.io.MappedFileCursor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rewrite an OBJ file with deduplicated vertices and triangles ordered for rendering.
+ * <p>
+ * Positions with the same text, texture coordinates and normals with equal values are merged, a vertex being a
+ * distinct (position, texture coordinates, normal) triplet. The triangles of each section (object, group, material
+ * and smoothing group) are reordered by {@link MeshOptimizer}, then positions, texture coordinates and normals are
+ * renumbered in the order of their first use. Positions keep their original text, so georeferenced coordinates lose
+ * no precision. Lines and points are kept in their section after the triangles. Polygons are triangulated,
+ * degenerate triangles and elements with invalid references are dropped, and the third texture coordinate is not
+ * kept. The mesh is loaded on the heap.
+ */
+public class ObjOptimizer {
+
+    private static final byte[] USEMTL = "semtl".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MTLLIB = "tllib".getBytes(StandardCharsets.US_ASCII);
+    private static final String DEFAULT_GROUP = "default";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_TEXT_SIZE = Integer.MAX_VALUE - 8;
+
+    // Parsed positions order the triangles and validate the faces, the text is written back
+    private final FloatArray positions = new FloatArray();
+    private final IntArray positionTextEnds = new IntArray();
+    private byte[] positionText = new byte[BUFFER_SIZE];
+    private int positionTextSize;
+    private final FloatArray textureCoordinates = new FloatArray();
+    private final FloatArray normals = new FloatArray();
+    // Corners of the triangles, texture coordinates and normals are -1 when absent
+    private final IntArray cornerPositions = new IntArray();
+    private final IntArray cornerTextureCoordinates = new IntArray();
+    private final IntArray cornerNormals = new IntArray();
+    private final IntArray triangleSections = new IntArray();
+    // Lines and points: section, kind, count, then the position and texture coordinates of each vertex
+    private final IntArray elements = new IntArray();
+    private final List<Section> sections = new ArrayList<>();
+    private final Map<List<String>, Integer> sectionIds = new HashMap<>();
+    private final List<String> materialLibraries = new ArrayList<>();
+    private int[] facePositions = new int[16];
+    private int[] faceTextureCoordinates = new int[16];
+    private int[] faceNormals = new int[16];
+    private String objectName;
+    private String groupName;
+    private String material;
+    private String smoothingGroup;
+    private int currentSection = -1;
+
+    private ObjOptimizer() {
+    }
+
+    /**
+     * Optimize the OBJ file, the output may be the input file.
+     */
+    public static Result optimize(Path objFile, Path output) throws IOException {
+        ObjOptimizer optimizer = new ObjOptimizer();
+        try (MappedFileCursor cursor = new MappedFileCursor(objFile)) {
+            optimizer.read(cursor);
+        }
+        return optimizer.optimize(output);
+    }
+
+    private void read(MappedFileCursor cursor) throws IOException {
+        while (cursor.hasRemaining()) {
+            cursor.skipBlanks();
+            int c = cursor.next();
+            switch (c) {
+                case 'v':
+                    readVertex(cursor);
+                    break;
+                case 'f':
+                case 'l':
+                case 'p':
+                    if (isBlank(cursor.peek())) {
+                        readElement(cursor, c);
+                    }
+                    break;
+                case 'g':
+                    if (isBlank(cursor.peek()) || cursor.atEndOfLine()) {
+                        String name = cursor.restOfLine();
+                        groupName = name.isEmpty() ? DEFAULT_GROUP : name;
+                        currentSection = -1;
+                    }
+                    break;
+                case 'o':
+                    if (isBlank(cursor.peek()) || cursor.atEndOfLine()) {
+                        String name = cursor.restOfLine();
+                        objectName = name.isEmpty() ? null : name;
+                        currentSection = -1;
+                    }
+                    break;
+                case 's':
+                    if (isBlank(cursor.peek())) {
+                        String group = cursor.nextWord();
+                        smoothingGroup = group.isEmpty() || "off".equals(group) || "0".equals(group) ? null : group;
+                        currentSection = -1;
+                    }
+                    break;
+                case 'u':
+                    if (cursor.consume(USEMTL)) {
+                        material = cursor.nextWord();
+                        currentSection = -1;
+                    }
+                    break;
+                case 'm':
+                    if (cursor.consume(MTLLIB)) {
+                        materialLibraries.add(cursor.restOfLine());
+                    }
+                    break;
+                default:
+                    break;
+            }
+            cursor.skipLine();
+        }
+    }
+
+    private void readVertex(MappedFileCursor cursor) throws IOException {
+        int c = cursor.peek();
+        if (isBlank(c)) {
+            readPosition(cursor);
+        } else if (c == 't') {
+            cursor.skip();
+            float u = (float) cursor.nextDouble();
+            float v = cursor.atEndOfLine() ? 0 : (float) cursor.nextDouble();
+            textureCoordinates.add(u);
+            textureCoordinates.add(Float.isNaN(v) ? 0 : v);
+        } else if (c == 'n') {
+            cursor.skip();
+            normals.add((float) cursor.nextDouble());
+            normals.add((float) cursor.nextDouble());
+            normals.add((float) cursor.nextDouble());
+        }
+    }
+
+    /**
+     * Keep the text of the position up to a comment, optional weight or colors included.
+     */
+    private void readPosition(MappedFileCursor cursor) throws IOException {
+        cursor.skipBlanks();
+        int start = positionTextSize;
+        int c = cursor.peek();
+        while (c != '\n' && c != '\r' && c != '#' && c != -1) {
+            if (positionTextSize == positionText.length) {
+                if (positionTextSize == MAX_TEXT_SIZE) {
+                    throw new IOException("Too many positions to be optimized");
+                }
+                positionText = Arrays.copyOf(positionText, (int) Math.min(MAX_TEXT_SIZE, positionTextSize * 2L));
+            }
+            positionText[positionTextSize++] = (byte) c;
+            cursor.skip();
+            c = cursor.peek();
+        }
+        while (positionTextSize > start && isBlank(positionText[positionTextSize - 1])) {
+            positionTextSize--;
+        }
+        positionTextEnds.add(positionTextSize);
+
+        int token = start;
+        for (int k = 0; k < 3; k++) {
+            while (token < positionTextSize && isBlank(positionText[token])) {
+                token++;
+            }
+            int end = token;
+            while (end < positionTextSize && !isBlank(positionText[end])) {
+                end++;
+            }
+            positions.add(parseFloat(token, end));
+            token = end;
+        }
+    }
+
+    private float parseFloat(int start, int end) {
+        if (start == end) {
+            return Float.NaN;
+        }
+        try {
+            return Float.parseFloat(new String(positionText, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private void readElement(MappedFileCursor cursor, int kind) {
+        int count = 0;
+        cursor.skipBlanks();
+        while (!cursor.atEndOfLine() && cursor.peek() != '#') {
+            long position = cursor.nextLong();
+            if (position == Long.MIN_VALUE) {
+                break;
+            }
+            long textureCoordinate = 0;
+            long normal = 0;
+            if (cursor.peek() == '/') {
+                cursor.skip();
+                if (cursor.peek() != '/') {
+                    textureCoordinate = cursor.nextLong();
+                }
+                if (cursor.peek() == '/') {
+                    cursor.skip();
+                    normal = cursor.nextLong();
+                }
+            }
+            if (count == facePositions.length) {
+                facePositions = Arrays.copyOf(facePositions, count * 2);
+                faceTextureCoordinates = Arrays.copyOf(faceTextureCoordinates, count * 2);
+                faceNormals = Arrays.copyOf(faceNormals, count * 2);
+            }
+            // Forward references are checked once the whole file is read
+            facePositions[count] = resolve(position, positions.size() / 3);
+            faceTextureCoordinates[count] = resolve(textureCoordinate, textureCoordinates.size() / 2);
+            faceNormals[count] = resolve(normal, normals.size() / 3);
+            count++;
+            cursor.skipBlanks();
+        }
+
+        if (count < (kind == 'f' ? 3 : kind == 'l' ? 2 : 1)) {
+            return;
+        }
+        if (currentSection == -1) {
+            currentSection = sectionId();
+        }
+        if (kind == 'f') {
+            for (int k = 1; k < count - 1; k++) {
+                addCorner(0);
+                addCorner(k);
+                addCorner(k + 1);
+                triangleSections.add(currentSection);
+            }
+        } else {
+            elements.add(currentSection);
+            elements.add(kind);
+            elements.add(count);
+            for (int k = 0; k < count; k++) {
+                elements.add(facePositions[k]);
+                elements.add(faceTextureCoordinates[k]);
+            }
+        }
+    }
+
+    private void addCorner(int corner) {
+        cornerPositions.add(facePositions[corner]);
+        cornerTextureCoordinates.add(faceTextureCoordinates[corner]);
+        cornerNormals.add(faceNormals[corner]);
+    }
+
+    private int sectionId() {
+        List<String> key = Arrays.asList(objectName, groupName, material, smoothingGroup);
+        Integer id = sectionIds.get(key);
+        if (id == null) {
+            id = sections.size();
+            sections.add(new Section(objectName, groupName, material, smoothingGroup));
+            sectionIds.put(key, id);
+        }
+        return id;
+    }
+
+    private Result optimize(Path output) throws IOException {
+        float[] positionValues = positions.toArray();
+        float[] textureCoordinateValues = textureCoordinates.toArray();
+        float[] normalValues = normals.toArray();
+        int[] positionWelds = weldPositions();
+        int[] textureCoordinateWelds = weld(textureCoordinateValues, 2);
+        int[] normalWelds = weld(normalValues, 3);
+
+        // Vertices are the distinct corners, triangles referencing invalid or equal positions are dropped
+        VertexTable vertices = new VertexTable(cornerPositions.size());
+        IntArray indices = new IntArray(cornerPositions.size());
+        IntArray validSections = new IntArray(triangleSections.size());
+        int[] triangle = new int[3];
+        int[] trianglePositions = new int[3];
+        for (int t = 0; t < triangleSections.size(); t++) {
+            boolean valid = true;
+            for (int k = 0; k < 3 && valid; k++) {
+                int corner = t * 3 + k;
+                int p = valid(cornerPositions.get(corner), positionValues, 3);
+                int vt = valid(cornerTextureCoordinates.get(corner), textureCoordinateValues, 2);
+                int vn = valid(cornerNormals.get(corner), normalValues, 3);
+                valid = p >= 0;
+                if (valid) {
+                    trianglePositions[k] = positionWelds[p];
+                    triangle[k] = vertices.add(positionWelds[p], vt >= 0 ? textureCoordinateWelds[vt] : -1,
+                            vn >= 0 ? normalWelds[vn] : -1);
+                }
+            }
+            if (valid && trianglePositions[0] != trianglePositions[1] && trianglePositions[1] != trianglePositions[2]
+                    && trianglePositions[0] != trianglePositions[2]) {
+                indices.add(triangle[0]);
+                indices.add(triangle[1]);
+                indices.add(triangle[2]);
+                validSections.add(triangleSections.get(t));
+            }
+        }
+        IntArray validElements = validElements(positionValues, positionWelds, textureCoordinateValues,
+                textureCoordinateWelds);
+
+        int vertexCount = vertices.size();
+        int[] allIndices = indices.toArray();
+        Result result = new Result();
+        result.acmrBefore = MeshOptimizer.acmr(allIndices, vertexCount, MeshOptimizer.ACMR_CACHE_SIZE);
+        result.verticesBefore = cornerPositions.size();
+        result.verticesAfter = vertexCount;
+        result.triangles = allIndices.length / 3;
+
+        // Optimize each section separately, its vertices being renumbered locally
+        int[] sectionOfTriangles = validSections.toArray();
+        int[] order = ObjMeshWriter.sortByGroup(sectionOfTriangles, sections.size());
+        int[] optimized = new int[allIndices.length];
+        int[] local = new int[vertexCount];
+        Arrays.fill(local, -1);
+        IntArray localVertices = new IntArray();
+        int start = 0;
+        while (start < order.length) {
+            int section = sectionOfTriangles[order[start]];
+            int end = start;
+            while (end < order.length && sectionOfTriangles[order[end]] == section) {
+                end++;
+            }
+            localVertices.clear();
+            int[] sectionIndices = new int[(end - start) * 3];
+            for (int i = 0; i < sectionIndices.length; i++) {
+                int vertex = allIndices[order[start + i / 3] * 3 + i % 3];
+                if (local[vertex] == -1) {
+                    local[vertex] = localVertices.size();
+                    localVertices.add(vertex);
+                }
+                sectionIndices[i] = local[vertex];
+            }
+            float[] localPositions = new float[localVertices.size() * 3];
+            for (int i = 0; i < localVertices.size(); i++) {
+                System.arraycopy(positionValues, vertices.position(localVertices.get(i)) * 3, localPositions, i * 3,
+                        3);
+            }
+            int[] sectionOptimized = MeshOptimizer.optimize(sectionIndices, localPositions, localVertices.size());
+            for (int i = 0; i < sectionOptimized.length; i++) {
+                optimized[start * 3 + i] = localVertices.get(sectionOptimized[i]);
+            }
+            for (int i = 0; i < localVertices.size(); i++) {
+                local[localVertices.get(i)] = -1;
+            }
+            start = end;
+        }
+        result.acmrAfter = MeshOptimizer.acmr(optimized, vertexCount, MeshOptimizer.ACMR_CACHE_SIZE);
+
+        int[] triangleSectionsAfter = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            triangleSectionsAfter[i] = sectionOfTriangles[order[i]];
+        }
+        write(output, vertices, optimized, triangleSectionsAfter, validElements.toArray(), textureCoordinateValues,
+                normalValues);
+        return result;
+    }
+
+    /**
+     * @return the lines and points without invalid positions, their references welded and texture coordinates kept
+     * only if all of them are valid
+     */
+    private IntArray validElements(float[] positionValues, int[] positionWelds, float[] textureCoordinateValues,
+                                   int[] textureCoordinateWelds) {
+        IntArray valid = new IntArray(elements.size());
+        int i = 0;
+        while (i < elements.size()) {
+            int count = elements.get(i + 2);
+            boolean validPositions = true;
+            boolean validTextureCoordinates = true;
+            for (int k = 0; k < count; k++) {
+                validPositions &= valid(elements.get(i + 3 + k * 2), positionValues, 3) >= 0;
+                validTextureCoordinates &= valid(elements.get(i + 4 + k * 2), textureCoordinateValues, 2) >= 0;
+            }
+            if (validPositions) {
+                valid.add(elements.get(i));
+                valid.add(elements.get(i + 1));
+                valid.add(count);
+                for (int k = 0; k < count; k++) {
+                    valid.add(positionWelds[elements.get(i + 3 + k * 2)]);
+                    valid.add(validTextureCoordinates ? textureCoordinateWelds[elements.get(i + 4 + k * 2)] : -1);
+                }
+            }
+            i += 3 + count * 2;
+        }
+        return valid;
+    }
+
+    private void write(Path output, VertexTable vertices, int[] indices, int[] triangleSectionsAfter, int[] lines,
+                       float[] textureCoordinateValues, float[] normalValues) throws IOException {
+        // Renumber the attributes in the order of their first use, by the triangles then the lines and points
+        int[] positionRemap = firstUse(indices, vertices, 0, positionTextEnds.size());
+        int[] textureCoordinateRemap = firstUse(indices, vertices, 1, textureCoordinateValues.length / 2);
+        int[] normalRemap = firstUse(indices, vertices, 2, normalValues.length / 3);
+        int nextPosition = used(positionRemap);
+        int nextTextureCoordinate = used(textureCoordinateRemap);
+        for (int i = 0; i < lines.length; i += 3 + lines[i + 2] * 2) {
+            for (int k = 0; k < lines[i + 2]; k++) {
+                int p = lines[i + 3 + k * 2];
+                int vt = lines[i + 4 + k * 2];
+                if (positionRemap[p] == -1) {
+                    positionRemap[p] = nextPosition++;
+                }
+                if (vt >= 0 && textureCoordinateRemap[vt] == -1) {
+                    textureCoordinateRemap[vt] = nextTextureCoordinate++;
+                }
+            }
+        }
+
+        Path tmpFile = output.resolveSibling(output.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpFile), BUFFER_SIZE)) {
+            StringBuilder line = new StringBuilder(64);
+            for (String library : materialLibraries) {
+                writeLine(out, line, "mtllib " + library);
+            }
+            int[] positionOrder = inverse(positionRemap, nextPosition);
+            for (int position : positionOrder) {
+                int start = position == 0 ? 0 : positionTextEnds.get(position - 1);
+                out.write('v');
+                out.write(' ');
+                out.write(positionText, start, positionTextEnds.get(position) - start);
+                out.write('\n');
+            }
+            writeValues(out, line, "vt ", textureCoordinateValues, 2, inverse(textureCoordinateRemap,
+                    nextTextureCoordinate));
+            writeValues(out, line, "vn ", normalValues, 3, inverse(normalRemap, used(normalRemap)));
+
+            Section previous = null;
+            for (int t = 0; t < triangleSectionsAfter.length; t++) {
+                Section section = sections.get(triangleSectionsAfter[t]);
+                if (section != previous) {
+                    writeSection(out, line, section, previous);
+                    previous = section;
+                }
+                line.setLength(0);
+                line.append('f');
+                for (int k = 0; k < 3; k++) {
+                    int vertex = indices[t * 3 + k];
+                    int vt = vertices.textureCoordinate(vertex);
+                    int vn = vertices.normal(vertex);
+                    line.append(' ').append(positionRemap[vertices.position(vertex)] + 1);
+                    if (vt >= 0 || vn >= 0) {
+                        line.append('/');
+                        if (vt >= 0) {
+                            line.append(textureCoordinateRemap[vt] + 1);
+                        }
+                        if (vn >= 0) {
+                            line.append('/').append(normalRemap[vn] + 1);
+                        }
+                    }
+                }
+                writeLine(out, line, line);
+            }
+
+            for (int i = 0; i < lines.length; i += 3 + lines[i + 2] * 2) {
+                Section section = sections.get(lines[i]);
+                if (section != previous) {
+                    writeSection(out, line, section, previous);
+                    previous = section;
+                }
+                line.setLength(0);
+                line.append((char) lines[i + 1]);
+                for (int k = 0; k < lines[i + 2]; k++) {
+                    int vt = lines[i + 4 + k * 2];
+                    line.append(' ').append(positionRemap[lines[i + 3 + k * 2]] + 1);
+                    if (vt >= 0) {
+                        line.append('/').append(textureCoordinateRemap[vt] + 1);
+                    }
+                }
+                writeLine(out, line, line);
+            }
+        }
+        Files.move(tmpFile, output, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeSection(OutputStream out, StringBuilder line, Section section, Section previous)
+            throws IOException {
+        if (section.object != null && (previous == null || !section.object.equals(previous.object))) {
+            writeLine(out, line, "o " + section.object);
+        }
+        if (section.group != null) {
+            writeLine(out, line, "g " + section.group);
+        }
+        if (section.material != null) {
+            writeLine(out, line, "usemtl " + section.material);
+        }
+        if (!Objects.equals(section.smoothingGroup, previous == null ? null : previous.smoothingGroup)) {
+            writeLine(out, line, "s " + (section.smoothingGroup == null ? "off" : section.smoothingGroup));
+        }
+    }
+
+    /**
+     * Write a line, its chars being the bytes read by the cursor.
+     */
+    private static void writeLine(OutputStream out, StringBuilder line, CharSequence text) throws IOException {
+        if (text != line) {
+            line.setLength(0);
+            line.append(text);
+        }
+        for (int i = 0; i < line.length(); i++) {
+            out.write(line.charAt(i));
+        }
+        out.write('\n');
+    }
+
+    private static void writeValues(OutputStream out, StringBuilder line, String prefix, float[] values,
+                                    int dimension, int[] order) throws IOException {
+        for (int value : order) {
+            line.setLength(0);
+            line.append(prefix);
+            for (int k = 0; k < dimension; k++) {
+                line.append(k > 0 ? " " : "").append(values[value * dimension + k]);
+            }
+            writeLine(out, line, line);
+        }
+    }
+
+    private static int used(int[] remap) {
+        int count = 0;
+        for (int remapped : remap) {
+            if (remapped >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int[] inverse(int[] remap, int count) {
+        int[] inverse = new int[count];
+        for (int i = 0; i < remap.length; i++) {
+            if (remap[i] >= 0) {
+                inverse[remap[i]] = i;
+            }
+        }
+        return inverse;
+    }
+
+    private static int[] firstUse(int[] indices, VertexTable vertices, int attribute, int count) {
+        int[] remap = new int[count];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for (int index : indices) {
+            int value = attribute == 0 ? vertices.position(index)
+                    : attribute == 1 ? vertices.textureCoordinate(index) : vertices.normal(index);
+            if (value >= 0 && remap[value] == -1) {
+                remap[value] = next++;
+            }
+        }
+        return remap;
+    }
+
+    /**
+     * Map each position to the first one with the same text.
+     */
+    private int[] weldPositions() {
+        int count = positionTextEnds.size();
+        int capacity = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int[] remap = new int[count];
+        for (int i = 0; i < count; i++) {
+            int start = i == 0 ? 0 : positionTextEnds.get(i - 1);
+            int end = positionTextEnds.get(i);
+            int hash = 0;
+            for (int b = start; b < end; b++) {
+                hash = hash * 31 + positionText[b];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+            while (true) {
+                int candidate = table[slot];
+                if (candidate == -1) {
+                    table[slot] = i;
+                    remap[i] = i;
+                    break;
+                }
+                int candidateStart = candidate == 0 ? 0 : positionTextEnds.get(candidate - 1);
+                int candidateEnd = positionTextEnds.get(candidate);
+                if (candidateEnd - candidateStart == end - start
+                        && equalText(candidateStart, start, end - start)) {
+                    remap[i] = candidate;
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+        return remap;
+    }
+
+    private boolean equalText(int a, int b, int length) {
+        for (int k = 0; k < length; k++) {
+            if (positionText[a + k] != positionText[b + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Map each value to the first one equal to it.
+     */
+    private static int[] weld(float[] values, int dimension) {
+        int count = values.length / dimension;
+        int capacity = Integer.highestOneBit(Math.max(4, count * 2 - 1)) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int[] remap = new int[count];
+        for (int i = 0; i < count; i++) {
+            int hash = 0;
+            for (int k = 0; k < dimension; k++) {
+                hash = hash * 31 + Float.floatToIntBits(values[i * dimension + k]);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+            while (true) {
+                int candidate = table[slot];
+                if (candidate == -1) {
+                    table[slot] = i;
+                    remap[i] = i;
+                    break;
+                }
+                if (equal(values, candidate, i, dimension)) {
+                    remap[i] = candidate;
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+        return remap;
+    }
+
+    private static boolean equal(float[] values, int a, int b, int dimension) {
+        for (int k = 0; k < dimension; k++) {
+            if (values[a * dimension + k] != values[b * dimension + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index if it references a finite value, -1 otherwise
+     */
+    private static int valid(int index, float[] values, int dimension) {
+        if (index < 0 || index >= values.length / dimension) {
+            return -1;
+        }
+        for (int k = 0; k < dimension; k++) {
+            float value = values[index * dimension + k];
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    private static int resolve(long index, int count) {
+        if (index == 0 || index == Long.MIN_VALUE) {
+            return -1;
+        }
+        long resolved = index > 0 ? index - 1 : count + index;
+        return resolved < 0 || resolved > Integer.MAX_VALUE ? -1 : (int) resolved;
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Object, group, material and smoothing group of the elements that follow, emitted on change.
+     */
+    private static class Section {
+
+        private final String object;
+        private final String group;
+        private final String material;
+        private final String smoothingGroup;
+
+        Section(String object, String group, String material, String smoothingGroup) {
+            this.object = object;
+            this.group = group;
+            this.material = material;
+            this.smoothingGroup = smoothingGroup;
+        }
+    }
+
+    /**
+     * Distinct (position, texture coordinates, normal) triplets.
+     */
+    private static class VertexTable {
+
+        private final IntArray attributes;
+        private int[] table;
+        private int size;
+
+        VertexTable(int expected) {
+            attributes = new IntArray(expected * 3);
+            table = new int[Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1];
+            Arrays.fill(table, -1);
+        }
+
+        int add(int position, int textureCoordinate, int normal) {
+            int hash = (position * 31 + textureCoordinate) * 31 + normal;
+            int slot = (hash ^ (hash >>> 16)) & (table.length - 1);
+            while (true) {
+                int candidate = table[slot];
+                if (candidate == -1) {
+                    table[slot] = size;
+                    attributes.add(position);
+                    attributes.add(textureCoordinate);
+                    attributes.add(normal);
+                    return size++;
+                }
+                if (position(candidate) == position && textureCoordinate(candidate) == textureCoordinate
+                        && normal(candidate) == normal) {
+                    return candidate;
+                }
+                slot = (slot + 1) & (table.length - 1);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int position(int vertex) {
+            return attributes.get(vertex * 3);
+        }
+
+        int textureCoordinate(int vertex) {
+            return attributes.get(vertex * 3 + 1);
+        }
+
+        int normal(int vertex) {
+            return attributes.get(vertex * 3 + 2);
+        }
+    }
+
+    /**
+     * Outcome of the optimization, with the average cache miss ratios measured by {@link MeshOptimizer#acmr}.
+     */
+    public static class Result {
+
+        private double acmrBefore;
+        private double acmrAfter;
+        private long verticesBefore;
+        private long verticesAfter;
+        private long triangles;
+
+        /**
+         * @return the miss ratio of the input triangle order, once vertices are deduplicated
+         */
+        public double getAcmrBefore() {
+            return acmrBefore;
+        }
+
+        public double getAcmrAfter() {
+            return acmrAfter;
+        }
+
+        /**
+         * @return the number of face corners of the input, the vertices of an unindexed mesh
+         */
+        public long getVerticesBefore() {
+            return verticesBefore;
+        }
+
+        public long getVerticesAfter() {
+            return verticesAfter;
+        }
+
+        public long getTriangles() {
+            return triangles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d triangles, %d corners to %d vertices, ACMR %.3f to %.3f", triangles,
+                    verticesBefore, verticesAfter, acmrBefore, acmrAfter);
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.io.MappedFileCursor;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Single pass validation and statistics of an OBJ file.
+ * <p>
+ * The file is read through a {@link MappedFileCursor} and numbers are parsed in place: no object is allocated per
+ * line, whatever the size of the file. Positions are not kept, so faces are only found degenerate when they repeat
+ * a vertex; {@link #checkTriangles} finds the zero area triangles of a mesh already spilled to disk.
+ */
+public class ObjScanner {
+
+    private static final byte[] USEMTL = "semtl".getBytes(StandardCharsets.US_ASCII);
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+    // Sine of the smallest angle of a triangle below which its corners are taken as collinear
+    private static final double COLLINEAR_SINE = 1e-6;
+
+    private final ObjStatistics statistics = new ObjStatistics();
+    private long[] corners = new long[16];
+    private long maxVertexReference;
+    private long maxNormalReference;
+    private long maxTextureReference;
+
+    private ObjScanner() {
+    }
+
+    public static ObjStatistics scan(Path objFile) throws IOException {
+        try (MappedFileCursor cursor = new MappedFileCursor(objFile)) {
+            return new ObjScanner().scan(cursor);
+        }
+    }
+
+    /**
+     * Scan an OBJ stream to its end, such as the output of a converter as it writes it.
+     */
+    public static ObjStatistics scan(ReadableByteChannel objStream) {
+        return new ObjScanner().scan(MappedFileCursor.stream(objStream, STREAM_BUFFER_SIZE));
+    }
+
+    /**
+     * Count the triangles of the mesh whose corners are coincident or collinear, as CAD tessellators emit along
+     * sharp edges, into the statistics of its file.
+     */
+    public static void checkTriangles(SpilledMesh mesh, ObjStatistics statistics) throws IOException {
+        SpilledMesh.IndexReader indices = mesh.indexReader();
+        float[] a = new float[3];
+        float[] b = new float[3];
+        float[] c = new float[3];
+        long zeroArea = 0;
+        for (long i = 0; i + 2 < mesh.getIndexCount(); i += 3) {
+            mesh.getPosition(indices.next(), a);
+            mesh.getPosition(indices.next(), b);
+            mesh.getPosition(indices.next(), c);
+            if (isZeroArea(a, b, c)) {
+                zeroArea++;
+            }
+        }
+        statistics.zeroAreaTriangles = zeroArea;
+    }
+
+    static boolean isZeroArea(float[] a, float[] b, float[] c) {
+        double ux = (double) b[0] - a[0];
+        double uy = (double) b[1] - a[1];
+        double uz = (double) b[2] - a[2];
+        double vx = (double) c[0] - a[0];
+        double vy = (double) c[1] - a[1];
+        double vz = (double) c[2] - a[2];
+        double cx = uy * vz - uz * vy;
+        double cy = uz * vx - ux * vz;
+        double cz = ux * vy - uy * vx;
+        // |u x v| = |u| |v| sin(angle), relative so that the test does not depend on the part size
+        double cross = cx * cx + cy * cy + cz * cz;
+        double lengths = (ux * ux + uy * uy + uz * uz) * (vx * vx + vy * vy + vz * vz);
+        return cross <= COLLINEAR_SINE * COLLINEAR_SINE * lengths;
+    }
+
+    private ObjStatistics scan(MappedFileCursor cursor) {
+        while (cursor.hasRemaining()) {
+            cursor.skipBlanks();
+            int c = cursor.next();
+            switch (c) {
+                case 'v':
+                    readVertexLine(cursor);
+                    break;
+                case 'f':
+                    if (isBlank(cursor.peek())) {
+                        readFace(cursor);
+                    }
+                    break;
+                case 'g':
+                    statistics.groups++;
+                    break;
+                case 'o':
+                    statistics.objects++;
+                    break;
+                case 'u':
+                    if (cursor.consume(USEMTL)) {
+                        statistics.materialSwitches++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            cursor.skipLine();
+        }
+
+        statistics.bytes = cursor.size();
+
+        // Forward references are tolerated, as long as they exist at the end of the file
+        if (maxVertexReference > statistics.vertices || maxNormalReference > statistics.normals
+                || maxTextureReference > statistics.textureCoordinates) {
+            statistics.invalidReferences++;
+        }
+        return statistics;
+    }
+
+    private void readVertexLine(MappedFileCursor cursor) {
+        int c = cursor.peek();
+        if (c == 'n') {
+            statistics.normals++;
+        } else if (c == 't') {
+            statistics.textureCoordinates++;
+        } else if (isBlank(c)) {
+            readVertex(cursor);
+        }
+    }
+
+    private void readVertex(MappedFileCursor cursor) {
+        statistics.vertices++;
+        double x = cursor.nextDouble();
+        double y = cursor.nextDouble();
+        double z = cursor.nextDouble();
+        if (!isFinite(x) || !isFinite(y) || !isFinite(z)) {
+            statistics.invalidVertices++;
+            return;
+        }
+        statistics.minX = Math.min(statistics.minX, x);
+        statistics.minY = Math.min(statistics.minY, y);
+        statistics.minZ = Math.min(statistics.minZ, z);
+        statistics.maxX = Math.max(statistics.maxX, x);
+        statistics.maxY = Math.max(statistics.maxY, y);
+        statistics.maxZ = Math.max(statistics.maxZ, z);
+    }
+
+    private void readFace(MappedFileCursor cursor) {
+        int count = 0;
+        boolean invalid = false;
+
+        cursor.skipBlanks();
+        while (!cursor.atEndOfLine() && cursor.peek() != '#') {
+            long vertex = resolve(cursor.nextLong(), statistics.vertices);
+            if (vertex <= 0) {
+                invalid = true;
+            } else {
+                maxVertexReference = Math.max(maxVertexReference, vertex);
+            }
+
+            if (cursor.peek() == '/') {
+                cursor.skip();
+                if (cursor.peek() != '/') {
+                    long texture = resolve(cursor.nextLong(), statistics.textureCoordinates);
+                    invalid |= texture <= 0;
+                    maxTextureReference = Math.max(maxTextureReference, texture);
+                }
+                if (cursor.peek() == '/') {
+                    cursor.skip();
+                    long normal = resolve(cursor.nextLong(), statistics.normals);
+                    invalid |= normal <= 0;
+                    maxNormalReference = Math.max(maxNormalReference, normal);
+                }
+            }
+
+            if (count == corners.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(corners, 0, grown, 0, count);
+                corners = grown;
+            }
+            corners[count++] = vertex;
+
+            // Unexpected characters, skip them so that the line cannot loop forever
+            int c = cursor.peek();
+            if (!isBlank(c) && c != '\n' && c != '\r' && c != -1 && c != '#') {
+                invalid = true;
+                while (!isBlank(cursor.peek()) && !cursor.atEndOfLine()) {
+                    cursor.skip();
+                }
+            }
+            cursor.skipBlanks();
+        }
+
+        statistics.faces++;
+        if (invalid) {
+            statistics.invalidReferences++;
+        }
+        if (count < 3) {
+            statistics.degenerateFaces++;
+            return;
+        }
+        statistics.triangles += count - 2;
+        if (hasDuplicate(count)) {
+            statistics.degenerateFaces++;
+        }
+    }
+
+    private boolean hasDuplicate(int count) {
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                if (corners[i] == corners[j]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolve a relative (negative) OBJ index against the number of elements read so far.
+     *
+     * @return the 1-based index, or a value lower than 1 if invalid
+     */
+    private static long resolve(long index, long count) {
+        if (index == Long.MIN_VALUE || index == 0) {
+            return 0;
+        }
+        return index > 0 ? index : count + index + 1;
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+}
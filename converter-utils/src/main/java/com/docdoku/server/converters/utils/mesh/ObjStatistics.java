@@ -0,0 +1,244 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Counts and bounds of an OBJ file, as computed by {@link ObjScanner}.
+ * <p>
+ * Statistics are stored next to the converted file as a small properties sidecar, so that they can be used
+ * without parsing the geometry again.
+ */
+public class ObjStatistics {
+
+    public static final String SIDECAR_EXTENSION = ".stats";
+
+    long bytes;
+    long vertices;
+    long normals;
+    long textureCoordinates;
+    long faces;
+    long triangles;
+    long groups;
+    long objects;
+    long materialSwitches;
+    long invalidVertices;
+    long degenerateFaces;
+    long zeroAreaTriangles;
+    long invalidReferences;
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double minZ = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    double maxZ = Double.NEGATIVE_INFINITY;
+    double acmrBefore = Double.NaN;
+    double acmrAfter = Double.NaN;
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getVertices() {
+        return vertices;
+    }
+
+    public long getNormals() {
+        return normals;
+    }
+
+    public long getTextureCoordinates() {
+        return textureCoordinates;
+    }
+
+    public long getFaces() {
+        return faces;
+    }
+
+    /**
+     * @return the number of triangles once polygons are fan triangulated
+     */
+    public long getTriangles() {
+        return triangles;
+    }
+
+    public long getGroups() {
+        return groups;
+    }
+
+    public long getObjects() {
+        return objects;
+    }
+
+    public long getMaterialSwitches() {
+        return materialSwitches;
+    }
+
+    /**
+     * @return the number of vertices with a missing, NaN or infinite coordinate
+     */
+    public long getInvalidVertices() {
+        return invalidVertices;
+    }
+
+    /**
+     * @return the number of faces with less than three corners or using the same vertex twice
+     */
+    public long getDegenerateFaces() {
+        return degenerateFaces;
+    }
+
+    /**
+     * @return the number of triangles with coincident or collinear corners, 0 unless checked with
+     * {@link ObjScanner#checkTriangles}
+     */
+    public long getZeroAreaTriangles() {
+        return zeroAreaTriangles;
+    }
+
+    /**
+     * @return the number of face corners referencing a vertex, normal or texture coordinate that does not exist
+     */
+    public long getInvalidReferences() {
+        return invalidReferences;
+    }
+
+    /**
+     * Average vertex cache miss ratios before and after the triangles are reordered, NaN if not optimized.
+     */
+    public double getAcmrBefore() {
+        return acmrBefore;
+    }
+
+    public double getAcmrAfter() {
+        return acmrAfter;
+    }
+
+    public void setAcmr(double before, double after) {
+        acmrBefore = before;
+        acmrAfter = after;
+    }
+
+    public boolean hasBounds() {
+        return minX <= maxX;
+    }
+
+    public double[] getMin() {
+        return new double[]{minX, minY, minZ};
+    }
+
+    public double[] getMax() {
+        return new double[]{maxX, maxY, maxZ};
+    }
+
+    /**
+     * @return true if the geometry can be sent to the viewer
+     */
+    public boolean isValid() {
+        return faces > 0 && invalidVertices == 0 && invalidReferences == 0;
+    }
+
+    public static Path sidecar(Path objFile, Path directory) {
+        return directory.resolve(objFile.getFileName() + SIDECAR_EXTENSION);
+    }
+
+    public void write(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("bytes", Long.toString(bytes));
+        properties.setProperty("vertices", Long.toString(vertices));
+        properties.setProperty("normals", Long.toString(normals));
+        properties.setProperty("textureCoordinates", Long.toString(textureCoordinates));
+        properties.setProperty("faces", Long.toString(faces));
+        properties.setProperty("triangles", Long.toString(triangles));
+        properties.setProperty("groups", Long.toString(groups));
+        properties.setProperty("objects", Long.toString(objects));
+        properties.setProperty("materialSwitches", Long.toString(materialSwitches));
+        properties.setProperty("invalidVertices", Long.toString(invalidVertices));
+        properties.setProperty("degenerateFaces", Long.toString(degenerateFaces));
+        properties.setProperty("zeroAreaTriangles", Long.toString(zeroAreaTriangles));
+        properties.setProperty("invalidReferences", Long.toString(invalidReferences));
+        if (hasBounds()) {
+            properties.setProperty("min", minX + "," + minY + "," + minZ);
+            properties.setProperty("max", maxX + "," + maxY + "," + maxZ);
+        }
+        if (!Double.isNaN(acmrBefore)) {
+            properties.setProperty("acmrBefore", Double.toString(acmrBefore));
+            properties.setProperty("acmrAfter", Double.toString(acmrAfter));
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    public static ObjStatistics read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        ObjStatistics statistics = new ObjStatistics();
+        statistics.bytes = getLong(properties, "bytes");
+        statistics.vertices = getLong(properties, "vertices");
+        statistics.normals = getLong(properties, "normals");
+        statistics.textureCoordinates = getLong(properties, "textureCoordinates");
+        statistics.faces = getLong(properties, "faces");
+        statistics.triangles = getLong(properties, "triangles");
+        statistics.groups = getLong(properties, "groups");
+        statistics.objects = getLong(properties, "objects");
+        statistics.materialSwitches = getLong(properties, "materialSwitches");
+        statistics.invalidVertices = getLong(properties, "invalidVertices");
+        statistics.degenerateFaces = getLong(properties, "degenerateFaces");
+        statistics.zeroAreaTriangles = getLong(properties, "zeroAreaTriangles");
+        statistics.invalidReferences = getLong(properties, "invalidReferences");
+        String min = properties.getProperty("min");
+        String max = properties.getProperty("max");
+        if (min != null && max != null) {
+            String[] minValues = min.split(",");
+            String[] maxValues = max.split(",");
+            statistics.minX = Double.parseDouble(minValues[0]);
+            statistics.minY = Double.parseDouble(minValues[1]);
+            statistics.minZ = Double.parseDouble(minValues[2]);
+            statistics.maxX = Double.parseDouble(maxValues[0]);
+            statistics.maxY = Double.parseDouble(maxValues[1]);
+            statistics.maxZ = Double.parseDouble(maxValues[2]);
+        }
+        statistics.acmrBefore = Double.parseDouble(properties.getProperty("acmrBefore", "NaN"));
+        statistics.acmrAfter = Double.parseDouble(properties.getProperty("acmrAfter", "NaN"));
+        return statistics;
+    }
+
+    private static long getLong(Properties properties, String key) {
+        return Long.parseLong(properties.getProperty(key, "0"));
+    }
+
+    @Override
+    public String toString() {
+        return vertices + " vertices, " + faces + " faces (" + triangles + " triangles), " + groups + " groups, "
+                + invalidVertices + " invalid vertices, " + degenerateFaces + " degenerate faces, "
+                + zeroAreaTriangles + " zero area triangles, " + invalidReferences + " invalid references";
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scan the converted OBJ, store its statistics sidecar and, when obj_reject_invalid is set, reject geometry the
+ * viewer cannot display.
+ * <p>
+ * Zero area triangles are counted on the spilled mesh, which the later stages reuse.
+ */
+public class ObjStatisticsPostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "statistics";
+
+    private static final Logger LOGGER = Logger.getLogger(ObjStatisticsPostProcessor.class.getName());
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("obj_statistics", true);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        // Already read if the converter output went through an ObjPipe
+        ObjStatistics statistics = result.getStatistics();
+        if (statistics == null) {
+            try {
+                statistics = ObjScanner.scan(objFile);
+            } catch (IOException e) {
+                throw new ConversionException("Cannot read converted file " + objFile, e);
+            }
+        }
+        if (ConverterConfiguration.getBoolean("obj_check_zero_area", true) && statistics.getTriangles() > 0) {
+            try {
+                ObjScanner.checkTriangles(result.getSpilledMesh(tmpDir), statistics);
+            } catch (IOException e) {
+                throw new ConversionException("Cannot read converted file " + objFile, e);
+            }
+        }
+        LOGGER.log(Level.INFO, "{0}: {1}", new Object[]{objFile.getFileName(), statistics});
+
+        if (ConverterConfiguration.getBoolean("obj_reject_invalid", false) && !statistics.isValid()) {
+            throw new ConversionException("Invalid OBJ " + objFile + ": " + statistics);
+        }
+        long maxTriangles = ConverterConfiguration.getLong("obj_max_triangles", 0);
+        if (maxTriangles > 0 && statistics.getTriangles() > maxTriangles) {
+            throw new ConversionException("OBJ " + objFile + " has " + statistics.getTriangles()
+                    + " triangles, more than the allowed " + maxTriangles);
+        }
+
+        Path sidecar = ObjStatistics.sidecar(objFile, tmpDir);
+        try {
+            statistics.write(sidecar);
+        } catch (IOException e) {
+            throw new ConversionException("Cannot write statistics of " + objFile, e);
+        }
+        result.setStatistics(statistics);
+        result.addArtifact(ARTIFACT, sidecar);
+    }
+
+}
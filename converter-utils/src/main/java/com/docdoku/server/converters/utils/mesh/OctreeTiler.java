@@ -0,0 +1,528 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Split a converted mesh in tiles along an octree, so the viewer only streams the tiles in view.
+ * <p>
+ * Triangles are assigned by their centroid to a grid of 2^depth cells per axis over the bounds of the mesh. Cells
+ * are numbered in Morton order, so every octree node covers a contiguous range of cells, and nodes are split while
+ * they hold more triangles than a tile should. Leaves are written at full detail and every node gets a coarse
+ * proxy: a leaf proxy is the simplified leaf, an inner node proxy the simplified merge of its children proxies. The
+ * viewer shows the root proxy at once, then refines where the camera looks.
+ * <p>
+ * The {@link SpilledMesh} is read three times: to count the triangles of each cell, to write the triangles grouped
+ * by leaf to a temporary file, then to encode the leaves one by one. Only one leaf and the proxies of the current
+ * branch are held in memory. Tiles and proxies are {@link QuantizedMeshWriter} files quantized over their own
+ * bounds, listed with the octree in a JSON manifest, nodes depth first:
+ * <pre>
+ * {"version":1,"triangles":N,"nodes":[
+ *   {"id":"r","depth":0,"bounds":[minX,minY,minZ,maxX,maxY,maxZ],"triangles":N,
+ *    "proxy":"part.tile.r.proxy.qmesh","proxyTriangles":n,"children":["r0","r4"]},
+ *   {"id":"r0","depth":1,"bounds":[...],"triangles":n,"tile":"part.tile.r0.qmesh",...},...]}
+ * </pre>
+ * Node ids append the octant (x * 4 + y * 2 + z, 1 on the upper side) to the parent id. A leaf that fits in the
+ * proxy budget is its own proxy.
+ */
+public class OctreeTiler {
+
+    public static final String MANIFEST_EXTENSION = ".tiles.json";
+
+    /**
+     * The cell grid takes 12 bytes per cell, 2^21 cells at this depth.
+     */
+    static final int MAX_DEPTH = 7;
+
+    private static final int MANIFEST_VERSION = 1;
+    private static final int RECORD_SIZE = 4 * Integer.BYTES;
+    private static final int LEAF_BUFFER_SIZE = 256 * RECORD_SIZE;
+
+    private final SpilledMesh mesh;
+    private final Path dir;
+    private final String baseName;
+    private final int maxTriangles;
+    private final int depth;
+    private final int proxyTriangles;
+    private final int positionBits;
+    private final int normalBits;
+
+    private final float[] min;
+    private final float[] scale = new float[3];
+    private final List<Node> leaves = new ArrayList<>();
+    private final List<Path> files = new ArrayList<>();
+    private final float[] position = new float[3];
+    private final float[] centroid = new float[3];
+    private final int[] coordinates = new int[3];
+    private long[] cellStarts;
+    private int[] cellLeaves;
+
+    private OctreeTiler(SpilledMesh mesh, Path dir, String baseName, int maxTriangles, int depth, int proxyTriangles,
+                        int positionBits, int normalBits) {
+        this.mesh = mesh;
+        this.dir = dir;
+        this.baseName = baseName;
+        this.maxTriangles = maxTriangles;
+        this.depth = depth;
+        this.proxyTriangles = proxyTriangles;
+        this.positionBits = positionBits;
+        this.normalBits = normalBits;
+        this.min = mesh.getMin();
+        float[] max = mesh.getMax();
+        for (int i = 0; i < 3; i++) {
+            float extent = max[i] - min[i];
+            scale[i] = extent > 0 ? (1 << depth) / extent : 0;
+        }
+    }
+
+    /**
+     * Tile the mesh in the given directory, files are named after the base name.
+     *
+     * @param maxTriangles   nodes with more triangles are split
+     * @param maxDepth       maximum depth of the leaves, 0 to {@link #MAX_DEPTH}
+     * @param proxyTriangles target triangle count of the node proxies
+     * @return the manifest followed by the tiles and proxies it lists
+     */
+    public static List<Path> tile(SpilledMesh mesh, Path dir, String baseName, int maxTriangles, int maxDepth,
+                                  int proxyTriangles, int positionBits, int normalBits) throws IOException {
+        if (maxTriangles < 1 || maxDepth < 0 || maxDepth > MAX_DEPTH || proxyTriangles < 1) {
+            throw new IllegalArgumentException("Invalid tiling: " + maxTriangles + " triangles per tile, depth "
+                    + maxDepth + ", " + proxyTriangles + " triangles per proxy");
+        }
+        OctreeTiler tiler = new OctreeTiler(mesh, dir, baseName, maxTriangles, maxDepth, proxyTriangles,
+                positionBits, normalBits);
+        try {
+            return tiler.run();
+        } catch (IOException | RuntimeException e) {
+            for (Path file : tiler.files) {
+                Files.deleteIfExists(file);
+            }
+            throw e;
+        }
+    }
+
+    private List<Path> run() throws IOException {
+        Path manifestFile = dir.resolve(baseName + MANIFEST_EXTENSION);
+        files.add(manifestFile);
+
+        countCells();
+        cellLeaves = new int[cellStarts.length - 1];
+        Node root = build("r", 0, 0);
+
+        Path sortedFile = Files.createTempFile(dir, baseName, ".tiles");
+        try (FileChannel sorted = FileChannel.open(sortedFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            sortTriangles(sorted);
+            cellLeaves = null;
+            if (root != null) {
+                write(root, sorted);
+            }
+        } finally {
+            Files.delete(sortedFile);
+        }
+
+        StringBuilder json = new StringBuilder("{\"version\":").append(MANIFEST_VERSION)
+                .append(",\"triangles\":").append(root != null ? root.triangles : 0).append(",\"nodes\":[");
+        if (root != null) {
+            appendNode(json, root);
+        }
+        Files.write(manifestFile, json.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private void countCells() throws IOException {
+        cellStarts = new long[(1 << (3 * depth)) + 1];
+        readTriangles((a, b, c, primitive) -> cellStarts[cell(a, b, c) + 1]++);
+        for (int cell = 1; cell < cellStarts.length; cell++) {
+            cellStarts[cell] += cellStarts[cell - 1];
+        }
+    }
+
+    private Node build(String id, int level, int prefix) {
+        int shift = 3 * (depth - level);
+        int firstCell = prefix << shift;
+        int endCell = (prefix + 1) << shift;
+        long triangles = cellStarts[endCell] - cellStarts[firstCell];
+        if (triangles == 0) {
+            return null;
+        }
+        Node node = new Node(id, level, triangles);
+        if (triangles <= maxTriangles || level == depth) {
+            // Leaves are created in cell order, their triangles follow each other in the sorted file
+            node.offset = cellStarts[firstCell];
+            Arrays.fill(cellLeaves, firstCell, endCell, leaves.size());
+            leaves.add(node);
+        } else {
+            for (int octant = 0; octant < 8; octant++) {
+                Node child = build(id + octant, level + 1, prefix * 8 + octant);
+                if (child != null) {
+                    node.children.add(child);
+                }
+            }
+        }
+        return node;
+    }
+
+    private void sortTriangles(FileChannel sorted) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[leaves.size()];
+        long[] positions = new long[leaves.size()];
+        for (int leaf = 0; leaf < positions.length; leaf++) {
+            positions[leaf] = leaves.get(leaf).offset * RECORD_SIZE;
+        }
+        readTriangles((a, b, c, primitive) -> {
+            int leaf = cellLeaves[cell(a, b, c)];
+            ByteBuffer buffer = buffers[leaf];
+            if (buffer == null) {
+                long size = leaves.get(leaf).triangles * RECORD_SIZE;
+                buffer = ByteBuffer.allocate((int) Math.min(LEAF_BUFFER_SIZE, size));
+                buffers[leaf] = buffer;
+            }
+            buffer.putInt((int) a).putInt((int) b).putInt((int) c).putInt(primitive);
+            if (!buffer.hasRemaining()) {
+                positions[leaf] += flush(sorted, buffer, positions[leaf]);
+            }
+        });
+        for (int leaf = 0; leaf < buffers.length; leaf++) {
+            if (buffers[leaf] != null) {
+                flush(sorted, buffers[leaf], positions[leaf]);
+            }
+        }
+    }
+
+    private static int flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + length - buffer.remaining());
+        }
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Write the tiles and proxies of the node and its descendants.
+     *
+     * @return the proxy of the node
+     */
+    private IndexedMesh write(Node node, FileChannel sorted) throws IOException {
+        IndexedMesh proxy;
+        if (node.children.isEmpty()) {
+            Tile tile = readLeaf(node, sorted);
+            node.bounds = tile.getBounds();
+            node.tile = writeFile(node.id, tile.positions.toArray(),
+                    tile.normals != null ? tile.normals.toArray() : null, tile.indices.toArray(), tile.primitives,
+                    tile.primitiveIndexCounts.toArray());
+            IndexedMesh full = tile.toIndexedMesh();
+            if (full.getTriangleCount() <= proxyTriangles) {
+                proxy = full;
+                node.proxy = node.tile;
+            } else {
+                proxy = QuadricSimplifier.simplify(full.weld(), proxyTriangles);
+                node.proxy = writeProxy(node.id, proxy);
+            }
+        } else {
+            List<IndexedMesh> childProxies = new ArrayList<>();
+            for (Node child : node.children) {
+                childProxies.add(write(child, sorted));
+                node.bounds = union(node.bounds, child.bounds);
+            }
+            proxy = QuadricSimplifier.simplify(merge(childProxies).weld(), proxyTriangles);
+            node.proxy = writeProxy(node.id, proxy);
+        }
+        node.proxyTriangles = proxy.getTriangleCount();
+        return proxy;
+    }
+
+    private Tile readLeaf(Node node, FileChannel sorted) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(Math.toIntExact(node.triangles * RECORD_SIZE));
+        long position = node.offset * RECORD_SIZE;
+        while (records.hasRemaining()) {
+            if (sorted.read(records, position + records.position()) < 0) {
+                throw new IOException("Truncated tile records");
+            }
+        }
+        records.flip();
+
+        Tile tile = new Tile(mesh.hasNormals());
+        Map<Long, Integer> localIndices = new HashMap<>();
+        float[] vector = new float[3];
+        int previousPrimitive = -1;
+        while (records.hasRemaining()) {
+            long[] triangle = {records.getInt() & 0xFFFFFFFFL, records.getInt() & 0xFFFFFFFFL,
+                    records.getInt() & 0xFFFFFFFFL};
+            int primitive = records.getInt();
+            if (primitive != previousPrimitive) {
+                SpilledMesh.Primitive source = mesh.getPrimitives().get(primitive);
+                tile.primitives.add(new String[]{source.getGroup(), source.getMaterial()});
+                tile.primitiveIndexCounts.add(0);
+                previousPrimitive = primitive;
+            }
+            for (long vertex : triangle) {
+                Integer local = localIndices.get(vertex);
+                if (local == null) {
+                    local = localIndices.size();
+                    localIndices.put(vertex, local);
+                    mesh.getPosition(vertex, vector);
+                    tile.addVector(tile.positions, vector);
+                    if (tile.normals != null) {
+                        mesh.getNormal(vertex, vector);
+                        tile.addVector(tile.normals, vector);
+                    }
+                }
+                tile.indices.add(local);
+            }
+            int last = tile.primitiveIndexCounts.size() - 1;
+            tile.primitiveIndexCounts.set(last, tile.primitiveIndexCounts.get(last) + 3);
+        }
+        return tile;
+    }
+
+    /**
+     * Concatenate the meshes, merging their groups by name and material.
+     */
+    static IndexedMesh merge(List<IndexedMesh> meshes) {
+        FloatArray positions = new FloatArray();
+        IntArray indices = new IntArray();
+        IntArray triangleGroups = new IntArray();
+        Map<List<String>, Integer> groupIndices = new LinkedHashMap<>();
+        List<IndexedMesh.Group> groups = new ArrayList<>();
+        for (IndexedMesh mesh : meshes) {
+            int vertexOffset = positions.size() / 3;
+            for (float value : mesh.getPositions()) {
+                positions.add(value);
+            }
+            for (int index : mesh.getIndices()) {
+                indices.add(vertexOffset + index);
+            }
+            int[] groupMapping = new int[mesh.getGroups().size()];
+            for (int i = 0; i < groupMapping.length; i++) {
+                IndexedMesh.Group group = mesh.getGroups().get(i);
+                Integer merged = groupIndices.get(Arrays.asList(group.getName(), group.getMaterial()));
+                if (merged == null) {
+                    merged = groups.size();
+                    groupIndices.put(Arrays.asList(group.getName(), group.getMaterial()), merged);
+                    groups.add(group);
+                }
+                groupMapping[i] = merged;
+            }
+            for (int group : mesh.getTriangleGroups()) {
+                triangleGroups.add(groupMapping[group]);
+            }
+        }
+        return new IndexedMesh(positions.toArray(), indices.toArray(), triangleGroups.toArray(), groups,
+                new ArrayList<>());
+    }
+
+    private String writeProxy(String id, IndexedMesh proxy) throws IOException {
+        // Primitives are contiguous in a quantized mesh, sort the triangles by group
+        int[] triangleGroups = proxy.getTriangleGroups();
+        int[] counts = new int[proxy.getGroups().size() + 1];
+        for (int group : triangleGroups) {
+            counts[group + 1] += 3;
+        }
+        int[] starts = counts.clone();
+        for (int group = 1; group < starts.length; group++) {
+            starts[group] += starts[group - 1];
+        }
+        int[] indices = new int[proxy.getIndices().length];
+        for (int triangle = 0; triangle < triangleGroups.length; triangle++) {
+            System.arraycopy(proxy.getIndices(), triangle * 3, indices, starts[triangleGroups[triangle]], 3);
+            starts[triangleGroups[triangle]] += 3;
+        }
+        List<String[]> primitives = new ArrayList<>();
+        IntArray primitiveIndexCounts = new IntArray();
+        for (int group = 0; group < proxy.getGroups().size(); group++) {
+            if (counts[group + 1] > 0) {
+                IndexedMesh.Group source = proxy.getGroups().get(group);
+                primitives.add(new String[]{source.getName(), source.getMaterial()});
+                primitiveIndexCounts.add(counts[group + 1]);
+            }
+        }
+        return writeFile(id + ".proxy", proxy.getPositions(), null, indices, primitives,
+                primitiveIndexCounts.toArray());
+    }
+
+    private String writeFile(String name, float[] positions, float[] normals, int[] indices, List<String[]> primitives,
+                             int[] primitiveIndexCounts) throws IOException {
+        Path file = dir.resolve(baseName + ".tile." + name + QuantizedMeshWriter.EXTENSION);
+        files.add(file);
+        QuantizedMeshWriter.write(positions, normals, indices, primitives, primitiveIndexCounts, file, positionBits,
+                normalBits);
+        return file.getFileName().toString();
+    }
+
+    private void appendNode(StringBuilder json, Node node) {
+        json.append("{\"id\":").append(GlbWriter.string(node.id))
+                .append(",\"depth\":").append(node.depth)
+                .append(",\"bounds\":[");
+        for (int i = 0; i < node.bounds.length; i++) {
+            json.append(i > 0 ? "," : "").append(node.bounds[i]);
+        }
+        json.append("],\"triangles\":").append(node.triangles);
+        if (node.tile != null) {
+            json.append(",\"tile\":").append(GlbWriter.string(node.tile));
+        }
+        json.append(",\"proxy\":").append(GlbWriter.string(node.proxy))
+                .append(",\"proxyTriangles\":").append(node.proxyTriangles)
+                .append(",\"children\":[");
+        for (int i = 0; i < node.children.size(); i++) {
+            json.append(i > 0 ? "," : "").append(GlbWriter.string(node.children.get(i).id));
+        }
+        json.append("]}");
+        for (Node child : node.children) {
+            json.append(',');
+            appendNode(json, child);
+        }
+    }
+
+    /**
+     * @return the Morton code of the cell holding the centroid of the triangle
+     */
+    private int cell(long a, long b, long c) {
+        Arrays.fill(centroid, 0);
+        for (long vertex : new long[]{a, b, c}) {
+            mesh.getPosition(vertex, position);
+            for (int i = 0; i < 3; i++) {
+                centroid[i] += position[i] / 3;
+            }
+        }
+        int last = (1 << depth) - 1;
+        for (int i = 0; i < 3; i++) {
+            coordinates[i] = Math.max(0, Math.min(last, (int) ((centroid[i] - min[i]) * scale[i])));
+        }
+        return morton(coordinates, depth);
+    }
+
+    static int morton(int[] coordinates, int depth) {
+        int code = 0;
+        for (int bit = depth - 1; bit >= 0; bit--) {
+            code = (code << 3) | ((coordinates[0] >> bit) & 1) << 2 | ((coordinates[1] >> bit) & 1) << 1
+                    | ((coordinates[2] >> bit) & 1);
+        }
+        return code;
+    }
+
+    private static float[] union(float[] bounds, float[] other) {
+        if (bounds == null) {
+            return other.clone();
+        }
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.min(bounds[i], other[i]);
+            bounds[i + 3] = Math.max(bounds[i + 3], other[i + 3]);
+        }
+        return bounds;
+    }
+
+    private void readTriangles(TriangleVisitor visitor) throws IOException {
+        SpilledMesh.IndexReader indices = mesh.indexReader();
+        List<SpilledMesh.Primitive> primitives = mesh.getPrimitives();
+        for (int primitive = 0; primitive < primitives.size(); primitive++) {
+            for (long i = 0; i < primitives.get(primitive).getIndexCount(); i += 3) {
+                visitor.visit(indices.next(), indices.next(), indices.next(), primitive);
+            }
+        }
+    }
+
+    private interface TriangleVisitor {
+
+        void visit(long a, long b, long c, int primitive) throws IOException;
+
+    }
+
+    private static class Node {
+
+        private final String id;
+        private final int depth;
+        private final long triangles;
+        private final List<Node> children = new ArrayList<>();
+        private long offset;
+        private float[] bounds;
+        private String tile;
+        private String proxy;
+        private int proxyTriangles;
+
+        Node(String id, int depth, long triangles) {
+            this.id = id;
+            this.depth = depth;
+            this.triangles = triangles;
+        }
+
+    }
+
+    /**
+     * Leaf geometry with vertices renumbered from 0, in the layout of {@link QuantizedMeshWriter}.
+     */
+    private static class Tile {
+
+        private final FloatArray positions = new FloatArray();
+        private final FloatArray normals;
+        private final IntArray indices = new IntArray();
+        private final List<String[]> primitives = new ArrayList<>();
+        private final IntArray primitiveIndexCounts = new IntArray();
+
+        Tile(boolean hasNormals) {
+            normals = hasNormals ? new FloatArray() : null;
+        }
+
+        void addVector(FloatArray array, float[] vector) {
+            array.add(vector[0]);
+            array.add(vector[1]);
+            array.add(vector[2]);
+        }
+
+        float[] getBounds() {
+            float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int i = 0; i < positions.size(); i++) {
+                bounds[i % 3] = Math.min(bounds[i % 3], positions.get(i));
+                bounds[i % 3 + 3] = Math.max(bounds[i % 3 + 3], positions.get(i));
+            }
+            return bounds;
+        }
+
+        IndexedMesh toIndexedMesh() {
+            int[] triangleGroups = new int[indices.size() / 3];
+            List<IndexedMesh.Group> groups = new ArrayList<>();
+            int triangle = 0;
+            for (int primitive = 0; primitive < primitives.size(); primitive++) {
+                groups.add(new IndexedMesh.Group(primitives.get(primitive)[0], primitives.get(primitive)[1]));
+                int end = triangle + primitiveIndexCounts.get(primitive) / 3;
+                Arrays.fill(triangleGroups, triangle, end, primitive);
+                triangle = end;
+            }
+            return new IndexedMesh(positions.toArray(), indices.toArray(), triangleGroups, groups,
+                    new ArrayList<>());
+        }
+
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Mesh decimation by quadric error metrics edge collapse (Garland and Heckbert).
+ * <p>
+ * Instead of maintaining a priority queue of all the edges, each pass collapses the edges whose error is below a
+ * threshold growing with the pass number, as in Sven Forstmann's fast quadric simplification. Collapses flipping
+ * a neighbouring triangle are refused and open borders only collapse along themselves, so the silhouette of the
+ * parts is kept. The whole mesh is simplified at once, triangles keep the group they came from.
+ */
+public class QuadricSimplifier {
+
+    private static final int MAX_PASSES = 100;
+    private static final double AGGRESSIVENESS = 7;
+
+    // Vertices: position, quadric (upper triangle of a symmetric 4x4 matrix), triangle references
+    private final double[] p;
+    private final double[] q;
+    private final int[] refStart;
+    private final int[] refCount;
+    private final boolean[] border;
+
+    // Triangles: vertices, edge errors and minimum, normal
+    private final int[] tv;
+    private final double[] err;
+    private final double[] tn;
+    private final int[] groups;
+    private final boolean[] deleted;
+    private final boolean[] dirty;
+    private int triangleCount;
+
+    // Vertex to triangle references, grown as collapses update triangles
+    private int[] refTriangle;
+    private int[] refCorner;
+    private int refs;
+
+    private boolean[] deleted0 = new boolean[64];
+    private boolean[] deleted1 = new boolean[64];
+    private final double[] collapsed = new double[3];
+    private final double[] scratch = new double[3];
+    private final double[] m = new double[10];
+    private final double[] d1 = new double[3];
+    private final double[] d2 = new double[3];
+    private final double[] normal = new double[3];
+
+    private final IndexedMesh mesh;
+
+    private QuadricSimplifier(IndexedMesh mesh) {
+        this.mesh = mesh;
+        int vertexCount = mesh.getVertexCount();
+        float[] positions = mesh.getPositions();
+        p = new double[vertexCount * 3];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = positions[i];
+        }
+        q = new double[vertexCount * 10];
+        refStart = new int[vertexCount];
+        refCount = new int[vertexCount];
+        border = new boolean[vertexCount];
+
+        triangleCount = mesh.getTriangleCount();
+        tv = Arrays.copyOf(mesh.getIndices(), triangleCount * 3);
+        groups = Arrays.copyOf(mesh.getTriangleGroups(), triangleCount);
+        err = new double[triangleCount * 4];
+        tn = new double[triangleCount * 3];
+        deleted = new boolean[triangleCount];
+        dirty = new boolean[triangleCount];
+        refTriangle = new int[triangleCount * 3];
+        refCorner = new int[triangleCount * 3];
+    }
+
+    /**
+     * Simplify a welded mesh down to about the given number of triangles.
+     *
+     * @return a new mesh, or the given one if it already is small enough
+     */
+    public static IndexedMesh simplify(IndexedMesh mesh, int targetTriangles) {
+        if (mesh.getTriangleCount() <= targetTriangles) {
+            return mesh;
+        }
+        QuadricSimplifier simplifier = new QuadricSimplifier(mesh);
+        simplifier.run(targetTriangles);
+        return simplifier.build();
+    }
+
+    private void run(int targetTriangles) {
+        int initialCount = triangleCount;
+        int deletedCount = 0;
+
+        for (int pass = 0; pass < MAX_PASSES && initialCount - deletedCount > targetTriangles; pass++) {
+            if (pass % 5 == 0) {
+                updateMesh(pass);
+            }
+            Arrays.fill(dirty, 0, triangleCount, false);
+
+            double threshold = 0.000000001 * Math.pow(pass + 3, AGGRESSIVENESS);
+
+            for (int t = 0; t < triangleCount && initialCount - deletedCount > targetTriangles; t++) {
+                if (err[t * 4 + 3] > threshold || deleted[t] || dirty[t]) {
+                    continue;
+                }
+                for (int j = 0; j < 3; j++) {
+                    if (err[t * 4 + j] >= threshold) {
+                        continue;
+                    }
+                    int i0 = tv[t * 3 + j];
+                    int i1 = tv[t * 3 + (j + 1) % 3];
+                    if (border[i0] != border[i1]) {
+                        continue;
+                    }
+
+                    calculateError(i0, i1, collapsed);
+                    deleted0 = ensureCapacity(deleted0, refCount[i0]);
+                    deleted1 = ensureCapacity(deleted1, refCount[i1]);
+                    if (flipped(collapsed, i0, i1, deleted0) || flipped(collapsed, i1, i0, deleted1)) {
+                        continue;
+                    }
+
+                    System.arraycopy(collapsed, 0, p, i0 * 3, 3);
+                    for (int k = 0; k < 10; k++) {
+                        q[i0 * 10 + k] += q[i1 * 10 + k];
+                    }
+
+                    int start = refs;
+                    deletedCount += updateTriangles(i0, i0, deleted0);
+                    deletedCount += updateTriangles(i0, i1, deleted1);
+                    int count = refs - start;
+                    if (count <= refCount[i0]) {
+                        // Reuse the references slots of the kept vertex
+                        System.arraycopy(refTriangle, start, refTriangle, refStart[i0], count);
+                        System.arraycopy(refCorner, start, refCorner, refStart[i0], count);
+                    } else {
+                        refStart[i0] = start;
+                    }
+                    refCount[i0] = count;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void updateMesh(int pass) {
+        if (pass > 0) {
+            int kept = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                if (!deleted[t]) {
+                    System.arraycopy(tv, t * 3, tv, kept * 3, 3);
+                    System.arraycopy(err, t * 4, err, kept * 4, 4);
+                    System.arraycopy(tn, t * 3, tn, kept * 3, 3);
+                    groups[kept] = groups[t];
+                    deleted[kept] = false;
+                    kept++;
+                }
+            }
+            triangleCount = kept;
+        }
+
+        Arrays.fill(refCount, 0);
+        for (int i = 0; i < triangleCount * 3; i++) {
+            refCount[tv[i]]++;
+        }
+        int start = 0;
+        for (int v = 0; v < refCount.length; v++) {
+            refStart[v] = start;
+            start += refCount[v];
+            refCount[v] = 0;
+        }
+        refs = triangleCount * 3;
+        for (int t = 0; t < triangleCount; t++) {
+            for (int j = 0; j < 3; j++) {
+                int v = tv[t * 3 + j];
+                int r = refStart[v] + refCount[v]++;
+                refTriangle[r] = t;
+                refCorner[r] = j;
+            }
+        }
+
+        if (pass == 0) {
+            findBorders();
+            computeQuadrics();
+        }
+    }
+
+    /**
+     * A vertex is on a border when one of its edges belongs to a single triangle.
+     */
+    private void findBorders() {
+        IntArray neighbours = new IntArray(32);
+        IntArray occurrences = new IntArray(32);
+        for (int v = 0; v < refCount.length; v++) {
+            neighbours.clear();
+            occurrences.clear();
+            for (int k = 0; k < refCount[v]; k++) {
+                int t = refTriangle[refStart[v] + k];
+                for (int j = 0; j < 3; j++) {
+                    int id = tv[t * 3 + j];
+                    int found = -1;
+                    for (int n = 0; n < neighbours.size(); n++) {
+                        if (neighbours.get(n) == id) {
+                            found = n;
+                            break;
+                        }
+                    }
+                    if (found == -1) {
+                        neighbours.add(id);
+                        occurrences.add(1);
+                    } else {
+                        occurrences.set(found, occurrences.get(found) + 1);
+                    }
+                }
+            }
+            for (int n = 0; n < neighbours.size(); n++) {
+                if (occurrences.get(n) == 1) {
+                    border[neighbours.get(n)] = true;
+                }
+            }
+        }
+    }
+
+    private void computeQuadrics() {
+        for (int t = 0; t < triangleCount; t++) {
+            int a = tv[t * 3] * 3;
+            int b = tv[t * 3 + 1] * 3;
+            int c = tv[t * 3 + 2] * 3;
+            cross(p[b] - p[a], p[b + 1] - p[a + 1], p[b + 2] - p[a + 2],
+                    p[c] - p[a], p[c + 1] - p[a + 1], p[c + 2] - p[a + 2], normal);
+            normalize(normal);
+            System.arraycopy(normal, 0, tn, t * 3, 3);
+
+            double d = -(normal[0] * p[a] + normal[1] * p[a + 1] + normal[2] * p[a + 2]);
+            for (int j = 0; j < 3; j++) {
+                addPlane(tv[t * 3 + j], normal[0], normal[1], normal[2], d);
+            }
+        }
+        for (int t = 0; t < triangleCount; t++) {
+            updateErrors(t);
+        }
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d) {
+        int o = v * 10;
+        q[o] += a * a;
+        q[o + 1] += a * b;
+        q[o + 2] += a * c;
+        q[o + 3] += a * d;
+        q[o + 4] += b * b;
+        q[o + 5] += b * c;
+        q[o + 6] += b * d;
+        q[o + 7] += c * c;
+        q[o + 8] += c * d;
+        q[o + 9] += d * d;
+    }
+
+    private void updateErrors(int t) {
+        double e0 = calculateError(tv[t * 3], tv[t * 3 + 1], scratch);
+        double e1 = calculateError(tv[t * 3 + 1], tv[t * 3 + 2], scratch);
+        double e2 = calculateError(tv[t * 3 + 2], tv[t * 3], scratch);
+        err[t * 4] = e0;
+        err[t * 4 + 1] = e1;
+        err[t * 4 + 2] = e2;
+        err[t * 4 + 3] = Math.min(e0, Math.min(e1, e2));
+    }
+
+    /**
+     * Error of collapsing the edge, the optimal position is written in result.
+     */
+    private double calculateError(int v1, int v2, double[] result) {
+        for (int k = 0; k < 10; k++) {
+            m[k] = q[v1 * 10 + k] + q[v2 * 10 + k];
+        }
+        boolean onBorder = border[v1] && border[v2];
+        double det = det(m, 0, 1, 2, 1, 4, 5, 2, 5, 7);
+        if (det != 0 && !onBorder) {
+            result[0] = -1 / det * det(m, 1, 2, 3, 4, 5, 6, 5, 7, 8);
+            result[1] = 1 / det * det(m, 0, 2, 3, 1, 5, 6, 2, 7, 8);
+            result[2] = -1 / det * det(m, 0, 1, 3, 1, 4, 6, 2, 5, 8);
+            return vertexError(m, result[0], result[1], result[2]);
+        }
+
+        // Keep one of the end points or the middle of the edge
+        int a = v1 * 3;
+        int b = v2 * 3;
+        double mx = (p[a] + p[b]) / 2;
+        double my = (p[a + 1] + p[b + 1]) / 2;
+        double mz = (p[a + 2] + p[b + 2]) / 2;
+        double error1 = vertexError(m, p[a], p[a + 1], p[a + 2]);
+        double error2 = vertexError(m, p[b], p[b + 1], p[b + 2]);
+        double error3 = vertexError(m, mx, my, mz);
+        double error = Math.min(error1, Math.min(error2, error3));
+        if (error == error1) {
+            set(result, p[a], p[a + 1], p[a + 2]);
+        } else if (error == error2) {
+            set(result, p[b], p[b + 1], p[b + 2]);
+        } else {
+            set(result, mx, my, mz);
+        }
+        return error;
+    }
+
+    /**
+     * Check whether moving i0 to the collapsed position would flip one of its triangles. Triangles shared with
+     * i1 are flagged, they disappear with the collapse.
+     */
+    private boolean flipped(double[] position, int i0, int i1, boolean[] removed) {
+        for (int k = 0; k < refCount[i0]; k++) {
+            int r = refStart[i0] + k;
+            int t = refTriangle[r];
+            if (deleted[t]) {
+                continue;
+            }
+            int s = refCorner[r];
+            int id1 = tv[t * 3 + (s + 1) % 3];
+            int id2 = tv[t * 3 + (s + 2) % 3];
+            if (id1 == i1 || id2 == i1) {
+                removed[k] = true;
+                continue;
+            }
+            set(d1, p[id1 * 3] - position[0], p[id1 * 3 + 1] - position[1], p[id1 * 3 + 2] - position[2]);
+            normalize(d1);
+            set(d2, p[id2 * 3] - position[0], p[id2 * 3 + 1] - position[1], p[id2 * 3 + 2] - position[2]);
+            normalize(d2);
+            if (Math.abs(dot(d1, d2)) > 0.999) {
+                return true;
+            }
+            cross(d1[0], d1[1], d1[2], d2[0], d2[1], d2[2], normal);
+            normalize(normal);
+            removed[k] = false;
+            if (normal[0] * tn[t * 3] + normal[1] * tn[t * 3 + 1] + normal[2] * tn[t * 3 + 2] < 0.2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Point the triangles of v to i0, delete the flagged ones and record the references of the others.
+     *
+     * @return the number of deleted triangles
+     */
+    private int updateTriangles(int i0, int v, boolean[] removed) {
+        int deletedCount = 0;
+        int start = refStart[v];
+        int count = refCount[v];
+        for (int k = 0; k < count; k++) {
+            int t = refTriangle[start + k];
+            int corner = refCorner[start + k];
+            if (deleted[t]) {
+                continue;
+            }
+            if (removed[k]) {
+                deleted[t] = true;
+                deletedCount++;
+                continue;
+            }
+            tv[t * 3 + corner] = i0;
+            dirty[t] = true;
+            updateErrors(t);
+            addReference(t, corner);
+        }
+        return deletedCount;
+    }
+
+    private void addReference(int t, int corner) {
+        if (refs == refTriangle.length) {
+            refTriangle = Arrays.copyOf(refTriangle, refs * 2);
+            refCorner = Arrays.copyOf(refCorner, refs * 2);
+        }
+        refTriangle[refs] = t;
+        refCorner[refs] = corner;
+        refs++;
+    }
+
+    private IndexedMesh build() {
+        int[] remap = new int[refCount.length];
+        Arrays.fill(remap, -1);
+        FloatArray positions = new FloatArray();
+        IntArray indices = new IntArray(triangleCount * 3);
+        IntArray triangleGroups = new IntArray(triangleCount);
+        for (int t = 0; t < triangleCount; t++) {
+            if (deleted[t]) {
+                continue;
+            }
+            for (int j = 0; j < 3; j++) {
+                int v = tv[t * 3 + j];
+                if (remap[v] == -1) {
+                    remap[v] = positions.size() / 3;
+                    positions.add((float) p[v * 3]);
+                    positions.add((float) p[v * 3 + 1]);
+                    positions.add((float) p[v * 3 + 2]);
+                }
+                indices.add(remap[v]);
+            }
+            triangleGroups.add(groups[t]);
+        }
+        return new IndexedMesh(positions.toArray(), indices.toArray(), triangleGroups.toArray(),
+                new ArrayList<>(mesh.getGroups()), new ArrayList<>(mesh.getMaterialLibraries()));
+    }
+
+    private static double det(double[] m, int a11, int a12, int a13, int a21, int a22, int a23, int a31, int a32,
+                              int a33) {
+        return m[a11] * m[a22] * m[a33] + m[a13] * m[a21] * m[a32] + m[a12] * m[a23] * m[a31]
+                - m[a13] * m[a22] * m[a31] - m[a11] * m[a23] * m[a32] - m[a12] * m[a21] * m[a33];
+    }
+
+    private static double vertexError(double[] m, double x, double y, double z) {
+        return m[0] * x * x + 2 * m[1] * x * y + 2 * m[2] * x * z + 2 * m[3] * x + m[4] * y * y
+                + 2 * m[5] * y * z + 2 * m[6] * y + m[7] * z * z + 2 * m[8] * z + m[9];
+    }
+
+    private static boolean[] ensureCapacity(boolean[] array, int capacity) {
+        return array.length >= capacity ? array : new boolean[Math.max(capacity, array.length * 2)];
+    }
+
+    private static void cross(double ax, double ay, double az, double bx, double by, double bz, double[] result) {
+        set(result, ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx);
+    }
+
+    private static void normalize(double[] v) {
+        double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (length > 0) {
+            v[0] /= length;
+            v[1] /= length;
+            v[2] /= length;
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static void set(double[] v, double x, double y, double z) {
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write a quantized copy of the converted OBJ, to reduce storage and transfer sizes.
+ *
+ * @see QuantizedMeshWriter
+ */
+public class QuantizedMeshPostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "qmesh";
+
+    private static final Logger LOGGER = Logger.getLogger(QuantizedMeshPostProcessor.class.getName());
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("qmesh_enabled", false);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        String fileName = objFile.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        Path qmeshFile = tmpDir.resolve((dot > 0 ? fileName.substring(0, dot) : fileName)
+                + QuantizedMeshWriter.EXTENSION);
+        int positionBits = ConverterConfiguration.getInt("qmesh_position_bits", 16);
+        int normalBits = ConverterConfiguration.getInt("qmesh_normal_bits", 8);
+
+        long start = System.currentTimeMillis();
+        try {
+            QuantizedMeshWriter.write(result.getSpilledMesh(tmpDir), qmeshFile, positionBits, normalBits);
+            LOGGER.log(Level.INFO, "{0}: {1} bytes encoded to {2} in {3} ms", new Object[]{objFile.getFileName(),
+                    Files.size(objFile), Files.size(qmeshFile), System.currentTimeMillis() - start});
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ConversionException("Cannot encode " + objFile, e);
+        }
+        result.addArtifact(ARTIFACT, qmeshFile);
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reference decoder of the {@link QuantizedMeshWriter} encoding, the viewer implements the same steps.
+ * <p>
+ * Decoding is a single linear pass over the file without lookup tables:
+ * <ul>
+ * <li>positions: one multiply-add per coordinate</li>
+ * <li>normals: about ten arithmetic operations and one square root per vertex to unfold the octahedron</li>
+ * <li>indices: one or two bytes read per index in the common case, a zigzag decoding and an addition; this
+ * is the only branchy loop and dominates the decoding time of meshes with many triangles</li>
+ * </ul>
+ * This is much cheaper than parsing the equivalent OBJ text, and is the price paid for storing and sending two to
+ * three times fewer bytes than 32-bit float buffers (about five times fewer than the OBJ text).
+ */
+public class QuantizedMeshReader {
+
+    private final float[] positions;
+    private final float[] normals;
+    private final int[] indices;
+    private final List<String[]> primitives;
+    private final int[] primitiveIndexCounts;
+
+    private QuantizedMeshReader(float[] positions, float[] normals, int[] indices, List<String[]> primitives,
+                                int[] primitiveIndexCounts) {
+        this.positions = positions;
+        this.normals = normals;
+        this.indices = indices;
+        this.primitives = primitives;
+        this.primitiveIndexCounts = primitiveIndexCounts;
+    }
+
+    public static QuantizedMeshReader read(Path qmeshFile) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(qmeshFile)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[QuantizedMeshWriter.MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, QuantizedMeshWriter.MAGIC) || buffer.get() != QuantizedMeshWriter.VERSION) {
+            throw new IOException("Not a quantized mesh: " + qmeshFile);
+        }
+        boolean hasNormals = (buffer.get() & QuantizedMeshWriter.FLAG_NORMALS) != 0;
+        int positionBits = buffer.get();
+        int normalBits = buffer.get();
+        int vertexCount = buffer.getInt();
+        int indexCount = buffer.getInt();
+        float[] min = {buffer.getFloat(), buffer.getFloat(), buffer.getFloat()};
+        float[] max = {buffer.getFloat(), buffer.getFloat(), buffer.getFloat()};
+
+        int primitiveCount = (int) getVarint(buffer);
+        List<String[]> primitives = new ArrayList<>();
+        int[] primitiveIndexCounts = new int[primitiveCount];
+        for (int i = 0; i < primitiveCount; i++) {
+            String group = getString(buffer);
+            String material = getString(buffer);
+            primitives.add(new String[]{group, material.isEmpty() ? null : material});
+            primitiveIndexCounts[i] = (int) getVarint(buffer);
+        }
+
+        float[] positions = new float[vertexCount * 3];
+        float[] scale = new float[3];
+        for (int i = 0; i < 3; i++) {
+            scale[i] = (max[i] - min[i]) / ((1 << positionBits) - 1);
+        }
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = min[i % 3] + (buffer.getShort() & 0xFFFF) * scale[i % 3];
+        }
+
+        float[] normals = null;
+        if (hasNormals) {
+            normals = new float[vertexCount * 3];
+            float[] normal = new float[3];
+            for (int vertex = 0; vertex < vertexCount; vertex++) {
+                int u = normalBits <= 8 ? buffer.get() : buffer.getShort();
+                int v = normalBits <= 8 ? buffer.get() : buffer.getShort();
+                decodeOctahedral(u, v, normalBits, normal);
+                System.arraycopy(normal, 0, normals, vertex * 3, 3);
+            }
+        }
+
+        int[] indices = new int[indexCount];
+        long previous = 0;
+        for (int i = 0; i < indexCount; i++) {
+            long zigzag = getVarint(buffer);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            indices[i] = (int) previous;
+        }
+        return new QuantizedMeshReader(positions, normals, indices, primitives, primitiveIndexCounts);
+    }
+
+    static void decodeOctahedral(int encodedU, int encodedV, int bits, float[] normal) {
+        float levels = (1 << (bits - 1)) - 1;
+        float u = Math.max(-1, encodedU / levels);
+        float v = Math.max(-1, encodedV / levels);
+        float z = 1 - Math.abs(u) - Math.abs(v);
+        if (z < 0) {
+            float foldedU = (1 - Math.abs(v)) * (u < 0 ? -1 : 1);
+            v = (1 - Math.abs(u)) * (v < 0 ? -1 : 1);
+            u = foldedU;
+        }
+        float length = (float) Math.sqrt(u * u + v * v + z * z);
+        normal[0] = u / length;
+        normal[1] = v / length;
+        normal[2] = z / length;
+    }
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return the unit normals, or null if the mesh has none
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getPrimitiveCount() {
+        return primitives.size();
+    }
+
+    public String getGroup(int primitive) {
+        return primitives.get(primitive)[0];
+    }
+
+    public String getMaterial(int primitive) {
+        return primitives.get(primitive)[1];
+    }
+
+    public int getIndexCount(int primitive) {
+        return primitiveIndexCounts[primitive];
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[(int) getVarint(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
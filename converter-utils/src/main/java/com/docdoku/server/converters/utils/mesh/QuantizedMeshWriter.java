@@ -0,0 +1,471 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Compact encoding of a converted mesh: quantized positions, octahedral normals and delta coded indices.
+ * <p>
+ * Layout, little-endian:
+ * <pre>
+ * "QMSH"              magic
+ * u8                  version (1)
+ * u8                  flags, bit 0 set when the mesh has normals
+ * u8                  position bits (1 to 16)
+ * u8                  normal bits (2 to 16)
+ * u32                 vertex count
+ * u32                 index count
+ * f32 x 3, f32 x 3    bounds minimum and maximum
+ * varint              primitive count
+ *   per primitive     group name, material name (varint byte length then UTF-8, empty for none),
+ *                     varint index count
+ * u16 x 3             per vertex, quantized position
+ * s8 or s16 x 2       per vertex when the mesh has normals, octahedral normal (s16 above 8 bits)
+ * varint              per index, zigzag encoded difference with the previous index (0 for the first one)
+ * </pre>
+ * A position coordinate is <code>min + q * (max - min) / (2^bits - 1)</code>: with 16 bits, the error is below
+ * 1/131070 of the part size. A normal is stored as its projection on the octahedron unfolded on a square, which
+ * spreads the precision evenly on the sphere: 8 bits per component are enough for shading.
+ * <p>
+ * Vertices take 6 to 10 bytes instead of 24, indices 1 to 2 bytes instead of 4 as OBJ vertices are mostly referenced
+ * near the previous ones. The mesh is streamed from a {@link SpilledMesh} or taken from arrays, see
+ * {@link QuantizedMeshReader} for the decoding.
+ */
+public class QuantizedMeshWriter {
+
+    public static final String EXTENSION = ".qmesh";
+
+    static final byte[] MAGIC = "QMSH".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int FLAG_NORMALS = 1;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Source mesh;
+    private final int positionBits;
+    private final int normalBits;
+    private final FileChannel out;
+    private final ByteBuffer buffer;
+
+    private QuantizedMeshWriter(Source mesh, int positionBits, int normalBits, FileChannel out) {
+        this.mesh = mesh;
+        this.positionBits = positionBits;
+        this.normalBits = normalBits;
+        this.out = out;
+        // Tiles are written by thousands, do not allocate a large buffer for each of them
+        long size = 64 + mesh.getVertexCount() * 10 + mesh.getIndexCount() * 5;
+        this.buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(4096, size)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Encode the OBJ file.
+     *
+     * @param workDir directory for the temporary files of the encoding
+     */
+    public static void write(Path objFile, Path qmeshFile, Path workDir, int positionBits, int normalBits)
+            throws IOException {
+        checkBits(positionBits, normalBits);
+        try (SpilledMesh mesh = SpilledMesh.read(objFile, workDir)) {
+            write(mesh, qmeshFile, positionBits, normalBits);
+        }
+    }
+
+    /**
+     * Encode an OBJ file already read.
+     */
+    public static void write(SpilledMesh mesh, Path qmeshFile, int positionBits, int normalBits) throws IOException {
+        write(new SpilledSource(mesh), qmeshFile, positionBits, normalBits);
+    }
+
+    /**
+     * Encode a mesh held in arrays, laid out as returned by {@link QuantizedMeshReader}.
+     *
+     * @param positions            x, y, z per vertex
+     * @param normals              x, y, z unit normal per vertex, or null
+     * @param indices              three vertex indices per triangle, primitive after primitive
+     * @param primitives           group and material (null for none) of each primitive
+     * @param primitiveIndexCounts number of indices of each primitive
+     */
+    public static void write(float[] positions, float[] normals, int[] indices, List<String[]> primitives,
+                             int[] primitiveIndexCounts, Path qmeshFile, int positionBits, int normalBits)
+            throws IOException {
+        write(new ArraySource(positions, normals, indices, primitives, primitiveIndexCounts), qmeshFile,
+                positionBits, normalBits);
+    }
+
+    private static void write(Source mesh, Path qmeshFile, int positionBits, int normalBits) throws IOException {
+        checkBits(positionBits, normalBits);
+        try (FileChannel out = FileChannel.open(qmeshFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            new QuantizedMeshWriter(mesh, positionBits, normalBits, out).write();
+        }
+    }
+
+    private static void checkBits(int positionBits, int normalBits) {
+        if (positionBits < 1 || positionBits > 16 || normalBits < 2 || normalBits > 16) {
+            throw new IllegalArgumentException("Invalid quantization: " + positionBits + " bits per coordinate, "
+                    + normalBits + " bits per normal component");
+        }
+    }
+
+    private void write() throws IOException {
+        if (mesh.getVertexCount() > 0xFFFFFFFFL || mesh.getIndexCount() > 0xFFFFFFFFL) {
+            throw new IOException("Mesh too large to be encoded");
+        }
+        float[] min = mesh.getMin();
+        float[] max = mesh.getMax();
+        if (mesh.getVertexCount() == 0) {
+            min = new float[3];
+            max = new float[3];
+        }
+
+        buffer.put(MAGIC)
+                .put((byte) VERSION)
+                .put((byte) (mesh.hasNormals() ? FLAG_NORMALS : 0))
+                .put((byte) positionBits)
+                .put((byte) normalBits)
+                .putInt((int) mesh.getVertexCount())
+                .putInt((int) mesh.getIndexCount());
+        for (float value : min) {
+            buffer.putFloat(value);
+        }
+        for (float value : max) {
+            buffer.putFloat(value);
+        }
+        putVarint(mesh.getPrimitiveCount());
+        for (int primitive = 0; primitive < mesh.getPrimitiveCount(); primitive++) {
+            String material = mesh.getMaterial(primitive);
+            putString(mesh.getGroup(primitive));
+            putString(material == null ? "" : material);
+            ensureRemaining(10);
+            putVarint(mesh.getIndexCount(primitive));
+        }
+
+        writePositions(min, max);
+        if (mesh.hasNormals()) {
+            writeNormals();
+        }
+        writeIndices();
+        flush();
+    }
+
+    private void writePositions(float[] min, float[] max) throws IOException {
+        int levels = (1 << positionBits) - 1;
+        double[] scale = new double[3];
+        for (int i = 0; i < 3; i++) {
+            double extent = (double) max[i] - min[i];
+            scale[i] = extent > 0 ? levels / extent : 0;
+        }
+        float[] position = new float[3];
+        for (long vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            ensureRemaining(6);
+            mesh.getPosition(vertex, position);
+            for (int i = 0; i < 3; i++) {
+                long q = Math.round((position[i] - min[i]) * scale[i]);
+                buffer.putShort((short) Math.max(0, Math.min(levels, q)));
+            }
+        }
+    }
+
+    private void writeNormals() throws IOException {
+        float[] normal = new float[3];
+        int[] encoded = new int[2];
+        for (long vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            ensureRemaining(4);
+            mesh.getNormal(vertex, normal);
+            encodeOctahedral(normal, normalBits, encoded);
+            if (normalBits <= 8) {
+                buffer.put((byte) encoded[0]).put((byte) encoded[1]);
+            } else {
+                buffer.putShort((short) encoded[0]).putShort((short) encoded[1]);
+            }
+        }
+    }
+
+    private void writeIndices() throws IOException {
+        IndexSource indices = mesh.indices();
+        long previous = 0;
+        for (long i = 0; i < mesh.getIndexCount(); i++) {
+            long index = indices.next();
+            long delta = index - previous;
+            ensureRemaining(10);
+            putVarint((delta << 1) ^ (delta >> 63));
+            previous = index;
+        }
+    }
+
+    /**
+     * Project the unit vector on the octahedron, then unfold the lower half on the corners of the square.
+     */
+    static void encodeOctahedral(float[] normal, int bits, int[] encoded) {
+        double l1 = Math.abs(normal[0]) + Math.abs(normal[1]) + Math.abs(normal[2]);
+        double u = normal[0] / l1;
+        double v = normal[1] / l1;
+        if (normal[2] < 0) {
+            double unfoldedU = (1 - Math.abs(v)) * sign(u);
+            v = (1 - Math.abs(u)) * sign(v);
+            u = unfoldedU;
+        }
+        int levels = (1 << (bits - 1)) - 1;
+        encoded[0] = (int) Math.round(u * levels);
+        encoded[1] = (int) Math.round(v * levels);
+    }
+
+    private static double sign(double value) {
+        return value < 0 ? -1 : 1;
+    }
+
+    private void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(10);
+        putVarint(bytes.length);
+        for (byte b : bytes) {
+            ensureRemaining(1);
+            buffer.put(b);
+        }
+    }
+
+    private void putVarint(long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private interface IndexSource {
+
+        long next() throws IOException;
+
+    }
+
+    /**
+     * Mesh to encode, its vertices are read in order and its indices once.
+     */
+    private interface Source {
+
+        long getVertexCount();
+
+        long getIndexCount();
+
+        boolean hasNormals();
+
+        float[] getMin();
+
+        float[] getMax();
+
+        int getPrimitiveCount();
+
+        String getGroup(int primitive);
+
+        String getMaterial(int primitive);
+
+        long getIndexCount(int primitive);
+
+        void getPosition(long vertex, float[] position);
+
+        void getNormal(long vertex, float[] normal);
+
+        IndexSource indices();
+
+    }
+
+    private static class SpilledSource implements Source {
+
+        private final SpilledMesh mesh;
+
+        SpilledSource(SpilledMesh mesh) {
+            this.mesh = mesh;
+        }
+
+        @Override
+        public long getVertexCount() {
+            return mesh.getVertexCount();
+        }
+
+        @Override
+        public long getIndexCount() {
+            return mesh.getIndexCount();
+        }
+
+        @Override
+        public boolean hasNormals() {
+            return mesh.hasNormals();
+        }
+
+        @Override
+        public float[] getMin() {
+            return mesh.getMin();
+        }
+
+        @Override
+        public float[] getMax() {
+            return mesh.getMax();
+        }
+
+        @Override
+        public int getPrimitiveCount() {
+            return mesh.getPrimitives().size();
+        }
+
+        @Override
+        public String getGroup(int primitive) {
+            return mesh.getPrimitives().get(primitive).getGroup();
+        }
+
+        @Override
+        public String getMaterial(int primitive) {
+            return mesh.getPrimitives().get(primitive).getMaterial();
+        }
+
+        @Override
+        public long getIndexCount(int primitive) {
+            return mesh.getPrimitives().get(primitive).getIndexCount();
+        }
+
+        @Override
+        public void getPosition(long vertex, float[] position) {
+            mesh.getPosition(vertex, position);
+        }
+
+        @Override
+        public void getNormal(long vertex, float[] normal) {
+            mesh.getNormal(vertex, normal);
+        }
+
+        @Override
+        public IndexSource indices() {
+            return mesh.indexReader()::next;
+        }
+
+    }
+
+    private static class ArraySource implements Source {
+
+        private final float[] positions;
+        private final float[] normals;
+        private final int[] indices;
+        private final List<String[]> primitives;
+        private final int[] primitiveIndexCounts;
+        private final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        private final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+        ArraySource(float[] positions, float[] normals, int[] indices, List<String[]> primitives,
+                    int[] primitiveIndexCounts) {
+            this.positions = positions;
+            this.normals = normals;
+            this.indices = indices;
+            this.primitives = primitives;
+            this.primitiveIndexCounts = primitiveIndexCounts;
+            for (int i = 0; i < positions.length; i++) {
+                min[i % 3] = Math.min(min[i % 3], positions[i]);
+                max[i % 3] = Math.max(max[i % 3], positions[i]);
+            }
+        }
+
+        @Override
+        public long getVertexCount() {
+            return positions.length / 3;
+        }
+
+        @Override
+        public long getIndexCount() {
+            return indices.length;
+        }
+
+        @Override
+        public boolean hasNormals() {
+            return normals != null;
+        }
+
+        @Override
+        public float[] getMin() {
+            return min.clone();
+        }
+
+        @Override
+        public float[] getMax() {
+            return max.clone();
+        }
+
+        @Override
+        public int getPrimitiveCount() {
+            return primitives.size();
+        }
+
+        @Override
+        public String getGroup(int primitive) {
+            return primitives.get(primitive)[0];
+        }
+
+        @Override
+        public String getMaterial(int primitive) {
+            return primitives.get(primitive)[1];
+        }
+
+        @Override
+        public long getIndexCount(int primitive) {
+            return primitiveIndexCounts[primitive];
+        }
+
+        @Override
+        public void getPosition(long vertex, float[] position) {
+            System.arraycopy(positions, (int) vertex * 3, position, 0, 3);
+        }
+
+        @Override
+        public void getNormal(long vertex, float[] normal) {
+            System.arraycopy(normals, (int) vertex * 3, normal, 0, 3);
+        }
+
+        @Override
+        public IndexSource indices() {
+            int[] next = {0};
+            return () -> indices[next[0]++];
+        }
+
+    }
+
+}
@@ -0,0 +1,543 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.io.MappedFileCursor;
+import com.docdoku.server.converters.utils.io.MappedFloatStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Indexed triangle mesh of an OBJ file, kept in memory-mapped temporary files instead of the heap.
+ * <p>
+ * A first pass spills the positions and normals of the file. A second pass writes the triangle indices to a
+ * temporary file as faces are read. Vertices are the OBJ positions in their order, with a normal when the file
+ * has normals: a position used with different normals (hard edges) is duplicated after them. The heap usage
+ * depends on the number of groups and materials of the file, not on its size.
+ * <p>
+ * Triangles are split in primitives, one per run of faces of the same group and material. Faces with invalid
+ * references or coordinates are dropped.
+ */
+public class SpilledMesh implements Closeable {
+
+    private static final long MAX_VERTICES = 0xFFFFFFFFL;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Recently duplicated (position, normal) pairs, adjacent faces of a hard edge share their duplicates
+    private static final int DUPLICATE_CACHE_SIZE = 4096;
+
+    private static final byte[] VN = "n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USEMTL = "semtl".getBytes(StandardCharsets.US_ASCII);
+    private static final String DEFAULT_GROUP = "default";
+
+    private final MappedFloatStore positions;
+    private final MappedFloatStore normals;
+    private final MappedFloatStore vertexNormals;
+    private final MappedFloatStore duplicates;
+    private final Path indexFile;
+    private final FileChannel indexChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Primitive> primitives = new ArrayList<>();
+    private long positionCount;
+    private long normalCount;
+    private long indexCount;
+    private long duplicateCount;
+    private final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    private final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    private final long[] duplicateKeys = new long[DUPLICATE_CACHE_SIZE];
+    private final long[] duplicateVertices = new long[DUPLICATE_CACHE_SIZE];
+
+    private long[] cornerPositions = new long[16];
+    private long[] cornerNormals = new long[16];
+    private long[] cornerVertices = new long[16];
+    private final float[] normal = new float[3];
+    private final float[] faceNormal = new float[3];
+    private boolean faceNormalComputed;
+    private String groupName = DEFAULT_GROUP;
+    private String material;
+    private Primitive current;
+
+    private SpilledMesh(Path workDir) throws IOException {
+        positions = new MappedFloatStore(workDir, "positions");
+        normals = new MappedFloatStore(workDir, "normals");
+        vertexNormals = new MappedFloatStore(workDir, "vertex-normals");
+        duplicates = new MappedFloatStore(workDir, "duplicates");
+        indexFile = Files.createTempFile(workDir, "indices", ".bin");
+        indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Arrays.fill(duplicateKeys, -1);
+    }
+
+    /**
+     * Read the OBJ file, the mesh must be closed to remove its temporary files.
+     *
+     * @param workDir directory for the temporary files
+     */
+    public static SpilledMesh read(Path objFile, Path workDir) throws IOException {
+        SpilledMesh mesh = new SpilledMesh(workDir);
+        try {
+            try (MappedFileCursor cursor = new MappedFileCursor(objFile)) {
+                mesh.readVertices(cursor);
+            }
+            try (MappedFileCursor cursor = new MappedFileCursor(objFile)) {
+                mesh.readFaces(cursor);
+            }
+            mesh.computeBounds();
+            return mesh;
+        } catch (IOException | RuntimeException e) {
+            mesh.close();
+            throw e;
+        }
+    }
+
+    public boolean hasNormals() {
+        return normalCount > 0;
+    }
+
+    public long getVertexCount() {
+        return positionCount + duplicateCount;
+    }
+
+    public long getIndexCount() {
+        return indexCount;
+    }
+
+    public List<Primitive> getPrimitives() {
+        return Collections.unmodifiableList(primitives);
+    }
+
+    /**
+     * Bounds of the vertex positions, meaningless when the mesh has no vertices.
+     */
+    public float[] getMin() {
+        return min.clone();
+    }
+
+    public float[] getMax() {
+        return max.clone();
+    }
+
+    /**
+     * Position of the vertex, non-finite coordinates of unused OBJ positions are replaced by 0.
+     */
+    public void getPosition(long vertex, float[] position) {
+        if (vertex < positionCount) {
+            for (int i = 0; i < 3; i++) {
+                float value = positions.get(vertex * 3 + i);
+                position[i] = Float.isNaN(value) || Float.isInfinite(value) ? 0 : value;
+            }
+        } else {
+            for (int i = 0; i < 3; i++) {
+                position[i] = duplicates.get((vertex - positionCount) * 6 + i);
+            }
+        }
+    }
+
+    /**
+     * Unit normal of the vertex, (0, 0, 1) for OBJ positions not used by any face.
+     */
+    public void getNormal(long vertex, float[] vector) {
+        if (vertex < positionCount) {
+            float x = vertexNormals.get(vertex * 3);
+            if (Float.isNaN(x)) {
+                vector[0] = 0;
+                vector[1] = 0;
+                vector[2] = 1;
+            } else {
+                vector[0] = x;
+                vector[1] = vertexNormals.get(vertex * 3 + 1);
+                vector[2] = vertexNormals.get(vertex * 3 + 2);
+            }
+        } else {
+            for (int i = 0; i < 3; i++) {
+                vector[i] = duplicates.get((vertex - positionCount) * 6 + 3 + i);
+            }
+        }
+    }
+
+    /**
+     * Copy the indices, as little-endian unsigned 32-bit integers in primitive order.
+     */
+    public void transferIndices(WritableByteChannel target) throws IOException {
+        long length = indexCount * Integer.BYTES;
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += indexChannel.transferTo(transferred, length - transferred, target);
+        }
+    }
+
+    /**
+     * Sequential reader of the indices, in primitive order.
+     */
+    public IndexReader indexReader() {
+        return new IndexReader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            indexChannel.close();
+            Files.deleteIfExists(indexFile);
+        } finally {
+            positions.close();
+            normals.close();
+            vertexNormals.close();
+            duplicates.close();
+        }
+    }
+
+    private void readVertices(MappedFileCursor cursor) throws IOException {
+        while (cursor.hasRemaining()) {
+            cursor.skipBlanks();
+            if (cursor.next() == 'v') {
+                if (isBlank(cursor.peek())) {
+                    addVector(cursor, positions);
+                } else if (cursor.consume(VN) && isBlank(cursor.peek())) {
+                    addVector(cursor, normals);
+                }
+            }
+            cursor.skipLine();
+        }
+        positions.seal();
+        normals.seal();
+        positionCount = positions.size() / 3;
+        normalCount = normals.size() / 3;
+        if (hasNormals()) {
+            // Normal of each position, assigned by the first face using it
+            for (long i = 0; i < positions.size(); i++) {
+                vertexNormals.add(Float.NaN);
+            }
+        }
+        vertexNormals.seal();
+    }
+
+    private static void addVector(MappedFileCursor cursor, MappedFloatStore store) throws IOException {
+        store.add((float) cursor.nextDouble());
+        store.add((float) cursor.nextDouble());
+        store.add((float) cursor.nextDouble());
+    }
+
+    private void readFaces(MappedFileCursor cursor) throws IOException {
+        while (cursor.hasRemaining()) {
+            cursor.skipBlanks();
+            switch (cursor.next()) {
+                case 'f':
+                    if (isBlank(cursor.peek())) {
+                        readFace(cursor);
+                    }
+                    break;
+                case 'g':
+                case 'o':
+                    if (isBlank(cursor.peek()) || cursor.atEndOfLine()) {
+                        String name = cursor.restOfLine();
+                        groupName = name.isEmpty() ? DEFAULT_GROUP : name;
+                        current = null;
+                    }
+                    break;
+                case 'u':
+                    if (cursor.consume(USEMTL)) {
+                        material = cursor.nextWord();
+                        current = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            cursor.skipLine();
+        }
+        flush();
+        duplicates.seal();
+    }
+
+    private void readFace(MappedFileCursor cursor) throws IOException {
+        int count = 0;
+        cursor.skipBlanks();
+        while (!cursor.atEndOfLine() && cursor.peek() != '#') {
+            long position = cursor.nextLong();
+            if (position == Long.MIN_VALUE) {
+                return;
+            }
+            long normalIndex = 0;
+            if (cursor.peek() == '/') {
+                cursor.skip();
+                if (cursor.peek() != '/') {
+                    // Texture coordinates are not kept
+                    cursor.nextLong();
+                }
+                if (cursor.peek() == '/') {
+                    cursor.skip();
+                    normalIndex = cursor.nextLong();
+                }
+            }
+            if (count == cornerPositions.length) {
+                cornerPositions = Arrays.copyOf(cornerPositions, count * 2);
+                cornerNormals = Arrays.copyOf(cornerNormals, count * 2);
+                cornerVertices = Arrays.copyOf(cornerVertices, count * 2);
+            }
+            cornerPositions[count] = resolve(position, positionCount);
+            cornerNormals[count] = normalIndex == Long.MIN_VALUE ? -1 : resolve(normalIndex, normalCount);
+            if (cornerPositions[count] == -1 || !isFinite(positions, cornerPositions[count])) {
+                return;
+            }
+            count++;
+            cursor.skipBlanks();
+        }
+
+        if (count < 3) {
+            return;
+        }
+        faceNormalComputed = false;
+        for (int k = 0; k < count; k++) {
+            cornerVertices[k] = vertex(k);
+        }
+        if (current == null) {
+            current = primitive();
+        }
+        for (int k = 1; k < count - 1; k++) {
+            if (buffer.remaining() < 3 * Integer.BYTES) {
+                flush();
+            }
+            buffer.putInt((int) cornerVertices[0]);
+            buffer.putInt((int) cornerVertices[k]);
+            buffer.putInt((int) cornerVertices[k + 1]);
+            current.indexCount += 3;
+            indexCount += 3;
+        }
+    }
+
+    /**
+     * Vertex of the face corner: the OBJ position, or a duplicate of it when its normal differs from the one
+     * already assigned to the position.
+     */
+    private long vertex(int corner) throws IOException {
+        long position = cornerPositions[corner];
+        if (!hasNormals()) {
+            return position;
+        }
+        long normalIndex = cornerNormals[corner];
+        boolean explicit = normalIndex >= 0 && isFinite(normals, normalIndex)
+                && normalize(normal, normals.get(normalIndex * 3), normals.get(normalIndex * 3 + 1),
+                normals.get(normalIndex * 3 + 2));
+        float assigned = vertexNormals.get(position * 3);
+        if (Float.isNaN(assigned)) {
+            if (!explicit) {
+                System.arraycopy(faceNormal(), 0, normal, 0, 3);
+            }
+            for (int i = 0; i < 3; i++) {
+                vertexNormals.set(position * 3 + i, normal[i]);
+            }
+            return position;
+        }
+        if (!explicit || (assigned == normal[0] && vertexNormals.get(position * 3 + 1) == normal[1]
+                && vertexNormals.get(position * 3 + 2) == normal[2])) {
+            return position;
+        }
+
+        long key = normalIndex << 32 | position;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 52) & (DUPLICATE_CACHE_SIZE - 1);
+        if (duplicateKeys[slot] == key) {
+            return duplicateVertices[slot];
+        }
+        long vertex = positionCount + duplicateCount++;
+        if (vertex > MAX_VERTICES) {
+            throw new IOException("Too many vertices, indices are limited to 32 bits");
+        }
+        for (int i = 0; i < 3; i++) {
+            duplicates.add(positions.get(position * 3 + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            duplicates.add(normal[i]);
+        }
+        duplicateKeys[slot] = key;
+        duplicateVertices[slot] = vertex;
+        return vertex;
+    }
+
+    /**
+     * Normal of the plane of the first three corners of the face, for corners without normal.
+     */
+    private float[] faceNormal() {
+        if (faceNormalComputed) {
+            return faceNormal;
+        }
+        long a = cornerPositions[0] * 3;
+        long b = cornerPositions[1] * 3;
+        long c = cornerPositions[2] * 3;
+        float ux = positions.get(b) - positions.get(a);
+        float uy = positions.get(b + 1) - positions.get(a + 1);
+        float uz = positions.get(b + 2) - positions.get(a + 2);
+        float vx = positions.get(c) - positions.get(a);
+        float vy = positions.get(c + 1) - positions.get(a + 1);
+        float vz = positions.get(c + 2) - positions.get(a + 2);
+        if (!normalize(faceNormal, uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx)) {
+            faceNormal[0] = 0;
+            faceNormal[1] = 0;
+            faceNormal[2] = 1;
+        }
+        faceNormalComputed = true;
+        return faceNormal;
+    }
+
+    /**
+     * Start a primitive for the current group and material, or continue the last one when a group is repeated.
+     */
+    private Primitive primitive() {
+        Primitive last = primitives.isEmpty() ? null : primitives.get(primitives.size() - 1);
+        if (last != null && last.group.equals(groupName) && equalsOrNull(last.material, material)) {
+            return last;
+        }
+        Primitive primitive = new Primitive(groupName, material, indexCount);
+        primitives.add(primitive);
+        return primitive;
+    }
+
+    private void computeBounds() {
+        float[] position = new float[3];
+        for (long vertex = 0; vertex < positionCount; vertex++) {
+            getPosition(vertex, position);
+            for (int i = 0; i < 3; i++) {
+                min[i] = Math.min(min[i], position[i]);
+                max[i] = Math.max(max[i], position[i]);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        long position = indexChannel.size();
+        while (buffer.hasRemaining()) {
+            position += indexChannel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Store the normalized vector.
+     *
+     * @return false if the vector cannot be normalized
+     */
+    private static boolean normalize(float[] target, float x, float y, float z) {
+        double length = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+        if (length == 0 || Double.isNaN(length) || Double.isInfinite(length)) {
+            return false;
+        }
+        target[0] = (float) (x / length);
+        target[1] = (float) (y / length);
+        target[2] = (float) (z / length);
+        return true;
+    }
+
+    private static long resolve(long index, long count) {
+        long resolved = index > 0 ? index - 1 : count + index;
+        return index == 0 || resolved < 0 || resolved >= count ? -1 : resolved;
+    }
+
+    private static boolean isFinite(MappedFloatStore store, long vector) {
+        for (int i = 0; i < 3; i++) {
+            float value = store.get(vector * 3 + i);
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(int c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean equalsOrNull(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Triangles of a run of faces with the same group and material.
+     */
+    public static class Primitive {
+
+        private final String group;
+        private final String material;
+        private final long firstIndex;
+        private long indexCount;
+
+        Primitive(String group, String material, long firstIndex) {
+            this.group = group;
+            this.material = material;
+            this.firstIndex = firstIndex;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        /**
+         * @return the material name, or null if the faces have none
+         */
+        public String getMaterial() {
+            return material;
+        }
+
+        public long getFirstIndex() {
+            return firstIndex;
+        }
+
+        public long getIndexCount() {
+            return indexCount;
+        }
+    }
+
+    public class IndexReader {
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        private IndexReader() {
+            readBuffer.flip();
+        }
+
+        public long next() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.clear();
+                int read;
+                while (readBuffer.hasRemaining() && (read = indexChannel.read(readBuffer, position)) > 0) {
+                    position += read;
+                }
+                readBuffer.flip();
+                if (readBuffer.remaining() < Integer.BYTES) {
+                    throw new IOException("No more indices");
+                }
+            }
+            return readBuffer.getInt() & 0xFFFFFFFFL;
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.docdoku.server.converters.utils.mesh;
+
+import com.docdoku.server.converters.utils.ConverterConfiguration;
+import com.docdoku.server.converters.utils.ExtendedConversionResult;
+import com.docdoku.server.converters.utils.PostProcessor;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Split large converted meshes, typically plants and buildings, in octree tiles streamed by the viewer.
+ * <p>
+ * The manifest is registered as the {@link #ARTIFACT} artifact, the tiles and proxies it lists as
+ * {@link #TILE_ARTIFACT} artifacts.
+ *
+ * @see OctreeTiler
+ */
+public class TilePostProcessor implements PostProcessor {
+
+    public static final String ARTIFACT = "tiles";
+    public static final String TILE_ARTIFACT = "tile";
+
+    private static final Logger LOGGER = Logger.getLogger(TilePostProcessor.class.getName());
+
+    @Override
+    public boolean isEnabled() {
+        return ConverterConfiguration.getBoolean("tiles_enabled", false);
+    }
+
+    @Override
+    public void process(ExtendedConversionResult result, Path tmpDir) throws ConversionException {
+        Path objFile = result.getConvertedFile();
+        long minTriangles = ConverterConfiguration.getLong("tiles_min_triangles", 500000);
+        ObjStatistics statistics = result.getStatistics();
+        if (statistics != null && statistics.getTriangles() < minTriangles) {
+            return;
+        }
+        String fileName = objFile.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        String baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+
+        long start = System.currentTimeMillis();
+        try {
+            SpilledMesh mesh = result.getSpilledMesh(tmpDir);
+            if (mesh.getIndexCount() / 3 < minTriangles) {
+                return;
+            }
+            List<Path> files = OctreeTiler.tile(mesh, tmpDir, baseName,
+                    ConverterConfiguration.getInt("tiles_max_triangles", 65536),
+                    ConverterConfiguration.getInt("tiles_max_depth", 6),
+                    ConverterConfiguration.getInt("tiles_proxy_triangles", 4096),
+                    ConverterConfiguration.getInt("qmesh_position_bits", 16),
+                    ConverterConfiguration.getInt("qmesh_normal_bits", 8));
+            result.addArtifact(ARTIFACT, files.get(0));
+            for (Path file : files.subList(1, files.size())) {
+                result.addArtifact(TILE_ARTIFACT, file);
+            }
+            LOGGER.log(Level.INFO, "{0}: {1} triangles split in {2} tiles and proxies in {3} ms",
+                    new Object[]{objFile.getFileName(), mesh.getIndexCount() / 3, files.size() - 1,
+                            System.currentTimeMillis() - start});
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ConversionException("Cannot tile " + objFile, e);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class BatchConversionTest {
+
+    // Writes a triangle, or fails on inputs asking for it
+    private static final String TOOL = "grep -q fail \"$1\" && { echo \"cannot read $1\" >&2; exit 1; }; "
+            + "printf 'v 0 0 0\\nv 1 0 0\\nv 0 1 0\\nf 1 2 3\\n' > \"$2\"";
+
+    private Path tmpDir;
+    private final AtomicInteger invocations = new AtomicInteger();
+    private final AtomicInteger reservedDuringInvocations = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+        tmpDir = Files.createTempDirectory("batch");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (tmpDir == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(tmpDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testResultsInOrderWithFailuresIsolated() throws Exception {
+        List<URI> files = Arrays.asList(input("first"), input("fail"), input("third"));
+        List<BatchConversionResult> results = batch(2).run(files, tmpDir.toUri());
+
+        Assert.assertEquals(3, results.size());
+        for (int i = 0; i < files.size(); i++) {
+            Assert.assertEquals(files.get(i), results.get(i).getCadFileUri());
+        }
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertTrue(results.get(1).getError().getMessage(), results.get(1).getError().getMessage()
+                .contains("cannot read"));
+        Assert.assertTrue(results.get(2).isSuccess());
+        Assert.assertEquals("v 0 0 0", Files.readAllLines(results.get(2).getResult().getConvertedFile()).get(0));
+        Assert.assertEquals(3, invocations.get());
+        close(results);
+    }
+
+    @Test
+    public void testToolRunsInTheScratchSpace() throws Exception {
+        List<BatchConversionResult> results = batch(32).run(Collections.singletonList(input("part")),
+                tmpDir.toUri());
+        Assert.assertTrue(results.get(0).isSuccess());
+        // The input was reserved in the shared scratch quota while the tool ran
+        Assert.assertEquals(1, reservedDuringInvocations.get());
+        close(results);
+        Assert.assertEquals(0, ScratchSpace.getInstance().getMemoryReserved()
+                + ScratchSpace.getInstance().getDiskReserved());
+    }
+
+    @Test
+    public void testCachedFilesDoNotRunTheTool() throws Exception {
+        URI part = input("part");
+        close(batch(32).run(Collections.singletonList(part), tmpDir.toUri()));
+        List<BatchConversionResult> results = batch(32).run(Collections.singletonList(part), tmpDir.toUri());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals(1, invocations.get());
+        close(results);
+    }
+
+    private BatchConversion batch(int maxFiles) {
+        Properties configuration = new Properties();
+        configuration.setProperty("batch_max_files", String.valueOf(maxFiles));
+        return new BatchConversion("batch-test", configuration, new FormatRoute("batch-test",
+                Collections.singletonList("cob")), (cadFile, workDir) -> {
+            invocations.incrementAndGet();
+            ScratchSpace scratch = ScratchSpace.getInstance();
+            if (scratch.getMemoryReserved() + scratch.getDiskReserved() > 0) {
+                reservedDuringInvocations.incrementAndGet();
+            }
+            Path convertedFile = workDir.resolve(UUID.randomUUID() + ".obj");
+            return new ToolInvocation(Arrays.asList("/bin/sh", "-c", TOOL, "sh", cadFile.toString(),
+                    convertedFile.toString()), convertedFile, Collections.emptyList());
+        });
+    }
+
+    /**
+     * Input whose content is new to the conversion cache.
+     */
+    private URI input(String content) throws IOException {
+        return Files.write(tmpDir.resolve(content + ".cob"), (content + " " + UUID.randomUUID() + "\n")
+                .getBytes(StandardCharsets.US_ASCII)).toUri();
+    }
+
+    private static void close(List<BatchConversionResult> results) throws IOException {
+        for (BatchConversionResult result : results) {
+            ConversionResult converted = result.getResult();
+            if (converted != null) {
+                converted.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class CadFormatTest {
+
+    private static final String STEP_HEADER = "ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION((''),'2;1');\n"
+            + "FILE_NAME('part.stp','2017-01-01T00:00:00',(''),(''),'','','');\n";
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("cad-format");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(tmpDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testTextFormats() {
+        Assert.assertEquals(CadFormat.STEP, detect(STEP_HEADER + "FILE_SCHEMA(('AUTOMOTIVE_DESIGN'));\nENDSEC;\n"));
+        Assert.assertEquals(CadFormat.IFC, detect(STEP_HEADER + "FILE_SCHEMA ( ( 'IFC2X3' ) );\nENDSEC;\n"));
+        Assert.assertEquals(CadFormat.UNKNOWN, detect(STEP_HEADER));
+        Assert.assertEquals(CadFormat.DAE, detect("<?xml version=\"1.0\"?>\n<COLLADA version=\"1.4.1\">"));
+        Assert.assertEquals(CadFormat.OBJ, detect("# part\nmtllib part.mtl\no part\nv 0 0 0\nv 1 0 0\nf 1 2 1\n"));
+        Assert.assertEquals(CadFormat.STL, detect("solid part\n  facet normal 0 0 1\n"));
+        Assert.assertEquals(CadFormat.PLY, detect("ply\r\nformat ascii 1.0\n"));
+        Assert.assertEquals(CadFormat.VRML, detect("#VRML V2.0 utf8\n"));
+        Assert.assertEquals(CadFormat.OFF, detect("OFF\n3 1 0\n"));
+        Assert.assertEquals(CadFormat.IGES, detect(String.format("%-72sS%7d%n%-72sG%7d%n", "part", 1, "1H,", 1)));
+        Assert.assertEquals(CadFormat.UNKNOWN, detect("triangles=1000\nlatency_ms=0\n"));
+    }
+
+    @Test
+    public void testBinaryFormats() {
+        ByteBuffer stl = ByteBuffer.allocate(84 + 2 * 50).order(ByteOrder.LITTLE_ENDIAN);
+        // Binary STL headers may start with "solid" too
+        stl.put("solid exported by a binary writer".getBytes(StandardCharsets.US_ASCII));
+        stl.putInt(80, 2);
+        Assert.assertEquals(CadFormat.STL, CadFormat.detect(stl.array(), stl.capacity(), stl.capacity()));
+
+        ByteBuffer threeDs = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        threeDs.putShort((short) 0x4D4D).putInt(64).putShort((short) 0x0002).putInt(10).putInt(3);
+        Assert.assertEquals(CadFormat.THREE_DS, CadFormat.detect(threeDs.array(), 64, 64));
+    }
+
+    @Test
+    public void testRoute() throws Exception {
+        FormatRoute route = new FormatRoute("all", Arrays.asList("stl", "off", "ply", "3ds", "wrl"));
+        Assert.assertTrue(route.accepts("stl"));
+        Assert.assertTrue(route.accepts(CadFormat.VRML));
+        Assert.assertFalse(route.accepts(CadFormat.STEP));
+
+        Path stl = write("part.stl", "solid part\nendsolid part\n");
+        Assert.assertEquals(stl, route.check(stl, tmpDir));
+
+        // Mislabelled, handed to the tool with the extension of its content
+        Path mislabelled = write("part.dat", "ply\nformat ascii 1.0\n");
+        Path checked = route.check(mislabelled, tmpDir);
+        Assert.assertTrue(checked.getFileName().toString().endsWith(".ply"));
+        Assert.assertArrayEquals(Files.readAllBytes(mislabelled), Files.readAllBytes(checked));
+        FormatRoute.release(mislabelled, checked);
+        Assert.assertFalse(Files.exists(checked, LinkOption.NOFOLLOW_LINKS));
+        Assert.assertTrue(Files.exists(mislabelled));
+        FormatRoute.release(stl, stl);
+        Assert.assertTrue(Files.exists(stl));
+
+        // Unrecognized content is left to the tool
+        Path unknown = write("part.3ds", "not a mesh");
+        Assert.assertEquals(unknown, route.check(unknown, tmpDir));
+
+        Path step = write("part.stl", STEP_HEADER + "FILE_SCHEMA(('CONFIG_CONTROL_DESIGN'));\n");
+        try {
+            route.check(step, tmpDir);
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertTrue(e.getMessage().contains("STEP"));
+        }
+    }
+
+    @Test
+    public void testGuessesDoNotOverrideTheExtension() throws Exception {
+        // Text formats of other converters may look like OFF, ASCII STL or OBJ content
+        Assert.assertEquals(CadFormat.UNKNOWN, CadFormat.detect(write("scene.scn", "OFF\n3 1 0\n"), true));
+        FormatRoute dae = new FormatRoute("dae", Arrays.asList("dxf", "dae", "x", "ac", "cob", "scn"));
+        Path scene = write("scene.scn", "OFF\n3 1 0\n");
+        Assert.assertEquals(scene, dae.check(scene, tmpDir));
+        Path objects = write("objects.x", "o cube\nv 0 0 0\n");
+        Assert.assertEquals(objects, dae.check(objects, tmpDir));
+
+        // An accepted extension is kept over a guess, a signature still wins
+        FormatRoute all = new FormatRoute("all", Arrays.asList("stl", "off", "ply"));
+        Path off = write("part.off", "solid part\nendsolid part\n");
+        Assert.assertEquals(off, all.check(off, tmpDir));
+        Path ply = write("part.off", "ply\nformat ascii 1.0\n");
+        Path checked = all.check(ply, tmpDir);
+        Assert.assertTrue(checked.getFileName().toString().endsWith(".ply"));
+        FormatRoute.release(ply, checked);
+
+        // The header of a format of another converter is rejected whatever the extension
+        Path step = write("scene.x", STEP_HEADER + "FILE_SCHEMA(('AUTOMOTIVE_DESIGN'));\n");
+        try {
+            dae.check(step, tmpDir);
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertTrue(e.getMessage().contains("STEP"));
+        }
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(tmpDir.resolve(name), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static CadFormat detect(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.US_ASCII);
+        return CadFormat.detect(bytes, bytes.length, bytes.length);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+public class ConversionCacheTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("conversion-cache-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(tmpDir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        ConversionCache cache = new ConversionCache(tmpDir.resolve("cache"), 1024 * 1024);
+        Path cadFile = write("part.step", "ISO-10303-21;");
+        Properties conf = new Properties();
+        conf.setProperty("pythonInterpreter", "/usr/bin/python");
+
+        String key = cache.key(cadFile, "step", conf);
+        Assert.assertNotNull(key);
+        Assert.assertNull(cache.get(key, tmpDir));
+        Assert.assertEquals(1, cache.getMisses());
+
+        Path obj = write("result.obj", "mtllib result.obj.mtl\nv 0 0 0\n");
+        Path mtl = write("result.obj.mtl", "newmtl default\n");
+        cache.put(key, new ConversionResult(obj, Collections.singletonList(mtl)));
+
+        Path otherTmpDir = Files.createDirectory(tmpDir.resolve("other"));
+        ConversionResult cached = cache.get(key, otherTmpDir);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(otherTmpDir.resolve("result.obj"), cached.getConvertedFile());
+        Assert.assertEquals("newmtl default\n",
+                new String(Files.readAllBytes(cached.getMaterials().get(0)), StandardCharsets.UTF_8));
+
+        // Same content for another converter, or another configuration, is another entry
+        Assert.assertNotEquals(key, cache.key(cadFile, "ifc", conf));
+        conf.setProperty("pythonInterpreter", "/usr/bin/python3");
+        Assert.assertNotEquals(key, cache.key(cadFile, "step", conf));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        ConversionCache cache = new ConversionCache(tmpDir.resolve("cache"), 25);
+        Properties conf = new Properties();
+
+        String first = cache.key(write("a.obj", "a"), "obj", conf);
+        String second = cache.key(write("b.obj", "b"), "obj", conf);
+        String third = cache.key(write("c.obj", "c"), "obj", conf);
+
+        cache.put(first, new ConversionResult(write("first.obj", "0123456789")));
+        cache.put(second, new ConversionResult(write("second.obj", "0123456789")));
+        Assert.assertNotNull(cache.get(first, Files.createTempDirectory(tmpDir, "out")));
+
+        cache.put(third, new ConversionResult(write("third.obj", "0123456789")));
+
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(20, cache.getSize());
+        Assert.assertNull(cache.get(second, Files.createTempDirectory(tmpDir, "out")));
+        Assert.assertNotNull(cache.get(first, Files.createTempDirectory(tmpDir, "out")));
+
+        // Entries survive a restart
+        Assert.assertEquals(2, new ConversionCache(tmpDir.resolve("cache"), 25).getEntryCount());
+    }
+
+    @Test
+    public void testApplicationsShareTheSizeLimit() throws Exception {
+        // One cache per converter application, on the same directory
+        ConversionCache dae = new ConversionCache(tmpDir.resolve("cache"), 25);
+        ConversionCache ifc = new ConversionCache(tmpDir.resolve("cache"), 25);
+        Properties conf = new Properties();
+
+        String first = dae.key(write("a.dae", "a"), "dae", conf);
+        String second = ifc.key(write("b.ifc", "b"), "ifc", conf);
+        String third = ifc.key(write("c.ifc", "c"), "ifc", conf);
+
+        dae.put(first, new ConversionResult(write("first.obj", "0123456789")));
+        ifc.put(second, new ConversionResult(write("second.obj", "0123456789")));
+        Assert.assertNotNull(ifc.get(first, Files.createTempDirectory(tmpDir, "out")));
+        Assert.assertEquals(2, ifc.getEntryCount());
+
+        ifc.put(third, new ConversionResult(write("third.obj", "0123456789")));
+        Assert.assertEquals(20, ifc.getSize());
+        Assert.assertNull(dae.get(second, Files.createTempDirectory(tmpDir, "out")));
+        Assert.assertNotNull(dae.get(first, Files.createTempDirectory(tmpDir, "out")));
+
+        // An entry deleted by another application is a miss, and is no longer counted
+        try (Stream<Path> walk = Files.walk(tmpDir.resolve("cache").resolve(first))) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        Assert.assertNull(dae.get(first, Files.createTempDirectory(tmpDir, "out")));
+        Assert.assertEquals(1, new ConversionCache(tmpDir.resolve("cache"), 25).getEntryCount());
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(tmpDir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ConversionEstimateTest {
+
+    @Test
+    public void testStepEntities() throws Exception {
+        Path file = Files.createTempFile("estimate", ".stp");
+        try {
+            Files.write(file, ("ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION((''),'2;1');\n"
+                    + "FILE_SCHEMA(('AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }'));\nENDSEC;\nDATA;\n"
+                    + "#1=PRODUCT('part','part','',(#2));\n"
+                    + "#3=ADVANCED_FACE('',(#4),#5,.T.);\n"
+                    + "#6=ADVANCED_FACE('',(#7),#8,.F.);\n"
+                    + "#9=B_SPLINE_SURFACE_WITH_KNOTS('',3,3,((#10,#11)),.UNSPECIFIED.,.F.,.F.,.F.,(4),(4),(0.,1.),"
+                    + "(0.,1.),.UNSPECIFIED.);\n"
+                    + "#12=(NAMED_UNIT(*)PLANE_ANGLE_UNIT()SI_UNIT($,.RADIAN.));\n"
+                    + "#13=( LENGTH_UNIT() NAMED_UNIT(*) SI_UNIT(.MILLI.,.METRE.) );\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            ConversionEstimate estimate = ConversionEstimate.of("step", file);
+            Assert.assertTrue(estimate.isCounted());
+            Assert.assertEquals("AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }", estimate.getMetadata().getSchema());
+            Assert.assertEquals("MILLIMETRE", estimate.getMetadata().getLengthUnit());
+            Assert.assertEquals(2, estimate.getFaces());
+            Assert.assertEquals(1, estimate.getBSplineSurfaces());
+            Assert.assertEquals(1, estimate.getProducts());
+            Assert.assertEquals(10, estimate.getEntities());
+            // 10 entities, 2 faces, 1 surface and 1 product with the default weights
+            Assert.assertEquals(7, estimate.getEstimatedMillis());
+            Assert.assertEquals(1, estimate.getCost());
+            Assert.assertEquals(900_000, estimate.getTimeoutMillis());
+            estimate.check();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testIfcUnitAndProducts() throws Exception {
+        Path file = Files.createTempFile("estimate", ".ifc");
+        try {
+            Files.write(file, ("ISO-10303-21;\nHEADER;\nFILE_SCHEMA(('IFC4'));\nENDSEC;\nDATA;\n"
+                    + "#1=IFCSIUNIT(*,.AREAUNIT.,$,.SQUARE_METRE.);\n"
+                    + "#2=IFCCONVERSIONBASEDUNIT(#3,.LENGTHUNIT.,'FOOT',#4);\n"
+                    + "#5=IFCWALL('2O2Fr$t4X7Zf8NOew3FLOH',#6,'Wall',$,$,#7,#8,$,$);\n"
+                    + "#8=IFCPRODUCTDEFINITIONSHAPE($,$,(#9));\n"
+                    + "#10=IFCBOOLEANCLIPPINGRESULT(.DIFFERENCE.,#11,#12);\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            ConversionEstimate estimate = ConversionEstimate.of("ifc", file);
+            Assert.assertEquals("IFC4", estimate.getMetadata().getSchema());
+            Assert.assertEquals("FOOT", estimate.getMetadata().getLengthUnit());
+            Assert.assertEquals(1, estimate.getProducts());
+            Assert.assertEquals(1, estimate.getBooleans());
+            Assert.assertEquals(0, estimate.getFaces());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSizeBasedEstimate() throws Exception {
+        Path file = Files.createTempFile("estimate", ".obj");
+        try {
+            Files.write(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes(StandardCharsets.US_ASCII));
+
+            ConversionEstimate estimate = ConversionEstimate.of("all", file);
+            Assert.assertFalse(estimate.isCounted());
+            Assert.assertNull(estimate.getMetadata().getSchema());
+            Assert.assertEquals(ConversionScheduler.estimateCost("all", file), estimate.getCost());
+            Assert.assertEquals(ProcessRunner.forConverter("all").getTimeoutMillis(), estimate.getTimeoutMillis());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
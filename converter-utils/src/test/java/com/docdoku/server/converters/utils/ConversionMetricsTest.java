@@ -0,0 +1,166 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class ConversionMetricsTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("conversion-metrics");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(tmpDir);
+    }
+
+    @Test
+    public void testConversionsAreRecordedByConverterAndExtension() throws IOException {
+        ConversionMetrics metrics = new ConversionMetrics(true, false);
+        Path cadFile = Files.write(tmpDir.resolve("part.STP"), new byte[2048]);
+        Path objFile = Files.write(tmpDir.resolve("part.obj"), new byte[100]);
+
+        try (ConversionMetrics.Conversion conversion = metrics.start("step", cadFile)) {
+            ConversionMetrics.recordQueueWait(TimeUnit.MILLISECONDS.toNanos(1500));
+            ConversionMetrics.recordProcess(0, false);
+            conversion.succeeded(new ConversionResult(objFile));
+        }
+        try (ConversionMetrics.Conversion conversion = metrics.start("step", cadFile)) {
+            ConversionMetrics.recordProcess(137, true);
+        }
+        // Outside of a conversion, ignored
+        ConversionMetrics.recordProcess(1, false);
+
+        ConversionMetrics.Series series = metrics.getSeries().iterator().next();
+        Assert.assertEquals("step", series.getConverter());
+        Assert.assertEquals("stp", series.getExtension());
+        Assert.assertEquals(2, series.getConversions());
+        Assert.assertEquals(1, series.getConverted());
+        Assert.assertEquals(1, series.getFailures());
+        Assert.assertEquals(1, series.getTimeouts());
+        Assert.assertEquals(2, series.getConversionsLastMinute());
+        Assert.assertEquals(4096, series.getInputBytes());
+        Assert.assertEquals(100, series.getOutputBytes());
+        Assert.assertEquals(1500, series.getMaxQueueWaitMillis(), 1e-6);
+        Assert.assertEquals(Long.valueOf(1), series.getExitCodes().get("137"));
+        Assert.assertEquals(Long.valueOf(1), series.getExitCodes().get("0"));
+    }
+
+    @Test
+    public void testPrometheusFormat() throws IOException {
+        ConversionMetrics metrics = new ConversionMetrics(true, false);
+        try (ConversionMetrics.Conversion conversion = metrics.start("dae", tmpDir.resolve("missing.dae"))) {
+            ConversionMetrics.recordCacheHit();
+            conversion.succeeded(null);
+        }
+
+        StringWriter text = new StringWriter();
+        metrics.writePrometheus(text);
+        String exposition = text.toString();
+        Assert.assertTrue(exposition.contains(
+                "docdoku_conversions_total{converter=\"dae\",extension=\"dae\",outcome=\"cached\"} 1\n"));
+        Assert.assertTrue(exposition.contains(
+                "docdoku_conversion_duration_seconds_bucket{converter=\"dae\",extension=\"dae\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(exposition.contains("# TYPE docdoku_conversion_queue_wait_seconds histogram\n"));
+        // The input size of a missing file is unknown
+        Assert.assertTrue(exposition.contains(
+                "docdoku_conversion_input_bytes_count{converter=\"dae\",extension=\"dae\"} 0\n"));
+    }
+
+    @Test
+    public void testExtensionLabels() {
+        Assert.assertEquals("ifc", ConversionMetrics.extension(tmpDir.resolve("building.IFC")));
+        Assert.assertEquals("none", ConversionMetrics.extension(tmpDir.resolve("README")));
+        Assert.assertEquals("other", ConversionMetrics.extension(tmpDir.resolve("part.st p")));
+    }
+
+    @Test
+    public void testConverterName() {
+        Assert.assertEquals("step", ConversionMetricsInterceptor.converterName(StepFileConverterImpl.class));
+        Assert.assertEquals("step", ConversionMetricsInterceptor.converterName(ContainerProxy.class));
+    }
+
+    @Test
+    public void testHistogramQuantiles() {
+        Histogram histogram = new Histogram(Histogram.exponentialBounds(1, 2, 8));
+        for (int value = 1; value <= 100; value++) {
+            histogram.observe(value);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(5050, histogram.getSum(), 1e-9);
+        Assert.assertEquals(100, histogram.getMax(), 1e-9);
+        Assert.assertEquals(50, histogram.getQuantile(0.5), 2);
+        Assert.assertEquals(100, histogram.getQuantile(1), 1e-9);
+    }
+
+    @Test
+    public void testEndpointReleasesItsPort() throws IOException {
+        ConversionMetrics metrics = new ConversionMetrics(true, false);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+
+        // A redeployment binds the port of the undeployed application again
+        for (int deployment = 0; deployment < 2; deployment++) {
+            MetricsEndpoint endpoint = MetricsEndpoint.start(metrics, "127.0.0.1", port);
+            Assert.assertNotNull(endpoint);
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics")
+                        .openConnection();
+                Assert.assertEquals(200, connection.getResponseCode());
+                connection.disconnect();
+            } finally {
+                endpoint.stop();
+            }
+        }
+    }
+
+    private static class StepFileConverterImpl {
+    }
+
+    private static class ContainerProxy extends StepFileConverterImpl {
+    }
+}
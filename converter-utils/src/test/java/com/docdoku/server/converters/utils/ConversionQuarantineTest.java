@@ -0,0 +1,155 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ConversionQuarantineTest {
+
+    private static final Path INPUT = Paths.get("part.stp");
+
+    @Test
+    public void testQuarantineAfterThreshold() throws Exception {
+        Path directory = Files.createTempDirectory("quarantine");
+        try {
+            ConversionQuarantine quarantine = new ConversionQuarantine(directory, 2, 3600_000);
+
+            fail(quarantine, "exit 1");
+            Assert.assertFalse(quarantine.isQuarantined("abc", "step"));
+
+            // Successful conversions and failures outside of a scope are not recorded
+            try (ConversionQuarantine.Scope scope = quarantine.open()) {
+                quarantine.check("abc", "step", INPUT);
+                ConversionQuarantine.recordFailure("exit 1", "retried");
+                scope.succeeded();
+            }
+            ConversionQuarantine.recordFailure("exit 1", "no conversion");
+            Assert.assertFalse(quarantine.isQuarantined("abc", "step"));
+
+            fail(quarantine, "signal 11");
+            Assert.assertTrue(quarantine.isQuarantined("abc", "step"));
+            try {
+                quarantine.check("abc", "step", INPUT);
+                Assert.fail();
+            } catch (ConversionException e) {
+                Assert.assertTrue(e.getMessage().contains("2 times (signal 11: Segmentation fault)"));
+            }
+            Assert.assertFalse(quarantine.isQuarantined("def", "step"));
+
+            Assert.assertEquals(0, quarantine.clear("ifc"));
+            Assert.assertEquals(1, quarantine.clear("step"));
+            Assert.assertFalse(quarantine.isQuarantined("abc", "step"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        Path directory = Files.createTempDirectory("quarantine");
+        try {
+            ConversionQuarantine quarantine = new ConversionQuarantine(directory, 1, -1);
+            fail(quarantine, "timeout");
+            Assert.assertFalse(quarantine.isQuarantined("abc", "step"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void testCorruptRecordOverwritten() throws Exception {
+        Path directory = Files.createTempDirectory("quarantine");
+        try {
+            ConversionQuarantine quarantine = new ConversionQuarantine(directory, 1, 3600_000);
+            Path record = directory.resolve("abc.properties");
+            for (String corrupt : new String[]{"failures=x\nlastFailure=1\n",
+                    "failures=3\nlastFailure=" + System.currentTimeMillis() + "x\n"}) {
+                Files.write(record, corrupt.getBytes(StandardCharsets.ISO_8859_1));
+                Assert.assertFalse(quarantine.isQuarantined("abc", "step"));
+                quarantine.check("abc", "step", INPUT);
+            }
+
+            fail(quarantine, "exit 1");
+            Assert.assertTrue(quarantine.isQuarantined("abc", "step"));
+            Assert.assertTrue(new String(Files.readAllBytes(record), StandardCharsets.ISO_8859_1)
+                    .contains("failures=1"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void testFailuresOfTasksOnOtherThreads() throws Exception {
+        Path directory = Files.createTempDirectory("quarantine");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ConversionQuarantine quarantine = new ConversionQuarantine(directory, 1, 3600_000);
+            try (ConversionQuarantine.Scope scope = quarantine.open()) {
+                quarantine.check("abc", "ifc", INPUT);
+                ConversionContext context = ConversionContext.capture();
+                executor.submit(context.wrap(() -> {
+                    ConversionQuarantine.recordFailure("timeout", "timed out after 10 ms");
+                    return null;
+                })).get();
+                // The executing thread is left out of the conversion once the task is done
+                executor.submit(() -> ConversionQuarantine.recordFailure("exit 1", "not part of it")).get();
+            }
+            Assert.assertTrue(quarantine.isQuarantined("abc", "ifc"));
+            try {
+                quarantine.check("abc", "ifc", INPUT);
+                Assert.fail();
+            } catch (ConversionException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("(timeout: timed out after 10 ms)"));
+            }
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void fail(ConversionQuarantine quarantine, String errorClass) throws ConversionException {
+        try (ConversionQuarantine.Scope scope = quarantine.open()) {
+            quarantine.check("abc", "step", INPUT);
+            ConversionQuarantine.recordFailure(errorClass, "Segmentation fault");
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws Exception {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class ConversionSchedulerTest {
+
+    @Test
+    public void testConverterLimit() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler(4, 1, 10, 100);
+
+        ConversionScheduler.Permit permit = scheduler.acquire("step");
+        try {
+            scheduler.acquire("step");
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals(1, scheduler.getStatistics().getTimedOut());
+        }
+
+        // Another converter is not blocked by the step limit
+        scheduler.acquire("ifc").close();
+        permit.close();
+        scheduler.acquire("step").close();
+
+        Assert.assertEquals(0, scheduler.getStatistics().getRunning());
+        Assert.assertEquals(3, scheduler.getStatistics().getAdmitted());
+    }
+
+    @Test
+    public void testQueueCapacity() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler(1, 1, 0, 1000);
+        try (ConversionScheduler.Permit permit = scheduler.acquire("dae")) {
+            scheduler.acquire("dae");
+            Assert.fail();
+        } catch (CADConverter.ConversionException e) {
+            Assert.assertEquals(1, scheduler.getStatistics().getRejected());
+        }
+    }
+
+    @Test
+    public void testWaitingConversionIsScheduledOnRelease() throws Exception {
+        final ConversionScheduler scheduler = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30));
+        ConversionScheduler.Permit permit = scheduler.acquire("all");
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try (ConversionScheduler.Permit second = scheduler.acquire("ifc")) {
+                done.countDown();
+            } catch (CADConverter.ConversionException e) {
+                // Let the assertion fail
+            }
+        });
+        waiter.start();
+
+        while (scheduler.getStatistics().getQueueDepth() == 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, done.getCount());
+
+        permit.close();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        waiter.join();
+        Assert.assertEquals(0, scheduler.getStatistics().getRunning());
+        Assert.assertEquals(1, scheduler.getStatistics().getPeakQueueDepth());
+    }
+
+    @Test
+    public void testSmallConversionsOvertakeLargeOnes() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                TimeUnit.SECONDS.toMillis(30));
+        List<String> order = runQueued(scheduler,
+                new Job("large", 800, ConversionScheduler.Origin.INTERACTIVE),
+                new Job("small-1", 1, ConversionScheduler.Origin.INTERACTIVE),
+                new Job("small-2", 2, ConversionScheduler.Origin.INTERACTIVE));
+        Assert.assertEquals(Arrays.asList("small-1", "small-2", "large"), order);
+    }
+
+    @Test
+    public void testInteractiveConversionsGetTheLargerShare() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                TimeUnit.SECONDS.toMillis(30));
+        List<String> order = runQueued(scheduler,
+                new Job("bulk-1", 8, ConversionScheduler.Origin.BULK),
+                new Job("bulk-2", 8, ConversionScheduler.Origin.BULK),
+                new Job("interactive-1", 8, ConversionScheduler.Origin.INTERACTIVE),
+                new Job("interactive-2", 8, ConversionScheduler.Origin.INTERACTIVE));
+        Assert.assertEquals(Arrays.asList("interactive-1", "interactive-2", "bulk-1", "bulk-2"), order);
+    }
+
+    @Test
+    public void testOvertakenConversionGoesFirst() throws Exception {
+        ConversionScheduler scheduler = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64, 0);
+        List<String> order = runQueued(scheduler,
+                new Job("large", 800, ConversionScheduler.Origin.BULK),
+                new Job("small", 1, ConversionScheduler.Origin.INTERACTIVE));
+        Assert.assertEquals(Arrays.asList("large", "small"), order);
+    }
+
+    @Test
+    public void testGlobalPermitsAreSharedByTheApplications() throws Exception {
+        Path nodeDirectory = Files.createTempDirectory("slots");
+        try {
+            // One scheduler per converter application, each allowing two processes
+            ConversionScheduler dae = new ConversionScheduler(2, 2, 10, 200, 4, 1, 64, 200, nodeDirectory);
+            ConversionScheduler ifc = new ConversionScheduler(2, 2, 10, 200, 4, 1, 64, 200, nodeDirectory);
+            ConversionScheduler.Permit first = dae.acquire("dae");
+            ConversionScheduler.Permit second = ifc.acquire("ifc");
+            try {
+                ifc.acquire("ifc");
+                Assert.fail();
+            } catch (CADConverter.ConversionException e) {
+                Assert.assertEquals(1, ifc.getStatistics().getTimedOut());
+                Assert.assertEquals(1, ifc.getStatistics().getRunning());
+            }
+
+            first.close();
+            ifc.acquire("ifc").close();
+            second.close();
+        } finally {
+            try (Stream<Path> files = Files.list(nodeDirectory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(nodeDirectory);
+        }
+    }
+
+    @Test
+    public void testFairQueueingAcrossApplications() throws Exception {
+        Path nodeDirectory = Files.createTempDirectory("slots");
+        try {
+            ConversionScheduler ifc = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                    TimeUnit.SECONDS.toMillis(30), nodeDirectory);
+            ConversionScheduler dae = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                    TimeUnit.SECONDS.toMillis(30), nodeDirectory);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            ConversionScheduler.Permit permit = ifc.acquire("ifc");
+
+            // The small mesh of another application overtakes the large model queued first
+            Thread large = queue(ifc, "ifc", 800, order);
+            Thread small = queue(dae, "dae", 1, order);
+            permit.close();
+            large.join(TimeUnit.SECONDS.toMillis(10));
+            small.join(TimeUnit.SECONDS.toMillis(10));
+            Assert.assertEquals(Arrays.asList("dae/1", "ifc/800"), order);
+            Assert.assertEquals(0, ifc.getStatistics().getQueueDepth());
+        } finally {
+            deleteRecursively(nodeDirectory);
+        }
+    }
+
+    @Test
+    public void testWaitingOnTheNodeDoesNotHoldTheConverterLimit() throws Exception {
+        Path nodeDirectory = Files.createTempDirectory("slots");
+        try {
+            // The step application allows two processes, the node one
+            ConversionScheduler step = new ConversionScheduler(1, 2, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                    TimeUnit.SECONDS.toMillis(30), nodeDirectory);
+            ConversionScheduler ifc = new ConversionScheduler(1, 1, 10, TimeUnit.SECONDS.toMillis(30), 4, 1, 64,
+                    TimeUnit.SECONDS.toMillis(30), nodeDirectory);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            ConversionScheduler.Permit permit = ifc.acquire("ifc");
+
+            Thread large = queue(step, "step", 800, order);
+            Thread small = queue(step, "step", 1, order);
+            permit.close();
+            large.join(TimeUnit.SECONDS.toMillis(10));
+            small.join(TimeUnit.SECONDS.toMillis(10));
+            Assert.assertEquals(Arrays.asList("step/1", "step/800"), order);
+        } finally {
+            deleteRecursively(nodeDirectory);
+        }
+    }
+
+    @Test
+    public void testOriginScope() {
+        Assert.assertEquals(ConversionScheduler.Origin.INTERACTIVE, ConversionScheduler.getOrigin());
+        try (ConversionScheduler.OriginScope scope = ConversionScheduler.withOrigin(ConversionScheduler.Origin.BULK)) {
+            Assert.assertEquals(ConversionScheduler.Origin.BULK, ConversionScheduler.getOrigin());
+        }
+        Assert.assertEquals(ConversionScheduler.Origin.INTERACTIVE, ConversionScheduler.getOrigin());
+    }
+
+    /**
+     * Queue a conversion in its own thread, and wait until it is queued.
+     */
+    private static Thread queue(ConversionScheduler scheduler, String converter, long cost, List<String> order)
+            throws Exception {
+        int queueDepth = scheduler.getStatistics().getQueueDepth();
+        Thread thread = new Thread(() -> {
+            try (ConversionScheduler.Permit granted = scheduler.acquire(converter, cost,
+                    ConversionScheduler.Origin.INTERACTIVE)) {
+                order.add(converter + "/" + cost);
+            } catch (CADConverter.ConversionException e) {
+                order.add(e.getMessage());
+            }
+        });
+        thread.start();
+        while (scheduler.getStatistics().getQueueDepth() == queueDepth) {
+            Thread.sleep(5);
+        }
+        return thread;
+    }
+
+    private static void deleteRecursively(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Queue the jobs one after the other behind a running conversion, then return the order they were granted in.
+     */
+    private static List<String> runQueued(ConversionScheduler scheduler, Job... jobs) throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        ConversionScheduler.Permit permit = scheduler.acquire("all");
+        for (Job job : jobs) {
+            Thread thread = new Thread(() -> {
+                try (ConversionScheduler.Permit granted = scheduler.acquire("all", job.cost, job.origin)) {
+                    order.add(job.name);
+                } catch (CADConverter.ConversionException e) {
+                    order.add(e.getMessage());
+                }
+            });
+            int queueDepth = scheduler.getStatistics().getQueueDepth();
+            thread.start();
+            threads.add(thread);
+            while (scheduler.getStatistics().getQueueDepth() == queueDepth) {
+                Thread.sleep(5);
+            }
+        }
+        permit.close();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        return order;
+    }
+
+    private static class Job {
+        private final String name;
+        private final long cost;
+        private final ConversionScheduler.Origin origin;
+
+        Job(String name, long cost, ConversionScheduler.Origin origin) {
+            this.name = name;
+            this.cost = cost;
+            this.origin = origin;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.ConversionResult;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ObjPipeTest {
+
+    private static final String OBJ = "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\nf 1 2 3\nf 2 4 3\n";
+
+    @Test
+    public void testStatisticsReadWhileWriting() throws Exception {
+        Path dir = Files.createTempDirectory("pipe");
+        try {
+            Path source = Files.write(dir.resolve("source.txt"), OBJ.getBytes(StandardCharsets.US_ASCII));
+            Path objFile = dir.resolve("converted.obj");
+            try (ObjPipe pipe = ObjPipe.open(objFile)) {
+                Assume.assumeTrue(pipe.isActive());
+                Assert.assertEquals(0, run("cat '" + source + "' > '" + objFile + "'"));
+
+                ExtendedConversionResult result = pipe.finish(new ConversionResult(objFile));
+                Assert.assertNotNull(result.getStatistics());
+                Assert.assertEquals(2, result.getStatistics().getTriangles());
+                Assert.assertTrue(Files.isRegularFile(objFile));
+                Assert.assertEquals(OBJ, new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII));
+            }
+            Assert.assertEquals(2, Files.list(dir).count());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testFileRenamedOverPipe() throws Exception {
+        Path dir = Files.createTempDirectory("pipe");
+        try {
+            Path objFile = dir.resolve("converted.obj");
+            try (ObjPipe pipe = ObjPipe.open(objFile)) {
+                Assume.assumeTrue(pipe.isActive());
+                Files.write(dir.resolve("tool.tmp"), OBJ.getBytes(StandardCharsets.US_ASCII));
+                Assert.assertEquals(0, run("mv '" + dir.resolve("tool.tmp") + "' '" + objFile + "'"));
+
+                ExtendedConversionResult result = pipe.finish(new ConversionResult(objFile));
+                Assert.assertNull(result.getStatistics());
+                Assert.assertEquals(OBJ, new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII));
+            }
+            Assert.assertEquals(1, Files.list(dir).count());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testFailedToolCleanedUp() throws Exception {
+        Path dir = Files.createTempDirectory("pipe");
+        try {
+            try (ObjPipe pipe = ObjPipe.open(dir.resolve("converted.obj"))) {
+                Assume.assumeTrue(pipe.isActive());
+                Assert.assertEquals(1, run("exit 1"));
+            }
+            Assert.assertEquals(0, Files.list(dir).count());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testPipeNeverOpenedByTheTool() throws Exception {
+        Path dir = Files.createTempDirectory("pipe");
+        try {
+            // The pipe is released as soon as the tool exits, possibly before the reader opened it
+            for (int i = 0; i < 20; i++) {
+                Path objFile = dir.resolve("converted" + i + ".obj");
+                try (ObjPipe pipe = ObjPipe.open(objFile)) {
+                    Assume.assumeTrue(pipe.isActive());
+                    Files.delete(objFile);
+                    Files.write(objFile, OBJ.getBytes(StandardCharsets.US_ASCII));
+                    Assert.assertNull(pipe.finish(new ConversionResult(objFile)).getStatistics());
+                }
+                Assert.assertEquals(OBJ, new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII));
+            }
+            Assert.assertEquals(20, Files.list(dir).count());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testToolKilledWhileWriting() throws Exception {
+        Path dir = Files.createTempDirectory("pipe");
+        try {
+            Path objFile = dir.resolve("converted.obj");
+            try (ObjPipe pipe = ObjPipe.open(objFile)) {
+                Assume.assumeTrue(pipe.isActive());
+                Process tool = new ProcessBuilder("sh", "-c", "exec yes 'v 0 0 0' > '" + objFile + "'").start();
+                Thread.sleep(200);
+                tool.destroyForcibly().waitFor();
+            }
+            Assert.assertEquals(0, Files.list(dir).count());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static int run(String script) throws Exception {
+        return new ProcessBuilder("sh", "-c", script).inheritIO().start().waitFor();
+    }
+
+    private static void deleteRecursively(Path path) throws Exception {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+public class ProcessRunnerTest {
+
+    @Test
+    public void testBothOutputsAreDrained() throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+        // Fills the error pipe well beyond its capacity before writing to the standard output
+        ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c",
+                "i=0; while [ $i -lt 20000 ]; do echo error line $i >&2; i=$((i+1)); done; echo done; exit 3");
+        ProcessResult result = new ProcessRunner(60000, 1024).run(pb);
+
+        Assert.assertFalse(result.isTimedOut());
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(3, result.getExitCode());
+        Assert.assertEquals("done\n", result.getStdOutput());
+        Assert.assertTrue(result.isOutputTruncated());
+        Assert.assertTrue(result.getErrorOutput().endsWith("error line 19999\n"));
+    }
+
+    @Test
+    public void testTimeoutKillsProcessTree() throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+        ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", "sleep 60 & sleep 60");
+        long start = System.currentTimeMillis();
+        ProcessResult result = new ProcessRunner(500, 1024).run(pb);
+
+        Assert.assertTrue(result.isTimedOut());
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertTrue(System.currentTimeMillis() - start < 30000);
+    }
+
+    @Test
+    public void testShellSessionRunsCommandsInOneShell() throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+        Path workDir = Files.createTempDirectory("shell-session");
+        try (ShellSession session = new ShellSession(workDir, 60000, 1024)) {
+            ProcessResult first = session.run(Arrays.asList("/bin/sh", "-c", "echo \"$1\"; echo oops >&2; exit 2",
+                    "sh", "it's quoted; $HOME"));
+            Assert.assertEquals(2, first.getExitCode());
+            Assert.assertEquals("it's quoted; $HOME\n", first.getStdOutput());
+            Assert.assertEquals("oops\n", first.getErrorOutput());
+
+            ProcessResult second = session.run(Arrays.asList("/bin/sh", "-c", "read line || echo no input"));
+            Assert.assertTrue(second.isSuccess());
+            Assert.assertEquals("no input\n", second.getStdOutput());
+            Assert.assertEquals(2, session.getInvocations());
+        }
+        try (Stream<Path> files = Files.list(workDir)) {
+            Assert.assertEquals(0, files.count());
+        }
+        Files.delete(workDir);
+    }
+
+    @Test
+    public void testShellSessionStartsAgainAfterTimeout() throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+        Path workDir = Files.createTempDirectory("shell-session");
+        try (ShellSession session = new ShellSession(workDir, 500, 1024)) {
+            ProcessResult timedOut = session.run(Arrays.asList("sleep", "60"));
+            Assert.assertTrue(timedOut.isTimedOut());
+            Assert.assertFalse(timedOut.isSuccess());
+
+            ProcessResult next = session.run(Arrays.asList("echo", "alive"));
+            Assert.assertTrue(next.isSuccess());
+            Assert.assertEquals("alive\n", next.getStdOutput());
+        }
+        Files.delete(workDir);
+    }
+
+    @Test
+    public void testShellSessionOutputsAreBounded() throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+        Path workDir = Files.createTempDirectory("shell-session");
+        try (ShellSession session = new ShellSession(workDir, 60000, 1024)) {
+            ProcessResult verbose = session.run(Arrays.asList("/bin/sh", "-c",
+                    "head -c 1000000 /dev/zero | tr '\\0' '.'; head -c 1000000 /dev/zero | tr '\\0' '!' >&2"));
+            Assert.assertTrue(verbose.isSuccess());
+            Assert.assertTrue(verbose.isOutputTruncated());
+            Assert.assertTrue(verbose.getStdOutput().endsWith(".........."));
+            Assert.assertTrue(verbose.getStdOutput().length() < 2048);
+            Assert.assertTrue(verbose.getErrorOutput().endsWith("!!!!!!!!!!"));
+
+            // Outputs without a final line feed end before the markers
+            ProcessResult unterminated = session.run(Arrays.asList("printf", "no line feed"));
+            Assert.assertEquals("no line feed", unterminated.getStdOutput());
+            Assert.assertEquals("", unterminated.getErrorOutput());
+        }
+        try (Stream<Path> files = Files.list(workDir)) {
+            Assert.assertEquals(0, files.count());
+        }
+        Files.delete(workDir);
+    }
+
+    @Test
+    public void testBoundedOutputBuffer() {
+        BoundedOutputBuffer buffer = new BoundedOutputBuffer(4);
+        buffer.write("ab".getBytes(), 0, 2);
+        Assert.assertEquals("ab", buffer.toString());
+        buffer.write("cdef".getBytes(), 0, 4);
+        Assert.assertEquals(6, buffer.getTotal());
+        Assert.assertTrue(buffer.isTruncated());
+        Assert.assertTrue(buffer.toString().endsWith("cdef"));
+        buffer.write("g".getBytes(), 0, 1);
+        Assert.assertTrue(buffer.toString().endsWith("defg"));
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.polarsys.eplmp.server.converters.CADConverter.ConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ScratchSpaceTest {
+
+    @Test
+    public void testMemoryQuota() throws Exception {
+        Path tmpDir = Files.createTempDirectory("scratch-disk");
+        Path memory = Files.createTempDirectory("scratch-memory");
+        try {
+            Path input = Files.write(tmpDir.resolve("part.stp"), new byte[100]);
+            // 100 bytes input, 400 bytes reserved for outputs: one conversion fits in memory at a time
+            ScratchSpace space = new ScratchSpace(memory.toString(), 800, 4, 50, 0, 0, 3600_000);
+
+            ScratchSpace.Allocation first = space.allocate(input, tmpDir);
+            Assert.assertTrue(first.isInMemory());
+            Assert.assertEquals(memory, first.getDirectory().getParent().getParent());
+            Assert.assertTrue(Files.exists(first.getInput()));
+            Assert.assertEquals(500, space.getMemoryReserved());
+
+            ScratchSpace.Allocation second = space.allocate(input, tmpDir);
+            Assert.assertFalse(second.isInMemory());
+            Assert.assertEquals(tmpDir, second.getDirectory());
+            Assert.assertEquals(input, second.getInput());
+            second.close();
+
+            // Attached results count by their actual size until they are closed
+            Path converted = Files.write(first.getDirectory().resolve("part.obj"), new byte[300]);
+            ExtendedConversionResult result = first.attach(new ExtendedConversionResult(converted, new ArrayList<>()));
+            first.close();
+            Assert.assertFalse(Files.exists(first.getInput()));
+            Assert.assertEquals(300, space.getMemoryReserved());
+            Assert.assertTrue(Files.exists(converted));
+
+            result.close();
+            Assert.assertEquals(0, space.getMemoryReserved());
+            Assert.assertFalse(Files.exists(first.getDirectory()));
+        } finally {
+            deleteRecursively(tmpDir);
+            deleteRecursively(memory);
+        }
+    }
+
+    @Test
+    public void testApplicationsShareTheMemoryDirectory() throws Exception {
+        Path tmpDir = Files.createTempDirectory("scratch-disk");
+        Path memory = Files.createTempDirectory("scratch-memory");
+        try {
+            // Left over by an application that is gone
+            Path stale = Files.createDirectory(memory.resolve("stale"));
+            Files.write(memory.resolve("stale.reserved"), "700".getBytes(StandardCharsets.US_ASCII));
+            Files.write(memory.resolve("stale.owner"), new byte[0]);
+
+            Path input = Files.write(tmpDir.resolve("part.stp"), new byte[100]);
+            ScratchSpace first = new ScratchSpace(memory.toString(), 800, 4, 50, 0, 0, 3600_000);
+            Assert.assertFalse(Files.exists(stale));
+            Assert.assertFalse(Files.exists(memory.resolve("stale.reserved")));
+            ScratchSpace.Allocation running = first.allocate(input, tmpDir);
+            Assert.assertTrue(running.isInMemory());
+
+            // A second application keeps the files of the first one, and their reservations count for it
+            ScratchSpace second = new ScratchSpace(memory.toString(), 800, 4, 50, 0, 0, 3600_000);
+            Assert.assertTrue(Files.exists(running.getInput()));
+            ScratchSpace.Allocation other = second.allocate(input, tmpDir);
+            Assert.assertFalse(other.isInMemory());
+            other.close();
+
+            running.close();
+            other = second.allocate(input, tmpDir);
+            Assert.assertTrue(other.isInMemory());
+            Assert.assertNotEquals(running.getDirectory().getParent(), other.getDirectory().getParent());
+            other.close();
+        } finally {
+            deleteRecursively(tmpDir);
+            deleteRecursively(memory);
+        }
+    }
+
+    @Test(expected = ConversionException.class)
+    public void testFullDisk() throws Exception {
+        Path tmpDir = Files.createTempDirectory("scratch-disk");
+        try {
+            Path input = Files.write(tmpDir.resolve("part.stp"), new byte[100]);
+            new ScratchSpace("", 0, 4, 0, Long.MAX_VALUE / 2, 10, 0).allocate(input, tmpDir);
+        } finally {
+            deleteRecursively(tmpDir);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws Exception {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class StepFileMetadataTest {
+
+    @Test
+    public void testStepHeader() throws Exception {
+        Path file = Files.createTempFile("metadata", ".stp");
+        try {
+            Files.write(file, ("ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION(('CATIA V5 STEP Exchange'),'2;1');\n"
+                    + "FILE_NAME('Bracket.stp','2017-03-14T10:22:41+00:00',('J. M\\X2\\00FC\\X0\\ller'),('none'),"
+                    + "'CATIA Version 5 Release 26','CATIA V5 - STEP AP214','');\n"
+                    + "FILE_SCHEMA(('AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }'));\nENDSEC;\nDATA;\n"
+                    + "#1=PRODUCT('Bracket','','',(#2));\n"
+                    + "#3=PRODUCT('B-12','Bolt M8','',(#2));\n"
+                    + "#4=(CONVERSION_BASED_UNIT('INCH',#5)LENGTH_UNIT()NAMED_UNIT(#6));\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            StepFileMetadata metadata = StepFileMetadata.read(file);
+            Assert.assertEquals("AUTOMOTIVE_DESIGN { 1 0 10303 214 1 1 1 1 }", metadata.getSchema());
+            Assert.assertEquals("CATIA V5 - STEP AP214", metadata.getOriginatingSystem());
+            Assert.assertEquals("CATIA Version 5 Release 26", metadata.getPreprocessorVersion());
+            Assert.assertEquals("INCH", metadata.getLengthUnit());
+            Assert.assertEquals(Arrays.asList("Bracket", "Bolt M8"), metadata.getProductNames());
+            Assert.assertEquals("J. M\u00FCller", metadata.toMap().get("author"));
+            Assert.assertEquals("2;1", metadata.toMap().get("implementation_level"));
+            Assert.assertFalse(metadata.toMap().containsKey("authorization"));
+
+            ExtendedConversionResult result = new ExtendedConversionResult(file, Collections.emptyList());
+            Assert.assertSame(result, metadata.attach(result));
+            Assert.assertEquals("Bracket.stp", result.getMetadata().get("name"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testIfcApplicationAndProject() throws Exception {
+        Path file = Files.createTempFile("metadata", ".ifc");
+        try {
+            Files.write(file, ("ISO-10303-21;\nHEADER;\nFILE_DESCRIPTION(('ViewDefinition [CoordinationView]'),'2;1');\n"
+                    + "FILE_NAME('','',(''),(''),'The EXPRESS Data Manager Version 5.02.0100.07','','');\n"
+                    + "FILE_SCHEMA(('IFC2X3'));\nENDSEC;\nDATA;\n"
+                    + "#1=IFCAPPLICATION(#2,'2019','Autodesk Revit 2019 (ENU)','Revit');\n"
+                    + "#3=IFCSIUNIT(*,.LENGTHUNIT.,.MILLI.,.METRE.);\n"
+                    + "#4=IFCPROJECT('0YvctVUKr0kugbFTf53O9L',#5,'Caf\\X\\E9 du Port',$,$,$,$,(#6),#7);\n"
+                    + "#8=IFCBUILDING('2FCZDorxHDT8NI01kdXi8P',#5,'Main building',$,$,#9,$,$,.ELEMENT.,$,$,$);\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            StepFileMetadata metadata = StepFileMetadata.read(file);
+            Assert.assertEquals("IFC2X3", metadata.getSchema());
+            Assert.assertEquals("Autodesk Revit 2019 (ENU)", metadata.getApplication());
+            Assert.assertEquals("MILLIMETRE", metadata.getLengthUnit());
+            Assert.assertEquals(Arrays.asList("Caf\u00E9 du Port", "Main building"), metadata.getProductNames());
+            Assert.assertNull(metadata.getOriginatingSystem());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testOtherFormat() throws Exception {
+        Path file = Files.createTempFile("metadata", ".obj");
+        try {
+            Files.write(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertTrue(StepFileMetadata.read(file).isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MappedFileCursorTest {
+
+    @Test
+    public void testNumbersAcrossWindows() throws Exception {
+        Path file = Files.createTempFile("cursor", ".txt");
+        try {
+            Files.write(file, "  -12.5e-1 3 0.000123 1e300 nan -inf\n42 -7 x".getBytes(StandardCharsets.US_ASCII));
+
+            // A window of 3 bytes forces most numbers to span two windows
+            try (MappedFileCursor cursor = new MappedFileCursor(file, 3)) {
+                Assert.assertEquals(-1.25, cursor.nextDouble(), 0);
+                Assert.assertEquals(3, cursor.nextDouble(), 0);
+                Assert.assertEquals(0.000123, cursor.nextDouble(), 1e-18);
+                Assert.assertEquals(1e300, cursor.nextDouble(), 1e286);
+                Assert.assertTrue(Double.isNaN(cursor.nextDouble()));
+                Assert.assertEquals(Double.NEGATIVE_INFINITY, cursor.nextDouble(), 0);
+                Assert.assertTrue(cursor.atEndOfLine());
+                cursor.skipLine();
+                Assert.assertEquals(42, cursor.nextLong());
+                Assert.assertEquals(-7, cursor.nextLong());
+                Assert.assertEquals(Long.MIN_VALUE, cursor.nextLong());
+                Assert.assertEquals('x', cursor.next());
+                Assert.assertFalse(cursor.hasRemaining());
+                Assert.assertEquals(-1, cursor.next());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class StepFileScannerTest {
+
+    @Test
+    public void testSelectedEntities() throws Exception {
+        Path file = Files.createTempFile("scanner", ".ifc");
+        try {
+            Files.write(file, ("ISO-10303-21;\nHEADER;\nFILE_SCHEMA(('IFC2X3'));\nENDSEC;\nDATA;\n"
+                    + "/* #9=IFCBUILDINGSTOREY('hidden'); */\n"
+                    + "#1=IFCWALL('a;b',$,'it''s (not) ;');\n"
+                    + "#22 = IfcBuildingStorey('2O2Fr$t4X7Zf8NOew3FLOH',#5,'Level 1',$,(#3,#4));\n"
+                    + "#23=(IFCBUILDINGSTOREY()IFCOTHER());\n"
+                    + "ENDSEC;\nEND-ISO-10303-21;\n").getBytes(StandardCharsets.US_ASCII));
+
+            List<String> visited = new ArrayList<>();
+            StepFileScanner.scan(file, new HashSet<>(Arrays.asList("FILE_SCHEMA", "IFCBUILDINGSTOREY")),
+                    (id, type, parameters) -> visited.add(id + " " + type + " " + parameters));
+
+            Assert.assertEquals(Arrays.asList("0 FILE_SCHEMA ('IFC2X3')",
+                    "22 IFCBUILDINGSTOREY '2O2Fr$t4X7Zf8NOew3FLOH',#5,'Level 1',$,(#3,#4)",
+                    "23 IFCBUILDINGSTOREY "), visited);
+
+            Map<String, Long> counts = StepFileScanner.count(file, new HashSet<>(), (id, type, parameters) -> {
+            });
+            Assert.assertEquals(3, counts.size());
+            Assert.assertEquals(Long.valueOf(2), counts.get("IFCBUILDINGSTOREY"));
+            Assert.assertEquals(Long.valueOf(1), counts.get("IFCWALL"));
+            Assert.assertEquals(Long.valueOf(1), counts.get("IFCOTHER"));
+
+            List<String> values = StepFileScanner.split("'it''s, (not)',$,(#3,#4)");
+            Assert.assertEquals(3, values.size());
+            Assert.assertEquals("it's, (not)", StepFileScanner.string(values.get(0)));
+            Assert.assertNull(StepFileScanner.string(values.get(1)));
+            Assert.assertEquals(Arrays.asList(3L, 4L), StepFileScanner.references(values.get(2)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
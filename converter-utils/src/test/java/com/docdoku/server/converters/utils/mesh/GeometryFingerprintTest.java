@@ -0,0 +1,118 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class GeometryFingerprintTest {
+
+    private static final double TOLERANCE = 1e-4;
+
+    // Irregular tetrahedron, no symmetry
+    private static final float[] TETRAHEDRON = {0, 0, 0, 3, 0, 0, 0, 2, 0, 0.5f, 0.7f, 1.3f};
+    private static final int[] TETRAHEDRON_INDICES = {0, 2, 1, 0, 1, 3, 1, 2, 3, 0, 3, 2};
+
+    @Test
+    public void testPlacedCopiesMatch() throws Exception {
+        IndexedMesh mesh = mesh(TETRAHEDRON, TETRAHEDRON_INDICES);
+        IndexedMesh placed = mesh(place(TETRAHEDRON, 0.3, 1.1, -0.7, 1200, -35, 8), TETRAHEDRON_INDICES);
+        assertSameGeometry(mesh, placed);
+
+        // Both placements of the shared geometry give back the original vertices
+        CanonicalFrame frame = CanonicalFrame.of(placed);
+        float[] canonical = GeometryFingerprint.canonicalPositions(placed, frame);
+        double[] m = frame.getTransform();
+        float[] positions = placed.getPositions();
+        for (int v = 0; v < positions.length; v += 3) {
+            for (int i = 0; i < 3; i++) {
+                double value = m[i] * canonical[v] + m[4 + i] * canonical[v + 1] + m[8 + i] * canonical[v + 2]
+                        + m[12 + i];
+                Assert.assertEquals(positions[v + i], value, 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void testMirroredCopyDoesNotMatch() throws Exception {
+        float[] mirrored = TETRAHEDRON.clone();
+        for (int v = 0; v < mirrored.length; v += 3) {
+            mirrored[v] = -mirrored[v];
+        }
+        IndexedMesh mesh = mesh(TETRAHEDRON, TETRAHEDRON_INDICES);
+        IndexedMesh mirror = mesh(mirrored, TETRAHEDRON_INDICES);
+        float[] canonical = GeometryFingerprint.canonicalPositions(mesh, CanonicalFrame.of(mesh));
+        float[] mirrorCanonical = GeometryFingerprint.canonicalPositions(mirror, CanonicalFrame.of(mirror));
+        Assert.assertFalse(GeometryFingerprint.matches(canonical, mirrorCanonical, TOLERANCE));
+    }
+
+    @Test
+    public void testSymmetricPartsMatch() throws Exception {
+        // Cube and square prism, whose principal moments are all or partly equal
+        float[] cube = {0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0, 0, 0, 1, 1, 0, 1, 1, 1, 1, 0, 1, 1};
+        float[] prism = cube.clone();
+        for (int v = 2; v < prism.length; v += 3) {
+            prism[v] *= 4;
+        }
+        int[] indices = {0, 2, 1, 0, 3, 2, 4, 5, 6, 4, 6, 7, 0, 1, 5, 0, 5, 4,
+                1, 2, 6, 1, 6, 5, 2, 3, 7, 2, 7, 6, 3, 0, 4, 3, 4, 7};
+        assertSameGeometry(mesh(cube, indices), mesh(place(cube, 0.9, -0.4, 2.1, -5, 10, 3), indices));
+        assertSameGeometry(mesh(prism, indices), mesh(place(prism, -1.3, 0.2, 0.6, 7, 7, -7), indices));
+    }
+
+    private static void assertSameGeometry(IndexedMesh mesh, IndexedMesh placed) throws Exception {
+        float[] canonical = GeometryFingerprint.canonicalPositions(mesh, CanonicalFrame.of(mesh));
+        float[] placedCanonical = GeometryFingerprint.canonicalPositions(placed, CanonicalFrame.of(placed));
+        Assert.assertEquals(GeometryFingerprint.key(mesh, canonical, Collections.emptyList()),
+                GeometryFingerprint.key(placed, placedCanonical, Collections.emptyList()));
+        Assert.assertTrue(GeometryFingerprint.matches(canonical, placedCanonical, TOLERANCE));
+    }
+
+    private static IndexedMesh mesh(float[] positions, int[] indices) {
+        return new IndexedMesh(positions, indices, new int[indices.length / 3],
+                Collections.singletonList(new IndexedMesh.Group("part", "steel")), Collections.emptyList());
+    }
+
+    /**
+     * Rotate around the x, y and z axes by the given angles, then translate.
+     */
+    private static float[] place(float[] positions, double ax, double ay, double az, double tx, double ty, double tz) {
+        float[] placed = new float[positions.length];
+        for (int v = 0; v < positions.length; v += 3) {
+            double x = positions[v];
+            double y = positions[v + 1];
+            double z = positions[v + 2];
+            double y1 = y * Math.cos(ax) - z * Math.sin(ax);
+            double z1 = y * Math.sin(ax) + z * Math.cos(ax);
+            double x2 = x * Math.cos(ay) + z1 * Math.sin(ay);
+            double z2 = -x * Math.sin(ay) + z1 * Math.cos(ay);
+            double x3 = x2 * Math.cos(az) - y1 * Math.sin(az);
+            double y3 = x2 * Math.sin(az) + y1 * Math.cos(az);
+            placed[v] = (float) (x3 + tx);
+            placed[v + 1] = (float) (y3 + ty);
+            placed[v + 2] = (float) (z2 + tz);
+        }
+        return placed;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+public class GlbWriterTest {
+
+    @Test
+    public void testWriteGlb() throws Exception {
+        Path dir = Files.createTempDirectory("glb");
+        Path objFile = dir.resolve("part.obj");
+        Path mtlFile = dir.resolve("part.mtl");
+        Path glbFile = dir.resolve("part.glb");
+        try {
+            Files.write(mtlFile, ("newmtl red\nKd 1 0 0\nd 0.5\n").getBytes(StandardCharsets.US_ASCII));
+            Files.write(objFile, ("mtllib part.mtl\n"
+                    + "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                    + "vn 0 0 2\nvn 1 0 0\n"
+                    + "g \"side\"\n"
+                    + "usemtl red\n"
+                    + "f 1//1 2//1 3//1 4//1\n"
+                    + "usemtl missing\n"
+                    + "f 1 3 2\n"
+                    + "f 1 2 7\n"
+                    + "g edge\n"
+                    + "f 1//2 2//2 3//1\n").getBytes(StandardCharsets.US_ASCII));
+
+            GlbWriter.write(objFile, Collections.singletonList(mtlFile), glbFile, dir);
+
+            ByteBuffer glb = ByteBuffer.wrap(Files.readAllBytes(glbFile)).order(ByteOrder.LITTLE_ENDIAN);
+            Assert.assertEquals(0x46546C67, glb.getInt());
+            Assert.assertEquals(2, glb.getInt());
+            Assert.assertEquals(glb.capacity(), glb.getInt());
+            int jsonLength = glb.getInt();
+            Assert.assertEquals(0, jsonLength % 4);
+            Assert.assertEquals(0x4E4F534A, glb.getInt());
+            byte[] jsonBytes = new byte[jsonLength];
+            glb.get(jsonBytes);
+            String json = new String(jsonBytes, StandardCharsets.UTF_8).trim();
+
+            // 4 triangles, the face with a missing vertex is dropped, then the 4 positions and 2 duplicates
+            // with another normal
+            int binLength = glb.getInt();
+            Assert.assertEquals(0x004E4942, glb.getInt());
+            Assert.assertEquals(12 * 4 + 6 * 24, binLength);
+            Assert.assertTrue(json.contains("\"count\":6,\"type\":\"VEC3\",\"min\":[0.0,0.0,0.0],\"max\":[1.0,1.0,0.0]"));
+            Assert.assertTrue(json.contains("\"name\":\"\\\"side\\\"\""));
+            Assert.assertTrue(json.contains("\"baseColorFactor\":[1.0,0.0,0.0,0.5]"));
+            Assert.assertTrue(json.contains("\"alphaMode\":\"BLEND\""));
+
+            int[] indices = new int[12];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = glb.getInt();
+            }
+            Assert.assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 0, 2, 1, 4, 5, 2}, indices);
+
+            float[] vertices = new float[6 * 6];
+            for (int i = 0; i < vertices.length; i++) {
+                vertices[i] = glb.getFloat();
+            }
+            Assert.assertArrayEquals(new float[]{0, 0, 0, 0, 0, 1}, Arrays.copyOfRange(vertices, 0, 6), 0);
+            Assert.assertArrayEquals(new float[]{1, 0, 0, 1, 0, 0}, Arrays.copyOfRange(vertices, 30, 36), 0);
+        } finally {
+            Files.deleteIfExists(glbFile);
+            Files.deleteIfExists(objFile);
+            Files.deleteIfExists(mtlFile);
+            try (Stream<Path> leftovers = Files.list(dir)) {
+                Assert.assertEquals(0, leftovers.count());
+            }
+            Files.delete(dir);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MeshOptimizerTest {
+
+    private static final int GRID_SIZE = 64;
+
+    @Test
+    public void testOptimizeShuffledGrid() {
+        int vertexCount = (GRID_SIZE + 1) * (GRID_SIZE + 1);
+        float[] positions = new float[vertexCount * 3];
+        for (int i = 0; i <= GRID_SIZE; i++) {
+            for (int j = 0; j <= GRID_SIZE; j++) {
+                int v = i * (GRID_SIZE + 1) + j;
+                positions[v * 3] = i;
+                positions[v * 3 + 1] = j;
+            }
+        }
+        List<int[]> triangles = new ArrayList<>();
+        for (int i = 0; i < GRID_SIZE; i++) {
+            for (int j = 0; j < GRID_SIZE; j++) {
+                int a = i * (GRID_SIZE + 1) + j;
+                int b = a + GRID_SIZE + 1;
+                triangles.add(new int[]{a, b, b + 1});
+                triangles.add(new int[]{a, b + 1, a + 1});
+            }
+        }
+        Collections.shuffle(triangles, new Random(42));
+        int[] indices = new int[triangles.size() * 3];
+        for (int t = 0; t < triangles.size(); t++) {
+            System.arraycopy(triangles.get(t), 0, indices, t * 3, 3);
+        }
+
+        double before = MeshOptimizer.acmr(indices, vertexCount, MeshOptimizer.ACMR_CACHE_SIZE);
+        int[] optimized = MeshOptimizer.optimize(indices, positions, vertexCount);
+        double after = MeshOptimizer.acmr(optimized, vertexCount, MeshOptimizer.ACMR_CACHE_SIZE);
+        Assert.assertTrue(before > 2.5);
+        Assert.assertTrue("ACMR " + after, after < 0.9);
+        Assert.assertEquals(sortedTriangles(indices), sortedTriangles(optimized));
+    }
+
+    @Test
+    public void testOptimizeObj() throws Exception {
+        Path objFile = Files.createTempFile("optimize", ".obj");
+        try {
+            // Unindexed quad, as emitted by some converters, with a second group
+            Files.write(objFile, ("mtllib part.mtl\n"
+                    + "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 0 0\nv 1 1 0\nv 0 1 0\nv 5 5 5\n"
+                    + "vt 0 0\nvt 1 1\n"
+                    + "vn 0 0 1\nvn 0 0 1\n"
+                    + "g top\nusemtl steel\n"
+                    + "f 1/1/1 2/1/1 3/2/2\n"
+                    + "f 4/1/2 5/2/2 6/1/1\n"
+                    + "g other\n"
+                    + "f 1 1 2\n"
+                    + "f 3 2 1\n").getBytes(StandardCharsets.US_ASCII));
+
+            ObjOptimizer.Result result = ObjOptimizer.optimize(objFile, objFile);
+            Assert.assertEquals(3, result.getTriangles());
+            Assert.assertEquals(12, result.getVerticesBefore());
+            Assert.assertEquals(7, result.getVerticesAfter());
+
+            ObjStatistics statistics = ObjScanner.scan(objFile);
+            Assert.assertTrue(statistics.isValid());
+            Assert.assertEquals(4, statistics.getVertices());
+            Assert.assertEquals(2, statistics.getTextureCoordinates());
+            Assert.assertEquals(1, statistics.getNormals());
+            Assert.assertEquals(3, statistics.getTriangles());
+            Assert.assertEquals(2, statistics.getGroups());
+            Assert.assertEquals(0, statistics.getDegenerateFaces());
+            Assert.assertTrue(new String(Files.readAllBytes(objFile), StandardCharsets.UTF_8)
+                    .startsWith("mtllib part.mtl\nv 0 0 0\n"));
+        } finally {
+            Files.delete(objFile);
+        }
+    }
+
+    @Test
+    public void testKeepGroupsAndMaterials() throws Exception {
+        String optimized = optimize("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "g left\nusemtl red\nf 1 2 3\n"
+                + "usemtl blue\nf 1 3 4\n"
+                + "g right\nusemtl red\nf 4 3 2\n"
+                + "g left\nusemtl red\nf 2 4 1\n");
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "g left\nusemtl red\nf 1 2 3\nf 2 4 1\n"
+                + "g left\nusemtl blue\nf 1 3 4\n"
+                + "g right\nusemtl red\nf 4 3 2\n", optimized);
+    }
+
+    @Test
+    public void testNegativeIndices() throws Exception {
+        String optimized = optimize("v 0 0 0\nv 1 0 0\nv 1 1 0\nf -3 -2 -1\n"
+                + "v 0 1 0\nf -4 -2 -1\n");
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\nf 1 2 3\nf 1 3 4\n", optimized);
+    }
+
+    @Test
+    public void testTextureCoordinatesOrNormalsOnly() throws Exception {
+        String optimized = optimize("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vt 0 0\nvt 1 0\nvt 1 1\nvn 0 0 1\n"
+                + "g textured\nf 1/1 2/2 3/3\n"
+                + "g shaded\nf 1//1 3//1 4//1\n");
+        Assert.assertEquals("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n"
+                + "vt 0.0 0.0\nvt 1.0 0.0\nvt 1.0 1.0\nvn 0.0 0.0 1.0\n"
+                + "g textured\nf 1/1 2/2 3/3\n"
+                + "g shaded\nf 1//1 3//1 4//1\n", optimized);
+    }
+
+    @Test
+    public void testKeepPositionTextAndOtherElements() throws Exception {
+        // Georeferenced coordinates do not fit a float
+        String optimized = optimize("o site\n"
+                + "v 651234.125678 6862345.987654 45.001\nv 651235.125678 6862345.987654 45.001\n"
+                + "v 651235.125678 6862346.987654 45.001 # corner\nv 651234.125678 6862346.987654 45.001 1 0 0\n"
+                + "s 1\nf 1 2 3 4\ns off\nl 1 2 3\np 4\n");
+        Assert.assertEquals("v 651234.125678 6862345.987654 45.001\nv 651235.125678 6862345.987654 45.001\n"
+                + "v 651235.125678 6862346.987654 45.001\nv 651234.125678 6862346.987654 45.001 1 0 0\n"
+                + "o site\ns 1\nf 1 2 3\nf 1 3 4\n"
+                + "s off\nl 1 2 3\np 4\n", optimized);
+    }
+
+    private static String optimize(String obj) throws Exception {
+        Path objFile = Files.createTempFile("optimize", ".obj");
+        try {
+            Files.write(objFile, obj.getBytes(StandardCharsets.US_ASCII));
+            ObjOptimizer.optimize(objFile, objFile);
+            return new String(Files.readAllBytes(objFile), StandardCharsets.US_ASCII);
+        } finally {
+            Files.delete(objFile);
+        }
+    }
+
+    private static List<String> sortedTriangles(int[] indices) {
+        List<String> triangles = new ArrayList<>();
+        for (int t = 0; t < indices.length / 3; t++) {
+            int[] triangle = Arrays.copyOfRange(indices, t * 3, t * 3 + 3);
+            // Keep the winding, start from the smallest index
+            int first = triangle[0] < triangle[1] ? (triangle[0] < triangle[2] ? 0 : 2)
+                    : (triangle[1] < triangle[2] ? 1 : 2);
+            triangles.add(triangle[first] + "," + triangle[(first + 1) % 3] + "," + triangle[(first + 2) % 3]);
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class ObjMergerTest {
+
+    @Test
+    public void testIndicesAndMaterials() throws Exception {
+        Path dir = Files.createTempDirectory("merger");
+        try {
+            Files.write(dir.resolve("a.obj"), "mtllib a.mtl\nv 0 0 0\nv 1 0 0\nv 0 1 0\nusemtl red\nf 1 2 3\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            Files.write(dir.resolve("a.mtl"), "newmtl red\nKd 1 0 0\n".getBytes(StandardCharsets.US_ASCII));
+            Files.write(dir.resolve("b.obj"), ("mtllib b.mtl\nv 0 0 1\nv 1 0 1\nv 0 1 1\nvn 0 0 1\nusemtl red\n"
+                    + "f 1//1 2//1 -1//1\n").getBytes(StandardCharsets.US_ASCII));
+            Files.write(dir.resolve("b.mtl"), "newmtl red\nKd 0.9 0 0\n".getBytes(StandardCharsets.US_ASCII));
+
+            ObjMerger.merge(Arrays.asList(dir.resolve("a.obj"), dir.resolve("missing.obj"), dir.resolve("b.obj")),
+                    dir.resolve("m.obj"), dir.resolve("m.mtl"));
+
+            String obj = new String(Files.readAllBytes(dir.resolve("m.obj")), StandardCharsets.US_ASCII);
+            Assert.assertTrue(obj.startsWith("mtllib m.mtl\n"));
+            Assert.assertTrue(obj.contains("usemtl red\nf 1 2 3\n"));
+            Assert.assertTrue(obj.contains("usemtl red_1\nf 4//1 5//1 -1//1\n"));
+            Assert.assertEquals("newmtl red\nKd 1 0 0\nnewmtl red_1\nKd 0.9 0 0\n",
+                    new String(Files.readAllBytes(dir.resolve("m.mtl")), StandardCharsets.US_ASCII));
+        } finally {
+            for (String name : Arrays.asList("a.obj", "a.mtl", "b.obj", "b.mtl", "m.obj", "m.mtl")) {
+                Files.deleteIfExists(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+
+}
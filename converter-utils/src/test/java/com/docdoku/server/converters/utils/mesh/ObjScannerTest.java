@@ -0,0 +1,139 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class ObjScannerTest {
+
+    @Test
+    public void testStatistics() throws Exception {
+        ObjStatistics statistics = scan("# cube corner\n"
+                + "mtllib part.mtl\n"
+                + "o part\n"
+                + "g side\n"
+                + "v 0 0 0\n"
+                + "v 1 0 0\n"
+                + "v 1 2 0\n"
+                + "v\t0 2 -3.5\n"
+                + "vn 0 0 1\n"
+                + "vt 0 0\n"
+                + "usemtl steel\n"
+                + "f 1//1 2//1 3//1\n"
+                + "f -4/1/1 -2/1/1 -1/1/1 # relative\n"
+                + "f 1 2 3 4\r\n"
+                + "f 1 1 2\n");
+
+        Assert.assertEquals(4, statistics.getVertices());
+        Assert.assertEquals(1, statistics.getNormals());
+        Assert.assertEquals(1, statistics.getTextureCoordinates());
+        Assert.assertEquals(4, statistics.getFaces());
+        Assert.assertEquals(5, statistics.getTriangles());
+        Assert.assertEquals(1, statistics.getGroups());
+        Assert.assertEquals(1, statistics.getObjects());
+        Assert.assertEquals(1, statistics.getMaterialSwitches());
+        Assert.assertEquals(1, statistics.getDegenerateFaces());
+        Assert.assertEquals(0, statistics.getInvalidReferences());
+        Assert.assertEquals(-3.5, statistics.getMin()[2], 0);
+        Assert.assertEquals(2, statistics.getMax()[1], 0);
+        Assert.assertTrue(statistics.isValid());
+    }
+
+    @Test
+    public void testInvalidGeometry() throws Exception {
+        ObjStatistics statistics = scan("v 0 0 0\nv nan 0 0\nv 1 1\nf 1 2 3\nf 1 2 9\nf 0 1 2\n");
+        Assert.assertEquals(2, statistics.getInvalidVertices());
+        Assert.assertEquals(2, statistics.getInvalidReferences());
+        Assert.assertFalse(statistics.isValid());
+
+        Assert.assertFalse(scan("v 0 0 0\n").isValid());
+    }
+
+    @Test
+    public void testZeroAreaTriangles() throws Exception {
+        Path dir = Files.createTempDirectory("scanner");
+        Path file = dir.resolve("part.obj");
+        try {
+            // A proper triangle, a triangle on two coincident positions and one on three collinear positions
+            Files.write(file, ("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 0 0\nv 2 0 0\nv 1000000 1000000 0\n"
+                    + "f 1 2 3\nf 1 2 4\nf 1 5 2\nf 1 2 6\n").getBytes(StandardCharsets.US_ASCII));
+            ObjStatistics statistics = ObjScanner.scan(file);
+            Assert.assertEquals(0, statistics.getDegenerateFaces());
+
+            try (SpilledMesh mesh = SpilledMesh.read(file, dir)) {
+                ObjScanner.checkTriangles(mesh, statistics);
+            }
+            Assert.assertEquals(2, statistics.getZeroAreaTriangles());
+            Assert.assertTrue(statistics.isValid());
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path child : (Iterable<Path>) files::iterator) {
+                    Files.delete(child);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testCollinearCorners() {
+        Assert.assertTrue(ObjScanner.isZeroArea(new float[]{0, 0, 0}, new float[]{0, 0, 0}, new float[]{1, 2, 3}));
+        Assert.assertTrue(ObjScanner.isZeroArea(new float[]{1e6f, 1e6f, 0}, new float[]{1e6f + 2, 1e6f + 2, 0},
+                new float[]{1e6f + 4, 1e6f + 4, 0}));
+        // Thin but not flat, whatever the scale
+        Assert.assertFalse(ObjScanner.isZeroArea(new float[]{0, 0, 0}, new float[]{1000, 0, 0},
+                new float[]{500, 0.01f, 0}));
+        Assert.assertFalse(ObjScanner.isZeroArea(new float[]{0, 0, 0}, new float[]{0.001f, 0, 0},
+                new float[]{0.0005f, 0.00001f, 0}));
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        ObjStatistics statistics = scan("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n");
+        Path sidecar = Files.createTempFile("obj", ObjStatistics.SIDECAR_EXTENSION);
+        try {
+            statistics.write(sidecar);
+            ObjStatistics read = ObjStatistics.read(sidecar);
+            Assert.assertEquals(3, read.getVertices());
+            Assert.assertEquals(1, read.getTriangles());
+            Assert.assertEquals(1, read.getMax()[0], 0);
+        } finally {
+            Files.delete(sidecar);
+        }
+    }
+
+    private static ObjStatistics scan(String content) throws Exception {
+        Path file = Files.createTempFile("scanner", ".obj");
+        try {
+            Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+            return ObjScanner.scan(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class OctreeTilerTest {
+
+    @Test
+    public void testTiles() throws Exception {
+        Path dir = Files.createTempDirectory("tiles");
+        try {
+            // Two 20 x 20 grids of quads far from each other, 1600 triangles
+            StringBuilder obj = new StringBuilder();
+            for (int grid = 0; grid < 2; grid++) {
+                obj.append("g grid").append(grid).append('\n');
+                for (int i = 0; i <= 20; i++) {
+                    for (int j = 0; j <= 20; j++) {
+                        obj.append("v ").append(grid * 100 + i).append(' ').append(j).append(" 0\n");
+                    }
+                }
+                int first = grid * 21 * 21 + 1;
+                for (int i = 0; i < 20; i++) {
+                    for (int j = 0; j < 20; j++) {
+                        int a = first + i * 21 + j;
+                        obj.append("f ").append(a).append(' ').append(a + 21).append(' ').append(a + 22)
+                                .append(' ').append(a + 1).append('\n');
+                    }
+                }
+            }
+            Path objFile = dir.resolve("plant.obj");
+            Files.write(objFile, obj.toString().getBytes(StandardCharsets.US_ASCII));
+
+            List<Path> files;
+            try (SpilledMesh mesh = SpilledMesh.read(objFile, dir)) {
+                files = OctreeTiler.tile(mesh, dir, "plant", 200, 4, 50, 16, 8);
+            }
+            Assert.assertEquals(dir.resolve("plant" + OctreeTiler.MANIFEST_EXTENSION), files.get(0));
+            String manifest = new String(Files.readAllBytes(files.get(0)), StandardCharsets.UTF_8);
+            Assert.assertTrue(manifest.startsWith("{\"version\":1,\"triangles\":1600,\"nodes\":[{\"id\":\"r\""));
+            Assert.assertTrue(manifest.contains("\"proxy\":\"plant.tile.r.proxy.qmesh\""));
+            // The grids are split apart along x and halved along y, the bounds are flat along z
+            Assert.assertTrue(manifest.contains("\"children\":[\"r0\",\"r2\",\"r4\",\"r6\"]"));
+
+            int tileTriangles = 0;
+            for (Path file : files.subList(1, files.size())) {
+                String name = file.getFileName().toString();
+                Assert.assertTrue(name, manifest.contains("\"" + name + "\""));
+                QuantizedMeshReader tile = QuantizedMeshReader.read(file);
+                if (name.endsWith(".proxy.qmesh")) {
+                    Assert.assertTrue(name, tile.getIndices().length / 3 <= 50);
+                    continue;
+                }
+                int triangles = tile.getIndices().length / 3;
+                Assert.assertTrue(name, triangles > 0 && triangles <= 200);
+                tileTriangles += triangles;
+                // Leaf tiles keep the group of their triangles
+                boolean firstGrid = name.startsWith("plant.tile.r0") || name.startsWith("plant.tile.r2");
+                Assert.assertEquals(name, firstGrid ? "grid0" : "grid1", tile.getGroup(0));
+            }
+            Assert.assertEquals(1600, tileTriangles);
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testMorton() {
+        Assert.assertEquals(0, OctreeTiler.morton(new int[]{0, 0, 0}, 2));
+        Assert.assertEquals(4, OctreeTiler.morton(new int[]{1, 0, 0}, 1));
+        Assert.assertEquals(2, OctreeTiler.morton(new int[]{0, 1, 0}, 1));
+        Assert.assertEquals(1, OctreeTiler.morton(new int[]{0, 0, 1}, 1));
+        // Octant of the upper bit first
+        Assert.assertEquals(0b100_001, OctreeTiler.morton(new int[]{2, 0, 1}, 2));
+        Assert.assertEquals(511, OctreeTiler.morton(new int[]{7, 7, 7}, 3));
+    }
+
+}
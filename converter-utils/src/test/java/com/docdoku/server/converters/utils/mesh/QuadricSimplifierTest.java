@@ -0,0 +1,87 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class QuadricSimplifierTest {
+
+    private static final int GRID_SIZE = 40;
+
+    @Test
+    public void testSimplifyGrid() throws Exception {
+        Path objFile = Files.createTempFile("grid", ".obj");
+        Path lodFile = Files.createTempFile("grid", ".lod1.obj");
+        try {
+            writeGrid(objFile);
+            IndexedMesh mesh = ObjMeshReader.read(objFile).weld();
+            Assert.assertEquals((GRID_SIZE + 1) * (GRID_SIZE + 1), mesh.getVertexCount());
+            Assert.assertEquals(2 * GRID_SIZE * GRID_SIZE, mesh.getTriangleCount());
+
+            IndexedMesh simplified = QuadricSimplifier.simplify(mesh, mesh.getTriangleCount() / 10);
+            Assert.assertTrue(simplified.getTriangleCount() <= mesh.getTriangleCount() / 10);
+            Assert.assertTrue(simplified.getTriangleCount() > 0);
+            // A flat grid keeps its borders, hence its bounds
+            Assert.assertArrayEquals(mesh.getBounds(), simplified.getBounds(), 1e-6f);
+            Assert.assertEquals(2, simplified.getGroups().size());
+
+            ObjMeshWriter.write(simplified, lodFile);
+            ObjStatistics statistics = ObjScanner.scan(lodFile);
+            Assert.assertTrue(statistics.isValid());
+            Assert.assertEquals(simplified.getTriangleCount(), statistics.getTriangles());
+            Assert.assertEquals(0, statistics.getDegenerateFaces());
+        } finally {
+            Files.delete(objFile);
+            Files.delete(lodFile);
+        }
+    }
+
+    @Test
+    public void testParseLevels() {
+        Assert.assertEquals(2, LodPostProcessor.parseLevels("0.25, 0.05").size());
+        Assert.assertEquals(1, LodPostProcessor.parseLevels("0.5,0.6,x,").size());
+    }
+
+    private static void writeGrid(Path objFile) throws Exception {
+        try (BufferedWriter writer = Files.newBufferedWriter(objFile, StandardCharsets.UTF_8)) {
+            for (int i = 0; i <= GRID_SIZE; i++) {
+                for (int j = 0; j <= GRID_SIZE; j++) {
+                    writer.write("v " + i + " " + j + " 0\n");
+                }
+            }
+            for (int i = 0; i < GRID_SIZE; i++) {
+                writer.write(i == 0 ? "g left\nusemtl red\n" : i == GRID_SIZE / 2 ? "g right\nusemtl blue\n" : "");
+                for (int j = 0; j < GRID_SIZE; j++) {
+                    int a = i * (GRID_SIZE + 1) + j + 1;
+                    int b = a + GRID_SIZE + 1;
+                    writer.write("f " + a + " " + b + " " + (b + 1) + " " + (a + 1) + "\n");
+                }
+            }
+        }
+    }
+
+}
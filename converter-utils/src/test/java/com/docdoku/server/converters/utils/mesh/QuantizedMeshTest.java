@@ -0,0 +1,90 @@
+/*
+ * DocDoku, Professional Open Source
+ * Copyright 2006 - 2017 DocDoku SARL
+ *
+ * This file is part of DocDokuPLM.
+ *
+ * DocDokuPLM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DocDokuPLM is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with DocDokuPLM.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.docdoku.server.converters.utils.mesh;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class QuantizedMeshTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("qmesh");
+        Path objFile = dir.resolve("part.obj");
+        Path qmeshFile = dir.resolve("part.qmesh");
+        try {
+            Files.write(objFile, ("v -10 0 5\nv 10 0 5\nv 10 20 5\nv -10 20 5.5\nv 3.3 7.1 5.2\n"
+                    + "vn 0 0 1\nvn 0.6 -0.8 0\n"
+                    + "g top\nusemtl steel\n"
+                    + "f 1//1 2//1 3//1 4//1\n"
+                    + "g side\n"
+                    + "f 5//2 2//2 1//2\n").getBytes(StandardCharsets.US_ASCII));
+
+            QuantizedMeshWriter.write(objFile, qmeshFile, dir, 16, 10);
+            QuantizedMeshReader mesh = QuantizedMeshReader.read(qmeshFile);
+
+            Assert.assertEquals(2, mesh.getPrimitiveCount());
+            Assert.assertEquals("top", mesh.getGroup(0));
+            Assert.assertEquals("steel", mesh.getMaterial(0));
+            Assert.assertEquals(6, mesh.getIndexCount(0));
+            Assert.assertEquals(3, mesh.getIndexCount(1));
+            Assert.assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3, 4, 5, 6}, mesh.getIndices());
+
+            // 5 positions and the 2 duplicated with the side normal
+            float[] positions = mesh.getPositions();
+            Assert.assertEquals(7 * 3, positions.length);
+            float[] expected = {-10, 0, 5, 10, 0, 5, 10, 20, 5, -10, 20, 5.5f, 3.3f, 7.1f, 5.2f};
+            for (int i = 0; i < expected.length; i++) {
+                Assert.assertEquals(expected[i], positions[i], 20f / 65535);
+            }
+            float[] normals = mesh.getNormals();
+            Assert.assertEquals(1, normals[2], 1e-6);
+            Assert.assertEquals(0.6, normals[4 * 3], 0.005);
+            Assert.assertEquals(-0.8, normals[4 * 3 + 1], 0.005);
+        } finally {
+            Files.deleteIfExists(objFile);
+            Files.deleteIfExists(qmeshFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testOctahedralNormals() {
+        int[] encoded = new int[2];
+        float[] decoded = new float[3];
+        for (int i = 0; i < 1000; i++) {
+            double theta = Math.acos(2 * ((i * 0.618034) % 1) - 1);
+            double phi = i * 2.399963;
+            float[] normal = {(float) (Math.sin(theta) * Math.cos(phi)), (float) (Math.sin(theta) * Math.sin(phi)),
+                    (float) Math.cos(theta)};
+            QuantizedMeshWriter.encodeOctahedral(normal, 8, encoded);
+            QuantizedMeshReader.decodeOctahedral(encoded[0], encoded[1], 8, decoded);
+            double dot = normal[0] * decoded[0] + normal[1] * decoded[1] + normal[2] * decoded[2];
+            // Less than 1.5 degree
+            Assert.assertTrue(dot > Math.cos(Math.toRadians(1.5)));
+        }
+    }
+
+}